@@ -4,6 +4,7 @@ package OpenRate;
 import OpenRate.exception.ExceptionHandler;
 import OpenRate.exception.InitializationException;
 import OpenRate.logging.ILogger;
+import OpenRate.record.RecordPool;
 import OpenRate.transaction.ISyncPoint;
 
 /**
@@ -97,4 +98,11 @@ public interface IPipeline
    * @return The exception handler for the pipeline
    */
   public ExceptionHandler getPipelineExceptionHandler();
+
+  /**
+   * Returns the record pool of the pipeline.
+   *
+   * @return The record pool, or null if record pooling is not configured
+   */
+  public RecordPool getRecordPool();
 }
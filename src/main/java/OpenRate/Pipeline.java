@@ -13,6 +13,9 @@ import OpenRate.exception.ProcessingException;
 import OpenRate.logging.ILogger;
 import OpenRate.logging.LogUtil;
 import OpenRate.process.IPlugIn;
+import OpenRate.record.OutputRegistry;
+import OpenRate.record.RecordPool;
+import OpenRate.threads.ThreadLauncher;
 import OpenRate.transaction.ISyncPoint;
 import OpenRate.transaction.TransactionManager;
 import OpenRate.transaction.TransactionManagerFactory;
@@ -35,7 +38,19 @@ import java.util.ListIterator;
  *
  * This version now supports output adapter chaining, which means that a single
  * record can go to multiple outputs. Not defining an output means that all
- * outputs should be written to.
+ * outputs should be written to. The output names are resolved to ids when the
+ * output adapters are created (see OutputRegistry), so that the routing of
+ * each record is a bit test.
+ *
+ * A batch pipeline can be built with several lanes (property "Lanes"). Each
+ * lane is a complete copy of the input adapter, the plug ins and the output
+ * adapters with their own buffers, so that the transactional state of the
+ * modules is kept apart, while the caches, which are shared resources, are
+ * the same for all lanes. Each lane takes its own share of the input, so that
+ * a large or slow transaction only holds up its own lane, and the other lanes
+ * carry on with the transactions behind it. The transaction manager tracks the
+ * lane of each transaction, so that each transaction is still flushed and
+ * committed or rolled back as a unit by the modules of its lane.
  */
 public class Pipeline
         extends Thread
@@ -81,9 +96,15 @@ public class Pipeline
   // loaded from a property file and instantiated via reflection.
   private final ExceptionHandler pipeExceptionHandler = new ExceptionHandler();
 
-  // And the batch input adapter for this pipe
+  // And the batch input adapter for this pipe (the one of the first lane)
   private IInputAdapter batchInputAdapter;
 
+  // The batch input adapters of all of the lanes
+  private ArrayList<IInputAdapter> batchInputAdapterList = new ArrayList<>();
+
+  // The number of copies of the processing chain in a batch pipe
+  private int lanes = 1;
+
   // And the real time input adapter for this pipe
   private IRTAdapter rtAdapter;
 
@@ -107,6 +128,20 @@ public class Pipeline
   // one thread per logical plug in)
   private ArrayList<ThreadGroup> thGrpsPlugIn = new ArrayList<>();
 
+  // the threads launched for each of the plug ins, in the same order as the
+  // thread groups. Virtual threads do not appear in the thread group counts, so
+  // we track them ourselves.
+  private ArrayList<ArrayList<Thread>> thPlugIn = new ArrayList<>();
+
+  // true if the plug in at the same index should be run on virtual threads
+  private ArrayList<Boolean> plugInVirtualThreads = new ArrayList<>();
+
+  // the pipeline default for running plug ins on virtual threads
+  private boolean virtualThreads = false;
+
+  // The pool for re-using records, null if record pooling is not configured
+  private RecordPool recordPool = null;
+
   // These are used for configuring the pipe
   private int sleepTime;
 
@@ -117,6 +152,9 @@ public class Pipeline
   private final String SERVICE_HALT_ON_EXCP = "HaltOnException";
   private final String SERVICE_BUFFER_STATUS = "BufferStatus";
   private final String SERVICE_PIPELINE_TYPE = "PipelineType";
+  private final String SERVICE_VIRTUAL_THREADS = "VirtualThreads";
+  private final String SERVICE_RECORD_POOL_SIZE = "RecordPoolSize";
+  private final String SERVICE_LANES = "Lanes";
 
   // If we encounter an unhadled processing exception, this says if we stop
   private boolean haltOnException = true;
@@ -165,6 +203,10 @@ public class Pipeline
     // the max transactions this pipe can use as an integer
     int maxTransTM;
 
+    // Used to manage the transaction manager group commit
+    String groupCommitSize;
+    String groupCommitDelay;
+
     // Set the name of this pipeline
     setSymbolicName(Name);
 
@@ -190,6 +232,23 @@ public class Pipeline
     // Set the max transactions
     TM.setMaxTransactions(maxTransTM);
 
+    // Each lane needs at least one transaction to work on
+    if (maxTransTM < lanes) {
+      OpenRate.getOpenRateFrameworkLog().warning("Pipeline <" + symbolicName + "> has <" + lanes + "> lanes but MaxTransactions <" + maxTransTM + ">. Some lanes will be idle.");
+    }
+
+    // set the group commit of the pipeline, off by default
+    groupCommitSize = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + ".GroupCommitSize","1");
+    groupCommitDelay = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + ".GroupCommitDelay","0");
+
+    try {
+      TM.setGroupCommitSize(Integer.parseInt(groupCommitSize));
+      TM.setGroupCommitDelay(Integer.parseInt(groupCommitDelay));
+    } catch (NumberFormatException ex) {
+      message = "GroupCommitSize and GroupCommitDelay must be numeric values, but we got <" + groupCommitSize + "> and <" + groupCommitDelay + "> in pipeline <" + symbolicName + ">. Aborting.";
+      throw new InitializationException(message, getSymbolicName());
+    }
+
     // set up the logger
     setPipeLog(LogUtil.getLogUtil().getLogger(Name));
   }
@@ -213,6 +272,14 @@ public class Pipeline
     // used in setting up the pipe
     String strActiveState;
     String strHaltOnExcp;
+    String strVirtualThreads;
+    String strRecordPoolSize;
+    String strLanes;
+    int recordPoolSize;
+    IInputAdapter tmpInputAdapter;
+    ArrayList<IPlugIn> tmpPlugIns;
+    ArrayList<IOutputAdapter> tmpOutputAdapters;
+    TransactionManager tmpTM;
 
     // Initialise the default polling sleep time
     sleepTime = 5000;
@@ -233,6 +300,18 @@ public class Pipeline
       strHaltOnExcp = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + "." + SERVICE_HALT_ON_EXCP,
               "True");
 
+      // get the default thread model for the plug ins
+      strVirtualThreads = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + "." + SERVICE_VIRTUAL_THREADS,
+              "False");
+
+      // get the record pool size, 0 means no pooling
+      strRecordPoolSize = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + "." + SERVICE_RECORD_POOL_SIZE,
+              "0");
+
+      // get the number of lanes
+      strLanes = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + "." + SERVICE_LANES,
+              "1");
+
       // Get the transaction controller configuration
       // Validate what we got for the pipe type
       if (pipelineType.equalsIgnoreCase("Batch")) {
@@ -261,19 +340,80 @@ public class Pipeline
       // set the halt on exception state
       haltOnException = strHaltOnExcp.equalsIgnoreCase("true");
 
+      // set the thread model. Virtual threads need a JVM which supports them,
+      // otherwise we fall back to platform threads.
+      virtualThreads = strVirtualThreads.equalsIgnoreCase("true");
+      if (virtualThreads && !ThreadLauncher.isVirtualThreadSupported()) {
+        OpenRate.getOpenRateFrameworkLog().warning("Virtual threads requested in pipeline <" + symbolicName + ">, but not supported by this JVM. Using platform threads.");
+      }
+
+      // set up the record pool, if we have been asked to
+      try {
+        recordPoolSize = Integer.parseInt(strRecordPoolSize);
+      } catch (NumberFormatException ex) {
+        message = "RecordPoolSize must be a numeric value, but we got <" + strRecordPoolSize + "> in pipeline <" + symbolicName + ">. Aborting.";
+        throw new InitializationException(message, getSymbolicName());
+      }
+
+      if (recordPoolSize > 0) {
+        recordPool = new RecordPool(recordPoolSize);
+        OpenRate.getOpenRateFrameworkLog().info("Using record pool of size <" + recordPoolSize + "> in pipeline <" + symbolicName + ">");
+      }
+
+      // get the number of lanes, which only batch pipes can have
+      try {
+        lanes = Integer.parseInt(strLanes);
+      } catch (NumberFormatException ex) {
+        message = "Lanes must be a numeric value, but we got <" + strLanes + "> in pipeline <" + symbolicName + ">. Aborting.";
+        throw new InitializationException(message, getSymbolicName());
+      }
+
+      if ((lanes < 1) || ((lanes > 1) && !batchPipeline)) {
+        message = "Lanes must be 1 or more, and can only be more than 1 in batch pipelines, but we got <" + strLanes + "> in pipeline <" + symbolicName + ">. Aborting.";
+        throw new InitializationException(message, getSymbolicName());
+      }
+
       // Construct the pipeline according to the batch model
       if (batchPipeline) {
-        // Get the initialised batch input adapter
-        batchInputAdapter = getBatchInputAdapter(pipeExceptionHandler);
+        // With lanes, the transaction manager has to know which lane each
+        // client belongs to, and the client manager has to pass commands to
+        // the modules of all lanes, so we tell them the lane we are building
+        tmpTM = (lanes > 1) ? TransactionManagerFactory.getTransactionManager(symbolicName) : null;
+
+        // The plug ins resolve the outputs they route to when they are
+        // initialised, before the output adapters are created
+        registerOutputNames();
+
+        for (int lane = 1; lane <= lanes; lane++) {
+          if (tmpTM != null) {
+            tmpTM.setRegistrationLane(lane);
+            ClientManager.getClientManager().setRegistrationLane(lane);
+          }
 
-        // create and initalise the processing body of the pipe
-        plugInList = getProcessPlugins(pipeExceptionHandler);
+          // Get the initialised batch input adapter
+          tmpInputAdapter = getBatchInputAdapter(pipeExceptionHandler);
+
+          // create and initalise the processing body of the pipe
+          tmpPlugIns = getProcessPlugins(pipeExceptionHandler);
+
+          // create the batch output adapter list
+          tmpOutputAdapters = getBatchOutputAdapterList(pipeExceptionHandler);
 
-        // create the batch output adapter list
-        batchOutputAdapterList = getBatchOutputAdapterList(pipeExceptionHandler);
+          // Hookup the buffers through the chain
+          hookupBuffers(getBufferClass(), tmpInputAdapter, tmpPlugIns, tmpOutputAdapters);
 
-        // Hookup the buffers through the chain
-        hookupBuffers(getBufferClass());
+          batchInputAdapterList.add(tmpInputAdapter);
+          plugInList.addAll(tmpPlugIns);
+          batchOutputAdapterList.addAll(tmpOutputAdapters);
+        }
+
+        if (tmpTM != null) {
+          tmpTM.setRegistrationLane(0);
+          ClientManager.getClientManager().setRegistrationLane(0);
+          OpenRate.getOpenRateFrameworkLog().info("Built <" + lanes + "> lanes in pipeline <" + symbolicName + ">");
+        }
+
+        batchInputAdapter = batchInputAdapterList.get(0);
       } else // Construct the pipeline according to the real time model
       {
         // Get the real time input adapter
@@ -337,6 +477,7 @@ public class Pipeline
     String PluginClassName;
     String PluginName;
     ArrayList<String> PluginNameList;
+    IInputAdapter tmpInputAdapter;
 
     // ---------------- Create the correct batch input adapter -----------------
     PluginNameList = PropertyUtils.getPropertyUtils().getGenericNameList(symbolicName + ".InputAdapter");
@@ -371,7 +512,7 @@ public class Pipeline
       }
 
       try {
-        batchInputAdapter = (IInputAdapter) PluginClass.newInstance();
+        tmpInputAdapter = (IInputAdapter) PluginClass.newInstance();
       } catch (InstantiationException ex) {
         message = "Input adapter class  <" + PluginClassName
                 + "> instantiation error in pipeline <" + symbolicName
@@ -386,13 +527,13 @@ public class Pipeline
 
       // Now that we have the input adapter, initialise it using the index 0 (we
       // have only one input adapter)
-      batchInputAdapter.init(symbolicName, PluginName);
+      tmpInputAdapter.init(symbolicName, PluginName);
 
       // link the batch input adaptor to us, so it can manage the scheduler
-      batchInputAdapter.setPipeline(this);
+      tmpInputAdapter.setPipeline(this);
     }
 
-    return batchInputAdapter;
+    return tmpInputAdapter;
   }
 
   /**
@@ -475,6 +616,7 @@ public class Pipeline
     Class<?> PluginClass;
     String PluginClassName = null;
     IOutputAdapter tmpBatchOutputAdapter;
+    ArrayList<IOutputAdapter> tmpOutputAdapterList = new ArrayList<>();
 
     // ---------------- Create the batch output adapter chain ------------------
     PluginNameList = PropertyUtils.getPropertyUtils().getGenericNameList(symbolicName + ".OutputAdapter");
@@ -511,7 +653,11 @@ public class Pipeline
           // anything, which means that until we build the buffers, all adapters are
           // set to sink unconsumed errors
           tmpBatchOutputAdapter.init(symbolicName, PluginName);
-          batchOutputAdapterList.add(tmpBatchOutputAdapter);
+
+          // Resolve the output name to an id, so that records are routed with
+          // a bit test instead of comparing names
+          tmpBatchOutputAdapter.setOutputId(OutputRegistry.registerOutput(tmpBatchOutputAdapter.getOutputName()));
+          tmpOutputAdapterList.add(tmpBatchOutputAdapter);
           Index++;
         }
       } catch (ClassNotFoundException ex) {
@@ -529,7 +675,23 @@ public class Pipeline
       }
     }
 
-    return batchOutputAdapterList;
+    return tmpOutputAdapterList;
+  }
+
+  /**
+   * Register the output names of the batch output adapters with the
+   * OutputRegistry, so that the ids can be resolved by the plug ins.
+   */
+  private void registerOutputNames() throws InitializationException {
+    String outputName;
+
+    for (String PluginName : PropertyUtils.getPropertyUtils().getGenericNameList(symbolicName + ".OutputAdapter")) {
+      outputName = PropertyUtils.getPropertyUtils().getBatchOutputAdapterPropertyValueDef(symbolicName, PluginName, "OutputName", "");
+
+      if (!outputName.isEmpty()) {
+        OutputRegistry.registerOutput(outputName);
+      }
+    }
   }
 
   /**
@@ -550,7 +712,9 @@ public class Pipeline
     String PluginName;
     Class<?> PluginClass;
     String pluginClassName = null;
+    String pluginVirtualThreads;
     int Index;
+    ArrayList<IPlugIn> tmpPlugInList = new ArrayList<>();
 
     // ------------------------- Build the pipeline ----------------------------
     // Add the plugins to the pipeline
@@ -582,7 +746,12 @@ public class Pipeline
         // Create the new Plugin
         Plugin.init(symbolicName, PluginName);
         Plugin.setExceptionHandler(pipeExceptionHandler);
-        plugInList.add(Plugin);
+        tmpPlugInList.add(Plugin);
+
+        // See if this plug in overrides the pipeline thread model, used for
+        // plug ins which spend their time waiting on I/O (e.g. DB lookups)
+        pluginVirtualThreads = PropertyUtils.getPropertyUtils().getPluginPropertyValueDef(symbolicName, PluginName, SERVICE_VIRTUAL_THREADS, Boolean.toString(virtualThreads));
+        plugInVirtualThreads.add(pluginVirtualThreads.equalsIgnoreCase("true"));
 
         Index++;
       }
@@ -600,16 +769,20 @@ public class Pipeline
       throw new InitializationException(message, ex, getSymbolicName());
     }
 
-    return plugInList;
+    return tmpPlugInList;
   }
 
   /**
-   * Hook up the buffers between the plug ins for batch mode
+   * Hook up the buffers between the modules of a lane for batch mode
    *
    * @param BufferClass The FIFO buffer class we are using for batch pipes
+   * @param batchInputAdapter The input adapter of the lane
+   * @param plugInList The plug ins of the lane
+   * @param batchOutputAdapterList The output adapters of the lane
    * @throws InitializationException
    */
-  private void hookupBuffers(Class<?> BufferClass) throws InitializationException {
+  private void hookupBuffers(Class<?> BufferClass, IInputAdapter batchInputAdapter,
+          ArrayList<IPlugIn> plugInList, ArrayList<IOutputAdapter> batchOutputAdapterList) throws InitializationException {
     IBuffer tmpBuffer;
     IOutputAdapter tmpBatchOutputAdapter;
     IPlugIn tmpPlugIn;
@@ -757,7 +930,15 @@ public class Pipeline
           // retrieve input records, if there are any that need doing. We only
           // do this if there is a batch input adapter that is set
           if (batchInputAdapter != null) {
-            recordsReceived = batchInputAdapter.push(batchInputAdapter.getBatchOutboundValidBuffer());
+            recordsReceived = 0;
+
+            for (IInputAdapter tmpInputAdapter : batchInputAdapterList) {
+              // With several lanes, pass over a lane which is full rather than
+              // waiting for it, so that a slow lane does not hold up the others
+              if ((lanes == 1) || !tmpInputAdapter.isOutboundBufferFull()) {
+                recordsReceived += tmpInputAdapter.push(tmpInputAdapter.getBatchOutboundValidBuffer());
+              }
+            }
           }
         }
 
@@ -871,7 +1052,11 @@ public class Pipeline
    */
   @Override
   public void cleanupPipeline() {
-    // nop
+    if (recordPool != null) {
+      OpenRate.getOpenRateFrameworkLog().info("Record pool for pipeline <" + symbolicName + ">: hits <" + recordPool.getAcquireHits()
+              + ">, misses <" + recordPool.getAcquireMisses() + ">, releases <" + recordPool.getReleases()
+              + ">, double releases <" + recordPool.getDoubleReleases() + ">");
+    }
   }
 
   /**
@@ -939,6 +1124,8 @@ public class Pipeline
     ListIterator<IPlugIn> pluginIterator;
     IPlugIn tmpPlugIn;
     ThreadGroup tmpGrpPlugIn;
+    ArrayList<Thread> tmpThreads;
+    boolean tmpVirtual;
     IOutputAdapter tmpOutputAdapter;
 
     OpenRate.getOpenRateFrameworkLog().debug("Pipeline <" + getSymbolicName() + "> starting...");
@@ -955,6 +1142,7 @@ public class Pipeline
       // guarantee that it will enforce the ordering of the thread groups.
       // They MUST be in creation order for the pipe to work as we expect.
       thGrpsPlugIn = new ArrayList<>();
+      thPlugIn = new ArrayList<>();
 
       // for each PlugIn, launch a set of threads. These are created in a
       // thread group for each plug in, hierachically subordinate to the
@@ -968,19 +1156,23 @@ public class Pipeline
         // thread group name = PlugIn name
         tmpGrpPlugIn = new ThreadGroup(pluginRoot, tmpPlugIn.getSymbolicName());
         thGrpsPlugIn.add(tmpGrpPlugIn);
+        tmpThreads = new ArrayList<>();
+        thPlugIn.add(tmpThreads);
+        tmpVirtual = plugInVirtualThreads.get(pluginIterator.previousIndex());
 
         int thread_count = (tmpPlugIn.numThreads() > 0)
                 ? tmpPlugIn.numThreads() : 1;
 
         for (int i = 0; i < thread_count; ++i) {
-          Thread PlugInTh = new Thread(tmpGrpPlugIn, tmpPlugIn,
+          Thread PlugInTh = ThreadLauncher.newThread(tmpGrpPlugIn, tmpPlugIn,
                   tmpPlugIn.getSymbolicName()
-                  + ".Inst-" + Integer.toString(i));
+                  + ".Inst-" + Integer.toString(i), tmpVirtual);
 
           // We could use this to unblock pipe bottlenecks, but at the
           // moment we don't seem to need it
           //PlugInTh.setPriority( Thread.NORM_PRIORITY );
           PlugInTh.setDaemon(true); // for fatal error handling.
+          tmpThreads.add(PlugInTh);
           PlugInTh.start();
         }
       }
@@ -1179,6 +1371,7 @@ public class Pipeline
     ListIterator<IPlugIn> pluginIterator;
     ListIterator<ThreadGroup> threadGroupIterator;
     ThreadGroup tmpGrpPlugIn;
+    ArrayList<Thread> tmpThreads;
 
     pluginIterator = plugInList.listIterator();
     threadGroupIterator = thGrpsPlugIn.listIterator();
@@ -1187,9 +1380,10 @@ public class Pipeline
       tmpPlugIn = pluginIterator.next();
       tmpPlugIn.markForShutdown();
       tmpGrpPlugIn = threadGroupIterator.next();
+      tmpThreads = thPlugIn.get(threadGroupIterator.previousIndex());
 
-      // wait for all Threads in this group to shutdown.
-      while (tmpGrpPlugIn.activeCount() > 0) //&& (Handler.hasError() == false))
+      // wait for all Threads of this plug in to shutdown.
+      while (ThreadLauncher.countAlive(tmpThreads) > 0) //&& (Handler.hasError() == false))
       {
         OpenRate.getOpenRateFrameworkLog().debug(
                 "Waiting for plugin thread group <" + tmpGrpPlugIn.getName()
@@ -1533,4 +1727,14 @@ public class Pipeline
   public ExceptionHandler getPipelineExceptionHandler() {
     return pipeExceptionHandler;
   }
+
+  /**
+   * Returns the record pool of the pipeline.
+   *
+   * @return The record pool, or null if record pooling is not configured
+   */
+  @Override
+  public RecordPool getRecordPool() {
+    return recordPool;
+  }
 }
@@ -11,6 +11,7 @@ import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.logging.ILogger;
 import OpenRate.logging.LogUtil;
+import OpenRate.record.AbstractRecord;
 import OpenRate.record.HeaderRecord;
 import OpenRate.record.IRecord;
 import OpenRate.record.TrailerRecord;
@@ -126,10 +127,28 @@ public abstract class AbstractInputAdapter
     Collection<IRecord> validRecords;
     Collection<IRecord> all;
 
-    // load records
-    startTime = System.currentTimeMillis();
-
     try {
+      // Wait until the pipe has room for another batch. This is done before
+      // loading, so that a pipeline feeding several lanes can skip a full lane
+      // instead of waiting for it after the push.
+      outBufferCapacity = validBuffer.getEventCount();
+
+      while (outBufferCapacity > bufferSize) {
+        bufferHits++;
+        OpenRate.getOpenRateStatsLog().debug("Input  <" + getSymbolicName() + "> buffer high water mark! Buffer max = <" + bufferSize + "> current count = <" + outBufferCapacity + ">");
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ex) {
+          //
+        }
+
+        // refresh
+        outBufferCapacity = validBuffer.getEventCount();
+      }
+
+      // load records
+      startTime = System.currentTimeMillis();
+
       // Get the batch of records from the implementation class
       validRecords = loadBatch();
 
@@ -150,20 +169,6 @@ public abstract class AbstractInputAdapter
       BatchTime = (endTime - startTime);
       processingTime += BatchTime;
       recordsProcessed += size;
-      outBufferCapacity = validBuffer.getEventCount();
-
-      while (outBufferCapacity > bufferSize) {
-        bufferHits++;
-        OpenRate.getOpenRateStatsLog().debug("Input  <" + getSymbolicName() + "> buffer high water mark! Buffer max = <" + bufferSize + "> current count = <" + outBufferCapacity + ">");
-        try {
-          Thread.sleep(100);
-        } catch (InterruptedException ex) {
-          //
-        }
-
-        // refresh
-        outBufferCapacity = validBuffer.getEventCount();
-      }
     } catch (ProcessingException pe) {
       getPipeLog().error("Processing exception caught in Input Adapter <"
               + getSymbolicName() + ">", pe);
@@ -187,6 +192,17 @@ public abstract class AbstractInputAdapter
     return size;
   }
 
+  /**
+   * Find out if the outbound buffer is above its high water mark, in which case
+   * the next push will wait for the pipe to make room.
+   *
+   * @return true if the outbound buffer is full
+   */
+  @Override
+  public boolean isOutboundBufferFull() {
+    return (consumer != null) && (consumer.getEventCount() > bufferSize);
+  }
+
   /**
    * Retrieve a batch of records from the adapter.
    *
@@ -446,4 +462,23 @@ public abstract class AbstractInputAdapter
   protected ExceptionHandler getExceptionHandler() {
     return pipeline.getPipelineExceptionHandler();
   }
+
+  /**
+   * Get a record from the record pool of the pipeline, for re-use instead of
+   * creating a new one. The record has been reset. If this returns null, the
+   * implementation class should create a new record as usual. Records of the
+   * class will be given back to the pool by the output adapters once they are
+   * completely consumed, so they must not be held on to.
+   *
+   * @param <T> The record type
+   * @param recordClass The class of the record
+   * @return The pooled record, or null if there is none available
+   */
+  protected <T extends AbstractRecord> T getPooledRecord(Class<T> recordClass) {
+    if (pipeline == null || pipeline.getRecordPool() == null) {
+      return null;
+    }
+
+    return pipeline.getRecordPool().acquire(recordClass);
+  }
 }
@@ -15,6 +15,7 @@ import OpenRate.logging.ILogger;
 import OpenRate.logging.LogUtil;
 import OpenRate.record.HeaderRecord;
 import OpenRate.record.IRecord;
+import OpenRate.record.OutputRegistry;
 import OpenRate.record.TrailerRecord;
 import OpenRate.utils.PropertyUtils;
 import java.io.IOException;
@@ -47,6 +48,9 @@ public abstract class AbstractNTOutputAdapter
   // written to this output or not
   private String outputName;
 
+  // The id of the output name, if the pipeline has resolved it
+  private int outputId = OutputRegistry.NO_OUTPUT_ID;
+
   // List of Services that this Client supports
   private final static String SERVICE_BATCHSIZE = CommonConfig.BATCH_SIZE;
   private final static String SERVICE_BUFFERSIZE = CommonConfig.BUFFER_SIZE;
@@ -68,6 +72,10 @@ public abstract class AbstractNTOutputAdapter
   // If we are the terminating output adapter, default no
   private boolean TerminatingAdaptor = false;
 
+  // The container for the records we pass on to the next adapter. This is
+  // reused for every batch: the buffers copy the records out of it on push.
+  private final ArrayList<IRecord> outBatch = new ArrayList<>();
+
   // This is the pipeline that we are in, used for logging and property retrieval
   private IPipeline pipeline;
 
@@ -201,7 +209,9 @@ public abstract class AbstractNTOutputAdapter
         if (size > 0) {
           getPipeLog().debug("Processing a batch of " + size + " valid records.");
 
-          out = new ArrayList<>();
+          // the last batch may have been abandoned by an exception
+          outBatch.clear();
+          out = outBatch;
 
           iter = in.iterator();
 
@@ -215,13 +225,16 @@ public abstract class AbstractNTOutputAdapter
               // this is a call to the prep class, which in turn will call
               // the procValidRecord method, which is where the implementation
               // class gets its say.
-              if (r.getOutput(outputName)) {
+              if (isForThisOutput(r)) {
                 r = prepValidRecord(r);
 
                 if (!r.deleteOutput(outputName, TerminatingAdaptor)) {
                   // pass the record into the output stream
                   out.add(r);
                   OutBatchHasValidRecords = true;
+                } else {
+                  // completely consumed, so it can be re-used
+                  releaseRecord(r);
                 }
               }
             } else {
@@ -229,13 +242,16 @@ public abstract class AbstractNTOutputAdapter
                 // this is a call to the prep class, which in turn will call
                 // the procErrorRecord method, which is where the implementation
                 // class gets its say
-                if (r.getOutput(outputName)) {
+                if (isForThisOutput(r)) {
                   r = prepErrorRecord(r);
 
                   if (!r.deleteOutput(outputName, TerminatingAdaptor)) {
                     // drop the record
                     out.add(r);
                     OutBatchHasValidRecords = true;
+                  } else {
+                    // completely consumed, so it can be re-used
+                    releaseRecord(r);
                   }
                 }
               } else {
@@ -261,6 +277,11 @@ public abstract class AbstractNTOutputAdapter
             if (TerminatingAdaptor) {
               getPipeLog().error("Output adapter <" + getSymbolicName() + "> discarded <"
                       + out.size() + "> records at the end of the output adapter chain.");
+
+              // the discarded records can be re-used
+              for (IRecord r : out) {
+                releaseRecord(r);
+              }
             } else {
               // push the remaining records to the next adapter
               getBatchOutboundValidBuffer().push(out);
@@ -278,6 +299,9 @@ public abstract class AbstractNTOutputAdapter
             }
           }
 
+          // ready the container for the next batch
+          out.clear();
+
           // Update the statistics
           endTime = System.currentTimeMillis();
           processingTime += (endTime - startTime);
@@ -702,6 +726,53 @@ public abstract class AbstractNTOutputAdapter
     TerminatingAdaptor = Terminator;
   }
 
+  /**
+   * Get the name of the output that this adapter writes records for
+   *
+   * @return The output name
+   */
+  @Override
+  public String getOutputName() {
+    return outputName;
+  }
+
+  /**
+   * Set the id of the output name, so that records can be routed by id
+   *
+   * @param outputId The output id, or OutputRegistry.NO_OUTPUT_ID
+   */
+  @Override
+  public void setOutputId(int outputId) {
+    this.outputId = outputId;
+  }
+
+  /**
+   * Give a record which has been completely consumed back to the record pool
+   * of the pipeline, if there is one. The record must not be used afterwards.
+   *
+   * @param r The record to release
+   */
+  private void releaseRecord(IRecord r) {
+    if (pipeline != null && pipeline.getRecordPool() != null) {
+      pipeline.getRecordPool().release(r);
+    }
+  }
+
+  /**
+   * Check if the record is to be written by this output. Uses the output id if
+   * we have one, otherwise the output name.
+   *
+   * @param r The record to check
+   * @return True if we should write the record
+   */
+  private boolean isForThisOutput(IRecord r) {
+    if (outputId == OutputRegistry.NO_OUTPUT_ID) {
+      return r.getOutput(outputName);
+    } else {
+      return r.getOutput(outputId);
+    }
+  }
+
   /**
    * @return the pipeName
    */
@@ -16,6 +16,7 @@ import OpenRate.logging.ILogger;
 import OpenRate.logging.LogUtil;
 import OpenRate.record.HeaderRecord;
 import OpenRate.record.IRecord;
+import OpenRate.record.OutputRegistry;
 import OpenRate.record.TrailerRecord;
 import OpenRate.utils.PropertyUtils;
 import java.util.ArrayList;
@@ -49,6 +50,9 @@ public abstract class AbstractOutputAdapter
   // written to this output or not
   private String outputName;
 
+  // The id of the output name, if the pipeline has resolved it
+  private int outputId = OutputRegistry.NO_OUTPUT_ID;
+
   // used to simplify logging and exception handling
   public String message;
 
@@ -77,6 +81,15 @@ public abstract class AbstractOutputAdapter
   // If we are the terminating output adapter, default no
   private boolean terminatingAdaptor = false;
 
+  // The container for the records we pass on to the next adapter. This is
+  // reused for every batch: the buffers copy the records out of it on push.
+  private final ArrayList<IRecord> outBatch = new ArrayList<>();
+
+  // The records of the batch which have been completely consumed. They are
+  // given back to the record pool only once the block has been flushed, as
+  // the implementation class may still be holding them until then.
+  private final ArrayList<IRecord> consumedBatch = new ArrayList<>();
+
   // This is the pipeline that we are in, used for logging and property retrieval
   private IPipeline pipeline;
 
@@ -173,7 +186,10 @@ public abstract class AbstractOutputAdapter
 
       if (ThisBatchRecordCount > 0) {
         getPipeLog().debug("Output <" + getSymbolicName() + "> Processing a batch of " + ThisBatchRecordCount + " valid records.");
-        out = new ArrayList<>();
+        // the last batch may have been abandoned by an exception
+        outBatch.clear();
+        consumedBatch.clear();
+        out = outBatch;
 
         // Check for the case that we have an aborted transaction
         if (inTransaction && SkipRestOfStream()) {
@@ -207,7 +223,7 @@ public abstract class AbstractOutputAdapter
             // this is a call to the "prepare" class, which in turn will call
             // the procValidRecord method, which is where the implementation
             // class gets its say.
-            if (r.getOutput(outputName)) {
+            if (isForThisOutput(r)) {
               ThisBatchRecordsWritten++;
 
               try {
@@ -220,6 +236,9 @@ public abstract class AbstractOutputAdapter
                 // pass the record into the output stream
                 out.add(r);
                 OutBatchHasValidRecords = true;
+              } else {
+                // completely consumed, so it can be re-used after the flush
+                consumedBatch.add(r);
               }
             } else {
               // pass the record into the output stream
@@ -231,7 +250,7 @@ public abstract class AbstractOutputAdapter
               // this is a call to the "prepare" class, which in turn will call
               // the procErrorRecord method, which is where the implementation
               // class gets its say
-              if (r.getOutput(outputName)) {
+              if (isForThisOutput(r)) {
                 ThisBatchRecordsWritten++;
 
                 try {
@@ -244,6 +263,9 @@ public abstract class AbstractOutputAdapter
                   // drop the record
                   out.add(r);
                   OutBatchHasValidRecords = true;
+                } else {
+                  // completely consumed, so it can be re-used after the flush
+                  consumedBatch.add(r);
                 }
               } else {
                 // pass the record into the output stream
@@ -292,6 +314,12 @@ public abstract class AbstractOutputAdapter
           getExceptionHandler().reportException(pe);
         }
 
+        // the consumed records have now been written
+        for (IRecord r : consumedBatch) {
+          releaseRecord(r);
+        }
+        consumedBatch.clear();
+
         // clean up the input buffer
         in.clear();
 
@@ -314,6 +342,11 @@ public abstract class AbstractOutputAdapter
                 }
               }
             }
+
+            // the discarded records can be re-used
+            for (IRecord r : out) {
+              releaseRecord(r);
+            }
           } else {
             // push the remaining records to the next adapter
             getBatchOutboundValidBuffer().push(out);
@@ -339,6 +372,9 @@ public abstract class AbstractOutputAdapter
           }
         }
 
+        // ready the container for the next batch
+        out.clear();
+
         endTime = System.currentTimeMillis();
         BatchTime = (endTime - startTime);
         processingTime += BatchTime;
@@ -777,6 +813,53 @@ public abstract class AbstractOutputAdapter
     terminatingAdaptor = terminator;
   }
 
+  /**
+   * Get the name of the output that this adapter writes records for
+   *
+   * @return The output name
+   */
+  @Override
+  public String getOutputName() {
+    return outputName;
+  }
+
+  /**
+   * Set the id of the output name, so that records can be routed by id
+   *
+   * @param outputId The output id, or OutputRegistry.NO_OUTPUT_ID
+   */
+  @Override
+  public void setOutputId(int outputId) {
+    this.outputId = outputId;
+  }
+
+  /**
+   * Give a record which has been completely consumed back to the record pool
+   * of the pipeline, if there is one. The record must not be used afterwards.
+   *
+   * @param r The record to release
+   */
+  private void releaseRecord(IRecord r) {
+    if (pipeline != null && pipeline.getRecordPool() != null) {
+      pipeline.getRecordPool().release(r);
+    }
+  }
+
+  /**
+   * Check if the record is to be written by this output. Uses the output id if
+   * we have one, otherwise the output name.
+   *
+   * @param r The record to check
+   * @return True if we should write the record
+   */
+  private boolean isForThisOutput(IRecord r) {
+    if (outputId == OutputRegistry.NO_OUTPUT_ID) {
+      return r.getOutput(outputName);
+    } else {
+      return r.getOutput(outputId);
+    }
+  }
+
   /**
    * Set the inbound buffer for valid records
    *
@@ -70,7 +70,7 @@ public abstract class AbstractTransactionalInputAdapter
   */
   protected boolean canStartNewTransaction()
   {
-    return TM.getNewTransactionAllowed();
+    return TM.getNewTransactionAllowed(TMClientNumber);
   }
 
  /**
@@ -104,7 +104,7 @@ public abstract class AbstractTransactionalInputAdapter
   protected int createNewTransaction()
   {
     // create the new transaction
-    int currentTransactionNumber = TM.openTransaction(getPipeName());
+    int currentTransactionNumber = TM.openTransaction(getPipeName(), TMClientNumber);
 
     // Update the status of the transaction in the TM
     TM.setClientStatus(currentTransactionNumber, TMClientNumber, TMDefs.getTMDefs().TM_NONE);
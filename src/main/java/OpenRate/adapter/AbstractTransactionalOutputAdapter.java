@@ -4,19 +4,25 @@ import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.record.HeaderRecord;
 import OpenRate.record.TrailerRecord;
-import OpenRate.transaction.ITMClient;
+import OpenRate.transaction.ITMGroupCommitClient;
 import OpenRate.transaction.TMDefs;
 import OpenRate.transaction.TransactionManager;
 import OpenRate.transaction.TransactionManagerFactory;
+import java.util.List;
 
 /**
  * This module adds the transactional elements to the output adapter.
  *
+ * When group commit is switched on for the pipeline, several transactions can
+ * be committed at once through commitTransactionGroup(). By default this
+ * commits each of them in turn, and adapters which can do one physical commit
+ * for the whole group override it.
+ *
  * @author Ian
  */
 public abstract class AbstractTransactionalOutputAdapter
         extends AbstractOutputAdapter
-        implements ITMClient {
+        implements ITMGroupCommitClient {
 
   // Get the Transaction Manager
 
@@ -168,6 +174,19 @@ public abstract class AbstractTransactionalOutputAdapter
     commitTransaction(transactionNumber);
   }
 
+  /**
+   * This is used to inform the client that an update has taken place to the
+   * status of a group of transactions, and that we are now in the commit phase
+   * and all of the transactions were processed correctly
+   *
+   * @param transactionNumbers The numbers of the transactions to update
+   */
+  @Override
+  public void updateTransactionStatusCommitGroup(List<Integer> transactionNumbers) {
+    // Call the finalisation of the processing
+    commitTransactionGroup(transactionNumbers);
+  }
+
   /**
    * This is used to inform the client that an update has taken place to the
    * status of the transaction, and that we are now in the close phase and the
@@ -236,6 +255,18 @@ public abstract class AbstractTransactionalOutputAdapter
    */
   public abstract void commitTransaction(int transactionNumber);
 
+  /**
+   * Commit Transaction Group closes the status of several transactions with
+   * success. The default is to commit each in turn, in the order given.
+   *
+   * @param transactionNumbers The transactions we are working on
+   */
+  public void commitTransactionGroup(List<Integer> transactionNumbers) {
+    for (Integer transactionNumber : transactionNumbers) {
+      commitTransaction(transactionNumber);
+    }
+  }
+
   /**
    * Rollback Transaction closes the transaction status with failure
    *
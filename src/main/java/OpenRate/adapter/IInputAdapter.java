@@ -37,6 +37,14 @@ public interface IInputAdapter
    */
   public IConsumer getBatchOutboundValidBuffer();
 
+  /**
+   * Find out if the buffer receiving the pushed records is above its high
+   * water mark, in which case a push will wait until there is room.
+   *
+   * @return true if the outbound buffer is full
+   */
+  public boolean isOutboundBufferFull();
+
   /**
    * return the symbolic name
    *
@@ -95,6 +95,21 @@ public interface IOutputAdapter
    */
   public void setTerminator(boolean Terminator);
 
+  /**
+   * Get the name of the output that this adapter writes records for
+   *
+   * @return The output name
+   */
+  public String getOutputName();
+
+  /**
+   * Set the id of the output name, as resolved by the OutputRegistry. If this
+   * is set, the records are routed using the id instead of the name.
+   *
+   * @param outputId The output id, or OutputRegistry.NO_OUTPUT_ID
+   */
+  public void setOutputId(int outputId);
+
   /**
    * return the symbolic name
    *
@@ -16,9 +16,15 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Please <a target='new'
@@ -290,11 +296,12 @@ public abstract class FlatFileOutputAdapter
    */
   @Override
   public TrailerRecord procTrailer(TrailerRecord r) {
+    // Close the files before the stream is flushed, as the commit can
+    // follow straight away
+    closeFiles(getTransactionNumber());
+
     // Do the transaction level maintenance
     super.procTrailer(r); 
-    
-    // Close the files
-    closeFiles(getTransactionNumber());
 
     return r;
   }
@@ -427,7 +434,40 @@ public abstract class FlatFileOutputAdapter
    * @param transactionNumber The transaction number we are working on
    */
   public void closeTransactionOK(int transactionNumber) {
+    closeTransactionGroupOK(Collections.singletonList(transactionNumber));
+  }
+
+  /**
+   * Close the files of a group of transactions now that writing has been
+   * concluded. The content of each file is forced to disk before it is
+   * renamed, so that a rename never points at data which was lost. Each
+   * directory that the files were renamed into is then synced once for the
+   * whole group, instead of once for every transaction.
+   *
+   * @param transactionNumbers The transaction numbers we are working on
+   */
+  public void closeTransactionGroupOK(List<Integer> transactionNumbers) {
+    HashSet<File> tmpDirectories = new HashSet<>();
+
+    for (Integer transactionNumber : transactionNumbers) {
+      renameTransactionFiles(transactionNumber, tmpDirectories);
+    }
+
+    for (File tmpDirectory : tmpDirectories) {
+      syncDirectory(tmpDirectory);
+    }
+  }
+
+  /**
+   * Force and rename (or delete if empty) the files of a transaction which
+   * has completed correctly, noting the directories which need to be synced.
+   *
+   * @param transactionNumber The transaction number we are working on
+   * @param directories The directories which have had files renamed into them
+   */
+  private void renameTransactionFiles(int transactionNumber, Set<File> directories) {
     File f;
+    File target;
 
     // rename the valid file
     f = new File(getProcOutputName(transactionNumber));
@@ -436,8 +476,11 @@ public abstract class FlatFileOutputAdapter
       getPipeLog().debug("Deleted empty valid output file <" + getProcOutputName(transactionNumber) + ">");
       f.delete();
     } else {
-      // Rename the file
-      f.renameTo(new File(getOutputName(transactionNumber)));
+      // Rename the file once its content is on disk
+      target = new File(getOutputName(transactionNumber));
+      syncFile(f);
+      f.renameTo(target);
+      directories.add(target.getAbsoluteFile().getParentFile());
     }
 
     // rename the error file
@@ -449,12 +492,47 @@ public abstract class FlatFileOutputAdapter
         getPipeLog().debug("Deleted empty error output file <" + getProcErrorName(transactionNumber) + ">");
         f.delete();
       } else {
-        // Rename the file
-        f.renameTo(new File(getErrorName(transactionNumber)));
+        // Rename the file once its content is on disk
+        target = new File(getErrorName(transactionNumber));
+        syncFile(f);
+        f.renameTo(target);
+        directories.add(target.getAbsoluteFile().getParentFile());
       }
     }
   }
 
+  /**
+   * Force the content of a file which has been written and closed to disk.
+   *
+   * @param file The file to sync
+   */
+  private void syncFile(File file) {
+    if (file.exists() == false) {
+      return;
+    }
+
+    try (FileChannel tmpChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      tmpChannel.force(true);
+    } catch (IOException ex) {
+      getPipeLog().error("Could not sync output file <" + file + "> in module <" + getSymbolicName() + ">. message <" + ex.getMessage() + ">");
+    }
+  }
+
+  /**
+   * Sync a directory, so that the renames made in it are on disk. Not all
+   * platforms allow a directory to be opened for this, in which case the
+   * renames are left to the operating system.
+   *
+   * @param directory The directory to sync
+   */
+  private void syncDirectory(File directory) {
+    try (FileChannel tmpChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      tmpChannel.force(true);
+    } catch (IOException ex) {
+      getPipeLog().debug("Could not sync output directory <" + directory + "> in module <" + getSymbolicName() + ">. message <" + ex.getMessage() + ">");
+    }
+  }
+
   /**
    * Close the files now that writing has been concluded.
    *
@@ -565,6 +643,18 @@ public abstract class FlatFileOutputAdapter
     closeTransactionOK(transactionNumber);
   }
 
+  /**
+   * Perform any processing that needs to be done when we are committing a
+   * group of transactions. The files of all of the transactions are renamed
+   * before the output directory is synced, once for the whole group.
+   *
+   * @param transactionNumbers The transaction numbers we are working on
+   */
+  @Override
+  public void commitTransactionGroup(List<Integer> transactionNumbers) {
+    closeTransactionGroupOK(transactionNumbers);
+  }
+
   /**
    * Perform any processing that needs to be done when we are rolling back the
    * transaction
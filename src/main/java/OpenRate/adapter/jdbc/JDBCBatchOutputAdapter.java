@@ -8,7 +8,10 @@ import OpenRate.record.HeaderRecord;
 import OpenRate.record.IRecord;
 import java.sql.SQLException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Please <a target='new'
@@ -21,10 +24,29 @@ import java.util.Iterator;
  * This is a higher performance version of the JDBC output adapter, which
  * performs batch commits. The rest of the operation is the same as the parent
  * version JDBC output adapter, "JDBCOutputAdapter".
+ *
+ * All of the transactions which are open in the adapter at the same time are
+ * written on one connection. The inserts are committed at each block boundary,
+ * and the last of them together with the commit statement when the transaction
+ * is committed, instead of at the end of the stream. When the transaction
+ * manager commits a group of transactions, the commit statements of all of
+ * them are executed and then a single commit is made on the connection. A
+ * transaction which is rolled back is still rolled back on its own, by its
+ * rollback statement.
  */
 public abstract class JDBCBatchOutputAdapter
         extends JDBCOutputAdapter {
 
+  // true if there are inserts in the batch that have not been sent
+  private boolean batchPending = false;
+
+  // The transactions which are using the connection
+  private final HashSet<Integer> connectionUsers = new HashSet<>();
+
+  // Serialises the use of the connection between the pipeline and the
+  // transaction manager
+  private final Object connectionLock = new Object();
+
   /**
    * Default constructor
    */
@@ -60,6 +82,7 @@ public abstract class JDBCBatchOutputAdapter
 
       // Done the check, close it
       JDBCcon.close();
+      JDBCcon = null;
     } catch (SQLException Sex) {
       message = "Output <" + getSymbolicName() + "> error setting manual commit in adapter <" + getSymbolicName() + ">. message <" + Sex.getMessage() + ">";
       getPipeLog().fatal(message);
@@ -79,6 +102,11 @@ public abstract class JDBCBatchOutputAdapter
     // perform any parent processing first
     super.procHeader(r);
 
+    // nothing to set up if we could not get a connection
+    if (JDBCcon == null) {
+      return r;
+    }
+
     try {
       // set the connection to use controlled commits
       JDBCcon.setAutoCommit(false);
@@ -184,6 +212,7 @@ public abstract class JDBCBatchOutputAdapter
           }
 
           stmtInsertQuery.addBatch();
+          batchPending = true;
         } catch (SQLException Sex) {
           // Not good. Abort the transaction
           message = "SQL Exception inserting valid record in module <"
@@ -315,6 +344,7 @@ public abstract class JDBCBatchOutputAdapter
           }
 
           stmtInsertQuery.addBatch();
+          batchPending = true;
         } catch (SQLException Sex) {
           // Not good. Abort the transaction
           message = "SQL Exception inserting error record in module <"
@@ -394,18 +424,25 @@ public abstract class JDBCBatchOutputAdapter
     if (getTransactionNumber() > 0) {
       // We are still in a transaction - do the flush
       try {
-        // perform the batch commit once per block
-        stmtInsertQuery.executeBatch();
-
-        // perform a commit once per block
-        getPipeLog().debug("Adapter <" + getSymbolicName() + "> performing commit.");
-        JDBCcon.commit();
+        synchronized (connectionLock) {
+          if (batchPending) {
+            // perform the batch commit once per block
+            stmtInsertQuery.executeBatch();
+            batchPending = false;
+
+            // perform a commit once per block
+            getPipeLog().debug("Adapter <" + getSymbolicName() + "> performing commit.");
+            JDBCcon.commit();
+          }
+        }
       } catch (SQLException Sex) {
         message = "Error performing batch commit in module <" + getSymbolicName()
                 + ">. message <" + Sex.getMessage() + ">. Aborting transaction.";
         getPipeLog().fatal(message);
-        String Nextmessage = "Next message <" + Sex.getNextException().getMessage() + ">";
-        getPipeLog().fatal(Nextmessage);
+        if (Sex.getNextException() != null) {
+          String Nextmessage = "Next message <" + Sex.getNextException().getMessage() + ">";
+          getPipeLog().fatal(Nextmessage);
+        }
         this.setTransactionAbort(getTransactionNumber());
         throw new ProcessingException(message, getSymbolicName());
       } catch (Exception ex) {
@@ -431,20 +468,24 @@ public abstract class JDBCBatchOutputAdapter
    */
   @Override
   public void flushStream() throws ProcessingException {
-    // We are still in a transaction - do the flush
+    // We are still in a transaction - do the flush. The commit is made when
+    // the transaction (or the group it is in) is committed
     try {
-      // perform the batch commit once per block
-      stmtInsertQuery.executeBatch();
-
-      // perform a commit once per block
-      getPipeLog().debug("Adapter <" + getSymbolicName() + "> performing commit.");
-      JDBCcon.commit();
+      synchronized (connectionLock) {
+        if (batchPending) {
+          // send the rest of the batch
+          stmtInsertQuery.executeBatch();
+          batchPending = false;
+        }
+      }
     } catch (SQLException Sex) {
       message = "Error performing batch commit in module <" + getSymbolicName()
               + ">. message <" + Sex.getMessage() + ">. Aborting transaction.";
       getPipeLog().fatal(message);
-      String Nextmessage = "Next message <" + Sex.getNextException().getMessage() + ">";
-      getPipeLog().fatal(Nextmessage);
+      if (Sex.getNextException() != null) {
+        String Nextmessage = "Next message <" + Sex.getNextException().getMessage() + ">";
+        getPipeLog().fatal(Nextmessage);
+      }
       this.setTransactionAbort(getTransactionNumber());
       throw new ProcessingException(message, getSymbolicName());
     } catch (Exception ex) {
@@ -458,4 +499,103 @@ public abstract class JDBCBatchOutputAdapter
 
     super.flushStream();
   }
+
+  /**
+   * Perform any processing that needs to be done when we are committing the
+   * transaction.
+   *
+   * @param transactionNumber The transaction to commit
+   */
+  @Override
+  public void commitTransaction(int transactionNumber) {
+    commitTransactionGroup(Collections.singletonList(transactionNumber));
+  }
+
+  /**
+   * Commit a group of transactions. The commit statements of all of the
+   * transactions are executed, and then one commit is made on the connection
+   * for the whole group.
+   *
+   * @param transactionNumbers The transactions to commit
+   */
+  @Override
+  public void commitTransactionGroup(List<Integer> transactionNumbers) {
+    synchronized (connectionLock) {
+      for (Integer transactionNumber : transactionNumbers) {
+        finaliseOutputCommit(transactionNumber);
+      }
+
+      commitConnection();
+    }
+  }
+
+  /**
+   * Perform any processing that needs to be done when we are rolling back the
+   * transaction. The rollback statement removes the records of this
+   * transaction only, so that the other transactions using the connection are
+   * not touched.
+   *
+   * @param transactionNumber The transaction to rollback
+   */
+  @Override
+  public void rollbackTransaction(int transactionNumber) {
+    synchronized (connectionLock) {
+      finaliseOutputRollback(transactionNumber);
+
+      commitConnection();
+    }
+  }
+
+  /**
+   * Use the connection already open if there are transactions still using it,
+   * otherwise open a new one.
+   *
+   * @return true if a new connection was opened, and needs its statements
+   * @throws InitializationException
+   */
+  @Override
+  protected boolean openConnection() throws InitializationException {
+    boolean newConnection = false;
+
+    synchronized (connectionLock) {
+      if (JDBCcon == null || connectionUsers.isEmpty()) {
+        super.openConnection();
+        newConnection = true;
+      }
+
+      connectionUsers.add(getTransactionNumber());
+    }
+
+    return newConnection;
+  }
+
+  /**
+   * Close down the statements and the connection once the last transaction
+   * using them has closed.
+   *
+   * @param transactionNumber The transaction we are working on
+   */
+  @Override
+  protected void closeConnection(int transactionNumber) {
+    synchronized (connectionLock) {
+      if (connectionUsers.remove(transactionNumber) && connectionUsers.isEmpty()) {
+        super.closeConnection(transactionNumber);
+      }
+    }
+  }
+
+  /**
+   * Make the work done on the connection permanent.
+   */
+  private void commitConnection() {
+    try {
+      getPipeLog().debug("Adapter <" + getSymbolicName() + "> performing commit.");
+      JDBCcon.commit();
+    } catch (SQLException Sex) {
+      message = "Error performing commit in module <" + getSymbolicName()
+              + ">. message <" + Sex.getMessage() + ">";
+      getPipeLog().fatal(message);
+      getExceptionHandler().reportException(new ProcessingException(message, Sex, getSymbolicName()));
+    }
+  }
 }
@@ -209,22 +209,33 @@ public abstract class JDBCOutputAdapter
     // perform any parent processing first
     super.procHeader(r);
 
+    boolean newConnection;
+
     try {
       // get the connection we will be using for writing
-      JDBCcon = DBUtil.getConnection(dataSourceName);
+      newConnection = openConnection();
     } catch (InitializationException ex) {
-      getExceptionHandler().reportException(new ProcessingException(ex, getSymbolicName()));
-    }
-
-    // prepare the statements used for writing
-    try {
-      prepareStatements();
-    } catch (SQLException Sex) {
       // Not good. Abort the transaction
-      message = "Error preparing statements. message <" + Sex.getMessage() + ">. Aborting transaction.";
+      message = "Error opening connection. message <" + ex.getMessage() + ">. Aborting transaction.";
       getPipeLog().fatal(message);
-      getExceptionHandler().reportException(new ProcessingException(message, Sex, getSymbolicName()));
+      getExceptionHandler().reportException(new ProcessingException(ex, getSymbolicName()));
       setTransactionAbort(getTransactionNumber());
+      return r;
+    }
+
+    // prepare the statements used for writing, unless we are carrying on
+    // with the connection (and so the statements) of an earlier stream
+    if (newConnection) {
+      try {
+        prepareStatements();
+      } catch (SQLException Sex) {
+        // Not good. Abort the transaction
+        message = "Error preparing statements. message <" + Sex.getMessage() + ">. Aborting transaction.";
+        getPipeLog().fatal(message);
+        getExceptionHandler().reportException(new ProcessingException(message, Sex, getSymbolicName()));
+        setTransactionAbort(getTransactionNumber());
+        return r;
+      }
     }
 
     // Get the count of the insert params we are going to use, but only once
@@ -833,14 +844,38 @@ public abstract class JDBCOutputAdapter
    * Close Transaction is the trigger to clean up transaction related
    * information such as variables, status etc.
    *
-   * Close down the statements we opened. Because the commit and rollback
-   * statements are optional, we check if they have been defined before we ry to
-   * close them.
+   * Close down the statements and the connection we opened.
    *
    * @param transactionNumber The transaction we are working on
    */
   @Override
   public void closeTransaction(int transactionNumber) {
+    closeConnection(transactionNumber);
+  }
+
+  /**
+   * Set up the connection that a new stream will be written on. By default
+   * each stream gets a connection of its own. An adapter which carries on with
+   * the connection already in use returns false, and the statements prepared
+   * on it are used again.
+   *
+   * @return true if a new connection was opened, and needs its statements
+   * @throws InitializationException
+   */
+  protected boolean openConnection() throws InitializationException {
+    JDBCcon = DBUtil.getConnection(dataSourceName);
+
+    return true;
+  }
+
+  /**
+   * Close down the statements and the connection used by a transaction.
+   * Because the commit and rollback statements are optional, we check if they
+   * have been defined before we try to close them.
+   *
+   * @param transactionNumber The transaction we are working on
+   */
+  protected void closeConnection(int transactionNumber) {
     // Close the insert statement
     DBUtil.close(stmtInsertQuery);
 
@@ -856,6 +891,7 @@ public abstract class JDBCOutputAdapter
 
     // Close the connection
     DBUtil.close(JDBCcon);
+    JDBCcon = null;
   }
 
   // -----------------------------------------------------------------------------
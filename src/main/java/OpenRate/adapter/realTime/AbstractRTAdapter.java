@@ -4,16 +4,22 @@ package OpenRate.adapter.realTime;
 import OpenRate.IPipeline;
 import OpenRate.OpenRate;
 import OpenRate.configurationmanager.ClientManager;
+import OpenRate.configurationmanager.IEventInterface;
 import OpenRate.exception.ExceptionHandler;
 import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.logging.ILogger;
+import OpenRate.logging.LogUtil;
 import OpenRate.process.IPlugIn;
+import OpenRate.process.IRTBatchPlugIn;
 import OpenRate.record.FlatRecord;
 import OpenRate.record.IRecord;
+import OpenRate.utils.LatencyHistogram;
 import OpenRate.utils.PropertyUtils;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class implements the real time (RT) adapter for the OpenRate framework.
@@ -23,9 +29,26 @@ import java.util.Iterator;
  * The concrete implementation of this class deals with the transport of the
  * events and selects the appropriate communication mechanism.
  *
+ * The adapter can optionally track the latency of each request, and of each
+ * plug in in the chain, using non-allocating histograms. The percentiles are
+ * available through the "LatencyStats" control command, and can be written
+ * to the statistics log periodically ("LatencyLogInterval", in seconds).
+ * Requests taking longer than the "LatencySLA" (in ms) are counted as SLA
+ * breaches.
+ *
+ * The adapter can also collect requests which arrive close together into
+ * micro batches ("MicroBatchSize" records or "MicroBatchWindow" microseconds,
+ * whichever comes first). The micro batch is passed through the chain as a
+ * unit, which allows plug ins implementing IRTBatchPlugIn to amortise work
+ * across requests. The first request into a micro batch leads it: its caller
+ * thread waits for the others to join and then runs the whole micro batch
+ * through the chain, while the callers of the other requests wait for it. A
+ * new micro batch is opened as soon as one is closed, so several micro batches
+ * can be in the chain at once, one per leading caller.
+ *
  * @author ian
  */
-public abstract class AbstractRTAdapter implements IRTAdapter
+public abstract class AbstractRTAdapter implements IRTAdapter, IEventInterface
 {
   // The symbolic name is used in the management of the pipeline (control and
   // thread monitoring) and logging.
@@ -57,6 +80,48 @@ public abstract class AbstractRTAdapter implements IRTAdapter
    */
   protected boolean debugging = false;
 
+  // Latency tracking: true if we are timing requests
+  private volatile boolean latencyTracking = false;
+
+  // The latency of the whole request, including the mapping, in ns
+  private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+  // The latency of each of the plug ins, in the order of the plug in list
+  private LatencyHistogram[] pluginLatency = new LatencyHistogram[0];
+
+  // The number of requests which took longer than the SLA
+  private final AtomicLong slaBreaches = new AtomicLong();
+
+  // The SLA for a request in ns, 0 = no SLA
+  private volatile long latencySLA = 0;
+
+  // The interval for writing latency statistics to the stats log in ms, 0 = off
+  private volatile long latencyLogInterval = 0;
+
+  // When we last wrote the latency statistics
+  private long lastLatencyLog = System.currentTimeMillis();
+
+  // List of Services that this Client supports
+  private final static String SERVICE_LATENCY_TRACKING = "LatencyTracking";
+  private final static String SERVICE_LATENCY_STATS = "LatencyStats";
+  private final static String SERVICE_LATENCY_RESET = "LatencyStatsReset";
+  private final static String SERVICE_LATENCY_SLA = "LatencySLA";
+  private final static String SERVICE_LATENCY_LOG_INTERVAL = "LatencyLogInterval";
+  private final static String SERVICE_MICRO_BATCH_SIZE = "MicroBatchSize";
+  private final static String SERVICE_MICRO_BATCH_WINDOW = "MicroBatchWindow";
+
+  // Micro batching: the maximum number of requests in a micro batch, 1 = off
+  private volatile int microBatchSize = 1;
+
+  // Micro batching: how long the leader waits for a micro batch to fill, in ns
+  private volatile long microBatchWindow = 1000000;
+
+  // The micro batch that new requests join, null if there is none open
+  private RTMicroBatch openMicroBatch = null;
+
+  // Guards the open micro batch
+  private final Object microBatchLock = new Object();
+
  /**
   * Get the ID of the thread that is currently being used in this context.
   *
@@ -77,6 +142,13 @@ public abstract class AbstractRTAdapter implements IRTAdapter
   public void setProcessingList(ArrayList<IPlugIn> PlugInList)
   {
     this.PlugInList = PlugInList;
+
+    // Create the latency histograms for the chain
+    pluginLatency = new LatencyHistogram[PlugInList.size()];
+    for (int idx = 0 ; idx < pluginLatency.length ; idx++)
+    {
+      pluginLatency[idx] = new LatencyHistogram();
+    }
   }
 
  /**
@@ -101,6 +173,23 @@ public abstract class AbstractRTAdapter implements IRTAdapter
     {
       debugging = true;
     }
+
+    // Get the latency tracking configuration
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(pipelineName, moduleName, SERVICE_LATENCY_TRACKING, "false");
+    processControlEvent(SERVICE_LATENCY_TRACKING, true, ConfigHelper);
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(pipelineName, moduleName, SERVICE_LATENCY_SLA, "0");
+    processControlEvent(SERVICE_LATENCY_SLA, true, ConfigHelper);
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(pipelineName, moduleName, SERVICE_LATENCY_LOG_INTERVAL, "0");
+    processControlEvent(SERVICE_LATENCY_LOG_INTERVAL, true, ConfigHelper);
+
+    // Get the micro batching configuration
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(pipelineName, moduleName, SERVICE_MICRO_BATCH_SIZE, "1");
+    processControlEvent(SERVICE_MICRO_BATCH_SIZE, true, ConfigHelper);
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(pipelineName, moduleName, SERVICE_MICRO_BATCH_WINDOW, "1000");
+    processControlEvent(SERVICE_MICRO_BATCH_WINDOW, true, ConfigHelper);
+
+    // register us with the client manager
+    registerClientManager();
   }
 
   /**
@@ -156,6 +245,8 @@ public abstract class AbstractRTAdapter implements IRTAdapter
 
   /**
    * The write method for the real time adapter is an empty loop, so that we
+   * keep the adapter thread alive. If periodic latency logging is configured,
+   * we wake up to write the statistics.
    *
    * @throws OpenRate.exception.ProcessingException
    */
@@ -170,13 +261,32 @@ public abstract class AbstractRTAdapter implements IRTAdapter
         synchronized (this)
         {
           //log.info("Output adapter <" + getSymbolicName() + "> waiting" );
-          wait();
+          if (latencyLogInterval > 0)
+          {
+            wait(latencyLogInterval);
+          }
+          else
+          {
+            wait();
+          }
         }
       }
       catch (InterruptedException e)
       {
         // ignore
       }
+
+      // Write the latency statistics if it is time to
+      if (latencyTracking && (latencyLogInterval > 0))
+      {
+        long now = System.currentTimeMillis();
+
+        if ((now - lastLatencyLog) >= latencyLogInterval)
+        {
+          OpenRate.getOpenRateStatsLog().info("RT Adapter <" + getSymbolicName() + "> latency (us) " + getLatencyStats());
+          lastLatencyLog = now;
+        }
+      }
     } // while
   }
 
@@ -266,10 +376,13 @@ public abstract class AbstractRTAdapter implements IRTAdapter
   public FlatRecord processRTRecord(FlatRecord recordToProcess)
           throws ProcessingException
   {
-    Iterator<IPlugIn> pluginIter = PlugInList.iterator();
     IRecord tmpRecord;
+    long requestStartTime = 0;
 
-    IPlugIn tmpPlugin;
+    if (latencyTracking)
+    {
+      requestStartTime = System.nanoTime();
+    }
 
     // perform the input mapping - we know to do this because our input
     // record is a FlatRecord
@@ -279,33 +392,7 @@ public abstract class AbstractRTAdapter implements IRTAdapter
     if (tmpRecord != null)
     {
       // Process through the chain
-      while (pluginIter.hasNext())
-      {
-        tmpPlugin = pluginIter.next();
-
-        if (tmpRecord.isErrored())
-        {
-          try
-          {
-            tmpPlugin.procRTErrorRecord(tmpRecord);
-          }
-          catch (ProcessingException ex)
-          {
-            getPipeLog().error("Processing exception <"+ex.getMessage()+"> caught in adapter <"+tmpPlugin.getSymbolicName()+">");
-          }
-        }
-        else
-        {
-          try
-          {
-            tmpPlugin.procRTValidRecord(tmpRecord);
-          }
-          catch (ProcessingException ex)
-          {
-            getPipeLog().error("Processing exception <"+ex.getMessage()+"> caught in adapter <"+tmpPlugin.getSymbolicName()+">");
-          }
-        }
-      }
+      processRequest(tmpRecord);
 
       // perform the output mapping - we know to do this because our output
       // record is a FlatRecord
@@ -319,6 +406,11 @@ public abstract class AbstractRTAdapter implements IRTAdapter
       }
     }
 
+    if (latencyTracking)
+    {
+      recordRequestLatency(System.nanoTime() - requestStartTime);
+    }
+
     return (FlatRecord) tmpRecord;
   }
 
@@ -333,41 +425,288 @@ public abstract class AbstractRTAdapter implements IRTAdapter
   public IRecord processRTRecord(IRecord recordToProcess)
           throws ProcessingException
   {
-    Iterator<IPlugIn> pluginIter = PlugInList.iterator();
-    IRecord tmpRecord = recordToProcess;
+    long requestStartTime = 0;
 
-    IPlugIn tmpPlugin;
+    if (latencyTracking)
+    {
+      requestStartTime = System.nanoTime();
+    }
 
     // Process through the chain
-    while (pluginIter.hasNext())
+    processRequest(recordToProcess);
+
+    if (latencyTracking)
     {
-      tmpPlugin = pluginIter.next();
+      recordRequestLatency(System.nanoTime() - requestStartTime);
+    }
 
-      if (tmpRecord.isErrored())
+    return recordToProcess;
+  }
+
+  /**
+   * Pass the request through the chain. If micro batching is active, the
+   * request joins the open micro batch. The request which opens a micro batch
+   * leads it, and processes it in this thread once it is full or the window
+   * has passed. The others wait until their micro batch has been processed.
+   * Otherwise we process the request directly.
+   *
+   * @param tmpRecord the record we are going to work on
+   */
+  private void processRequest(IRecord tmpRecord)
+  {
+    int maxSize = microBatchSize;
+    RTMicroBatch tmpBatch;
+    boolean leader = false;
+
+    if (maxSize <= 1)
+    {
+      processChain(tmpRecord);
+      return;
+    }
+
+    synchronized (microBatchLock)
+    {
+      if (openMicroBatch == null)
+      {
+        openMicroBatch = new RTMicroBatch(maxSize);
+        leader = true;
+      }
+
+      tmpBatch = openMicroBatch;
+
+      // A full micro batch takes no more requests
+      if (tmpBatch.add(tmpRecord))
+      {
+        openMicroBatch = null;
+      }
+    }
+
+    if (leader)
+    {
+      processMicroBatch(tmpBatch);
+    }
+    else
+    {
+      tmpBatch.awaitCompletion();
+    }
+  }
+
+  /**
+   * Wait for the micro batch we lead to fill, close it and pass it through the
+   * chain, releasing the callers waiting for it.
+   *
+   * @param tmpBatch the micro batch we are leading
+   */
+  private void processMicroBatch(RTMicroBatch tmpBatch)
+  {
+    tmpBatch.awaitFull(microBatchWindow);
+
+    // Close the micro batch, so that the next request opens a new one
+    synchronized (microBatchLock)
+    {
+      if (openMicroBatch == tmpBatch)
+      {
+        openMicroBatch = null;
+      }
+    }
+
+    try
+    {
+      processChain(tmpBatch.getRecords());
+    }
+    finally
+    {
+      // Release the callers, even if something went badly wrong
+      tmpBatch.complete();
+    }
+  }
+
+  /**
+   * Runs the record through each of the plug ins in the chain in turn,
+   * recording the time spent in each plug in if latency tracking is on.
+   *
+   * @param tmpRecord the record we are going to work on
+   */
+  private void processChain(IRecord tmpRecord)
+  {
+    IPlugIn tmpPlugin;
+    long pluginStartTime = 0;
+    boolean timing = latencyTracking;
+
+    for (int idx = 0 ; idx < PlugInList.size() ; idx++)
+    {
+      tmpPlugin = PlugInList.get(idx);
+
+      if (timing)
+      {
+        pluginStartTime = System.nanoTime();
+      }
+
+      processPlugIn(tmpPlugin, tmpRecord);
+
+      if (timing)
+      {
+        pluginLatency[idx].recordValue(System.nanoTime() - pluginStartTime);
+      }
+    }
+  }
+
+  /**
+   * Runs a micro batch of records through each of the plug ins in the chain in
+   * turn. Plug ins which offer the batch hook get the whole micro batch, the
+   * others get the records one by one. If latency tracking is on, the latency
+   * of each request in each plug in is recorded: the time until the plug in
+   * had finished with that request, which for a batch plug in is the time of
+   * the whole call.
+   *
+   * @param records the records we are going to work on
+   */
+  private void processChain(List<IRecord> records)
+  {
+    IPlugIn tmpPlugin;
+    long pluginStartTime = 0;
+    boolean timing = latencyTracking;
+
+    for (int idx = 0 ; idx < PlugInList.size() ; idx++)
+    {
+      tmpPlugin = PlugInList.get(idx);
+
+      if (timing)
+      {
+        pluginStartTime = System.nanoTime();
+      }
+
+      if (tmpPlugin instanceof IRTBatchPlugIn)
       {
         try
         {
-          tmpPlugin.procRTErrorRecord(tmpRecord);
+          ((IRTBatchPlugIn) tmpPlugin).procRTBatch(records);
         }
         catch (ProcessingException ex)
         {
           getPipeLog().error("Processing exception <"+ex.getMessage()+"> caught in adapter <"+tmpPlugin.getSymbolicName()+">");
         }
+
+        if (timing)
+        {
+          long batchTime = System.nanoTime() - pluginStartTime;
+
+          for (int recordIdx = 0 ; recordIdx < records.size() ; recordIdx++)
+          {
+            pluginLatency[idx].recordValue(batchTime);
+          }
+        }
       }
       else
       {
-        try
+        for (int recordIdx = 0 ; recordIdx < records.size() ; recordIdx++)
         {
-          tmpPlugin.procRTValidRecord(tmpRecord);
-        }
-        catch (ProcessingException ex)
-        {
-          getPipeLog().error("Processing exception <"+ex.getMessage()+"> caught in adapter <"+tmpPlugin.getSymbolicName()+">");
+          processPlugIn(tmpPlugin, records.get(recordIdx));
+
+          if (timing)
+          {
+            pluginLatency[idx].recordValue(System.nanoTime() - pluginStartTime);
+          }
         }
       }
     }
+  }
+
+  /**
+   * Pass a single record through a single plug in.
+   *
+   * @param tmpPlugin the plug in to use
+   * @param tmpRecord the record we are going to work on
+   */
+  private void processPlugIn(IPlugIn tmpPlugin, IRecord tmpRecord)
+  {
+    if (tmpRecord.isErrored())
+    {
+      try
+      {
+        tmpPlugin.procRTErrorRecord(tmpRecord);
+      }
+      catch (ProcessingException ex)
+      {
+        getPipeLog().error("Processing exception <"+ex.getMessage()+"> caught in adapter <"+tmpPlugin.getSymbolicName()+">");
+      }
+    }
+    else
+    {
+      try
+      {
+        tmpPlugin.procRTValidRecord(tmpRecord);
+      }
+      catch (ProcessingException ex)
+      {
+        getPipeLog().error("Processing exception <"+ex.getMessage()+"> caught in adapter <"+tmpPlugin.getSymbolicName()+">");
+      }
+    }
+  }
+
+  /**
+   * Record the latency of a whole request, and check it against the SLA.
+   *
+   * @param latency The request latency in ns
+   */
+  private void recordRequestLatency(long latency)
+  {
+    requestLatency.recordValue(latency);
+
+    if ((latencySLA > 0) && (latency > latencySLA))
+    {
+      slaBreaches.incrementAndGet();
+    }
+  }
+
+  /**
+   * Get the latency statistics for the request and for each of the plug ins,
+   * in the form name:count:p50:p99:p999:max (values in microseconds). The
+   * request entry also gives the number of SLA breaches.
+   *
+   * @return The latency statistics
+   */
+  public String getLatencyStats()
+  {
+    StringBuilder stats = new StringBuilder();
+
+    stats.append("Request:").append(formatLatency(requestLatency)).append(":").append(slaBreaches.get());
+
+    for (int idx = 0 ; idx < pluginLatency.length ; idx++)
+    {
+      stats.append(", ").append(PlugInList.get(idx).getSymbolicName()).append(":").append(formatLatency(pluginLatency[idx]));
+    }
+
+    return stats.toString();
+  }
+
+  /**
+   * Format a latency histogram as count:p50:p99:p999:max in microseconds.
+   *
+   * @param histogram The histogram to format
+   * @return The formatted values
+   */
+  private String formatLatency(LatencyHistogram histogram)
+  {
+    return histogram.getTotalCount() + ":" +
+           histogram.getValueAtPercentile(50.0) / 1000 + ":" +
+           histogram.getValueAtPercentile(99.0) / 1000 + ":" +
+           histogram.getValueAtPercentile(99.9) / 1000 + ":" +
+           histogram.getMaxValue() / 1000;
+  }
+
+  /**
+   * Clear the latency statistics.
+   */
+  public void resetLatencyStats()
+  {
+    requestLatency.reset();
+    slaBreaches.set(0);
 
-    return tmpRecord;
+    for (LatencyHistogram tmpHistogram : pluginLatency)
+    {
+      tmpHistogram.reset();
+    }
   }
 
   // -----------------------------------------------------------------------------
@@ -467,23 +806,30 @@ public abstract class AbstractRTAdapter implements IRTAdapter
   // -----------------------------------------------------------------------------
 
  /**
-  * RegisterClientManager registers this class as a client of the ECI listener
+  * registerClientManager registers this class as a client of the ECI listener
   * and publishes the commands that the plug in understands. The listener is
   * responsible for delivering only these commands to the plug in.
   *
   * @throws InitializationException
   */
-  public void RegisterClientManager() throws InitializationException
+  @Override
+  public void registerClientManager() throws InitializationException
   {
     // Set the client reference and the base services first
     ClientManager.getClientManager().registerClient(getPipeName(),getSymbolicName(), this);
 
     //Register services for this Client
-    //ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_BATCHSIZE, ClientManager.PARAM_MANDATORY);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LATENCY_TRACKING, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LATENCY_STATS, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LATENCY_RESET, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LATENCY_SLA, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LATENCY_LOG_INTERVAL, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MICRO_BATCH_SIZE, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MICRO_BATCH_WINDOW, ClientManager.PARAM_DYNAMIC);
   }
 
   /**
-  * ProcessControlEvent is the event processing hook for the External Control
+  * processControlEvent is the event processing hook for the External Control
   * Interface (ECI). This allows interaction with the external world.
    *
   * @param Command The command that we are to work on
@@ -491,17 +837,138 @@ public abstract class AbstractRTAdapter implements IRTAdapter
   * @param Parameter The parameter value for the command
   * @return The result message of the operation
    */
-  public String ProcessControlEvent(String Command, boolean Init,
+  @Override
+  public String processControlEvent(String Command, boolean Init,
                                     String Parameter)
   {
     int ResultCode = -1;
 
+    if (Command.equalsIgnoreCase(SERVICE_LATENCY_TRACKING))
+    {
+      if (Parameter.equalsIgnoreCase("true"))
+      {
+        latencyTracking = true;
+        ResultCode = 0;
+      }
+      else if (Parameter.equalsIgnoreCase("false"))
+      {
+        latencyTracking = false;
+        ResultCode = 0;
+      }
+      else
+      {
+        return Boolean.toString(latencyTracking);
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_LATENCY_STATS))
+    {
+      return getLatencyStats();
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_LATENCY_RESET))
+    {
+      if (Parameter.equalsIgnoreCase("true"))
+      {
+        resetLatencyStats();
+        ResultCode = 0;
+      }
+      else
+      {
+        return "false";
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_LATENCY_SLA))
+    {
+      if (Parameter.equals(""))
+      {
+        return Long.toString(latencySLA / 1000000);
+      }
+      else
+      {
+        try
+        {
+          latencySLA = Long.parseLong(Parameter) * 1000000;
+          ResultCode = 0;
+        }
+        catch (NumberFormatException nfe)
+        {
+          getPipeLog().error("Invalid number for latency SLA. Passed value = <" + Parameter + ">");
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_LATENCY_LOG_INTERVAL))
+    {
+      if (Parameter.equals(""))
+      {
+        return Long.toString(latencyLogInterval / 1000);
+      }
+      else
+      {
+        try
+        {
+          latencyLogInterval = Long.parseLong(Parameter) * 1000;
+          ResultCode = 0;
+
+          // wake the adapter thread so that it picks up the new interval
+          synchronized (this)
+          {
+            notifyAll();
+          }
+        }
+        catch (NumberFormatException nfe)
+        {
+          getPipeLog().error("Invalid number for latency log interval. Passed value = <" + Parameter + ">");
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_MICRO_BATCH_SIZE))
+    {
+      if (Parameter.equals(""))
+      {
+        return Integer.toString(microBatchSize);
+      }
+      else
+      {
+        try
+        {
+          microBatchSize = Math.max(1, Integer.parseInt(Parameter));
+          ResultCode = 0;
+        }
+        catch (NumberFormatException nfe)
+        {
+          getPipeLog().error("Invalid number for micro batch size. Passed value = <" + Parameter + ">");
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_MICRO_BATCH_WINDOW))
+    {
+      if (Parameter.equals(""))
+      {
+        return Long.toString(microBatchWindow / 1000);
+      }
+      else
+      {
+        try
+        {
+          microBatchWindow = Long.parseLong(Parameter) * 1000;
+          ResultCode = 0;
+        }
+        catch (NumberFormatException nfe)
+        {
+          getPipeLog().error("Invalid number for micro batch window. Passed value = <" + Parameter + ">");
+        }
+      }
+    }
+
 
     if (ResultCode == 0)
     {
-      String logStr = "Command <" + Command + "> handled by plugin <" +
-                       getSymbolicName() + "> in pipe <" + getPipeName() +">";
-      getPipeLog().debug(logStr);
+      getPipeLog().debug(LogUtil.LogECIPipeCommand(getSymbolicName(), getPipeName(), Command, Parameter));
 
       return "OK";
     }
@@ -556,4 +1023,118 @@ public abstract class AbstractRTAdapter implements IRTAdapter
     protected ExceptionHandler getExceptionHandler() {
       return pipeline.getPipelineExceptionHandler();
     }
+
+  /**
+   * A micro batch of requests. The requests are added by their callers, and
+   * the caller of the first request processes the micro batch once it is full
+   * or the window has passed, while the others wait for it.
+   */
+  private static class RTMicroBatch
+  {
+    // The records in the micro batch
+    private final ArrayList<IRecord> records;
+
+    // The most records the micro batch can take
+    private final int maxSize;
+
+    // true once the micro batch has been through the chain
+    private boolean done = false;
+
+    RTMicroBatch(int maxSize)
+    {
+      this.maxSize = maxSize;
+      records = new ArrayList<>(maxSize);
+    }
+
+    /**
+     * Add a record to the micro batch, waking the leader if it is now full.
+     *
+     * @param record The record to add
+     * @return true if the micro batch is full
+     */
+    synchronized boolean add(IRecord record)
+    {
+      records.add(record);
+
+      if (records.size() >= maxSize)
+      {
+        notifyAll();
+        return true;
+      }
+
+      return false;
+    }
+
+    /**
+     * Get the records of the micro batch.
+     *
+     * @return The records
+     */
+    synchronized List<IRecord> getRecords()
+    {
+      return records;
+    }
+
+    /**
+     * Wait for the micro batch to fill, or for the window to pass.
+     *
+     * @param window The longest time to wait in ns
+     */
+    synchronized void awaitFull(long window)
+    {
+      long deadline = System.nanoTime() + window;
+      long remaining = window;
+
+      while ((records.size() < maxSize) && (remaining > 0))
+      {
+        try
+        {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+
+        remaining = deadline - System.nanoTime();
+      }
+    }
+
+    /**
+     * Mark the micro batch as processed and release the callers.
+     */
+    synchronized void complete()
+    {
+      done = true;
+      notifyAll();
+    }
+
+    /**
+     * Wait for the micro batch to be processed. The leader always completes
+     * the micro batch, so we keep waiting if we are interrupted, and pass the
+     * interrupt on afterwards.
+     */
+    synchronized void awaitCompletion()
+    {
+      boolean interrupted = false;
+
+      while (!done)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException ex)
+        {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
 }
@@ -5,6 +5,7 @@ import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.record.FlatRecord;
 import OpenRate.record.IRecord;
+import OpenRate.threads.ThreadLauncher;
 import OpenRate.utils.PropertyUtils;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -22,6 +23,12 @@ public abstract class AbstractRTSocketAdapter extends AbstractRTAdapter
   // the port number to listen on
   int listenerPort;
 
+  // the maximum number of simultaneous connections we accept
+  int maxConnections;
+
+  // true if each connection should be handled in a virtual thread
+  boolean virtualThreads;
+
   // This is the listener socket server thread, which creates and spawns the
   // individual listener threads as connections are opened
   private SocketServerThread RTSocketServer;
@@ -70,6 +77,29 @@ public abstract class AbstractRTSocketAdapter extends AbstractRTAdapter
       // Could not use the value we got
       throw new InitializationException ("Could not parse the ListenerPort value <" + ConfigHelper + ">",getSymbolicName());
     }
+
+    // Get the maximum number of connections
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(PipelineName, ModuleName, "MaxConnections", "10");
+
+    try
+    {
+      maxConnections = Integer.parseInt(ConfigHelper);
+    }
+    catch (NumberFormatException nfe)
+    {
+      // Could not use the value we got
+      throw new InitializationException ("Could not parse the MaxConnections value <" + ConfigHelper + ">",getSymbolicName());
+    }
+
+    // See if we should handle connections in virtual threads. This allows
+    // large numbers of concurrent sessions, but needs a JVM which supports it
+    ConfigHelper = PropertyUtils.getPropertyUtils().getRTAdapterPropertyValueDef(PipelineName, ModuleName, "VirtualThreads", "false");
+    virtualThreads = ConfigHelper.equalsIgnoreCase("true");
+
+    if (virtualThreads && !ThreadLauncher.isVirtualThreadSupported())
+    {
+      getPipeLog().warning("Virtual threads requested in RT adapter <" + getSymbolicName() + ">, but not supported by this JVM. Using platform threads.");
+    }
   }
 
  /**
@@ -86,6 +116,8 @@ public abstract class AbstractRTSocketAdapter extends AbstractRTAdapter
     RTSocketServer.setParentAdapter(this);
     RTSocketServer.setPipelineLog(getPipeLog());
     RTSocketServer.setPort(listenerPort);
+    RTSocketServer.setMaxConnections(maxConnections);
+    RTSocketServer.setVirtualThreads(virtualThreads);
     RTSocketServer.setPipelineName(getPipeName());
     RTSocketServer.setThreadId("RTSocketServer");
 
@@ -5,6 +5,7 @@ import OpenRate.configurationmanager.SocketConnectionData;
 import OpenRate.configurationmanager.SocketConstants;
 import OpenRate.exception.ExceptionHandler;
 import OpenRate.logging.ILogger;
+import OpenRate.threads.ThreadLauncher;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -27,6 +28,9 @@ public class SocketServerThread implements Runnable
   // maximum number of concurrent connections
   private int maxConnections = 10;
 
+  // true if we launch the connection listeners in virtual threads
+  private boolean virtualThreads = false;
+
   // This is the reference to the RT adapter that will handle requests
   private IRTAdapter ParentRTAdapter;
 
@@ -73,6 +77,17 @@ public class SocketServerThread implements Runnable
     this.maxConnections = newMaxConnections;
   }
 
+ /**
+  * Set whether the connection listeners should be run in virtual threads.
+  * If the JVM does not support virtual threads, platform threads are used.
+  *
+  * @param newVirtualThreads true to use virtual threads
+  */
+  public void setVirtualThreads(boolean newVirtualThreads)
+  {
+    this.virtualThreads = newVirtualThreads;
+  }
+
  /**
   * This thread serves as a socket spawner for the real time adapter.
   */
@@ -105,7 +120,7 @@ public class SocketServerThread implements Runnable
           socLis.setThreadId("RTListener-" + socData.getConnectionNumber());
 
           //start thread
-          Thread t = new Thread(socLis, pipeName + "-" + threadName + "-" + Integer.toString(socData.getConnectionNumber()));
+          Thread t = ThreadLauncher.newThread(null, socLis, pipeName + "-" + threadName + "-" + Integer.toString(socData.getConnectionNumber()), virtualThreads);
           t.start();
         }
         else
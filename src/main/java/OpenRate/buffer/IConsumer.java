@@ -16,6 +16,10 @@ public interface IConsumer
   * indefinitely until it can be accepted. Blocks until object is
   * completely stored, thus implementations should be performance aware.
   *
+  * The records are copied out of the collection, and the collection must not
+  * be kept after the call returns. This allows the caller to reuse the same
+  * collection for every batch.
+  *
   * @param c The collection of records to push
   */
   public void push(Collection<IRecord> c);
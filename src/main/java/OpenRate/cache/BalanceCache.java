@@ -10,10 +10,13 @@ import OpenRate.exception.InitializationException;
 import OpenRate.lang.BalanceGroup;
 import OpenRate.lang.Counter;
 import OpenRate.lang.CounterGroup;
+import OpenRate.lang.Money;
 import OpenRate.logging.LogUtil;
 import OpenRate.utils.ConversionUtils;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -21,9 +24,11 @@ import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * All balances start with a value of zero. CDRs increment the balances
@@ -34,6 +39,25 @@ import java.util.concurrent.ConcurrentHashMap;
  * manage transactions. That means if a transaction fails (very unusual)
  * either the balances will have to be cleaned up, or reloaded from the table.
  *
+ * Updates to a balance group are serialised on a lock stripe chosen from the
+ * balance group id (see getBalanceLock()), so that many threads can update
+ * different balance groups at the same time without losing updates on the
+ * same one.
+ *
+ * If a journal file is configured (JournalFile), the cache keeps track of the
+ * balance groups which each transaction has changed, and appends only these
+ * to the journal when the transaction commits (write-behind), forcing the
+ * journal to the disk before the commit goes on. A balance group which an
+ * open transaction has also changed is held back until that transaction
+ * commits too, so that the journal never holds the changes of a transaction
+ * which has not committed. The balance groups of a transaction which rolls
+ * back are not journalled for it, but as the balances are not undone in
+ * memory, they are journalled with the next commit which changes them. On
+ * startup the journal is replayed over the loaded balances, and when it grows
+ * beyond a configured number of lines (JournalCompactLines) it is compacted
+ * into a single snapshot. The journal has the same layout as the data below,
+ * but the dates are always written as UTC seconds.
+ *
  * The data should be presented in the form:
  *   BalanceGroupId - the identifier of the balance group (integer)
  *   CounterId      - the counter identifier (integer)
@@ -80,7 +104,13 @@ public class BalanceCache extends AbstractCache
    /**
     * The internal cache is very simply a huge array. No black magic here
     */
-   protected Map<Long, BalanceGroup> balanceCache;
+   protected ConcurrentMap<Long, BalanceGroup> balanceCache;
+
+  // The number of lock stripes for balance group updates. Must be a power of 2
+  private final static int LOCK_STRIPES = 64;
+
+  // The lock stripes. A balance group always maps to the same stripe
+  private final Object[] balanceLocks;
 
    // used for handling date conversions
    private static ConversionUtils conv;
@@ -88,6 +118,30 @@ public class BalanceCache extends AbstractCache
    // if we have to save a snapshot even when in DB mode
    private boolean saveSnapshot = false;
 
+  // The balance groups which have changed since they were last journalled,
+  // and which are ready to be journalled
+  private final Set<Long> dirtyBalanceGroups = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  // The balance groups changed by each open transaction, which are only
+  // ready to be journalled when the transaction commits
+  private final ConcurrentHashMap<Integer, Set<Long>> transactionBalanceGroups = new ConcurrentHashMap<>();
+
+  // The journal file name, null if we are not journalling
+  private String journalFileName = null;
+
+  // The journal we are appending to, and the stream under it
+  private BufferedWriter journalFile = null;
+  private FileOutputStream journalStream = null;
+
+  // The number of lines in the journal, used to trigger compaction
+  private long journalLines = 0;
+
+  // The number of lines at which we compact the journal
+  private long journalCompactLines = 100000;
+
+  // Serialises writing to the journal
+  private final Object journalLock = new Object();
+
   // List of Services that this Client supports
   private final static String SERVICE_DUMP_BALGROUP = "DumpBalGroup";
 
@@ -99,6 +153,13 @@ public class BalanceCache extends AbstractCache
     // Initialise the cache hash 
     balanceCache = new ConcurrentHashMap<>(1000);
 
+    // Initialise the lock stripes
+    balanceLocks = new Object[LOCK_STRIPES];
+    for (int i = 0 ; i < LOCK_STRIPES ; i++)
+    {
+      balanceLocks[i] = new Object();
+    }
+
     // Initialise variables that we will be using regularly - this is the
     // default that can be overwritten using "setDateFormat"
     conv = new ConversionUtils();
@@ -121,18 +182,16 @@ public class BalanceCache extends AbstractCache
   {
     BalanceGroup tmpBalGrp;
 
-    if (balanceCache.containsKey(BalanceGroupId))
+    synchronized (getBalanceLock(BalanceGroupId))
     {
-      // Add the balance to the existing group
-      tmpBalGrp = balanceCache.get(BalanceGroupId);
-      tmpBalGrp.addCounter(CounterId,RecId,ValidFrom,ValidTo,CurrentBal);
-    }
-    else
-    {
-      // Create a new group
-      tmpBalGrp = new BalanceGroup();
-      balanceCache.put(BalanceGroupId,tmpBalGrp);
+      tmpBalGrp = getOrAddBalanceGroup(BalanceGroupId);
       tmpBalGrp.addCounter(CounterId,RecId,ValidFrom,ValidTo,CurrentBal);
+
+      // make sure that counters created later do not reuse the id
+      if (RecId > tmpBalGrp.getRecId())
+      {
+        tmpBalGrp.setRecId(RecId);
+      }
     }
   }
 
@@ -151,20 +210,16 @@ public class BalanceCache extends AbstractCache
   public Counter addCounter(long BalanceGroupId, int CounterId, long ValidFrom, long ValidTo, double CurrentBal)
   {
     BalanceGroup tmpBalGrp;
+    Counter      tmpCounter;
 
-    if (balanceCache.containsKey(BalanceGroupId))
+    synchronized (getBalanceLock(BalanceGroupId))
     {
-      // Add the balance to the existing group
-      tmpBalGrp = balanceCache.get(BalanceGroupId);
-      return tmpBalGrp.addCounter(CounterId,ValidFrom,ValidTo,CurrentBal);
-    }
-    else
-    {
-      // Create a new group
-      tmpBalGrp = new BalanceGroup();
-      balanceCache.put(BalanceGroupId,tmpBalGrp);
-      return tmpBalGrp.addCounter(CounterId,ValidFrom,ValidTo,CurrentBal);
+      tmpBalGrp = getOrAddBalanceGroup(BalanceGroupId);
+      tmpCounter = tmpBalGrp.addCounter(CounterId,ValidFrom,ValidTo,CurrentBal);
+      markBalanceGroupDirty(BalanceGroupId);
     }
+
+    return tmpCounter;
   }
 
  /**
@@ -177,59 +232,27 @@ public class BalanceCache extends AbstractCache
   */
   public Counter checkCounterExists(long BalanceGroupId, int CounterId, long UTCEventDate)
   {
-    BalanceGroup tmpBalGrp = getBalanceGroup(BalanceGroupId);
-    CounterGroup tmpCounterGroup;
-    Counter tmpCounter;
-
-    // Check the balance group existence
-    if (tmpBalGrp == null)
-    {
-      return null;
-    }
-    else
-    {
-      // check the counter group existence
-      tmpCounterGroup = tmpBalGrp.getCounterGroup(CounterId);
-
-      if (tmpCounterGroup == null)
-      {
-        return null;
-      }
-      else
-      {
-        // Check the counter existence
-        tmpCounter = tmpCounterGroup.getCounterByUTCDate(UTCEventDate);
-
-        if (tmpCounter == null)
-        {
-          return null;
-        }
-        else
-        {
-          return tmpCounter;
-        }
-      }
-    }
+    return getCounter(BalanceGroupId, CounterId, UTCEventDate);
   }
 
  /**
   * Add a new balance group into the BalanceCache.
   *
   * @param BalanceGroupId The balance group identifier
-  * @return The balance group object
+  * @return The balance group object, or null if it already existed
   */
   public BalanceGroup addBalanceGroup(long BalanceGroupId)
   {
-    BalanceGroup tmpBalGrp = null;
+    BalanceGroup tmpBalGrp = new BalanceGroup();
 
-    if (!balanceCache.containsKey(BalanceGroupId))
+    if (balanceCache.putIfAbsent(BalanceGroupId,tmpBalGrp) == null)
     {
-      // Create a new group
-      tmpBalGrp = new BalanceGroup();
-      balanceCache.put(BalanceGroupId,tmpBalGrp);
+      return tmpBalGrp;
+    }
+    else
+    {
+      return null;
     }
-
-    return tmpBalGrp;
   }
 
  /**
@@ -244,15 +267,14 @@ public class BalanceCache extends AbstractCache
   {
     BalanceGroup tmpBalGrp = getBalanceGroup(BalanceGroupId);
     CounterGroup tmpCounterGroup;
-    Counter tmpCounter;
 
     if (tmpBalGrp == null)
     {
       return null;
     }
-    else
+
+    synchronized (getBalanceLock(BalanceGroupId))
     {
-      // Get the counter for euro
       tmpCounterGroup = tmpBalGrp.getCounterGroup(counterId);
 
       if (tmpCounterGroup == null)
@@ -262,18 +284,185 @@ public class BalanceCache extends AbstractCache
       else
       {
         // Find the right counter from the group - this will usually be the first
-        tmpCounter = tmpCounterGroup.getCounterByUTCDate(UTCEventDate);
+        return tmpCounterGroup.getCounterByUTCDate(UTCEventDate);
+      }
+    }
+  }
 
-        if (tmpCounter == null)
-        {
-          return null;
-        }
-        else
-        {
-          return tmpCounter;
-        }
+ /**
+  * Consume a value from the counter which is valid at the given date. The
+  * counter is decremented by the value, but not below zero. The read, the
+  * update and marking the balance group dirty are done atomically with
+  * respect to all other updates on the balance group.
+  *
+  * @param balanceGroupId The balance group to consume from
+  * @param counterId The counter id to consume from
+  * @param utcEventDate The date to select the counter period
+  * @param value The value to consume
+  * @return The value actually consumed, 0 if there is no counter valid at the date
+  */
+  public double consumeCounter(long balanceGroupId, int counterId, long utcEventDate, double value)
+  {
+    Counter tmpCounter;
+
+    synchronized (getBalanceLock(balanceGroupId))
+    {
+      tmpCounter = getCounter(balanceGroupId, counterId, utcEventDate);
+
+      if (tmpCounter == null)
+      {
+        return 0;
+      }
+
+      return consumeCounter(balanceGroupId, tmpCounter, value, 0, false);
+    }
+  }
+
+ /**
+  * Consume a value from a counter of the balance group. The counter is
+  * decremented by the value, but not below zero, and the balance group is
+  * marked as changed by the transaction. The caller must hold the balance
+  * lock of the group if it has read the counter to decide what to consume.
+  *
+  * @param balanceGroupId The balance group the counter belongs to
+  * @param counter The counter to consume from
+  * @param value The value to consume
+  * @param transactionNumber The transaction making the change, or 0 if
+  * there is none
+  * @param fixedPoint true if the counter holds money, and is kept exact in
+  * fixed point
+  * @return The value actually consumed
+  */
+  public double consumeCounter(long balanceGroupId, Counter counter, double value, int transactionNumber, boolean fixedPoint)
+  {
+    double consumed;
+
+    synchronized (getBalanceLock(balanceGroupId))
+    {
+      if (value > counter.CurrentBalance)
+      {
+        // we are crossing a threshold, use what is left
+        consumed = counter.CurrentBalance;
+        counter.CurrentBalance = 0;
+      }
+      else
+      {
+        consumed = value;
+        counter.CurrentBalance = addToBalance(counter.CurrentBalance, -value, fixedPoint);
+      }
+
+      markBalanceGroupDirty(balanceGroupId, transactionNumber);
+    }
+
+    return consumed;
+  }
+
+ /**
+  * Refund a value onto the counter which is valid at the given date. The
+  * counter is incremented by the value, but not above the maximum balance.
+  * The read, the update and marking the balance group dirty are done
+  * atomically with respect to all other updates on the balance group.
+  *
+  * @param balanceGroupId The balance group to refund to
+  * @param counterId The counter id to refund to
+  * @param utcEventDate The date to select the counter period
+  * @param value The value to refund
+  * @param maxBalance The maximum value the counter can have after the refund
+  * @return The value actually refunded, 0 if there is no counter valid at the date
+  */
+  public double refundCounter(long balanceGroupId, int counterId, long utcEventDate, double value, double maxBalance)
+  {
+    Counter tmpCounter;
+
+    synchronized (getBalanceLock(balanceGroupId))
+    {
+      tmpCounter = getCounter(balanceGroupId, counterId, utcEventDate);
+
+      if (tmpCounter == null)
+      {
+        return 0;
+      }
+
+      return refundCounter(balanceGroupId, tmpCounter, value, maxBalance, 0, false);
+    }
+  }
+
+ /**
+  * Refund a value onto a counter of the balance group. The counter is
+  * incremented by the value, but not above the maximum balance, and the
+  * balance group is marked as changed by the transaction.
+  *
+  * @param balanceGroupId The balance group the counter belongs to
+  * @param counter The counter to refund to
+  * @param value The value to refund
+  * @param maxBalance The maximum value the counter can have after the refund
+  * @param transactionNumber The transaction making the change, or 0 if
+  * there is none
+  * @param fixedPoint true if the counter holds money, and is kept exact in
+  * fixed point
+  * @return The value actually refunded
+  */
+  public double refundCounter(long balanceGroupId, Counter counter, double value, double maxBalance, int transactionNumber, boolean fixedPoint)
+  {
+    double refunded = value;
+
+    synchronized (getBalanceLock(balanceGroupId))
+    {
+      if (addToBalance(counter.CurrentBalance, refunded, fixedPoint) > maxBalance)
+      {
+        // we can't go over the maximum, so limit what we refund
+        refunded = addToBalance(maxBalance, -counter.CurrentBalance, fixedPoint);
       }
+
+      counter.CurrentBalance = addToBalance(counter.CurrentBalance, refunded, fixedPoint);
+
+      markBalanceGroupDirty(balanceGroupId, transactionNumber);
+    }
+
+    return refunded;
+  }
+
+ /**
+  * Add an amount to a balance, exactly in fixed point if the counter holds
+  * money and the amounts are in the fixed point range.
+  *
+  * @param balance The balance
+  * @param delta The amount to add
+  * @param fixedPoint true if the counter is kept in fixed point
+  * @return The new balance
+  */
+  private static double addToBalance(double balance, double delta, boolean fixedPoint)
+  {
+    if (fixedPoint && Money.isInRange(balance) && Money.isInRange(delta))
+    {
+      return Money.add(balance, delta);
     }
+
+    return balance + delta;
+  }
+
+ /**
+  * Gets the lock which serialises updates to the given balance group. Callers
+  * which perform their own read-modify-write on the counters of a balance
+  * group (for example to create balance impacts at the same time) must hold
+  * this lock for the whole sequence. The lock is re-entrant, so the atomic
+  * methods of the cache can be called while holding it.
+  *
+  * Balance groups are spread over a fixed number of lock stripes, so
+  * different balance groups can usually be updated in parallel.
+  *
+  * @param balanceGroupId The balance group to get the lock for
+  * @return The lock object
+  */
+  public Object getBalanceLock(long balanceGroupId)
+  {
+    int hash = (int) (balanceGroupId ^ (balanceGroupId >>> 32));
+
+    // spread the bits so that sequential ids use all of the stripes
+    hash ^= (hash >>> 16);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+    return balanceLocks[hash & (LOCK_STRIPES - 1)];
   }
 
  /**
@@ -285,16 +474,32 @@ public class BalanceCache extends AbstractCache
   */
   public BalanceGroup getBalanceGroup(long balanceGroupId)
   {
-    BalanceGroup tmpBalGrp;
+    return balanceCache.get(balanceGroupId);
+  }
+
+ /**
+  * Gets a balance group from the cache, creating it if it does not exist.
+  * Creation is atomic, so two threads creating the same group at the same
+  * time will get the same object.
+  *
+  * @param balanceGroupId The ID of the balance group to retrieve
+  * @return The balance group
+  */
+  private BalanceGroup getOrAddBalanceGroup(long balanceGroupId)
+  {
+    BalanceGroup tmpBalGrp = balanceCache.get(balanceGroupId);
 
-    if (!balanceCache.containsKey(balanceGroupId))
+    if (tmpBalGrp == null)
     {
-      // create the default balance group
-      // throw a wobbly?
+      BalanceGroup newBalGrp = new BalanceGroup();
+      tmpBalGrp = balanceCache.putIfAbsent(balanceGroupId,newBalGrp);
+
+      if (tmpBalGrp == null)
+      {
+        tmpBalGrp = newBalGrp;
+      }
     }
 
-    // Return the value
-    tmpBalGrp = balanceCache.get(balanceGroupId);
     return tmpBalGrp;
   }
 
@@ -432,7 +637,31 @@ public class BalanceCache extends AbstractCache
 
       loadDataFromDB();
     }
-    
+
+    // See if we are journalling the balance changes
+    String tmpJournalFile = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       "JournalFile",
+                                                       "None");
+
+    if (tmpJournalFile.equalsIgnoreCase("None") == false)
+    {
+      String tmpCompactLines = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       "JournalCompactLines",
+                                                       "100000");
+
+      try
+      {
+        initJournal(tmpJournalFile, Long.parseLong(tmpCompactLines));
+      }
+      catch (NumberFormatException nfe)
+      {
+        message = "JournalCompactLines for cache <" + getSymbolicName() + "> must be numeric, found <" + tmpCompactLines + ">";
+        OpenRate.getOpenRateFrameworkLog().error(message);
+        throw new InitializationException(message,getSymbolicName());
+      }
+    }
   }
 
  /**
@@ -822,6 +1051,14 @@ public class BalanceCache extends AbstractCache
     Counter tmpCounter;
     String fileName = null;
 
+    // If we are journalling, we only have to write what has changed
+    if (journalFileName != null)
+    {
+      writeDirtyBalances();
+      closeJournal();
+      return;
+    }
+
     if (cacheDataSourceType.equalsIgnoreCase("File")) {
       // Use the defined name
       fileName = cacheDataSourceName;
@@ -852,27 +1089,31 @@ public class BalanceCache extends AbstractCache
           tmpBalGrpKey = balGrpIter.next();
           tmpBalGrp = balanceCache.get(tmpBalGrpKey);
 
-          // Get a list of all the counter groups in the balance group
-          counterIter = tmpBalGrp.getCounterIterator();
-
-          while (counterIter.hasNext())
+          // Hold the group still while we write it
+          synchronized (getBalanceLock(tmpBalGrpKey))
           {
-            // get a list of all the counters in the group
-            tmpCounterId = counterIter.next();
-            tmpCounterGroup = tmpBalGrp.getCounterGroup(tmpCounterId);
-            counters = tmpCounterGroup.getCounters();
+            // Get a list of all the counter groups in the balance group
+            counterIter = tmpBalGrp.getCounterIterator();
 
-            for (i = 0 ; i < counters.size() ; i++)
+            while (counterIter.hasNext())
             {
-              tmpCounter = counters.get(i);
-              stringToWrite = tmpBalGrpKey + ";" + 
-                              tmpCounterId + ";" +
-                              tmpCounter.RecId + ";" + 
-                              tmpCounter.validFrom +  ";" +
-                              tmpCounter.validTo + ";" + 
-                              tmpCounter.CurrentBalance;
-              outFile.write(stringToWrite);
-              outFile.newLine();
+              // get a list of all the counters in the group
+              tmpCounterId = counterIter.next();
+              tmpCounterGroup = tmpBalGrp.getCounterGroup(tmpCounterId);
+              counters = tmpCounterGroup.getCounters();
+
+              for (i = 0 ; i < counters.size() ; i++)
+              {
+                tmpCounter = counters.get(i);
+                stringToWrite = tmpBalGrpKey + ";" + 
+                                tmpCounterId + ";" +
+                                tmpCounter.RecId + ";" + 
+                                tmpCounter.validFrom +  ";" +
+                                tmpCounter.validTo + ";" + 
+                                tmpCounter.CurrentBalance;
+                outFile.write(stringToWrite);
+                outFile.newLine();
+              }
             }
           }
         }
@@ -891,6 +1132,463 @@ public class BalanceCache extends AbstractCache
     }
   }
 
+// -----------------------------------------------------------------------------
+// ----------------------- Start of journal functions --------------------------
+// -----------------------------------------------------------------------------
+
+ /**
+  * Marks a balance group as changed outside of any transaction, so that it
+  * will be written to the journal at the next commit. Should be called
+  * holding the balance lock of the group, after the change has been made.
+  *
+  * @param balanceGroupId The balance group which has changed
+  */
+  public void markBalanceGroupDirty(long balanceGroupId)
+  {
+    markBalanceGroupDirty(balanceGroupId, 0);
+  }
+
+ /**
+  * Marks a balance group as changed by a transaction, so that it will be
+  * written to the journal when the transaction commits. Should be called
+  * holding the balance lock of the group, after the change has been made.
+  *
+  * @param balanceGroupId The balance group which has changed
+  * @param transactionNumber The transaction making the change, or 0 if
+  * there is none
+  */
+  public void markBalanceGroupDirty(long balanceGroupId, int transactionNumber)
+  {
+    BalanceGroup tmpBalGrp = balanceCache.get(balanceGroupId);
+    Set<Long>    tmpGroups;
+    Set<Long>    tmpExisting;
+
+    if (tmpBalGrp != null)
+    {
+      tmpBalGrp.markDirty();
+
+      if (transactionNumber > 0)
+      {
+        tmpGroups = transactionBalanceGroups.get(transactionNumber);
+
+        if (tmpGroups == null)
+        {
+          tmpGroups = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+          tmpExisting = transactionBalanceGroups.putIfAbsent(transactionNumber, tmpGroups);
+
+          if (tmpExisting != null)
+          {
+            tmpGroups = tmpExisting;
+          }
+        }
+
+        tmpGroups.add(balanceGroupId);
+      }
+      else
+      {
+        dirtyBalanceGroups.add(balanceGroupId);
+      }
+    }
+  }
+
+ /**
+  * Journal the balance groups changed by a transaction which is committing,
+  * together with any other changes which are ready. Does nothing if
+  * journalling is not configured.
+  *
+  * @param transactionNumber The transaction which is committing
+  * @return The number of balance groups written
+  */
+  public int commitTransactionBalances(int transactionNumber)
+  {
+    Set<Long> tmpGroups = transactionBalanceGroups.remove(transactionNumber);
+
+    if (tmpGroups != null)
+    {
+      dirtyBalanceGroups.addAll(tmpGroups);
+    }
+
+    return writeDirtyBalances();
+  }
+
+ /**
+  * Forget the balance groups changed by a transaction which is rolling back,
+  * so that they are not journalled for it.
+  *
+  * @param transactionNumber The transaction which is rolling back
+  */
+  public void rollbackTransactionBalances(int transactionNumber)
+  {
+    transactionBalanceGroups.remove(transactionNumber);
+  }
+
+ /**
+  * Open the journal. Any balances already in the journal are applied over the
+  * balances we have loaded, and the journal is then opened for appending.
+  *
+  * @param fileName The journal file
+  * @param compactLines The number of lines at which we compact the journal
+  * @throws InitializationException
+  */
+  public void initJournal(String fileName, long compactLines) throws InitializationException
+  {
+    synchronized (journalLock)
+    {
+      journalFileName = fileName;
+      journalCompactLines = compactLines;
+
+      if (new File(journalFileName).exists())
+      {
+        replayJournal();
+      }
+
+      try
+      {
+        openJournal();
+      }
+      catch (IOException ex)
+      {
+        message = "Could not open balance journal <" + journalFileName + "> in cache <" + getSymbolicName() + ">";
+        OpenRate.getOpenRateFrameworkLog().error(message);
+        throw new InitializationException(message,ex,getSymbolicName());
+      }
+
+      // The loaded state is now the persisted state
+      dirtyBalanceGroups.clear();
+      transactionBalanceGroups.clear();
+    }
+  }
+
+ /**
+  * Open the journal for appending. Called holding the journal lock.
+  *
+  * @throws IOException
+  */
+  private void openJournal() throws IOException
+  {
+    journalStream = new FileOutputStream(journalFileName, true);
+    journalFile = new BufferedWriter(new OutputStreamWriter(journalStream));
+  }
+
+ /**
+  * Append the balance groups which have changed since the last call, and
+  * which no open transaction has changed, to the journal, and force it to
+  * the disk. Does nothing if journalling is not configured.
+  *
+  * @return The number of balance groups written
+  */
+  public int writeDirtyBalances()
+  {
+    int groupsWritten = 0;
+
+    synchronized (journalLock)
+    {
+      if (journalFile == null)
+      {
+        return 0;
+      }
+
+      try
+      {
+        Iterator<Long> dirtyIter = dirtyBalanceGroups.iterator();
+
+        while (dirtyIter.hasNext())
+        {
+          long balanceGroupId = dirtyIter.next();
+
+          // An open transaction has changes in it too, so it waits for that
+          if (isChangedByOpenTransaction(balanceGroupId))
+          {
+            continue;
+          }
+
+          // Remove before writing: a change made while we write marks it again
+          dirtyIter.remove();
+
+          journalLines += writeBalanceGroup(journalFile, balanceGroupId);
+          groupsWritten++;
+        }
+
+        // the commit must not go on until the balances are on the disk
+        journalFile.flush();
+        journalStream.getChannel().force(true);
+      }
+      catch (IOException ex)
+      {
+        OpenRate.getOpenRateFrameworkLog().error("Error writing balance journal <" + journalFileName + "> in cache <" + getSymbolicName() + ">", ex);
+      }
+
+      if (journalLines > journalCompactLines)
+      {
+        compactJournal();
+      }
+    }
+
+    return groupsWritten;
+  }
+
+ /**
+  * See if a balance group has been changed by a transaction which is still
+  * open.
+  *
+  * @param balanceGroupId The balance group
+  * @return true if an open transaction has changed it
+  */
+  private boolean isChangedByOpenTransaction(long balanceGroupId)
+  {
+    for (Set<Long> tmpGroups : transactionBalanceGroups.values())
+    {
+      if (tmpGroups.contains(balanceGroupId))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+ /**
+  * Close the journal. Balances that have not been written are lost, so
+  * writeDirtyBalances() should normally be called first.
+  */
+  public void closeJournal()
+  {
+    synchronized (journalLock)
+    {
+      if (journalFile != null)
+      {
+        try
+        {
+          journalFile.close();
+        }
+        catch (IOException ex)
+        {
+          OpenRate.getOpenRateFrameworkLog().error("Error closing balance journal <" + journalFileName + "> in cache <" + getSymbolicName() + ">", ex);
+        }
+
+        journalFile = null;
+        journalStream = null;
+      }
+    }
+  }
+
+ /**
+  * Read the journal and apply it over the balances we have. Later lines for
+  * the same counter period overwrite earlier ones. Called holding the journal
+  * lock.
+  *
+  * @throws InitializationException
+  */
+  private void replayJournal() throws InitializationException
+  {
+    String   tmpFileRecord;
+    String[] balFields;
+    long     linesRead = 0;
+
+    OpenRate.getOpenRateFrameworkLog().info("Replaying balance journal <" + journalFileName + "> for cache <" + getSymbolicName() + ">");
+
+    try (BufferedReader inFile = new BufferedReader(new FileReader(journalFileName)))
+    {
+      while ((tmpFileRecord = inFile.readLine()) != null)
+      {
+        if (tmpFileRecord.startsWith("#") || tmpFileRecord.trim().equals(""))
+        {
+          // Comment line, ignore
+          continue;
+        }
+
+        balFields = tmpFileRecord.split(";");
+
+        try
+        {
+          applyJournalEntry(Long.parseLong(balFields[0]),
+                            Integer.parseInt(balFields[1]),
+                            Long.parseLong(balFields[2]),
+                            Long.parseLong(balFields[3]),
+                            Long.parseLong(balFields[4]),
+                            Double.parseDouble(balFields[5]));
+          linesRead++;
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException ex)
+        {
+          // most likely a partial last line after a crash
+          OpenRate.getOpenRateFrameworkLog().warning("Ignoring malformed balance journal line <" + tmpFileRecord + "> in cache <" + getSymbolicName() + ">");
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      message = "Error reading balance journal <" + journalFileName + "> in cache <" + getSymbolicName() + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    journalLines = linesRead;
+
+    OpenRate.getOpenRateFrameworkLog().info("Balance journal replay completed. " + linesRead + " lines applied from <" + journalFileName + ">");
+  }
+
+ /**
+  * Apply a single journal entry, updating the counter period if we have it,
+  * otherwise creating it.
+  *
+  * @param balanceGroupId The balance group
+  * @param counterId The counter id
+  * @param recId The rec id of the counter period
+  * @param validFrom The start of the validity of the counter period
+  * @param validTo The end of the validity of the counter period
+  * @param currentBal The balance of the counter period
+  */
+  private void applyJournalEntry(long balanceGroupId, int counterId, long recId, long validFrom, long validTo, double currentBal)
+  {
+    BalanceGroup tmpBalGrp;
+    CounterGroup tmpCounterGroup;
+    Counter      tmpCounter = null;
+
+    synchronized (getBalanceLock(balanceGroupId))
+    {
+      tmpBalGrp = getOrAddBalanceGroup(balanceGroupId);
+      tmpCounterGroup = tmpBalGrp.getCounterGroup(counterId);
+
+      if (tmpCounterGroup != null)
+      {
+        tmpCounter = tmpCounterGroup.getCounterById((int) recId);
+      }
+
+      if (tmpCounter == null)
+      {
+        tmpBalGrp.addCounter(counterId, recId, validFrom, validTo, currentBal);
+
+        if (recId > tmpBalGrp.getRecId())
+        {
+          tmpBalGrp.setRecId(recId);
+        }
+      }
+      else
+      {
+        tmpCounter.validFrom = validFrom;
+        tmpCounter.validTo = validTo;
+        tmpCounter.CurrentBalance = currentBal;
+      }
+    }
+  }
+
+ /**
+  * Rewrite the journal as a single snapshot of all balances, so that it does
+  * not grow without limit. The snapshot is written to a temporary file and
+  * synced to the disk, and then atomically moved over the journal, so that
+  * there is always a complete journal on the disk. If the move fails, the old
+  * journal is kept. Called holding the journal lock.
+  */
+  private void compactJournal()
+  {
+    File tmpJournal = new File(journalFileName + ".tmp");
+    File journal = new File(journalFileName);
+    long linesWritten = 0;
+
+    OpenRate.getOpenRateFrameworkLog().info("Compacting balance journal <" + journalFileName + "> for cache <" + getSymbolicName() + ">");
+
+    try (FileOutputStream outStream = new FileOutputStream(tmpJournal))
+    {
+      BufferedWriter outFile = new BufferedWriter(new OutputStreamWriter(outStream));
+
+      outFile.write("# Balance journal file");
+      outFile.newLine();
+
+      Iterator<Long> balGrpIter = balanceCache.keySet().iterator();
+
+      while (balGrpIter.hasNext())
+      {
+        linesWritten += writeBalanceGroup(outFile, balGrpIter.next());
+      }
+
+      // make sure the snapshot is on the disk before it replaces the journal
+      outFile.flush();
+      outStream.getChannel().force(true);
+    }
+    catch (IOException ex)
+    {
+      OpenRate.getOpenRateFrameworkLog().error("Error compacting balance journal <" + journalFileName + "> in cache <" + getSymbolicName() + ">", ex);
+      tmpJournal.delete();
+      return;
+    }
+
+    // swap the snapshot in
+    closeJournal();
+
+    try
+    {
+      Files.move(tmpJournal.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      journalLines = linesWritten;
+    }
+    catch (IOException ex)
+    {
+      // keep appending to the old journal, which is still complete
+      OpenRate.getOpenRateFrameworkLog().error("Could not replace balance journal <" + journalFileName + "> with <" + tmpJournal.getName() + "> in cache <" + getSymbolicName() + ">", ex);
+      tmpJournal.delete();
+    }
+
+    try
+    {
+      openJournal();
+    }
+    catch (IOException ex)
+    {
+      OpenRate.getOpenRateFrameworkLog().error("Could not reopen balance journal <" + journalFileName + "> in cache <" + getSymbolicName() + ">", ex);
+    }
+  }
+
+ /**
+  * Write all the counter periods of a balance group in journal format.
+  *
+  * @param outFile The writer to write to
+  * @param balanceGroupId The balance group to write
+  * @return The number of lines written
+  * @throws IOException
+  */
+  private int writeBalanceGroup(BufferedWriter outFile, long balanceGroupId) throws IOException
+  {
+    BalanceGroup       tmpBalGrp = balanceCache.get(balanceGroupId);
+    Iterator<Integer>  counterIter;
+    ArrayList<Counter> counters;
+    Counter            tmpCounter;
+    int                counterId;
+    int                linesWritten = 0;
+
+    if (tmpBalGrp == null)
+    {
+      return 0;
+    }
+
+    synchronized (getBalanceLock(balanceGroupId))
+    {
+      counterIter = tmpBalGrp.getCounterIterator();
+
+      while (counterIter.hasNext())
+      {
+        counterId = counterIter.next();
+        counters = tmpBalGrp.getCounterGroup(counterId).getCounters();
+
+        for (int i = 0 ; i < counters.size() ; i++)
+        {
+          tmpCounter = counters.get(i);
+          outFile.write(balanceGroupId + ";" +
+                        counterId + ";" +
+                        tmpCounter.RecId + ";" +
+                        tmpCounter.validFrom + ";" +
+                        tmpCounter.validTo + ";" +
+                        tmpCounter.CurrentBalance);
+          outFile.newLine();
+          linesWritten++;
+        }
+      }
+
+      tmpBalGrp.setBalanceDirty(false);
+    }
+
+    return linesWritten;
+  }
+
 // -----------------------------------------------------------------------------
 // -------------------- Start of local utility functions -----------------------
 // -----------------------------------------------------------------------------
@@ -913,24 +1611,27 @@ public class BalanceCache extends AbstractCache
 
         BalanceGroup balanceGroup = balanceCache.get(tmpBalGroup);
 
-        Iterator<Integer> counterGrpIter = balanceGroup.getCounterIterator();
-        while (counterGrpIter.hasNext())
+        synchronized (getBalanceLock(tmpBalGroup))
         {
-          int counterId = counterGrpIter.next();
-          CounterGroup counter = balanceGroup.getCounterGroup(counterId);
-          ArrayList<Counter> counterList = counter.getCounters();
-          Iterator<Counter> counterIter = counterList.iterator();
-
-          while (counterIter.hasNext())
+          Iterator<Integer> counterGrpIter = balanceGroup.getCounterIterator();
+          while (counterGrpIter.hasNext())
           {
-            Counter tmpCounter = counterIter.next();
-
-            outFile.write("BalanceGroup: " + tmpBalGroup +
-                          ", CounterID: " + counterId +
-                          ", Rec id: " + tmpCounter.RecId +
-                          ", valid: " + tmpCounter.validFrom + "-" + tmpCounter.validTo +
-                          ", currentBal: " + tmpCounter.CurrentBalance +
-                          "\n");
+            int counterId = counterGrpIter.next();
+            CounterGroup counter = balanceGroup.getCounterGroup(counterId);
+            ArrayList<Counter> counterList = counter.getCounters();
+            Iterator<Counter> counterIter = counterList.iterator();
+
+            while (counterIter.hasNext())
+            {
+              Counter tmpCounter = counterIter.next();
+
+              outFile.write("BalanceGroup: " + tmpBalGroup +
+                            ", CounterID: " + counterId +
+                            ", Rec id: " + tmpCounter.RecId +
+                            ", valid: " + tmpCounter.validFrom + "-" + tmpCounter.validTo +
+                            ", currentBal: " + tmpCounter.CurrentBalance +
+                            "\n");
+            }
           }
         }
         
@@ -967,24 +1668,27 @@ public class BalanceCache extends AbstractCache
           long balanceGroupId = balIter.next();
           BalanceGroup balanceGroup = balanceCache.get(balanceGroupId);
 
-          Iterator<Integer> counterGrpIter = balanceGroup.getCounterIterator();
-          while (counterGrpIter.hasNext())
+          synchronized (getBalanceLock(balanceGroupId))
           {
-            int counterId = counterGrpIter.next();
-            CounterGroup counter = balanceGroup.getCounterGroup(counterId);
-            ArrayList<Counter> counterList = counter.getCounters();
-            Iterator<Counter> counterIter = counterList.iterator();
-
-            while (counterIter.hasNext())
+            Iterator<Integer> counterGrpIter = balanceGroup.getCounterIterator();
+            while (counterGrpIter.hasNext())
             {
-              Counter tmpCounter = counterIter.next();
-
-              outFile.write("BalanceGroup: " + balanceGroupId +
-                            ", CounterID: " + counterId +
-                            ", Rec id: " + tmpCounter.RecId +
-                            ", valid: " + tmpCounter.validFrom + "-" + tmpCounter.validTo +
-                            ", currentBal: " + tmpCounter.CurrentBalance +
-                            "\n");
+              int counterId = counterGrpIter.next();
+              CounterGroup counter = balanceGroup.getCounterGroup(counterId);
+              ArrayList<Counter> counterList = counter.getCounters();
+              Iterator<Counter> counterIter = counterList.iterator();
+
+              while (counterIter.hasNext())
+              {
+                Counter tmpCounter = counterIter.next();
+
+                outFile.write("BalanceGroup: " + balanceGroupId +
+                              ", CounterID: " + counterId +
+                              ", Rec id: " + tmpCounter.RecId +
+                              ", valid: " + tmpCounter.validFrom + "-" + tmpCounter.validTo +
+                              ", currentBal: " + tmpCounter.CurrentBalance +
+                              "\n");
+              }
             }
           }
         }
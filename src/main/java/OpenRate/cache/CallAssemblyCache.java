@@ -10,24 +10,70 @@ import OpenRate.lang.AssemblyCtx;
 import OpenRate.logging.LogUtil;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
-import java.util.Collection;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Call assembly cache used to perform call assembly for voice or data
  * partials
+ *
+ * The contexts are expired using a timing wheel, so that the partials of calls
+ * whose last record was lost do not stay in memory for ever. An open context
+ * expires when no partial has arrived for "OpenTimeout" seconds, and a closed
+ * context is kept for "StoreLimit" days to recognise late partials. The time
+ * is the date of the partials being assembled, so that files processed late
+ * expire in the same way as files processed on time. The wheel turns in ticks
+ * of "ExpiryTick" seconds. A date more than "FutureTolerance" seconds ahead of
+ * the wall clock is taken to be wrong and does not move the time on, as it
+ * would expire all of the contexts at once.
+ *
+ * The contexts are saved in the compact format of the persistent indexed
+ * object, with each context written as its fields rather than as text. The
+ * flat text files of earlier versions are still read.
  */
 public class CallAssemblyCache
   extends PersistentIndexedObject
 {
   // List of Services that this Client supports
   private final static String SERVICE_STORE_LIMIT = "StoreLimit";
+  private final static String SERVICE_OPEN_TIMEOUT = "OpenTimeout";
+  private final static String SERVICE_EXPIRY_TICK = "ExpiryTick";
+  private final static String SERVICE_FUTURE_TOLERANCE = "FutureTolerance";
 
   /**
    * this is the number of days history that we keep
    */
-  protected int StoreLimit;
+  protected int StoreLimit = 180;
+
+  /**
+   * this is the number of seconds after the last partial that an open context
+   * expires
+   */
+  protected long OpenTimeout = 86400;
+
+  /**
+   * this is the number of seconds a date may be ahead of the wall clock and
+   * still move the expiry time on
+   */
+  protected long FutureTolerance = 86400;
+
+  // The deadlines of the contexts
+  private TimingWheel<String> expiryWheel = new TimingWheel<>(60);
+
+ /**
+  * Receives the open contexts which expire before their call was closed
+  */
+  public interface AssemblyExpiryListener
+  {
+   /**
+    * Called for an open context which has expired, after it has been removed
+    *
+    * @param CallID The call identifier
+    * @param ctx The context
+    */
+    public void assemblyExpired(String CallID, AssemblyCtx ctx);
+  }
 
  /** Constructor
   * Audit Logging Info
@@ -53,91 +99,264 @@ public class CallAssemblyCache
                  throws InitializationException
   {
     String tmpStoreLimit;
+    String tmpOpenTimeout;
+    String tmpExpiryTick;
+    String tmpFutureTolerance;
 
-    // do the proceeding stuff first
-    super.loadCache(ResourceName, CacheName);
-
+    // get the limits first, as the loading uses them
     tmpStoreLimit = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
                                                        CacheName,
                                                        SERVICE_STORE_LIMIT,
                                                        "180");
-    StoreLimit = Integer.valueOf(tmpStoreLimit);
+    tmpOpenTimeout = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_OPEN_TIMEOUT,
+                                                       "86400");
+    tmpExpiryTick = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_EXPIRY_TICK,
+                                                       "60");
+    tmpFutureTolerance = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_FUTURE_TOLERANCE,
+                                                       "86400");
+
+    try
+    {
+      StoreLimit = Integer.parseInt(tmpStoreLimit);
+      OpenTimeout = Long.parseLong(tmpOpenTimeout);
+      expiryWheel = new TimingWheel<>(Long.parseLong(tmpExpiryTick));
+      FutureTolerance = Long.parseLong(tmpFutureTolerance);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "<" + SERVICE_STORE_LIMIT + ">, <" + SERVICE_OPEN_TIMEOUT + ">, <" + SERVICE_EXPIRY_TICK + "> and <" + SERVICE_FUTURE_TOLERANCE + "> must be numeric in cache <" + CacheName + ">";
+      throw new InitializationException(message,CacheName);
+    }
+
+    // do the proceeding stuff
+    super.loadCache(ResourceName, CacheName);
+
+    // Set the deadlines of the contexts we have loaded
+    synchronized (expiryWheel)
+    {
+      for (Map.Entry<String, Object> entry : ObjectList.entrySet())
+      {
+        expiryWheel.schedule(entry.getKey(), getDeadline((AssemblyCtx) entry.getValue()));
+      }
+    }
   }
 
  /**
-  * Save the object data to a file. Because the objects in the object are
-  * small and non-persistent, we store them in a flat file format.
+  * Store the context, and set its deadline
+  *
+  * @param RecordKey The call identifier
+  * @param ObjectToCache The context
   */
   @Override
-  public void saveCacheObjectsToFile() throws ProcessingException
+  public void putObject(String RecordKey, Object ObjectToCache)
   {
-    int                objectsLoaded = 0;
-    BufferedWriter     outFile = null;
-    String             tmpFileRecord;
-    Collection<String> objectSet;
-    Iterator<String>   objectIterator;
-    String             tmpKey;
-    AssemblyCtx        tmpInfo;
+    super.putObject(RecordKey, ObjectToCache);
 
-    // Log that we are starting the loading
-    OpenRate.getOpenRateFrameworkLog().info("Starting Assembly Cache saving to file");
+    if (ObjectToCache instanceof AssemblyCtx)
+    {
+      synchronized (expiryWheel)
+      {
+        expiryWheel.schedule(RecordKey, getDeadline((AssemblyCtx) ObjectToCache));
+      }
+    }
+  }
 
-    try
+ /**
+  * Remove the context, and its deadline
+  *
+  * @param RecordKey The call identifier
+  */
+  @Override
+  public void deleteObject(String RecordKey)
+  {
+    super.deleteObject(RecordKey);
+
+    synchronized (expiryWheel)
     {
-      // Try to open the file
-      outFile = new BufferedWriter(new FileWriter(CachePersistenceName));
+      expiryWheel.cancel(RecordKey);
     }
-    catch (IOException ex)
+  }
+
+ /**
+  * Remove all of the contexts
+  */
+  @Override
+  public void clearObjects()
+  {
+    super.clearObjects();
+
+    synchronized (expiryWheel)
     {
-      message = "Error opening output file";
-      throw new ProcessingException(message,ex,getSymbolicName());
+      expiryWheel.clear();
     }
+  }
+
+ /**
+  * Move the expiry time forward to the date given, removing the contexts whose
+  * deadline has passed. The open contexts among them are passed to the
+  * listener, so that what was assembled of the call is not lost. A date too
+  * far ahead of the wall clock is ignored with a warning.
+  *
+  * @param now The UTC date in seconds, normally the date of the partial being
+  *            processed
+  * @param listener The listener for the expired open contexts, can be null
+  * @return The number of contexts removed
+  */
+  public int expireAssemblies(long now, AssemblyExpiryListener listener)
+  {
+    List<String> tmpExpired;
+    AssemblyCtx  tmpCtx;
+    int          removed = 0;
+    long         tmpLimit;
 
-    objectSet = ObjectList.keySet();
-    objectIterator = objectSet.iterator();
+    tmpLimit = System.currentTimeMillis() / 1000 + FutureTolerance;
 
-    while (objectIterator.hasNext())
+    if (now > tmpLimit)
     {
-      tmpKey = objectIterator.next();
-      tmpInfo = (AssemblyCtx) ObjectList.get(tmpKey);
-      tmpFileRecord = tmpKey + ";" +
-                      String.valueOf(tmpInfo.totalDuration) + ";" +
-                      String.valueOf(tmpInfo.totalData) + ";" +
-                      String.valueOf(tmpInfo.uplink) + ";" +
-                      String.valueOf(tmpInfo.downlink) + ";" +
-                      String.valueOf(tmpInfo.state) + ";" +
-                      String.valueOf(tmpInfo.StartDate) + ";" +
-                      String.valueOf(tmpInfo.ClosedDate);
-      try
+      OpenRate.getOpenRateFrameworkLog().warning("Ignoring expiry date <" + now + "> more than <" + FutureTolerance + "> seconds in the future in cache <" + getSymbolicName() + ">");
+      return 0;
+    }
+
+    synchronized (expiryWheel)
+    {
+      tmpExpired = expiryWheel.advance(now);
+    }
+
+    for (String tmpKey : tmpExpired)
+    {
+      tmpCtx = (AssemblyCtx) getObject(tmpKey);
+
+      if (tmpCtx == null)
       {
-        outFile.write(tmpFileRecord);
-        outFile.newLine();
+        continue;
       }
-      catch (IOException ex)
+
+      // a partial may have arrived while we were looking
+      if (getDeadline(tmpCtx) > now)
       {
-        OpenRate.getOpenRateFrameworkLog().error("Error writing to file");
+        synchronized (expiryWheel)
+        {
+          expiryWheel.schedule(tmpKey, getDeadline(tmpCtx));
+        }
+
+        continue;
+      }
+
+      // only remove the context we looked at, not one put since
+      if (!ObjectList.remove(tmpKey, tmpCtx))
+      {
+        continue;
+      }
+
+      markObjectChanged(tmpKey);
+      removed++;
+
+      if ((tmpCtx.state != 3) && (listener != null))
+      {
+        listener.assemblyExpired(tmpKey, tmpCtx);
       }
     }
 
-    try
+    return removed;
+  }
+
+ /**
+  * Get the number of contexts waiting to expire
+  *
+  * @return The number of contexts
+  */
+  public int getExpiryCount()
+  {
+    synchronized (expiryWheel)
     {
-      // close the file
-      outFile.close();
+      return expiryWheel.size();
     }
-    catch (IOException ex)
+  }
+
+ /**
+  * Get the date a context expires: closed contexts are kept for the store
+  * limit, open ones until the open timeout after the latest partial.
+  *
+  * @param ctx The context
+  * @return The UTC deadline in seconds
+  */
+  protected long getDeadline(AssemblyCtx ctx)
+  {
+    if (ctx.state == 3)
+    {
+      return ctx.ClosedDate + StoreLimit * 86400L;
+    }
+    else
     {
-      OpenRate.getOpenRateFrameworkLog().error("Error closing file");
+      return Math.max(ctx.StartDate, ctx.LastDate) + OpenTimeout;
     }
+  }
 
-    OpenRate.getOpenRateFrameworkLog().info(
-          "Assembly Data Saving completed. " + objectsLoaded +
-          " configuration lines saved <" + CachePersistenceName +
-          ">");
+ /**
+  * Write a context as its fields
+  *
+  * @param outStream The stream to write to
+  * @param value The object
+  * @return true if the object was a context
+  * @throws IOException
+  */
+  @Override
+  protected boolean writeCustomValue(DataOutputStream outStream, Object value) throws IOException
+  {
+    AssemblyCtx tmpCtx;
+
+    if (!(value instanceof AssemblyCtx))
+    {
+      return false;
+    }
+
+    tmpCtx = (AssemblyCtx) value;
+    outStream.writeDouble(tmpCtx.totalDuration);
+    outStream.writeDouble(tmpCtx.totalData);
+    outStream.writeDouble(tmpCtx.uplink);
+    outStream.writeDouble(tmpCtx.downlink);
+    outStream.writeByte(tmpCtx.state);
+    outStream.writeLong(tmpCtx.StartDate);
+    outStream.writeLong(tmpCtx.ClosedDate);
+    outStream.writeLong(tmpCtx.LastDate);
+
+    return true;
   }
 
  /**
-  * Load the object data from a file. Because the objects in the object are
-  * small and non-persistent, we store them in a flat file format.
+  * Read a context written by writeCustomValue()
+  *
+  * @param inStream The stream to read from
+  * @return The context
+  * @throws IOException
+  */
+  @Override
+  protected Object readCustomValue(DataInputStream inStream) throws IOException
+  {
+    AssemblyCtx tmpCtx = new AssemblyCtx();
+
+    tmpCtx.totalDuration = inStream.readDouble();
+    tmpCtx.totalData     = inStream.readDouble();
+    tmpCtx.uplink        = inStream.readDouble();
+    tmpCtx.downlink      = inStream.readDouble();
+    tmpCtx.state         = inStream.readByte();
+    tmpCtx.StartDate     = inStream.readLong();
+    tmpCtx.ClosedDate    = inStream.readLong();
+    tmpCtx.LastDate      = inStream.readLong();
+
+    return tmpCtx;
+  }
+
+ /**
+  * Load the object data from a file. Files in the compact format are read by
+  * the persistent indexed object, the flat file format of earlier versions
+  * is read here.
   */
   @Override
   public void loadCacheObjectsFromFile()
@@ -149,7 +368,13 @@ public class CallAssemblyCache
     String[]       ObjectFields;
 
     // Get the sysdate for getting rid of old data
-    long storeCutoff = new Date().getTime()/1000 - StoreLimit*86400;
+    long storeCutoff = new Date().getTime()/1000 - StoreLimit*86400L;
+
+    if (isCompactFormat())
+    {
+      super.loadCacheObjectsFromFile();
+      return;
+    }
 
     // Log that we are starting the loading
     OpenRate.getOpenRateFrameworkLog().info("Starting Persistent Partial Cache Loading from File");
@@ -190,8 +415,9 @@ public class CallAssemblyCache
             tmpInfo.uplink        = Double.valueOf(ObjectFields[3]);
             tmpInfo.downlink      = Double.valueOf(ObjectFields[4]);
             tmpInfo.state         = Integer.parseInt(ObjectFields[5]);
-            tmpInfo.StartDate     = Integer.parseInt(ObjectFields[6]);
-            tmpInfo.ClosedDate    = Integer.parseInt(ObjectFields[7]);
+            tmpInfo.StartDate     = Long.parseLong(ObjectFields[6]);
+            tmpInfo.ClosedDate    = Long.parseLong(ObjectFields[7]);
+            tmpInfo.LastDate      = tmpInfo.StartDate;
 
             // if the call is not too old
             if (tmpInfo.ClosedDate > storeCutoff)
@@ -254,6 +480,7 @@ public class CallAssemblyCache
 
     //Register services for this Client
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_STORE_LIMIT, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_OPEN_TIMEOUT, ClientManager.PARAM_DYNAMIC);
   }
 
  /**
@@ -297,6 +524,27 @@ public class CallAssemblyCache
       }
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_OPEN_TIMEOUT))
+    {
+      if (Parameter.equals(""))
+      {
+        return String.valueOf(OpenTimeout);
+      }
+      else
+      {
+        try
+        {
+          OpenTimeout = Long.parseLong(Parameter);
+        }
+        catch (NumberFormatException nfe)
+        {
+          // do not change the value
+        }
+
+        ResultCode = 0;
+      }
+    }
+
     if (ResultCode == 0)
     {
       OpenRate.getOpenRateFrameworkLog().debug(LogUtil.LogECICacheCommand(getSymbolicName(), Command, Parameter));
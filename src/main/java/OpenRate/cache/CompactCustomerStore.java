@@ -0,0 +1,880 @@
+package OpenRate.cache;
+
+import OpenRate.lang.AuditSegment;
+import OpenRate.lang.CustInfo;
+import OpenRate.lang.CustProductInfo;
+import OpenRate.lang.ProductList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The compact storage of the audited customer cache. The aliases, audit
+ * segments, products and ERAs loaded into the object graph of the cache are
+ * compiled into columns of primitive arrays, and the strings (product IDs,
+ * services, subscriptions, ERA keys and values, external customer IDs) are
+ * dictionary encoded, so that each distinct string is held once and referred
+ * to by an int code.
+ *
+ * The layout is:
+ *  - aliases: an open addressing table from the alias to the alias number,
+ *    and the alias validity segments of each alias held contiguously, in the
+ *    same order as the alias validity list
+ *  - customers: the sorted customer IDs, with the audit segments of each
+ *    customer held contiguously, sorted by the segment start
+ *  - audit segments: the products and the ERAs of each segment held
+ *    contiguously
+ *
+ * The row IDs of the aliases and the products are kept, so that the entries
+ * can be turned back into objects and updated by an incremental load, and
+ * then merged into a new store.
+ *
+ * The store is immutable once built, so it can be read by any number of
+ * threads without locking. Where the cache hands out objects (audit segments,
+ * product lists), these are built from the columns on demand.
+ */
+final class CompactCustomerStore
+{
+  // The code of a null string
+  private static final int NULL_CODE = -1;
+
+  // The string dictionary
+  private final String[] dictionary;
+  private final StringIndex dictionaryIndex;
+
+  // Aliases
+  private final StringIndex aliasIndex;
+  private final int[]  aliasSegStart;
+  private final long[] aliasRowId;
+  private final long[] aliasValidFrom;
+  private final long[] aliasValidTo;
+  private final int[]  aliasCustId;
+  private final int[]  aliasSubId;
+
+  // Customers
+  private final int[]  custIds;
+  private final int[]  custExtId;
+  private final long[] custBalanceGroup;
+  private final int[]  custAudStart;
+
+  // Audit segments
+  private final long[] audSegmentID;
+  private final long[] audSegValidFrom;
+  private final long[] audAccountValidFrom;
+  private final long[] audAccountValidTo;
+  private final int[]  audProdStart;
+  private final int[]  audEraStart;
+
+  // Products
+  private final long[] prodRefId;
+  private final int[]  prodID;
+  private final int[]  prodSubId;
+  private final int[]  prodService;
+  private final long[] prodValidFrom;
+  private final long[] prodValidTo;
+  private final int[]  prodQuantity;
+
+  // ERAs
+  private final int[]  eraKey;
+  private final int[]  eraValue;
+
+ /**
+  * An open addressing hash table from a string to an int, which does not need
+  * an entry object per key
+  */
+  private static final class StringIndex
+  {
+    private final String[] keys;
+    private final int[]    values;
+    private final int      mask;
+
+    StringIndex(int count)
+    {
+      int tableSize = 2;
+
+      while (tableSize < count * 2)
+      {
+        tableSize <<= 1;
+      }
+
+      keys = new String[tableSize];
+      values = new int[tableSize];
+      mask = tableSize - 1;
+    }
+
+    private int getSlot(String key)
+    {
+      int hash = key.hashCode();
+      int slot = (hash ^ (hash >>> 16)) & mask;
+
+      while ((keys[slot] != null) && (!keys[slot].equals(key)))
+      {
+        slot = (slot + 1) & mask;
+      }
+
+      return slot;
+    }
+
+    void put(String key, int value)
+    {
+      int slot = getSlot(key);
+
+      keys[slot] = key;
+      values[slot] = value;
+    }
+
+    int get(String key)
+    {
+      int slot = getSlot(key);
+
+      return (keys[slot] == null) ? -1 : values[slot];
+    }
+  }
+
+ /**
+  * Compile the object graph of the cache into the compact store
+  *
+  * @param aliasCache The alias validity lists
+  * @param custCache The customers
+  */
+  CompactCustomerStore(Map<String, CustomerCacheAudited.ValidityNode> aliasCache,
+                       Map<Integer, CustInfo> custCache)
+  {
+    this(null, aliasCache, custCache);
+  }
+
+ /**
+  * Merge the object graph of the cache into an existing compact store. The
+  * aliases and customers in the object graph replace the ones with the same
+  * alias or customer ID in the existing store, and all of the others are
+  * copied over from the existing store as they are.
+  *
+  * @param base The existing store, or null to compile the object graph alone
+  * @param aliasCache The alias validity lists
+  * @param custCache The customers
+  */
+  CompactCustomerStore(CompactCustomerStore base,
+                       Map<String, CustomerCacheAudited.ValidityNode> aliasCache,
+                       Map<Integer, CustInfo> custCache)
+  {
+    HashMap<String, Integer> tmpDictionary = new HashMap<>(1000);
+    ArrayList<String> tmpStrings = new ArrayList<>(1000);
+    ArrayList<String> tmpBaseAliases = new ArrayList<>();
+    CustomerCacheAudited.ValidityNode tmpValidityNode;
+    CustInfo tmpCustInfo;
+    AuditSegment tmpAuditSegment;
+    ProductList tmpProductList;
+    CustProductInfo tmpCPI;
+    Iterator<Map.Entry<String, String>> eraIter;
+    Map.Entry<String, String> tmpERA;
+    int custCount = custCache.size();
+    int segCount = 0;
+    int audCount = 0;
+    int prodCount = 0;
+    int eraCount = 0;
+    int alias = 0;
+    int seg = 0;
+    int cust = 0;
+    int aud = 0;
+    int prod = 0;
+    int era = 0;
+    int baseNo;
+    int i;
+    int j;
+
+    // size the columns, first for what we keep from the existing store
+    if (base != null)
+    {
+      for (String tmpAlias : base.aliasIndex.keys)
+      {
+        if ((tmpAlias != null) && (!aliasCache.containsKey(tmpAlias)))
+        {
+          tmpBaseAliases.add(tmpAlias);
+          baseNo = base.findAlias(tmpAlias);
+          segCount += base.aliasSegStart[baseNo + 1] - base.aliasSegStart[baseNo];
+        }
+      }
+
+      for (baseNo = 0 ; baseNo < base.custIds.length ; baseNo++)
+      {
+        if (!custCache.containsKey(base.custIds[baseNo]))
+        {
+          custCount++;
+          audCount += base.custAudStart[baseNo + 1] - base.custAudStart[baseNo];
+          prodCount += base.audProdStart[base.custAudStart[baseNo + 1]] - base.audProdStart[base.custAudStart[baseNo]];
+          eraCount += base.audEraStart[base.custAudStart[baseNo + 1]] - base.audEraStart[base.custAudStart[baseNo]];
+        }
+      }
+    }
+
+    for (CustomerCacheAudited.ValidityNode tmpNode : aliasCache.values())
+    {
+      for (tmpValidityNode = tmpNode ; tmpValidityNode != null ; tmpValidityNode = tmpValidityNode.child)
+      {
+        segCount++;
+      }
+    }
+
+    for (CustInfo tmpCust : custCache.values())
+    {
+      audCount += tmpCust.CustAudSegments.size();
+
+      for (i = 0 ; i < tmpCust.CustAudSegments.size() ; i++)
+      {
+        prodCount += tmpCust.CustAudSegments.get(i).getProductList().getProductCount();
+        eraCount += tmpCust.CustAudSegments.get(i).getERAs().size();
+      }
+    }
+
+    // the aliases
+    aliasIndex = new StringIndex(tmpBaseAliases.size() + aliasCache.size());
+    aliasSegStart = new int[tmpBaseAliases.size() + aliasCache.size() + 1];
+    aliasRowId = new long[segCount];
+    aliasValidFrom = new long[segCount];
+    aliasValidTo = new long[segCount];
+    aliasCustId = new int[segCount];
+    aliasSubId = new int[segCount];
+
+    for (String tmpAlias : tmpBaseAliases)
+    {
+      aliasIndex.put(tmpAlias, alias);
+      aliasSegStart[alias] = seg;
+      baseNo = base.findAlias(tmpAlias);
+
+      for (i = base.aliasSegStart[baseNo] ; i < base.aliasSegStart[baseNo + 1] ; i++)
+      {
+        aliasRowId[seg] = base.aliasRowId[i];
+        aliasValidFrom[seg] = base.aliasValidFrom[i];
+        aliasValidTo[seg] = base.aliasValidTo[i];
+        aliasCustId[seg] = base.aliasCustId[i];
+        aliasSubId[seg] = encode(base.decode(base.aliasSubId[i]), tmpDictionary, tmpStrings);
+        seg++;
+      }
+
+      alias++;
+    }
+
+    for (Map.Entry<String, CustomerCacheAudited.ValidityNode> tmpAlias : aliasCache.entrySet())
+    {
+      aliasIndex.put(tmpAlias.getKey(), alias);
+      aliasSegStart[alias] = seg;
+
+      for (tmpValidityNode = tmpAlias.getValue() ; tmpValidityNode != null ; tmpValidityNode = tmpValidityNode.child)
+      {
+        aliasRowId[seg] = tmpValidityNode.ID;
+        aliasValidFrom[seg] = tmpValidityNode.validFrom;
+        aliasValidTo[seg] = tmpValidityNode.validTo;
+        aliasCustId[seg] = tmpValidityNode.custId;
+        aliasSubId[seg] = encode(tmpValidityNode.subId, tmpDictionary, tmpStrings);
+        seg++;
+      }
+
+      alias++;
+    }
+
+    aliasSegStart[alias] = seg;
+
+    // the customers, in ID order
+    custIds = new int[custCount];
+
+    if (base != null)
+    {
+      for (int tmpCustId : base.custIds)
+      {
+        if (!custCache.containsKey(tmpCustId))
+        {
+          custIds[cust++] = tmpCustId;
+        }
+      }
+    }
+
+    for (Integer tmpCustId : custCache.keySet())
+    {
+      custIds[cust++] = tmpCustId;
+    }
+
+    Arrays.sort(custIds);
+
+    custExtId = new int[custIds.length];
+    custBalanceGroup = new long[custIds.length];
+    custAudStart = new int[custIds.length + 1];
+    audSegmentID = new long[audCount];
+    audSegValidFrom = new long[audCount];
+    audAccountValidFrom = new long[audCount];
+    audAccountValidTo = new long[audCount];
+    audProdStart = new int[audCount + 1];
+    audEraStart = new int[audCount + 1];
+    prodRefId = new long[prodCount];
+    prodID = new int[prodCount];
+    prodSubId = new int[prodCount];
+    prodService = new int[prodCount];
+    prodValidFrom = new long[prodCount];
+    prodValidTo = new long[prodCount];
+    prodQuantity = new int[prodCount];
+    eraKey = new int[eraCount];
+    eraValue = new int[eraCount];
+
+    for (cust = 0 ; cust < custIds.length ; cust++)
+    {
+      tmpCustInfo = custCache.get(custIds[cust]);
+      custAudStart[cust] = aud;
+
+      if (tmpCustInfo == null)
+      {
+        // copy the customer over from the existing store
+        baseNo = base.findCustomer(custIds[cust]);
+        custExtId[cust] = encode(base.getExtCustId(baseNo), tmpDictionary, tmpStrings);
+        custBalanceGroup[cust] = base.custBalanceGroup[baseNo];
+
+        for (i = base.custAudStart[baseNo] ; i < base.custAudStart[baseNo + 1] ; i++)
+        {
+          audSegmentID[aud] = base.audSegmentID[i];
+          audSegValidFrom[aud] = base.audSegValidFrom[i];
+          audAccountValidFrom[aud] = base.audAccountValidFrom[i];
+          audAccountValidTo[aud] = base.audAccountValidTo[i];
+          audProdStart[aud] = prod;
+          audEraStart[aud] = era;
+
+          for (j = base.audProdStart[i] ; j < base.audProdStart[i + 1] ; j++)
+          {
+            prodRefId[prod] = base.prodRefId[j];
+            prodID[prod] = encode(base.decode(base.prodID[j]), tmpDictionary, tmpStrings);
+            prodSubId[prod] = encode(base.decode(base.prodSubId[j]), tmpDictionary, tmpStrings);
+            prodService[prod] = encode(base.decode(base.prodService[j]), tmpDictionary, tmpStrings);
+            prodValidFrom[prod] = base.prodValidFrom[j];
+            prodValidTo[prod] = base.prodValidTo[j];
+            prodQuantity[prod] = base.prodQuantity[j];
+            prod++;
+          }
+
+          for (j = base.audEraStart[i] ; j < base.audEraStart[i + 1] ; j++)
+          {
+            eraKey[era] = encode(base.decode(base.eraKey[j]), tmpDictionary, tmpStrings);
+            eraValue[era] = encode(base.decode(base.eraValue[j]), tmpDictionary, tmpStrings);
+            era++;
+          }
+
+          aud++;
+        }
+
+        continue;
+      }
+
+      custExtId[cust] = encode(tmpCustInfo.ExternalCustId, tmpDictionary, tmpStrings);
+      custBalanceGroup[cust] = tmpCustInfo.balanceGroup;
+
+      // the audit segments are already sorted by the start
+      for (i = 0 ; i < tmpCustInfo.CustAudSegments.size() ; i++)
+      {
+        tmpAuditSegment = tmpCustInfo.CustAudSegments.get(i);
+        audSegmentID[aud] = tmpAuditSegment.getAuditSegmentID();
+        audSegValidFrom[aud] = tmpAuditSegment.getUTCSegmentValidFrom();
+        audAccountValidFrom[aud] = tmpAuditSegment.getUTCAccountValidFrom();
+        audAccountValidTo[aud] = tmpAuditSegment.getUTCAccountValidTo();
+        audProdStart[aud] = prod;
+        audEraStart[aud] = era;
+
+        tmpProductList = tmpAuditSegment.getProductList();
+
+        for (j = 0 ; j < tmpProductList.getProductCount() ; j++)
+        {
+          tmpCPI = tmpProductList.getProduct(j);
+          prodRefId[prod] = tmpCPI.getProductRefId();
+          prodID[prod] = encode(tmpCPI.getProductID(), tmpDictionary, tmpStrings);
+          prodSubId[prod] = encode(tmpCPI.getSubID(), tmpDictionary, tmpStrings);
+          prodService[prod] = encode(tmpCPI.getService(), tmpDictionary, tmpStrings);
+          prodValidFrom[prod] = tmpCPI.getUTCValidFrom();
+          prodValidTo[prod] = tmpCPI.getUTCValidTo();
+          prodQuantity[prod] = tmpCPI.getQuantity();
+          prod++;
+        }
+
+        eraIter = tmpAuditSegment.getERAs().entrySet().iterator();
+
+        while (eraIter.hasNext())
+        {
+          tmpERA = eraIter.next();
+          eraKey[era] = encode(tmpERA.getKey(), tmpDictionary, tmpStrings);
+          eraValue[era] = encode(tmpERA.getValue(), tmpDictionary, tmpStrings);
+          era++;
+        }
+
+        aud++;
+      }
+    }
+
+    custAudStart[cust] = aud;
+    audProdStart[aud] = prod;
+    audEraStart[aud] = era;
+
+    // the dictionary
+    dictionary = tmpStrings.toArray(new String[tmpStrings.size()]);
+    dictionaryIndex = new StringIndex(dictionary.length);
+
+    for (i = 0 ; i < dictionary.length ; i++)
+    {
+      dictionaryIndex.put(dictionary[i], i);
+    }
+  }
+
+ /**
+  * Get the dictionary code of a string while building, adding it if needed
+  */
+  private static int encode(String value, HashMap<String, Integer> tmpDictionary, ArrayList<String> tmpStrings)
+  {
+    Integer code;
+
+    if (value == null)
+    {
+      return NULL_CODE;
+    }
+
+    code = tmpDictionary.get(value);
+
+    if (code == null)
+    {
+      code = tmpStrings.size();
+      tmpDictionary.put(value, code);
+      tmpStrings.add(value);
+    }
+
+    return code;
+  }
+
+ /**
+  * Get the string for a dictionary code
+  */
+  private String decode(int code)
+  {
+    return (code == NULL_CODE) ? null : dictionary[code];
+  }
+
+  // -----------------------------------------------------------------------------
+  // ------------------------------- Aliases -------------------------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * Get the alias number of an alias
+  *
+  * @param alias The alias
+  * @return The alias number, or -1 if the alias is not known
+  */
+  int findAlias(String alias)
+  {
+    return aliasIndex.get(alias);
+  }
+
+ /**
+  * Get the first alias validity segment covering the date, in the order of
+  * the alias validity list
+  *
+  * @param aliasNo The alias number
+  * @param cdrDate The date
+  * @return The segment, or -1 if there is none
+  */
+  int findAliasSegment(int aliasNo, long cdrDate)
+  {
+    int seg;
+
+    for (seg = aliasSegStart[aliasNo] ; seg < aliasSegStart[aliasNo + 1] ; seg++)
+    {
+      if ((aliasValidFrom[seg] <= cdrDate) && (aliasValidTo[seg] > cdrDate))
+      {
+        return seg;
+      }
+    }
+
+    return -1;
+  }
+
+ /**
+  * @param aliasNo The alias number
+  * @return The first alias validity segment of the alias
+  */
+  int getAliasSegmentStart(int aliasNo)
+  {
+    return aliasSegStart[aliasNo];
+  }
+
+ /**
+  * @param aliasNo The alias number
+  * @return The segment after the last alias validity segment of the alias
+  */
+  int getAliasSegmentEnd(int aliasNo)
+  {
+    return aliasSegStart[aliasNo + 1];
+  }
+
+ /**
+  * @param seg The alias validity segment
+  * @return The row ID of the segment
+  */
+  long getAliasRowId(int seg)
+  {
+    return aliasRowId[seg];
+  }
+
+ /**
+  * @param seg The alias validity segment
+  * @return The start of the segment
+  */
+  long getAliasValidFrom(int seg)
+  {
+    return aliasValidFrom[seg];
+  }
+
+ /**
+  * @param seg The alias validity segment
+  * @return The end of the segment
+  */
+  long getAliasValidTo(int seg)
+  {
+    return aliasValidTo[seg];
+  }
+
+ /**
+  * @param seg The alias validity segment
+  * @return The customer ID of the segment
+  */
+  int getAliasCustId(int seg)
+  {
+    return aliasCustId[seg];
+  }
+
+ /**
+  * @param seg The alias validity segment
+  * @return The subscription ID of the segment
+  */
+  String getAliasSubId(int seg)
+  {
+    return decode(aliasSubId[seg]);
+  }
+
+ /**
+  * @return All of the aliases, for dumping
+  */
+  ArrayList<String> getAliases()
+  {
+    ArrayList<String> aliases = new ArrayList<>();
+
+    for (String alias : aliasIndex.keys)
+    {
+      if (alias != null)
+      {
+        aliases.add(alias);
+      }
+    }
+
+    return aliases;
+  }
+
+  // -----------------------------------------------------------------------------
+  // ------------------------ Customers and segments -----------------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * Get the customer number of a customer ID
+  *
+  * @param custId The customer ID
+  * @return The customer number, or -1 if the customer is not known
+  */
+  int findCustomer(int custId)
+  {
+    int cust = Arrays.binarySearch(custIds, custId);
+
+    return (cust < 0) ? -1 : cust;
+  }
+
+ /**
+  * @param cust The customer number
+  * @return The customer ID
+  */
+  int getCustId(int cust)
+  {
+    return custIds[cust];
+  }
+
+ /**
+  * Get the customer which has an audit segment. The segments are not indexed
+  * by their ID, so this searches all of them, and is only meant for the
+  * incremental loading of the few segments which have changed.
+  *
+  * @param auditSegId The ID of the audit segment
+  * @return The customer number, or -1 if no customer has the segment
+  */
+  int findCustomerByAuditSegmentID(long auditSegId)
+  {
+    int aud;
+    int low = 0;
+    int high = custIds.length;
+    int mid;
+
+    for (aud = 0 ; aud < audSegmentID.length ; aud++)
+    {
+      if (audSegmentID[aud] == auditSegId)
+      {
+        break;
+      }
+    }
+
+    if (aud == audSegmentID.length)
+    {
+      return -1;
+    }
+
+    // the last customer whose segments start at or before this one
+    while (low < high)
+    {
+      mid = (low + high) >>> 1;
+
+      if (custAudStart[mid] <= aud)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid;
+      }
+    }
+
+    return low - 1;
+  }
+
+ /**
+  * @param cust The customer number
+  * @return The balance group of the customer
+  */
+  long getBalanceGroup(int cust)
+  {
+    return custBalanceGroup[cust];
+  }
+
+ /**
+  * @param cust The customer number
+  * @return The external customer ID of the customer
+  */
+  String getExtCustId(int cust)
+  {
+    return decode(custExtId[cust]);
+  }
+
+ /**
+  * @return All of the customer IDs, for dumping
+  */
+  ArrayList<Integer> getCustIds()
+  {
+    ArrayList<Integer> ids = new ArrayList<>(custIds.length);
+
+    for (int custId : custIds)
+    {
+      ids.add(custId);
+    }
+
+    return ids;
+  }
+
+ /**
+  * Get the audit segment of the customer in force at the date, which is the
+  * last segment starting at or before the date
+  *
+  * @param cust The customer number
+  * @param cdrDate The date
+  * @return The audit segment number, or -1 if there is none
+  */
+  int findAuditSegment(int cust, long cdrDate)
+  {
+    int low = custAudStart[cust];
+    int high = custAudStart[cust + 1];
+    int mid;
+
+    while (low < high)
+    {
+      mid = (low + high) >>> 1;
+
+      if (audSegValidFrom[mid] <= cdrDate)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid;
+      }
+    }
+
+    return (low == custAudStart[cust]) ? -1 : low - 1;
+  }
+
+ /**
+  * @param aud The audit segment number
+  * @return The ID of the audit segment
+  */
+  long getAuditSegmentID(int aud)
+  {
+    return audSegmentID[aud];
+  }
+
+ /**
+  * @param aud The audit segment number
+  * @return The start of the account validity in the segment
+  */
+  long getAccountValidFrom(int aud)
+  {
+    return audAccountValidFrom[aud];
+  }
+
+ /**
+  * @param aud The audit segment number
+  * @return The end of the account validity in the segment
+  */
+  long getAccountValidTo(int aud)
+  {
+    return audAccountValidTo[aud];
+  }
+
+ /**
+  * Get the products of an audit segment matching the subscription
+  *
+  * @param aud The audit segment number
+  * @param subId The subscription, or null for all products
+  * @return The products
+  */
+  ProductList getProducts(int aud, String subId)
+  {
+    ProductList tmpProductList = new ProductList();
+
+    addProducts(aud, subId, tmpProductList, false);
+
+    return tmpProductList;
+  }
+
+ /**
+  * Add the products of an audit segment matching the subscription to a list
+  */
+  private void addProducts(int aud, String subId, ProductList tmpProductList, boolean withRefIds)
+  {
+    int subCode = NULL_CODE;
+    int prod;
+
+    if (subId != null)
+    {
+      subCode = dictionaryIndex.get(subId);
+
+      if (subCode < 0)
+      {
+        // no product has this subscription
+        return;
+      }
+    }
+
+    for (prod = audProdStart[aud] ; prod < audProdStart[aud + 1] ; prod++)
+    {
+      if ((subId == null) || (prodSubId[prod] == subCode))
+      {
+        tmpProductList.addProduct(withRefIds ? prodRefId[prod] : 0, decode(prodID[prod]), decode(prodSubId[prod]), decode(prodService[prod]),
+                                  prodValidFrom[prod], prodValidTo[prod], prodQuantity[prod]);
+      }
+    }
+  }
+
+ /**
+  * Get the value of an ERA of an audit segment
+  *
+  * @param aud The audit segment number
+  * @param key The ERA key
+  * @return The value, or null if the segment does not have the ERA
+  */
+  String getERA(int aud, String key)
+  {
+    int keyCode = dictionaryIndex.get(key);
+    int era;
+
+    if (keyCode >= 0)
+    {
+      for (era = audEraStart[aud] ; era < audEraStart[aud + 1] ; era++)
+      {
+        if (eraKey[era] == keyCode)
+        {
+          return decode(eraValue[era]);
+        }
+      }
+    }
+
+    return null;
+  }
+
+ /**
+  * Build an audit segment object from the columns
+  *
+  * @param aud The audit segment number
+  * @return The audit segment
+  */
+  AuditSegment getAuditSegment(int aud)
+  {
+    return getAuditSegment(aud, false);
+  }
+
+ /**
+  * Build an audit segment object from the columns
+  *
+  * @param aud The audit segment number
+  * @param withRefIds If the products are to have their row IDs, so that they
+  * can be updated
+  * @return The audit segment
+  */
+  AuditSegment getAuditSegment(int aud, boolean withRefIds)
+  {
+    AuditSegment tmpAuditSegment = new AuditSegment();
+    int i;
+
+    tmpAuditSegment.setAuditSegmentID(audSegmentID[aud]);
+    tmpAuditSegment.setUTCSegmentValidFrom(audSegValidFrom[aud]);
+    tmpAuditSegment.setUTCAccountValidFrom(audAccountValidFrom[aud]);
+    tmpAuditSegment.setUTCAccountValidTo(audAccountValidTo[aud]);
+
+    addProducts(aud, null, tmpAuditSegment.getProductList(), withRefIds);
+
+    for (i = audEraStart[aud] ; i < audEraStart[aud + 1] ; i++)
+    {
+      tmpAuditSegment.putERA(decode(eraKey[i]), decode(eraValue[i]));
+    }
+
+    return tmpAuditSegment;
+  }
+
+ /**
+  * Build a customer object from the columns, for dumping
+  *
+  * @param cust The customer number
+  * @return The customer
+  */
+  CustInfo getCustInfo(int cust)
+  {
+    return getCustInfo(cust, false);
+  }
+
+ /**
+  * Build a customer object from the columns
+  *
+  * @param cust The customer number
+  * @param withRefIds If the products are to have their row IDs, so that they
+  * can be updated
+  * @return The customer
+  */
+  CustInfo getCustInfo(int cust, boolean withRefIds)
+  {
+    CustInfo tmpCustInfo = new CustInfo();
+    int aud;
+
+    tmpCustInfo.ExternalCustId = getExtCustId(cust);
+    tmpCustInfo.balanceGroup = custBalanceGroup[cust];
+
+    for (aud = custAudStart[cust] ; aud < custAudStart[cust + 1] ; aud++)
+    {
+      tmpCustInfo.CustAudSegments.add(getAuditSegment(aud, withRefIds));
+    }
+
+    return tmpCustInfo;
+  }
+}
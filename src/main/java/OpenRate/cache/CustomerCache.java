@@ -5,19 +5,25 @@ package OpenRate.cache;
 import OpenRate.OpenRate;
 import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
+import OpenRate.exception.ProcessingException;
 import OpenRate.lang.ProductList;
 import OpenRate.utils.PropertyUtils;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -120,6 +126,23 @@ import java.util.concurrent.ConcurrentHashMap;
  * 2) ERA_NAME
  * 3) ERA_VALUE
  *
+ * ------------------------------- Load Mode -----------------------------------
+ *
+ * By default all of the data is loaded into memory (LoadMode=Full). For very
+ * large customer bases loaded from a DB, LoadMode=ReadThrough keeps only the
+ * accounts in use in memory, up to "ReadThroughSize" aliases and accounts,
+ * evicting the least recently used ones. An alias which is not held is loaded
+ * when it is looked up, along with its account, products and ERAs. In this
+ * mode each of the queries must select the rows for a list of keys, with a
+ * single "?" as the list, for example:
+ *
+ *   ... WHERE ALIAS IN (?)
+ *   ... WHERE CUSTOMER_IDENTIFIER IN (?)
+ *
+ * The "?" is expanded to hold up to "ReadThroughBatchSize" keys. Concurrent
+ * lookups of the same alias wait for a single load, and the aliases of a batch
+ * of records can be loaded with one query using prefetchAliases().
+ *
  * @author i.sparkes
  */
 public class CustomerCache
@@ -131,6 +154,35 @@ public class CustomerCache
   // The CustIDCache holds the aliases for the account
   private ConcurrentHashMap<String, CustInfo> CustIDCache;
 
+  // The services interned to an ID, which indexes the products of each account
+  private ConcurrentHashMap<String, Integer> serviceIDs;
+
+  // The properties which select how the data is loaded
+  protected final static String LOAD_MODE = "LoadMode";
+  protected final static String READ_THROUGH_SIZE = "ReadThroughSize";
+  protected final static String READ_THROUGH_BATCH_SIZE = "ReadThroughBatchSize";
+
+ /**
+  * If true, the aliases and accounts are loaded from the DB when they are
+  * looked up, instead of all being loaded at start up.
+  */
+  protected boolean readThrough = false;
+
+ /**
+  * The maximum number of aliases, and of accounts, held in read through mode
+  */
+  protected int readThroughSize = 100000;
+
+ /**
+  * The maximum number of keys selected by one query in read through mode
+  */
+  protected int readThroughBatchSize = 100;
+
+  // The aliases and accounts held in read through mode. These are replaced as
+  // a whole on each load.
+  private volatile ReadThroughCache<String, String> aliasReadThrough = null;
+  private volatile ReadThroughCache<String, CustInfo> customerReadThrough = null;
+
   /**
    * The alias data select query is used to recover alias information from the
    * database. Aliases are the keys used to locate the customer account to use
@@ -185,33 +237,24 @@ public class CustomerCache
 
   /**
    * The CustInfo structure holds the information about the customer account,
-   * including the validity dates, the product list and the balance group
+   * including the validity dates, the products and the balance group
    * reference. Note that we are using the dates as long integers to reduce
    * the total amount of storage that is required.
+   *
+   * The products are grouped by the service ID, and the products of each
+   * service are held sorted by the validity dates, so that getting the
+   * products of a service does not have to look at all of the products of
+   * the account.
    */
   private class CustInfo
   {
     private     long UTCValidFrom;
     private     long UTCValidTo;
-    private     ArrayList<CustProductInfo> CPI = null;
-    private     int ProductCount = 0;
+    private     ValiditySegments[] ServiceProducts = new ValiditySegments[0];
     private     int BalanceGroup = 0;
     private     ConcurrentHashMap<String, String> ERAList = null;
   }
 
-  /**
-   * The CustProductInfo structure holds the information about the products the,
-   * customer has, including the validity dates. Note that we are using long integers
-   * for the dates to reduce storage requirements.
-   */
-  private class CustProductInfo
-  {
-    private String ProductID=null;
-    private String Service=null;
-    private   long UTCValidFrom;
-    private   long UTCValidTo;
-  }
-
    /** Constructor
     * Creates a new instance of the Customer Cache. The Cache
     * contains all of the Customer IDs that have been cached.
@@ -222,6 +265,7 @@ public class CustomerCache
 
     CustIDCache = new ConcurrentHashMap<>(5000);
     aliasCache = new ConcurrentHashMap<>(5000);
+    serviceIDs = new ConcurrentHashMap<>(50);
   }
 
  /**
@@ -270,7 +314,6 @@ public class CustomerCache
 
       // Create the new entry for the customer ID
       tmpCustInfo = new CustInfo();
-      tmpCustInfo.CPI = new ArrayList<>();
       tmpCustInfo.ERAList = new ConcurrentHashMap<>(10);
       tmpCustInfo.UTCValidFrom = ValidFrom;
       tmpCustInfo.UTCValidTo   = ValidTo;
@@ -305,9 +348,6 @@ public class CustomerCache
   */
   public void addCPI(String CustId, String Service, String ProdID, long ValidFrom, long ValidTo)
   {
-    CustInfo tmpCustInfo;
-    CustProductInfo tmpCPI;
-
     // See if we already have ID for this customer
     if (CustIDCache.containsKey(CustId))
     {
@@ -319,15 +359,7 @@ public class CustomerCache
         return;
       }
 
-      // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
-      tmpCPI = new CustProductInfo();
-      tmpCPI.Service = Service;
-      tmpCPI.ProductID = ProdID;
-      tmpCPI.UTCValidFrom = ValidFrom;
-      tmpCPI.UTCValidTo = ValidTo;
-      tmpCustInfo.CPI.add(tmpCustInfo.ProductCount,tmpCPI);
-      tmpCustInfo.ProductCount++;
+      addProduct(CustIDCache.get(CustId), Service, ProdID, ValidFrom, ValidTo);
     }
     else
     {
@@ -336,6 +368,67 @@ public class CustomerCache
     }
   }
 
+ /**
+  * Add a product to the products of the service in the customer information
+  *
+  * @param tmpCustInfo The customer information to add the product to
+  * @param Service The service of the product
+  * @param ProdID The product identifier
+  * @param ValidFrom The start of the product validity
+  * @param ValidTo The end of the product validity
+  */
+  private void addProduct(CustInfo tmpCustInfo, String Service, String ProdID, long ValidFrom, long ValidTo)
+  {
+    ValiditySegments tmpProducts;
+    ArrayList<String> tmpProductID;
+    int tmpServiceID;
+
+    // Get the products of the service, creating them if needed
+    tmpServiceID = getServiceID(Service);
+
+    if (tmpCustInfo.ServiceProducts.length <= tmpServiceID)
+    {
+      tmpCustInfo.ServiceProducts = Arrays.copyOf(tmpCustInfo.ServiceProducts, tmpServiceID + 1);
+    }
+
+    tmpProducts = tmpCustInfo.ServiceProducts[tmpServiceID];
+
+    if (tmpProducts == null)
+    {
+      tmpProducts = new ValiditySegments();
+      tmpCustInfo.ServiceProducts[tmpServiceID] = tmpProducts;
+    }
+
+    // Create the new entry for the product, after any products with the
+    // same start so that they stay in the order they were added
+    tmpProductID = new ArrayList<>(1);
+    tmpProductID.add(ProdID);
+    tmpProducts.insert(tmpProducts.countStartedBy(ValidFrom), ValidFrom, ValidTo, tmpProductID);
+  }
+
+ /**
+  * Intern the service, giving the ID which indexes the products of the
+  * service. Synchronised, as accounts can be loaded by several threads at once
+  * in read through mode.
+  *
+  * @param Service The service
+  * @return The service ID
+  */
+  private synchronized int getServiceID(String Service)
+  {
+    Integer tmpServiceID;
+
+    tmpServiceID = serviceIDs.get(Service);
+
+    if (tmpServiceID == null)
+    {
+      tmpServiceID = serviceIDs.size();
+      serviceIDs.put(Service, tmpServiceID);
+    }
+
+    return tmpServiceID;
+  }
+
  /**
   * Add an ERA (Extended Rating Attribute) object to the account. ERAs are
   * used to control rating, for example Closed User Groups are modelled using
@@ -371,19 +464,8 @@ public class CustomerCache
   */
   public String getCustId(String alias)
   {
-    String CustPoid;
-
-    // See if we already have ID for this customer
-    if (aliasCache.containsKey(alias))
-    {
-      // Get the poid from the alias
-      CustPoid = aliasCache.get(alias);
-      return CustPoid;
-    }
-    else
-    {
-      return null;
-    }
+    // Get the poid from the alias, null if we do not know it
+    return findCustId(alias);
   }
 
  /**
@@ -398,57 +480,82 @@ public class CustomerCache
   public ProductList getProducts(String alias, String Service, long CDRDate)
   {
     ProductList tmpProductList;
-    String CustPoid;
-    CustInfo tmpCustInfo;
-    CustProductInfo tmpCPI;
-    boolean FirstProduct = true;
 
     // Prepare the result
     tmpProductList = new ProductList();
 
-    // See if we already have ID for this customer
-    if (aliasCache.containsKey(alias))
+    if (getProducts(alias, Service, CDRDate, tmpProductList))
     {
-      // Get the poid from the alias
-      CustPoid = aliasCache.get(alias);
+      return tmpProductList;
+    }
 
+    return null;
+  }
+
+ /**
+  * Get the products that are attached to the customer account, using the
+  * alias to locate the account, filling the product list given. The list is
+  * cleared first, and can be re-used for each record, so that the lookup does
+  * not allocate.
+  *
+  * @param alias The alias to the customer account
+  * @param Service The service
+  * @param CDRDate The date to retrieve the products for
+  * @param products The product list to fill
+  * @return true if the account was found and valid at the date
+  */
+  public boolean getProducts(String alias, String Service, long CDRDate, ProductList products)
+  {
+    String CustPoid;
+    CustInfo tmpCustInfo;
+    ValiditySegments tmpProducts;
+    Integer tmpServiceID;
+    int limit;
+    int first;
+    int idx;
+
+    products.clear();
+
+    // Get the poid from the alias
+    CustPoid = findCustId(alias);
+
+    // See if we already have ID for this customer
+    if (CustPoid != null)
+    {
       // Get the product information
-      tmpCustInfo = CustIDCache.get(CustPoid);
+      tmpCustInfo = findCustInfo(CustPoid);
 
-      // See if the CDR is within the period of validitysetRawProductList
-      if ( tmpCustInfo.UTCValidFrom <= CDRDate )
+      // See if the CDR is within the period of validity
+      if ((tmpCustInfo != null) && (tmpCustInfo.UTCValidFrom <= CDRDate))
       {
         if (tmpCustInfo.UTCValidTo > CDRDate)
         {
-          // We have validity, get back the product list
-          for ( int i = 0 ; i < tmpCustInfo.ProductCount ; i ++ )
+          // We have validity, get back the products of the service
+          tmpServiceID = serviceIDs.get(Service);
+
+          if ((tmpServiceID != null) && (tmpServiceID < tmpCustInfo.ServiceProducts.length))
           {
-            tmpCPI = tmpCustInfo.CPI.get(i);
-            if (tmpCPI.Service.equals(Service))
+            tmpProducts = tmpCustInfo.ServiceProducts[tmpServiceID];
+
+            if (tmpProducts != null)
             {
-              if ( tmpCPI.UTCValidFrom <= CDRDate )
+              limit = tmpProducts.countStartedBy(CDRDate);
+              first = tmpProducts.firstNotEndedBy(CDRDate, limit);
+
+              for (idx = tmpProducts.nextMatch(CDRDate, first, limit, -1) ; idx >= 0 ;
+                   idx = tmpProducts.nextMatch(CDRDate, first, limit, idx))
               {
-                if ( tmpCPI.UTCValidTo > CDRDate )
-                {
-                  if (FirstProduct)
-                  {
-                    tmpProductList.addProduct(0,tmpCPI.ProductID,null,tmpCPI.Service,tmpCPI.UTCValidFrom,tmpCPI.UTCValidTo,1);
-                    FirstProduct = false;
-                  }
-                  else
-                  {
-                    tmpProductList.addProduct(0,tmpCPI.ProductID,null,tmpCPI.Service,tmpCPI.UTCValidFrom,tmpCPI.UTCValidTo,1);
-                  }
-                }
+                products.addProduct(0,tmpProducts.results[idx].get(0),null,Service,tmpProducts.from[idx],tmpProducts.to[idx],1);
               }
             }
           }
-          tmpProductList.setBalanceGroup(tmpCustInfo.BalanceGroup);
-          return tmpProductList;
+
+          products.setBalanceGroup(tmpCustInfo.BalanceGroup);
+          return true;
         }
       }
 
-      return null;
+      return false;
     }
     else
     {
@@ -456,7 +563,7 @@ public class CustomerCache
       OpenRate.getOpenRateFrameworkLog().error("Alias <" + alias + "> not found. Lookup failed.");
     }
 
-    return null;
+    return false;
   }
 
  /**
@@ -472,11 +579,10 @@ public class CustomerCache
     CustInfo tmpCustInfo;
 
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
-    {
-      // Get the product information
-      tmpCustInfo = CustIDCache.get(CustId);
+    tmpCustInfo = findCustInfo(CustId);
 
+    if (tmpCustInfo != null)
+    {
       return tmpCustInfo.BalanceGroup;
     }
     else
@@ -500,10 +606,10 @@ public class CustomerCache
     CustInfo tmpCustInfo;
 
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    tmpCustInfo = findCustInfo(CustId);
+
+    if (tmpCustInfo != null)
     {
-      // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
       return tmpCustInfo.ERAList.get(ERA_ID);
     }
     else
@@ -525,10 +631,10 @@ public class CustomerCache
     ArrayList<String> keyList = new ArrayList<>();
 
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    tmpCustInfo = findCustInfo(CustId);
+
+    if (tmpCustInfo != null)
     {
-      // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
       keyList.addAll(tmpCustInfo.ERAList.keySet());
 
       return keyList;
@@ -540,6 +646,192 @@ public class CustomerCache
     }
   }
 
+ /**
+  * Load the accounts of the aliases given which are not already held, using
+  * one query for each "ReadThroughBatchSize" aliases, and one for each
+  * "ReadThroughBatchSize" accounts. Plug ins can call this with the aliases
+  * of a batch of records before processing them, instead of each record
+  * loading its alias on its own. Does nothing unless the cache is in read
+  * through mode.
+  *
+  * @param aliases The aliases that are about to be looked up
+  * @throws ProcessingException
+  */
+  public void prefetchAliases(Collection<String> aliases) throws ProcessingException
+  {
+    ReadThroughCache<String, String> tmpAliases = aliasReadThrough;
+    ReadThroughCache<String, CustInfo> tmpCustomers = customerReadThrough;
+    ArrayList<String> tmpCustIds;
+    String tmpCustId;
+
+    if (!readThrough || (tmpAliases == null) || (tmpCustomers == null))
+    {
+      return;
+    }
+
+    // Load the aliases, then the accounts they point to
+    tmpAliases.prefetch(aliases);
+
+    tmpCustIds = new ArrayList<>(aliases.size());
+
+    for (String alias : aliases)
+    {
+      tmpCustId = tmpAliases.getIfPresent(alias);
+
+      if (tmpCustId != null)
+      {
+        tmpCustIds.add(tmpCustId);
+      }
+    }
+
+    tmpCustomers.prefetch(tmpCustIds);
+  }
+
+ /**
+  * Return if the cache is in read through mode, so that plug ins know if it
+  * is worth prefetching the aliases of a batch.
+  *
+  * @return true if the aliases are loaded on demand
+  */
+  public boolean isReadThrough()
+  {
+    return readThrough;
+  }
+
+ /**
+  * Get the customer ID of the alias, loading it in read through mode if we
+  * do not hold it
+  *
+  * @param alias The alias
+  * @return The customer ID, or null if the alias is not known
+  */
+  private String findCustId(String alias)
+  {
+    ReadThroughCache<String, String> tmpAliases = aliasReadThrough;
+
+    if (readThrough && (tmpAliases != null))
+    {
+      try
+      {
+        return tmpAliases.get(alias);
+      }
+      catch (ProcessingException ex)
+      {
+        OpenRate.getOpenRateFrameworkLog().error("Error loading alias <" + alias + ">. message: <" + ex.getMessage() + ">");
+        return null;
+      }
+    }
+
+    return aliasCache.get(alias);
+  }
+
+ /**
+  * Get the information of the account, loading it in read through mode if we
+  * do not hold it
+  *
+  * @param CustId The customer ID
+  * @return The customer information, or null if the account is not known
+  */
+  private CustInfo findCustInfo(String CustId)
+  {
+    ReadThroughCache<String, CustInfo> tmpCustomers = customerReadThrough;
+
+    if (readThrough && (tmpCustomers != null))
+    {
+      try
+      {
+        return tmpCustomers.get(CustId);
+      }
+      catch (ProcessingException ex)
+      {
+        OpenRate.getOpenRateFrameworkLog().error("Error loading customer ID <" + CustId + ">. message: <" + ex.getMessage() + ">");
+        return null;
+      }
+    }
+
+    return CustIDCache.get(CustId);
+  }
+
+ /**
+  * loadCache is called automatically on startup of the
+  * cache factory, as a result of implementing the CacheLoader
+  * interface. This should be used to load any data that needs loading, and
+  * to set up variables.
+  *
+  * @param ResourceName The name of the resource to load for
+  * @param CacheName The name of the cache to load for
+  * @throws InitializationException
+  */
+  @Override
+  public void loadCache(String ResourceName, String CacheName)
+                 throws InitializationException
+  {
+    String tmpLoadMode;
+    String tmpSize;
+
+    // get the load mode, which we need before we load
+    tmpLoadMode = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                     CacheName,
+                                                     LOAD_MODE,
+                                                     "Full");
+
+    if (tmpLoadMode.equalsIgnoreCase("ReadThrough"))
+    {
+      readThrough = true;
+    }
+    else if (tmpLoadMode.equalsIgnoreCase("Full"))
+    {
+      readThrough = false;
+    }
+    else
+    {
+      message = "Load mode <" + tmpLoadMode + "> not valid in cache <" + CacheName + ">. Must be 'Full' or 'ReadThrough'";
+      throw new InitializationException(message,CacheName);
+    }
+
+    if (readThrough)
+    {
+      tmpSize = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                     CacheName,
+                                                     READ_THROUGH_SIZE,
+                                                     String.valueOf(readThroughSize));
+
+      try
+      {
+        readThroughSize = Integer.parseInt(tmpSize);
+      }
+      catch (NumberFormatException ex)
+      {
+        message = "<" + READ_THROUGH_SIZE + "> value <" + tmpSize + "> is not numeric in cache <" + CacheName + ">";
+        throw new InitializationException(message,CacheName);
+      }
+
+      tmpSize = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                     CacheName,
+                                                     READ_THROUGH_BATCH_SIZE,
+                                                     String.valueOf(readThroughBatchSize));
+
+      try
+      {
+        readThroughBatchSize = Integer.parseInt(tmpSize);
+      }
+      catch (NumberFormatException ex)
+      {
+        message = "<" + READ_THROUGH_BATCH_SIZE + "> value <" + tmpSize + "> is not numeric in cache <" + CacheName + ">";
+        throw new InitializationException(message,CacheName);
+      }
+
+      if ((readThroughSize <= 0) || (readThroughBatchSize <= 0))
+      {
+        message = "<" + READ_THROUGH_SIZE + "> and <" + READ_THROUGH_BATCH_SIZE + "> must be greater than 0 in cache <" + CacheName + ">";
+        throw new InitializationException(message,CacheName);
+      }
+    }
+
+    // Do the parent processing
+    super.loadCache(ResourceName, CacheName);
+  }
+
  /**
   * load the data from a file
   *
@@ -562,6 +854,13 @@ public class CustomerCache
     long           tmpToDate = 0;
     SimpleDateFormat sdfInput = new SimpleDateFormat (internalDateFormat);
 
+    // The read through mode loads from the DB
+    if (readThrough)
+    {
+      message = "Load mode <ReadThrough> needs a DB data source in cache <" + getSymbolicName() + ">";
+      throw new InitializationException(message,getSymbolicName());
+    }
+
     // Log that we are starting the loading
     OpenRate.getOpenRateFrameworkLog().info("Starting Customer Cache Loading from File");
 
@@ -733,6 +1032,13 @@ public class CustomerCache
       throw new InitializationException(message,getSymbolicName());
     }
 
+    // In read through mode we only load on demand
+    if (readThrough)
+    {
+      initReadThrough();
+      return;
+    }
+
     // Try to open the DS
     JDBCcon = DBUtil.getConnection(cacheDataSourceName);
 
@@ -990,6 +1296,17 @@ public class CustomerCache
   {
     CustIDCache.clear();
     aliasCache.clear();
+    serviceIDs.clear();
+
+    if (aliasReadThrough != null)
+    {
+      aliasReadThrough.clear();
+    }
+
+    if (customerReadThrough != null)
+    {
+      customerReadThrough.clear();
+    }
   }
 
   // -----------------------------------------------------------------------------
@@ -1134,4 +1451,279 @@ public class CustomerCache
       throw new InitializationException(message,ex,getSymbolicName());
     }
   }
+
+  // -----------------------------------------------------------------------------
+  // ------------------- Start of read through functions -------------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * Set up the read through mode, creating empty alias and account caches
+  * which load from the DB on demand. Replaces any previous caches, so that a
+  * reload drops everything that is held.
+  *
+  * @throws InitializationException
+  */
+  protected void initReadThrough()
+                          throws InitializationException
+  {
+    // Each of the queries must select for a list of keys
+    checkInListQuery("AliasSelectStatement", aliasSelectQuery);
+    checkInListQuery("CustomerSelectStatement", customerSelectQuery);
+    checkInListQuery("ProductSelectStatement", productSelectQuery);
+    checkInListQuery("ERASelectStatement", eraSelectQuery);
+
+    aliasReadThrough = new ReadThroughCache<>(new AliasLoader(), readThroughSize, readThroughBatchSize);
+    customerReadThrough = new ReadThroughCache<>(new CustomerLoader(), readThroughSize, readThroughBatchSize);
+
+    OpenRate.getOpenRateFrameworkLog().info(
+          "Customer Cache read through from <" + cacheDataSourceName +
+          "> holding up to <" + readThroughSize + "> aliases and customers, loading <" +
+          readThroughBatchSize + "> at a time");
+  }
+
+ /**
+  * Check that the query has the single parameter that the list of keys is
+  * put into
+  *
+  * @param Name The name of the statement
+  * @param Query The query
+  * @throws InitializationException
+  */
+  private void checkInListQuery(String Name, String Query)
+                          throws InitializationException
+  {
+    if (Query.indexOf('?') < 0 || Query.indexOf('?') != Query.lastIndexOf('?'))
+    {
+      message = "<" + Name + "> for <" + getSymbolicName() + "> must have exactly one '?' for the list of keys in load mode <ReadThrough>";
+      throw new InitializationException(message,getSymbolicName());
+    }
+  }
+
+ /**
+  * Prepare the query for the keys, expanding the "?" into one parameter for
+  * each key. Lists of more than one key are padded to the batch size by
+  * repeating the last key, so that only two shapes of each statement are
+  * prepared, and they can be re-used from the statement pool.
+  *
+  * @param JDBCcon The connection to prepare the statement on
+  * @param Query The query with a single "?"
+  * @param keys The keys
+  * @return The prepared statement, with the keys set
+  * @throws SQLException
+  */
+  private PreparedStatement prepareInListStatement(Connection JDBCcon, String Query, List<String> keys)
+                          throws SQLException
+  {
+    PreparedStatement tmpStatement;
+    StringBuilder     tmpParams;
+    int               tmpCount;
+    int               tmpIdx;
+
+    tmpCount = (keys.size() == 1) ? 1 : Math.max(keys.size(), readThroughBatchSize);
+
+    tmpParams = new StringBuilder(tmpCount * 2);
+    tmpParams.append('?');
+
+    for (tmpIdx = 1; tmpIdx < tmpCount; tmpIdx++)
+    {
+      tmpParams.append(",?");
+    }
+
+    tmpIdx = Query.indexOf('?');
+    tmpStatement = JDBCcon.prepareStatement(Query.substring(0, tmpIdx) + tmpParams + Query.substring(tmpIdx + 1));
+
+    for (tmpIdx = 0; tmpIdx < tmpCount; tmpIdx++)
+    {
+      tmpStatement.setString(tmpIdx + 1, keys.get(Math.min(tmpIdx, keys.size() - 1)));
+    }
+
+    return tmpStatement;
+  }
+
+ /**
+  * Get a connection for loading on demand
+  *
+  * @return The connection
+  * @throws ProcessingException
+  */
+  private Connection getReadThroughConnection() throws ProcessingException
+  {
+    try
+    {
+      return DBUtil.getConnection(cacheDataSourceName);
+    }
+    catch (InitializationException ex)
+    {
+      throw new ProcessingException("Could not get a connection to <" + cacheDataSourceName + "> for loading on demand",
+                                    ex,getSymbolicName());
+    }
+  }
+
+ /**
+  * Parse the date given, returning null if it is not valid
+  *
+  * @param sdfInput The date format
+  * @param Date The date to parse
+  * @return The UTC date in seconds, or null
+  */
+  private Long parseDate(SimpleDateFormat sdfInput, String Date)
+  {
+    try
+    {
+      return sdfInput.parse(Date).getTime()/1000;
+    }
+    catch (ParseException | NullPointerException ex)
+    {
+      return null;
+    }
+  }
+
+ /**
+  * Loads the customer IDs of a list of aliases from the DB
+  */
+  private class AliasLoader implements ReadThroughCache.Loader<String, String>
+  {
+    @Override
+    public Map<String, String> load(List<String> keys) throws ProcessingException
+    {
+      HashMap<String, String> tmpAliases = new HashMap<>(keys.size() * 2);
+      Connection        tmpConn = getReadThroughConnection();
+      PreparedStatement tmpStatement = null;
+      ResultSet         tmpResults = null;
+
+      try
+      {
+        tmpStatement = prepareInListStatement(tmpConn, aliasSelectQuery, keys);
+        tmpResults = tmpStatement.executeQuery();
+
+        while (tmpResults.next())
+        {
+          tmpAliases.put(tmpResults.getString(1), tmpResults.getString(2));
+        }
+      }
+      catch (SQLException ex)
+      {
+        throw new ProcessingException("Error performing SQL for retieving Alias data. message: <" + ex.getMessage() + ">",
+                                      ex,getSymbolicName());
+      }
+      finally
+      {
+        DBUtil.close(tmpResults);
+        DBUtil.close(tmpStatement);
+        DBUtil.close(tmpConn);
+      }
+
+      return tmpAliases;
+    }
+  }
+
+ /**
+  * Loads the accounts, products and ERAs of a list of customer IDs from the DB
+  */
+  private class CustomerLoader implements ReadThroughCache.Loader<String, CustInfo>
+  {
+    @Override
+    public Map<String, CustInfo> load(List<String> keys) throws ProcessingException
+    {
+      HashMap<String, CustInfo> tmpCustomers = new HashMap<>(keys.size() * 2);
+      SimpleDateFormat  sdfInput = new SimpleDateFormat (internalDateFormat);
+      Connection        tmpConn = getReadThroughConnection();
+      PreparedStatement tmpStatement = null;
+      ResultSet         tmpResults = null;
+      CustInfo          tmpCustInfo;
+      Long              tmpValidFrom;
+      Long              tmpValidTo;
+      String            custId;
+
+      try
+      {
+        // The accounts
+        tmpStatement = prepareInListStatement(tmpConn, customerSelectQuery, keys);
+        tmpResults = tmpStatement.executeQuery();
+
+        while (tmpResults.next())
+        {
+          custId = tmpResults.getString(1);
+          tmpValidFrom = parseDate(sdfInput, tmpResults.getString(2));
+          tmpValidTo = parseDate(sdfInput, tmpResults.getString(3));
+
+          if ((tmpValidFrom == null) || (tmpValidTo == null) || (tmpValidTo <= tmpValidFrom))
+          {
+            OpenRate.getOpenRateFrameworkLog().error("Dates for customer ID <" + custId + "> are not correct. Data discarded." );
+            continue;
+          }
+
+          tmpCustInfo = new CustInfo();
+          tmpCustInfo.ERAList = new ConcurrentHashMap<>(10);
+          tmpCustInfo.UTCValidFrom = tmpValidFrom;
+          tmpCustInfo.UTCValidTo   = tmpValidTo;
+          tmpCustInfo.BalanceGroup = Integer.parseInt(tmpResults.getString(4));
+          tmpCustomers.put(custId, tmpCustInfo);
+        }
+
+        DBUtil.close(tmpResults);
+        DBUtil.close(tmpStatement);
+
+        // The products of the accounts
+        tmpStatement = prepareInListStatement(tmpConn, productSelectQuery, keys);
+        tmpResults = tmpStatement.executeQuery();
+
+        while (tmpResults.next())
+        {
+          custId = tmpResults.getString(1);
+          tmpCustInfo = tmpCustomers.get(custId);
+          tmpValidFrom = parseDate(sdfInput, tmpResults.getString(4));
+          tmpValidTo = parseDate(sdfInput, tmpResults.getString(5));
+
+          if (tmpCustInfo == null)
+          {
+            continue;
+          }
+
+          if ((tmpValidFrom == null) || (tmpValidTo == null) || (tmpValidTo <= tmpValidFrom))
+          {
+            OpenRate.getOpenRateFrameworkLog().error("Dates for customer ID <" + custId + "> product <" + tmpResults.getString(3) + "> are not correct. Data discarded." );
+            continue;
+          }
+
+          addProduct(tmpCustInfo, tmpResults.getString(2), tmpResults.getString(3), tmpValidFrom, tmpValidTo);
+        }
+
+        DBUtil.close(tmpResults);
+        DBUtil.close(tmpStatement);
+
+        // The ERAs of the accounts
+        tmpStatement = prepareInListStatement(tmpConn, eraSelectQuery, keys);
+        tmpResults = tmpStatement.executeQuery();
+
+        while (tmpResults.next())
+        {
+          tmpCustInfo = tmpCustomers.get(tmpResults.getString(1));
+
+          if (tmpCustInfo != null)
+          {
+            tmpCustInfo.ERAList.put(tmpResults.getString(2), tmpResults.getString(3));
+          }
+        }
+      }
+      catch (SQLException ex)
+      {
+        throw new ProcessingException("Error performing SQL for retieving Customer data. message: <" + ex.getMessage() + ">",
+                                      ex,getSymbolicName());
+      }
+      catch (NumberFormatException ex)
+      {
+        throw new ProcessingException("Balance group not numeric in Customer data. message: <" + ex.getMessage() + ">",
+                                      ex,getSymbolicName());
+      }
+      finally
+      {
+        DBUtil.close(tmpResults);
+        DBUtil.close(tmpStatement);
+        DBUtil.close(tmpConn);
+      }
+
+      return tmpCustomers;
+    }
+  }
 }
@@ -122,6 +122,17 @@ import java.util.concurrent.ConcurrentHashMap;
  * Generally we know to update by the fact that we have a new ModT for an
  * existing AuditSegID.
  *
+ * ---------------------------- Storage Mode -----------------------------------
+ *
+ * By default the data is held as objects (StorageMode=Object). For large
+ * customer bases, StorageMode=Compact moves the data into columns of primitive
+ * arrays with dictionary encoded strings after each load, which uses much less
+ * heap. The lookups give the same results. The object maps are released after
+ * the load, and an incremental update from the DB loads only the aliases and
+ * customers which have changed back into the object maps, which are then
+ * merged with the compact storage into a new one. The lookups carry on against
+ * the previous compact storage while the update runs.
+ *
  * @author i.sparkes
  */
 public class CustomerCacheAudited
@@ -175,6 +186,21 @@ public class CustomerCacheAudited
   protected final static String SERVICE_UPDATE_FREQUENCY = "UpdateFrequency";
   protected final static String SERVICE_DUMP_INFO = "DumpInfo";
 
+  // The property which selects how the cache data is held in memory
+  protected final static String STORAGE_MODE = "StorageMode";
+
+ /**
+  * If true, the data is held in the compact storage after it has been loaded,
+  * instead of in the object maps. This uses much less heap, at the cost of
+  * building objects for the lookups which return an audit segment, and of
+  * rebuilding the compact storage after each update from the DB.
+  */
+  protected boolean compactStorage = false;
+
+  // The compact storage, if we are using it. This is replaced as a whole after
+  // each load, so lookups carry on against the old data during an update.
+  private volatile CompactCustomerStore compactStore = null;
+
   // this is the update frequency that will determine how often the
   // cache information is updated from the DB
   protected int updateFrequency = 300;
@@ -248,6 +274,9 @@ public class CustomerCacheAudited
       return;
     }
 
+    // An update of an alias held in the compact storage
+    thawAlias(alias);
+
     // Now add the validity segment into the list
     if (!aliasCache.containsKey(alias))
     {
@@ -392,6 +421,9 @@ public class CustomerCacheAudited
     CustInfo tmpCustInfo;
     AuditSegment tmpAuditSegment;
 
+    // An update of a customer held in the compact storage
+    thawCustomer(custId);
+
     // See if we already have AuditSegID for this customer
     if (!custCache.containsKey(custId))
     {
@@ -462,7 +494,7 @@ public class CustomerCacheAudited
     AuditSegment tmpAuditSegment;
 
     // Recover the audit segment
-    tmpAuditSegment = auditSegmentCache.get(auditSegId);
+    tmpAuditSegment = getAuditSegmentForUpdate(auditSegId);
 
     if (tmpAuditSegment == null)
     {
@@ -496,7 +528,7 @@ public class CustomerCacheAudited
     AuditSegment tmpAuditSegment;
 
     // Recover the audit segment
-    tmpAuditSegment = auditSegmentCache.get(AuditSegId);
+    tmpAuditSegment = getAuditSegmentForUpdate(AuditSegId);
 
     if (tmpAuditSegment == null)
     {
@@ -510,6 +542,115 @@ public class CustomerCacheAudited
     }
   }
 
+ /**
+  * Get an audit segment that we are adding data to. If the segment is held in
+  * the compact storage, its customer is moved back into the object maps
+  * first.
+  *
+  * @param auditSegId The audit segment ID
+  * @return The audit segment, or null if there is none
+  */
+  private AuditSegment getAuditSegmentForUpdate(long auditSegId)
+  {
+    CompactCustomerStore tmpStore = compactStore;
+    int cust;
+
+    if ((tmpStore != null) && (!auditSegmentCache.containsKey(auditSegId)))
+    {
+      cust = tmpStore.findCustomerByAuditSegmentID(auditSegId);
+
+      if (cust >= 0)
+      {
+        thawCustomer(tmpStore.getCustId(cust));
+      }
+    }
+
+    return auditSegmentCache.get(auditSegId);
+  }
+
+ /**
+  * Move an alias held in the compact storage back into the object maps, so
+  * that an incremental update can change it. The next compilation merges it
+  * back into the compact storage.
+  *
+  * @param alias The alias
+  */
+  private void thawAlias(String alias)
+  {
+    CompactCustomerStore tmpStore = compactStore;
+    ValidityNode tmpValidityNode;
+    ValidityNode lastNode = null;
+    int aliasNo;
+    int seg;
+
+    if ((tmpStore == null) || aliasCache.containsKey(alias))
+    {
+      return;
+    }
+
+    aliasNo = tmpStore.findAlias(alias);
+
+    if (aliasNo < 0)
+    {
+      return;
+    }
+
+    for (seg = tmpStore.getAliasSegmentStart(aliasNo) ; seg < tmpStore.getAliasSegmentEnd(aliasNo) ; seg++)
+    {
+      tmpValidityNode = new ValidityNode();
+      tmpValidityNode.ID = tmpStore.getAliasRowId(seg);
+      tmpValidityNode.validFrom = tmpStore.getAliasValidFrom(seg);
+      tmpValidityNode.validTo = tmpStore.getAliasValidTo(seg);
+      tmpValidityNode.custId = tmpStore.getAliasCustId(seg);
+      tmpValidityNode.subId = tmpStore.getAliasSubId(seg);
+
+      if (lastNode == null)
+      {
+        aliasCache.put(alias, tmpValidityNode);
+      }
+      else
+      {
+        lastNode.child = tmpValidityNode;
+      }
+
+      lastNode = tmpValidityNode;
+    }
+  }
+
+ /**
+  * Move a customer held in the compact storage back into the object maps, so
+  * that an incremental update can change it. The next compilation merges it
+  * back into the compact storage.
+  *
+  * @param custId The customer ID
+  */
+  private void thawCustomer(Integer custId)
+  {
+    CompactCustomerStore tmpStore = compactStore;
+    CustInfo tmpCustInfo;
+    int cust;
+
+    if ((tmpStore == null) || custCache.containsKey(custId))
+    {
+      return;
+    }
+
+    cust = tmpStore.findCustomer(custId);
+
+    if (cust < 0)
+    {
+      return;
+    }
+
+    tmpCustInfo = tmpStore.getCustInfo(cust, true);
+    custCache.put(custId, tmpCustInfo);
+
+    for (AuditSegment tmpAuditSegment : tmpCustInfo.CustAudSegments)
+    {
+      auditSegmentCache.put(tmpAuditSegment.getAuditSegmentID(), tmpAuditSegment);
+    }
+  }
+
   // -----------------------------------------------------------------------------
   // ---------------------- Start of retrieval functions -------------------------
   // -----------------------------------------------------------------------------
@@ -530,6 +671,16 @@ public class CustomerCacheAudited
     Integer custId = null;
     ValidityNode tmpValidityNode;
     String subId = null;
+    CompactCustomerStore tmpStore = compactStore;
+    int aliasSeg;
+
+    if (tmpStore != null)
+    {
+      aliasSeg = getCompactAliasSegment(tmpStore, alias, cdrDate);
+
+      // recover the products with the Cust ID
+      return getProducts(tmpStore.getAliasCustId(aliasSeg), tmpStore.getAliasSubId(aliasSeg), cdrDate);
+    }
 
     // See if we already have AuditSegID for this customer
     if (aliasCache.containsKey(alias))
@@ -589,6 +740,12 @@ public class CustomerCacheAudited
     CustInfo tmpCustInfo;
     ProductList resultProductList;
     AuditSegment tmpAuditSegment;
+    CompactCustomerStore tmpStore = compactStore;
+
+    if (tmpStore != null)
+    {
+      return getCompactProducts(tmpStore, CustId, SubscriptionID, CDRDate);
+    }
 
     // Prepare the result
     resultProductList = new ProductList();
@@ -620,6 +777,90 @@ public class CustomerCacheAudited
     return resultProductList;
   }
 
+ /**
+  * Get the alias validity segment of an alias at the given date from the
+  * compact storage
+  *
+  * @param tmpStore The compact storage
+  * @param alias The alias
+  * @param cdrDate The date
+  * @return The alias validity segment
+  * @throws ProcessingException If the alias is not valid at the date
+  */
+  private int getCompactAliasSegment(CompactCustomerStore tmpStore, String alias, long cdrDate) throws ProcessingException
+  {
+    int aliasNo;
+    int aliasSeg;
+
+    aliasNo = tmpStore.findAlias(alias);
+
+    if (aliasNo < 0)
+    {
+      // Otherwise write an error and ignore it
+      message = "Alias <" + alias + "> not found. Lookup failed.";
+      throw new ProcessingException(message,getSymbolicName());
+    }
+
+    aliasSeg = tmpStore.findAliasSegment(aliasNo, cdrDate);
+
+    if (aliasSeg < 0)
+    {
+      // Otherwise write an error and ignore it
+      message = "Alias <" + alias + "> not found for time <" + cdrDate + ">. Lookup failed.";
+      throw new ProcessingException(message,getSymbolicName());
+    }
+
+    return aliasSeg;
+  }
+
+ /**
+  * Get the products of a customer from the compact storage, in the same way
+  * as getProducts(Integer, String, long).
+  *
+  * @param tmpStore The compact storage
+  * @param CustId The customer ID o recover the products for
+  * @param SubscriptionID The subscription ID to recover for (null = all)
+  * @param CDRDate The date to recover the product list for
+  * @return The products for the account and date
+  * @throws ProcessingException
+  */
+  private ProductList getCompactProducts(CompactCustomerStore tmpStore, Integer CustId, String SubscriptionID, long CDRDate) throws ProcessingException
+  {
+    int cust;
+    int aud;
+
+    cust = tmpStore.findCustomer(CustId);
+
+    if (cust < 0)
+    {
+      message = "Account id <" + CustId + "> not found";
+      throw new ProcessingException(message,getSymbolicName());
+    }
+
+    //get the correct audit segment
+    aud = tmpStore.findAuditSegment(cust, CDRDate);
+
+    if (aud >= 0)
+    {
+      OpenRate.getOpenRateFrameworkLog().debug("Using audit segment <" + tmpStore.getAuditSegmentID(aud) + "> for Cust ID <" + CustId + "> at time <" + CDRDate + ">");
+
+      // Check the validity of the customer account
+      if ((tmpStore.getAccountValidFrom(aud) <= CDRDate) && (tmpStore.getAccountValidTo(aud) > CDRDate))
+      {
+        // the account is valid - return the list
+        return tmpStore.getProducts(aud, SubscriptionID);
+      }
+      else
+      {
+        // The account is not valid at this time
+        message = "Account id <" + CustId + "> not valid at time <" + CDRDate + "> in audit segment <" + tmpStore.getAuditSegmentID(aud) + ">";
+        throw new ProcessingException(message,getSymbolicName());
+      }
+    }
+
+    return new ProductList();
+  }
+
  /**
   * Get a list of all the products from an audit segment, matching the
   * subId.
@@ -670,6 +911,16 @@ public class CustomerCacheAudited
   */
   public Integer getCustId(String alias, long cdrDate)
   {
+    CompactCustomerStore tmpStore = compactStore;
+    int aliasSeg;
+
+    if (tmpStore != null)
+    {
+      aliasSeg = findCompactAliasSegment(tmpStore, alias, cdrDate);
+
+      return (aliasSeg < 0) ? null : tmpStore.getAliasCustId(aliasSeg);
+    }
+
     // See if we already have AuditSegID for this customer
     if (alias!= null)
     {
@@ -697,6 +948,32 @@ public class CustomerCacheAudited
   {
 	 return tmpValidityNode.validFrom <= cdrDate && tmpValidityNode.validTo > cdrDate ? true : false;
   }
+
+ /**
+  * Find the alias validity segment of an alias at the given date in the
+  * compact storage
+  *
+  * @param tmpStore The compact storage
+  * @param alias The alias, may be null
+  * @param cdrDate The date
+  * @return The alias validity segment, or -1 if there is none
+  */
+  private int findCompactAliasSegment(CompactCustomerStore tmpStore, String alias, long cdrDate)
+  {
+    int aliasNo;
+
+    if (alias != null)
+    {
+      aliasNo = tmpStore.findAlias(alias);
+
+      if (aliasNo >= 0)
+      {
+        return tmpStore.findAliasSegment(aliasNo, cdrDate);
+      }
+    }
+
+    return -1;
+  }
   
  /**
   * Gets an internal custID for a given alias and date
@@ -707,6 +984,16 @@ public class CustomerCacheAudited
   */
   public String getSubscriptionId(String alias, long cdrDate)
   {
+    CompactCustomerStore tmpStore = compactStore;
+    int aliasSeg;
+
+    if (tmpStore != null)
+    {
+      aliasSeg = findCompactAliasSegment(tmpStore, alias, cdrDate);
+
+      return (aliasSeg < 0) ? null : tmpStore.getAliasSubId(aliasSeg);
+    }
+
     // See if we already have AuditSegID for this customer
     if (alias!= null)
     {
@@ -741,6 +1028,24 @@ public class CustomerCacheAudited
     Integer custId;
     ValidityNode tmpValidityNode;
     ArrayList<Integer> tmpResult = new ArrayList<>();
+    CompactCustomerStore tmpStore = compactStore;
+    int aliasNo;
+    int aliasSeg;
+
+    if (tmpStore != null)
+    {
+      aliasNo = tmpStore.findAlias(alias);
+
+      if (aliasNo >= 0)
+      {
+        for (aliasSeg = tmpStore.getAliasSegmentStart(aliasNo) ; aliasSeg < tmpStore.getAliasSegmentEnd(aliasNo) ; aliasSeg++)
+        {
+          tmpResult.add(tmpStore.getAliasCustId(aliasSeg));
+        }
+      }
+
+      return tmpResult;
+    }
 
     // See if we already have AuditSegID for this customer
     if (aliasCache.containsKey(alias))
@@ -771,6 +1076,16 @@ public class CustomerCacheAudited
   */
   public String getSubId(String alias, long cdrDate)
   {
+    CompactCustomerStore tmpStore = compactStore;
+    int aliasSeg;
+
+    if (tmpStore != null)
+    {
+      aliasSeg = findCompactAliasSegment(tmpStore, alias, cdrDate);
+
+      return (aliasSeg < 0) ? null : tmpStore.getAliasSubId(aliasSeg);
+    }
+
     // See if we already have AuditSegID for this customer
     if (alias != null)
     {
@@ -802,6 +1117,19 @@ public class CustomerCacheAudited
   */
   public AuditSegment getAuditSegment(int custId, long CDRDate)
   {
+    CompactCustomerStore tmpStore = compactStore;
+    int cust;
+    int aud;
+
+    if (tmpStore != null)
+    {
+      // build the audit segment from the compact storage
+      cust = tmpStore.findCustomer(custId);
+      aud = (cust < 0) ? -1 : tmpStore.findAuditSegment(cust, CDRDate);
+
+      return (aud < 0) ? null : tmpStore.getAuditSegment(aud);
+    }
+
     // get the customer for the alias
     CustInfo tmpCustInfo = custCache.get(custId);
 
@@ -820,6 +1148,15 @@ public class CustomerCacheAudited
   public long getBalanceGroup(Integer custID)
   {
     CustInfo tmpCustInfo;
+    CompactCustomerStore tmpStore = compactStore;
+    int cust;
+
+    if (tmpStore != null)
+    {
+      cust = tmpStore.findCustomer(custID);
+
+      return (cust < 0) ? 0 : tmpStore.getBalanceGroup(cust);
+    }
 
     // Get the product information
     tmpCustInfo = custCache.get(custID);
@@ -836,6 +1173,15 @@ public class CustomerCacheAudited
   public String getExtCustID(Integer custID)
   {
     CustInfo tmpCustInfo;
+    CompactCustomerStore tmpStore = compactStore;
+    int cust;
+
+    if (tmpStore != null)
+    {
+      cust = tmpStore.findCustomer(custID);
+
+      return (cust < 0) ? null : tmpStore.getExtCustId(cust);
+    }
 
     // Get the product information
     tmpCustInfo = custCache.get(custID);
@@ -858,6 +1204,29 @@ public class CustomerCacheAudited
     CustInfo tmpCustInfo;
     AuditSegment tmpAuditSegment;
     ValidityNode tmpValidityNode;
+    CompactCustomerStore tmpStore = compactStore;
+    int cust;
+    int aud;
+
+    if (tmpStore != null)
+    {
+      if (tmpStore.findAlias(alias) >= 0)
+      {
+        cust = tmpStore.findCustomer(tmpStore.getAliasCustId(getCompactAliasSegment(tmpStore, alias, cdrDate)));
+
+        //get the correct audit segment
+        aud = (cust < 0) ? -1 : tmpStore.findAuditSegment(cust, cdrDate);
+
+        if (aud >= 0)
+        {
+          OpenRate.getOpenRateFrameworkLog().debug("Using audit segment <" + tmpStore.getAuditSegmentID(aud) + "> for alias <" + alias + "> at time <" + cdrDate + ">");
+
+          return tmpStore.getERA(aud, eraKey);
+        }
+      }
+
+      return null;
+    }
 
     // See if we already have AuditSegID for this customer
     if (aliasCache.containsKey(alias))
@@ -936,6 +1305,27 @@ public class CustomerCacheAudited
                  throws InitializationException
   {
     String tmpFrequency;
+    String tmpStorageMode;
+
+    // get the storage mode, which we need before we load
+    tmpStorageMode = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                     CacheName,
+                                                     STORAGE_MODE,
+                                                     "Object");
+
+    if (tmpStorageMode.equalsIgnoreCase("Compact"))
+    {
+      compactStorage = true;
+    }
+    else if (tmpStorageMode.equalsIgnoreCase("Object"))
+    {
+      compactStorage = false;
+    }
+    else
+    {
+      message = "Storage mode <" + tmpStorageMode + "> not valid in cache <" + getSymbolicName() + ">. Must be 'Object' or 'Compact'";
+      throw new InitializationException(message,getSymbolicName());
+    }
 
     // Do the parent processing first
     super.loadCache(ResourceName, CacheName);
@@ -1163,6 +1553,12 @@ public class CustomerCacheAudited
       }
     }
 
+    // move the data to the compact storage if we are using it
+    if (compactStorage)
+    {
+      compileCompactStore();
+    }
+
     // set the last update time
     lastUpdate = System.currentTimeMillis();
 
@@ -1546,6 +1942,12 @@ public class CustomerCacheAudited
       DBUtil.close(JDBCcon);
     }
 
+    // move the data to the compact storage if we are using it
+    if (compactStorage)
+    {
+      compileCompactStore();
+    }
+
     // set the last update time
     lastUpdate = System.currentTimeMillis();
 
@@ -1579,6 +1981,7 @@ public class CustomerCacheAudited
     aliasCache.clear();
     custCache.clear();
     auditSegmentCache.clear();
+    compactStore = null;
 
     // reset the incremental counters
     lastAccountVerModT = 0;
@@ -1587,6 +1990,43 @@ public class CustomerCacheAudited
     lastProductModT = 0;
   }
 
+ /**
+  * Compile the data loaded into the object maps into the compact storage, and
+  * release the object maps. After an incremental update, the object maps hold
+  * only the aliases and customers which changed, and these are merged with the
+  * current compact storage into a new one. The incremental counters are kept,
+  * so that the next update again only loads the changes.
+  */
+  protected void compileCompactStore()
+  {
+    CompactCustomerStore tmpStore = compactStore;
+    int changedAliases = aliasCache.size();
+    int changedCustomers = custCache.size();
+
+    if (tmpStore == null)
+    {
+      compactStore = new CompactCustomerStore(aliasCache, custCache);
+    }
+    else if ((changedAliases > 0) || (changedCustomers > 0))
+    {
+      compactStore = new CompactCustomerStore(tmpStore, aliasCache, custCache);
+    }
+
+    // release the objects
+    aliasCache.clear();
+    custCache.clear();
+    auditSegmentCache.clear();
+
+    if (tmpStore == null)
+    {
+      OpenRate.getOpenRateFrameworkLog().info("Customer Cache data moved to compact storage");
+    }
+    else
+    {
+      OpenRate.getOpenRateFrameworkLog().info("Customer Cache merged <" + changedAliases + "> aliases and <" + changedCustomers + "> customers into compact storage");
+    }
+  }
+
  /**
   * This function sees if it is yet time to perform an update from the
   * customer database, and if so, performs the update
@@ -1669,7 +2109,15 @@ public class CustomerCacheAudited
         OpenRate.getOpenRateFrameworkLog().error("Error writing dump file", ioe);
       }
 
-      aliasIter = aliasCache.keySet().iterator();
+      if (compactStore != null)
+      {
+        aliasIter = compactStore.getAliases().iterator();
+      }
+      else
+      {
+        aliasIter = aliasCache.keySet().iterator();
+      }
+
       while (aliasIter.hasNext())
       {
         aliasId = aliasIter.next();
@@ -1688,7 +2136,14 @@ public class CustomerCacheAudited
       {
         OpenRate.getOpenRateFrameworkLog().error("Error writing dump file", ioe);
       }
-      IDIter = custCache.keySet().iterator();
+      if (compactStore != null)
+      {
+        IDIter = compactStore.getCustIds().iterator();
+      }
+      else
+      {
+        IDIter = custCache.keySet().iterator();
+      }
 
       while (IDIter.hasNext())
       {
@@ -1781,7 +2236,15 @@ public class CustomerCacheAudited
       dumpWriter.write(DumpString);
       dumpWriter.newLine();
 
-      tmpCustInfo = custCache.get(custId);
+      if (compactStore != null)
+      {
+        // build the customer from the compact storage
+        tmpCustInfo = compactStore.getCustInfo(compactStore.findCustomer(custId));
+      }
+      else
+      {
+        tmpCustInfo = custCache.get(custId);
+      }
 
       FromDate = fieldInterpreter.formatLongDate(tmpCustInfo.custValidFrom);
       ToDate = fieldInterpreter.formatLongDate(tmpCustInfo.custValidTo);
@@ -1863,6 +2326,9 @@ public class CustomerCacheAudited
   {
     String     DumpString;
     ValidityNode tmpValidityNode;
+    CompactCustomerStore tmpStore = compactStore;
+    int        aliasNo;
+    int        aliasSeg;
 
     try
     {
@@ -1871,6 +2337,30 @@ public class CustomerCacheAudited
       dumpWriter.write(DumpString);
       dumpWriter.newLine();
 
+      if (tmpStore != null)
+      {
+        // Write the information for the alias history from the compact storage
+        aliasNo = tmpStore.findAlias(aliasId);
+
+        if (aliasNo >= 0)
+        {
+          for (aliasSeg = tmpStore.getAliasSegmentStart(aliasNo) ; aliasSeg < tmpStore.getAliasSegmentEnd(aliasNo) ; aliasSeg++)
+          {
+            String FromDate = fieldInterpreter.formatLongDate(tmpStore.getAliasValidFrom(aliasSeg));
+            String ToDate = fieldInterpreter.formatLongDate(tmpStore.getAliasValidTo(aliasSeg));
+
+            DumpString = "  Associated with Cust ID " + tmpStore.getAliasCustId(aliasSeg) +
+                    " from " + tmpStore.getAliasValidFrom(aliasSeg) + " (" + FromDate +
+                    ") to " + tmpStore.getAliasValidTo(aliasSeg) + " (" + ToDate +
+                    ") for Subscription " + tmpStore.getAliasSubId(aliasSeg);
+            dumpWriter.write(DumpString);
+            dumpWriter.newLine();
+          }
+        }
+
+        return;
+      }
+
       // Write the information for the alias history
       tmpValidityNode = aliasCache.get(aliasId);
       while (tmpValidityNode != null)
@@ -68,21 +68,10 @@ import java.util.Iterator;
 public class MultipleValidityCache
      extends AbstractSyncLoaderCache
 {
-  // This stores the index to all the groups.
-  private HashMap<String, HashMap<String, ValidityNode>> GroupCache;
-
- /**
-  * A ValidityNode is a segment of validity of a resource. These are chained
-  * together in a sorted linked list. The sorting is done at insertion time
-  * into the list, meaning that lookups at run time can be optimised.
-  */
-  private class ValidityNode
-  {
-    long              timeFrom;
-    long              timeTo;
-    ArrayList<String> results = null;
-    ValidityNode      child = null;
-  }
+  // This stores the index to all the groups. The validity segments of each
+  // resource are held in arrays sorted by the start time, so that they can
+  // be binary searched.
+  private HashMap<String, HashMap<String, ValiditySegments>> GroupCache;
 
   // List of Services that this Client supports
   private final static String SERVICE_GROUP_COUNT = "GroupCount";
@@ -109,8 +98,9 @@ public class MultipleValidityCache
  /**
   * Add a value into the Validity Segment Cache, defining the result
   * value that should be returned in the case of a match.
-  * The entries are ordered during the loading in a linked list sorted by
-  * validity date. This makes the search at run time easier.
+  * The entries are ordered during the loading in a list sorted by
+  * start date. The entries may overlap, and the matches are returned in the
+  * order that the entries were added.
   *
   * @param group The data group to add the entry to
   * @param resourceID The resourceID of the entry to add
@@ -121,9 +111,8 @@ public class MultipleValidityCache
   public void addEntry(String group, String resourceID, long startTime,
                        long endTime, ArrayList<String> results)
   {
-    HashMap<String, ValidityNode>      tmpResourceCache;
-    ValidityNode tmpValidityNode;
-    ValidityNode newNode;
+    HashMap<String, ValiditySegments> tmpResourceCache;
+    ValiditySegments tmpSegments;
 
     // See if we already have the group cache for this Group
     if (!GroupCache.containsKey(group))
@@ -141,42 +130,43 @@ public class MultipleValidityCache
     }
 
     // Now add the validity segment into the list, checking only the start
-    // time (thuis avoiding the overlap detection
-    if (!tmpResourceCache.containsKey(resourceID))
+    // time (thus avoiding the overlap detection)
+    tmpSegments = tmpResourceCache.get(resourceID);
+
+    if (tmpSegments == null)
     {
       // Create the new list
-      tmpValidityNode = new ValidityNode();
-      tmpValidityNode.timeFrom = startTime;
-      tmpValidityNode.timeTo = endTime;
-      tmpValidityNode.results = results;
-      tmpValidityNode.child = null;
-
-      // Add in the new node
-      tmpResourceCache.put(resourceID, tmpValidityNode);
+      tmpSegments = new ValiditySegments();
+
+      // Add in the new list
+      tmpResourceCache.put(resourceID, tmpSegments);
     }
-    else
-    {
-      // Recover the validity map that there is
-      tmpValidityNode = tmpResourceCache.get(resourceID);
 
-      // now run down the validity entries until we get to the end
-      while (tmpValidityNode.child != null)
-      {
-        tmpValidityNode = tmpValidityNode.child;
-      }
+    // add after any entries with the same start, so that they stay in the
+    // order they were added
+    tmpSegments.insert(tmpSegments.countStartedBy(startTime), startTime, endTime, results);
+  }
 
-      // add the node - we don't care about order
-      newNode = new ValidityNode();
+ /**
+  * Get the segments of a resource
+  *
+  * @param group The resource group to search in
+  * @param resourceID The resource identifier to search for
+  * @return The segments, or null if there are none
+  */
+  private ValiditySegments getSegments(String group, String resourceID)
+  {
+    HashMap<String, ValiditySegments> tmpResourceCache;
 
-      // move the information over
-      newNode.timeFrom = startTime;
-      newNode.timeTo = endTime;
-      newNode.results = results;
-      newNode.child = null;
+    // Get the service if we know it
+    tmpResourceCache = GroupCache.get(group);
 
-      // add the new information to the tail of the list
-      tmpValidityNode.child = newNode;
+    if (tmpResourceCache != null)
+    {
+      return tmpResourceCache.get(resourceID);
     }
+
+    return null;
   }
 
  /**
@@ -190,27 +180,16 @@ public class MultipleValidityCache
   */
   public String getFirstValidityMatch(String group, String resourceID, long time)
   {
-    HashMap<String,ValidityNode> tmpResourceCache;
-    ValidityNode                 tmpValidityNode;
+    ValiditySegments tmpSegments = getSegments(group, resourceID);
+    int              idx;
 
-    // Get the service if we know it
-    tmpResourceCache = GroupCache.get(group);
-
-    if (tmpResourceCache != null)
+    if (tmpSegments != null)
     {
-      tmpValidityNode = tmpResourceCache.get(resourceID);
+      idx = tmpSegments.firstMatch(time);
 
-      // Now that we have the Validity Map, get the entry
-      while (tmpValidityNode != null)
+      if (idx >= 0)
       {
-        if ((tmpValidityNode.timeFrom <= time) &
-            (tmpValidityNode.timeTo > time))
-        {
-          return tmpValidityNode.results.get(0);
-        }
-
-        // Move down the map
-        tmpValidityNode = tmpValidityNode.child;
+        return tmpSegments.results[idx].get(0);
       }
     }
 
@@ -228,28 +207,17 @@ public class MultipleValidityCache
   */
   public ArrayList<String> getFirstValidityMatchWithChildData(String group, String resourceID, long time)
   {
-    HashMap<String,ValidityNode> tmpResourceCache;
-    ValidityNode   			     tmpValidityNode;
+    ValiditySegments  tmpSegments = getSegments(group, resourceID);
     ArrayList<String> Value = null;
+    int               idx;
 
-    // Get the service if we know it
-    tmpResourceCache = GroupCache.get(group);
-
-    if (tmpResourceCache != null)
+    if (tmpSegments != null)
     {
-      tmpValidityNode = tmpResourceCache.get(resourceID);
+      idx = tmpSegments.firstMatch(time);
 
-      // Now that we have the Validity Map, get the entry
-      while (tmpValidityNode != null)
+      if (idx >= 0)
       {
-        if ((tmpValidityNode.timeFrom <= time) &
-            (tmpValidityNode.timeTo > time))
-        {
-          return tmpValidityNode.results;
-        }
-
-        // Move down the map
-        tmpValidityNode = tmpValidityNode.child;
+        return tmpSegments.results[idx];
       }
     }
 
@@ -267,33 +235,48 @@ public class MultipleValidityCache
   */
   public ArrayList<String> getAllValidityMatches(String group, String resourceID, long time)
   {
-    HashMap<String,ValidityNode> tmpResourceCache;
-    ValidityNode      			 tmpValidityNode;
     ArrayList<String> returnValue = new ArrayList<>();
 
-    // Get the service if we know it
-    tmpResourceCache = GroupCache.get(group);
+    getAllValidityMatches(group, resourceID, time, returnValue);
 
-    if (tmpResourceCache != null)
+    return returnValue;
+  }
+
+ /**
+  * Fills the list given with all matches to the resourceID in the given
+  * group at the given time. The list is cleared first. This allows the caller
+  * to re-use the same list for every lookup, so that the lookup does not
+  * allocate.
+  *
+  * @param group The resource group to search in
+  * @param resourceID The resource identifier to search for
+  * @param time The time to search for
+  * @param matches The list to fill with the retrieved values
+  * @return The number of matches
+  */
+  public int getAllValidityMatches(String group, String resourceID, long time, ArrayList<String> matches)
+  {
+    ValiditySegments tmpSegments = getSegments(group, resourceID);
+    int limit;
+    int first;
+    int idx;
+
+    matches.clear();
+
+    if (tmpSegments != null)
     {
-      tmpValidityNode = tmpResourceCache.get(resourceID);
+      limit = tmpSegments.countStartedBy(time);
+      first = tmpSegments.firstNotEndedBy(time, limit);
 
-      // Now that we have the Validity Map, get the entry
-      while (tmpValidityNode != null)
+      for (idx = tmpSegments.nextMatch(time, first, limit, -1) ; idx >= 0 ;
+           idx = tmpSegments.nextMatch(time, first, limit, idx))
       {
-        if ((tmpValidityNode.timeFrom <= time) &
-            (tmpValidityNode.timeTo > time))
-        {
-          // Add the value to the results list
-          returnValue.add(tmpValidityNode.results.get(0));
-        }
-
-        // Move down the map
-        tmpValidityNode = tmpValidityNode.child;
+        // Add the value to the results list
+        matches.add(tmpSegments.results[idx].get(0));
       }
     }
 
-    return returnValue;
+    return matches.size();
   }
 
  /**
@@ -307,33 +290,48 @@ public class MultipleValidityCache
   */
   public ArrayList<ArrayList<String>> getAllValidityMatchesWithChildData(String group, String resourceID, long time)
   {
-    HashMap<String,ValidityNode> tmpResourceCache;
-    ValidityNode                 tmpValidityNode;
     ArrayList<ArrayList<String>> returnValue = new ArrayList<>();
 
-    // Get the service if we know it
-    tmpResourceCache = GroupCache.get(group);
+    getAllValidityMatchesWithChildData(group, resourceID, time, returnValue);
 
-    if (tmpResourceCache != null)
+    return returnValue;
+  }
+
+ /**
+  * Fills the list given with the result vectors of all matches to the
+  * resourceID in the given group at the given time. The list is cleared
+  * first. This allows the caller to re-use the same list for every lookup,
+  * so that the lookup does not allocate.
+  *
+  * @param group The resource group to search in
+  * @param resourceID The resource identifier to search for
+  * @param time The time to search for
+  * @param matches The list to fill with the retrieved value vectors
+  * @return The number of matches
+  */
+  public int getAllValidityMatchesWithChildData(String group, String resourceID, long time, ArrayList<ArrayList<String>> matches)
+  {
+    ValiditySegments tmpSegments = getSegments(group, resourceID);
+    int limit;
+    int first;
+    int idx;
+
+    matches.clear();
+
+    if (tmpSegments != null)
     {
-      tmpValidityNode = tmpResourceCache.get(resourceID);
+      limit = tmpSegments.countStartedBy(time);
+      first = tmpSegments.firstNotEndedBy(time, limit);
 
-      // Now that we have the Validity Map, get the entry
-      while (tmpValidityNode != null)
+      for (idx = tmpSegments.nextMatch(time, first, limit, -1) ; idx >= 0 ;
+           idx = tmpSegments.nextMatch(time, first, limit, idx))
       {
-        if ((tmpValidityNode.timeFrom <= time) &
-            (tmpValidityNode.timeTo > time))
-        {
-          // Add the value to the results list
-          returnValue.add(tmpValidityNode.results);
-        }
-
-        // Move down the map
-        tmpValidityNode = tmpValidityNode.child;
+        // Add the value to the results list
+        matches.add(tmpSegments.results[idx]);
       }
     }
 
-    return returnValue;
+    return matches.size();
   }
 
 // -----------------------------------------------------------------------------
@@ -722,7 +720,7 @@ public class MultipleValidityCache
   public String processControlEvent(String command, boolean init,
                                     String parameter)
   {
-    HashMap<String,ValidityNode> tmpResource;
+    HashMap<String,ValiditySegments> tmpResource;
     Collection<String>           tmpGroups;
     Iterator<String>             groupIter;
     String                       tmpGroupName;
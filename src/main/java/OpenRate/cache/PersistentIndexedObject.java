@@ -10,14 +10,54 @@ import OpenRate.logging.LogUtil;
 import OpenRate.transaction.ISyncPoint;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This is a cache implementing a persistent in-memory hash table, which must be
  * saved on shutdown or periodically.
+ *
+ * The objects are held in a concurrent map, so that the cache can be used by
+ * plug ins running in several threads.
+ *
+ * The objects are saved in a compact binary format: a header, followed by one
+ * record per object holding the key and the value. Strings and the boxed
+ * primitive types are written directly, other objects are written with Java
+ * serialization. Files written with Java serialization of the whole map by
+ * earlier versions are still read.
+ *
+ * If a persist interval is configured (PersistInterval, in seconds), a
+ * background thread appends the objects which have changed since the last
+ * save to a journal (the data file name with ".journal" added) at each
+ * interval, instead of writing all of the objects. The changed keys are
+ * swapped out for a new set, and the values taken, under a short exclusive
+ * lock, so the processing does not wait for the writing. Each append is
+ * forced to disk before the next interval. When the journal holds more than a
+ * configured number of records (JournalCompactRecords), a full snapshot is
+ * written and the journal is started again. On startup the journal is
+ * replayed over the snapshot, and a truncated last record left by a crash is
+ * cut off the journal so that later records are appended after good data.
+ * Each snapshot carries a generation number which the journal written after
+ * it repeats, so that a journal left over from before the snapshot is never
+ * replayed over it. A snapshot also only copies the object references under
+ * the exclusive lock, and writes them after releasing it. Changes are only
+ * seen by putObject() and deleteObject(), so objects that are changed in
+ * place must be marked with markObjectChanged() to be journalled, and should
+ * be changed between beginObjectChange() and endObjectChange(). An object
+ * changed in place while it is being written may be saved half changed, but
+ * the change is marked for the next journal, which is replayed over it.
  */
 public class PersistentIndexedObject
         extends AbstractCache
@@ -37,7 +77,7 @@ public class PersistentIndexedObject
    * numeric values for a best match search. The cost of a search is linear with
    * the number of digits stored in the search tree
    */
-  protected HashMap<String, Object> ObjectList;
+  protected ConcurrentHashMap<String, Object> ObjectList;
 
   // List of Services that this Client supports
   private final static String SERVICE_PERSIST = "Persist";
@@ -47,6 +87,54 @@ public class PersistentIndexedObject
   private final static String SERVICE_INITIAL_HASH_SIZE = "InitialHashSize";
   private final static String DEFAULT_INITIAL_HASH_SIZE = "50000";
   private final static String SERVICE_REMOVE_KEY = "RemoveKey";
+  private final static String SERVICE_PERSIST_INTERVAL = "PersistInterval";
+  private final static String SERVICE_JOURNAL_COMPACT_RECORDS = "JournalCompactRecords";
+
+  // The header of the compact persistence format ("ORPO") and its version
+  private final static int PERSIST_MAGIC = 0x4F52504F;
+  private final static int PERSIST_VERSION = 2;
+
+  // The version before the header held the generation
+  private final static int PERSIST_VERSION_NO_GENERATION = 1;
+
+  // The record types of the compact persistence format
+  private final static byte RECORD_PUT = 'P';
+  private final static byte RECORD_REMOVE = 'R';
+  private final static byte RECORD_CLEAR = 'C';
+
+  // The value types of the compact persistence format
+  private final static byte VALUE_STRING = 'S';
+  private final static byte VALUE_LONG = 'J';
+  private final static byte VALUE_INTEGER = 'I';
+  private final static byte VALUE_DOUBLE = 'D';
+  private final static byte VALUE_BOOLEAN = 'Z';
+  private final static byte VALUE_OBJECT = 'O';
+  private final static byte VALUE_CUSTOM = 'X';
+
+  // The keys which have changed since the last save. Changes take the shared
+  // side of the lock, and the save takes the exclusive side just to swap the
+  // set, so that no change is lost between the two.
+  private volatile Set<String> changedKeys = newKeySet();
+  private volatile boolean purged = false;
+  private final ReentrantReadWriteLock changeLock = new ReentrantReadWriteLock();
+
+  // Serialises the saving, whether from the background thread or a command
+  private final Object persistLock = new Object();
+
+  // The number of records in the journal, used to trigger a full snapshot
+  private long journalRecords = 0;
+
+  // The generation of the last snapshot, which the journal must match
+  private long generation = 0;
+
+  // The number of records at which we write a full snapshot
+  private long journalCompactRecords = 100000;
+
+  // The interval between background saves in seconds, 0 if there are none
+  private int persistInterval = 0;
+
+  // The background saving thread
+  private Thread persistThread = null;
 
   // Variables for managing the sync points
   private int SyncStatus = 0;
@@ -133,11 +221,41 @@ public class PersistentIndexedObject
       throw new InitializationException(message, getSymbolicName());
     }
 
+    // Get the background persistence configuration
+    String tmpPersistInterval = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+            CacheName,
+            SERVICE_PERSIST_INTERVAL,
+            "0");
+    String tmpCompactRecords = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+            CacheName,
+            SERVICE_JOURNAL_COMPACT_RECORDS,
+            String.valueOf(journalCompactRecords));
+
+    try {
+      persistInterval = Integer.parseInt(tmpPersistInterval);
+      journalCompactRecords = Long.parseLong(tmpCompactRecords);
+    } catch (NumberFormatException ex) {
+      message = "Expected numeric values for <" + SERVICE_PERSIST_INTERVAL + "> and <" + SERVICE_JOURNAL_COMPACT_RECORDS + "> in cache <" + getSymbolicName() + ">, but got <" + tmpPersistInterval + "> and <" + tmpCompactRecords + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message, getSymbolicName());
+    }
+
     // Initialise the object cache
-    ObjectList = new HashMap<>(initialHashSize);
+    ObjectList = new ConcurrentHashMap<>(initialHashSize);
 
     // perform the actual loading
     loadCacheObjectsFromFile();
+
+    // apply the changes saved since the last snapshot
+    replayJournal();
+
+    // The loaded state is now the persisted state
+    changedKeys = newKeySet();
+    purged = false;
+
+    if (persistInterval > 0) {
+      startPersistThread();
+    }
   }
 
   /**
@@ -148,7 +266,19 @@ public class PersistentIndexedObject
    * @param ObjectToCache the object to store in the hash
    */
   public void putObject(String RecordKey, Object ObjectToCache) {
-    ObjectList.put(RecordKey, ObjectToCache);
+    changeLock.readLock().lock();
+    try {
+      // A concurrent map cannot hold null, so a null object removes the key
+      if (ObjectToCache == null) {
+        ObjectList.remove(RecordKey);
+      } else {
+        ObjectList.put(RecordKey, ObjectToCache);
+      }
+
+      changedKeys.add(RecordKey);
+    } finally {
+      changeLock.readLock().unlock();
+    }
   }
 
   /**
@@ -158,11 +288,7 @@ public class PersistentIndexedObject
    * @return Object the object stored in the hash, otherwise null if none found
    */
   public Object getObject(String RecordKey) {
-    if (ObjectList.containsKey(RecordKey)) {
-      return ObjectList.get(RecordKey);
-    } else {
-      return null;
-    }
+    return ObjectList.get(RecordKey);
   }
 
   /**
@@ -171,8 +297,65 @@ public class PersistentIndexedObject
    * @param RecordKey the hash key to remove
    */
   public void deleteObject(String RecordKey) {
-    if (ObjectList.containsKey(RecordKey)) {
-      ObjectList.remove(RecordKey);
+    changeLock.readLock().lock();
+    try {
+      if (ObjectList.remove(RecordKey) != null) {
+        changedKeys.add(RecordKey);
+      }
+    } finally {
+      changeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Mark an object which has been changed in place as changed, so that it is
+   * written to the journal at the next background save.
+   *
+   * @param RecordKey the hash key of the object
+   */
+  public void markObjectChanged(String RecordKey) {
+    changeLock.readLock().lock();
+    try {
+      changedKeys.add(RecordKey);
+    } finally {
+      changeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Start changing an object in place. A snapshot waits until the change is
+   * ended, so it does not see the object half changed. Each call must be
+   * followed by a call to endObjectChange().
+   */
+  public void beginObjectChange() {
+    changeLock.readLock().lock();
+  }
+
+  /**
+   * End a change started with beginObjectChange(), marking the object as
+   * changed.
+   *
+   * @param RecordKey the hash key of the object
+   */
+  public void endObjectChange(String RecordKey) {
+    try {
+      changedKeys.add(RecordKey);
+    } finally {
+      changeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove all of the objects
+   */
+  public void clearObjects() {
+    changeLock.writeLock().lock();
+    try {
+      ObjectList.clear();
+      changedKeys = newKeySet();
+      purged = true;
+    } finally {
+      changeLock.writeLock().unlock();
     }
   }
 
@@ -228,12 +411,14 @@ public class PersistentIndexedObject
   // ---------------- Start of inherited ICacheSaver functions -------------------
   // -----------------------------------------------------------------------------
   /**
-   * Save the internal object store to the persistence target
+   * Save the internal object store to the persistence target. This is done at
+   * shutdown, so the background saving is stopped first.
    *
    * @throws OpenRate.exception.ProcessingException
    */
   @Override
   public void saveCache() throws ProcessingException {
+    stopPersistThread();
     saveCacheObjectsToFile();
   }
 
@@ -282,7 +467,7 @@ public class PersistentIndexedObject
     if (Command.equalsIgnoreCase(SERVICE_PURGE)) {
       if (Parameter.equalsIgnoreCase("true")) {
         // Clear the persistence object
-        ObjectList.clear();
+        clearObjects();
 
         ResultCode = 0;
       } else if (Parameter.isEmpty()) {
@@ -329,7 +514,7 @@ public class PersistentIndexedObject
       if (!Parameter.isEmpty()) {
 
         if (ObjectList.containsKey(Parameter)) {
-          ObjectList.remove(Parameter);
+          deleteObject(Parameter);
         } else {
           return "cound not find key " + Parameter + "\n";
         }
@@ -352,41 +537,184 @@ public class PersistentIndexedObject
   }
 
   /**
-   * Save the object data to a file. This works with objects that are
+   * Save the object data to a file, as a full snapshot in the compact format.
+   * The snapshot is written to a temporary file which then replaces the data
+   * file, and the journal is started again. Changes are only held off while
+   * the object references are copied and the changed keys are swapped for the
+   * next journal, and the objects are written after that. The snapshot has
+   * the next generation number, so that the old journal is not replayed over
+   * it if we stop before deleting it. This works with objects that are
    * serializable in the case that yours are not, you must overwrite this in an
    * inherited class.
    *
    * @throws OpenRate.exception.ProcessingException
    */
   public void saveCacheObjectsToFile() throws ProcessingException {
-    FileOutputStream outStream = null;
-    ObjectOutputStream objOutStream;
+    File tmpFile;
+    long objectsWritten = 0;
+    long newGeneration;
+    ArrayList<String> tmpKeys;
+    ArrayList<Object> tmpValues;
+    Set<String> tmpChanged;
+    boolean tmpPurged;
 
-    // Check to see if we need to open our output stream
-    if (CachePersistenceName != null) {
+    // Check to see if we have somewhere to save to
+    if (CachePersistenceName == null) {
+      return;
+    }
+
+    synchronized (persistLock) {
+      tmpFile = new File(CachePersistenceName + ".tmp");
+      newGeneration = generation + 1;
+
+      // Hold off changes just while the references are copied, and start the
+      // new journal with the changes made after them
+      changeLock.writeLock().lock();
       try {
-        outStream = new FileOutputStream(CachePersistenceName);
-      } catch (FileNotFoundException ex) {
-        message = "File not found saving persistent objects";
+        tmpKeys = new ArrayList<>(ObjectList.size());
+        tmpValues = new ArrayList<>(ObjectList.size());
+
+        for (Map.Entry<String, Object> entry : ObjectList.entrySet()) {
+          tmpKeys.add(entry.getKey());
+          tmpValues.add(entry.getValue());
+        }
+
+        tmpPurged = purged;
+        tmpChanged = swapChangedKeys();
+      } finally {
+        changeLock.writeLock().unlock();
+      }
+
+      try (FileOutputStream fileStream = new FileOutputStream(tmpFile)) {
+        DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(fileStream));
+
+        writeHeader(outStream, newGeneration);
+
+        for (int idx = 0; idx < tmpKeys.size(); idx++) {
+          if (writeRecord(outStream, RECORD_PUT, tmpKeys.get(idx), tmpValues.get(idx))) {
+            objectsWritten++;
+          }
+        }
+
+        outStream.flush();
+        fileStream.getFD().sync();
+      } catch (IOException ex) {
+        // The old journal is still good, so keep the keys for it
+        restoreChangedKeys(tmpChanged, tmpPurged);
+
+        message = "IO Exception saving persistent objects to <" + tmpFile + "> in cache <" + getSymbolicName() + ">";
         OpenRate.getOpenRateFrameworkLog().fatal(message);
+        throw new ProcessingException(message, ex, getSymbolicName());
       }
 
       try {
-        objOutStream = new ObjectOutputStream(outStream);
-        if (ObjectList instanceof Serializable) {
-          objOutStream.writeObject(ObjectList);
-          objOutStream.flush();
-          objOutStream.close();
-        } else {
-          OpenRate.getOpenRateFrameworkLog().error("Class contains non-serializable data");
-        }
+        Files.move(tmpFile.toPath(), new File(CachePersistenceName).toPath(), StandardCopyOption.REPLACE_EXISTING);
       } catch (IOException ex) {
-        message = "IO Exception saving persistent objects";
+        restoreChangedKeys(tmpChanged, tmpPurged);
+
+        message = "IO Exception replacing persistent objects file <" + CachePersistenceName + "> in cache <" + getSymbolicName() + ">";
         OpenRate.getOpenRateFrameworkLog().fatal(message);
+        throw new ProcessingException(message, ex, getSymbolicName());
       }
+
+      // The snapshot holds everything the journal held
+      generation = newGeneration;
+      new File(getJournalName()).delete();
+      journalRecords = 0;
+
+      OpenRate.getOpenRateFrameworkLog().debug("Saved <" + objectsWritten + "> persistent objects to <" + CachePersistenceName + "> in cache <" + getSymbolicName() + ">");
     }
   }
 
+  /**
+   * Append the objects which have changed since the last save to the journal,
+   * or write a full snapshot if the journal has grown too long. This is what
+   * the background thread does at each interval. The values are taken with
+   * the changed keys, and the journal is forced to disk once they are written.
+   *
+   * @return The number of journal records written
+   * @throws OpenRate.exception.ProcessingException
+   */
+  public int saveChangedObjects() throws ProcessingException {
+    Set<String> tmpKeys;
+    ArrayList<Object> tmpValues;
+    boolean tmpPurged;
+    int recordsWritten = 0;
+    int idx = 0;
+    File journal;
+
+    if (CachePersistenceName == null) {
+      return 0;
+    }
+
+    synchronized (persistLock) {
+      if (journalRecords > journalCompactRecords) {
+        saveCacheObjectsToFile();
+        return 0;
+      }
+
+      // Take the value of each key with the keys, so that the journal holds
+      // the values as they were when the keys were swapped
+      changeLock.writeLock().lock();
+      try {
+        tmpPurged = purged;
+        tmpKeys = swapChangedKeys();
+        tmpValues = new ArrayList<>(tmpKeys.size());
+
+        for (String tmpKey : tmpKeys) {
+          tmpValues.add(ObjectList.get(tmpKey));
+        }
+      } finally {
+        changeLock.writeLock().unlock();
+      }
+
+      if (tmpKeys.isEmpty() && !tmpPurged) {
+        return 0;
+      }
+
+      journal = new File(getJournalName());
+
+      try (FileOutputStream fileStream = new FileOutputStream(journal, true)) {
+        DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(fileStream));
+
+        if (journal.length() == 0) {
+          writeHeader(outStream, generation);
+        }
+
+        if (tmpPurged) {
+          writeRecord(outStream, RECORD_CLEAR, "", null);
+          recordsWritten++;
+        }
+
+        // Write the value of each key, or its removal, in the order taken
+        for (String tmpKey : tmpKeys) {
+          Object tmpValue = tmpValues.get(idx++);
+
+          if (tmpValue == null) {
+            writeRecord(outStream, RECORD_REMOVE, tmpKey, null);
+            recordsWritten++;
+          } else if (writeRecord(outStream, RECORD_PUT, tmpKey, tmpValue)) {
+            recordsWritten++;
+          }
+        }
+
+        outStream.flush();
+        fileStream.getFD().sync();
+      } catch (IOException ex) {
+        // Keep the keys, so that they are written next time
+        restoreChangedKeys(tmpKeys, tmpPurged);
+
+        message = "IO Exception writing persistent objects journal <" + journal + "> in cache <" + getSymbolicName() + ">";
+        OpenRate.getOpenRateFrameworkLog().error(message);
+        throw new ProcessingException(message, ex, getSymbolicName());
+      }
+
+      journalRecords += recordsWritten;
+    }
+
+    return recordsWritten;
+  }
+
   /**
    * Load the object data from a file. This works with objects that are
    * serializable in the case that yours are not, you must overwrite this in an
@@ -394,31 +722,37 @@ public class PersistentIndexedObject
    */
   @SuppressWarnings("unchecked")
   public void loadCacheObjectsFromFile() {
-    FileInputStream inStream;
-    ObjectInputStream objStream;
+    long recordsRead;
 
-    try {
-      inStream = new FileInputStream(CachePersistenceName);
+    try (DataInputStream inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(CachePersistenceName)))) {
+      if (inStream.readInt() == PERSIST_MAGIC) {
+        generation = readHeader(inStream, CachePersistenceName);
+        recordsRead = readRecords(inStream, null, CachePersistenceName);
+
+        OpenRate.getOpenRateFrameworkLog().info("Loaded <" + recordsRead + "> persistent objects from <" + CachePersistenceName + ">");
+        return;
+      }
     } catch (FileNotFoundException ex) {
       OpenRate.getOpenRateFrameworkLog().warning(
               "Persistent data file <" + CachePersistenceName
               + "> not found.");
 
       return;
-    }
-
-    try {
-      objStream = new ObjectInputStream(inStream);
     } catch (IOException ex) {
       OpenRate.getOpenRateFrameworkLog().warning(
               "Persistent data file <" + CachePersistenceName
-              + "> could not be opened.");
+              + "> could not be read.");
 
       return;
     }
 
-    try {
-      ObjectList = (HashMap<String, Object>) objStream.readObject();
+    // Not the compact format, so it was written by Java serialization
+    try (ObjectInputStream objStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(CachePersistenceName)))) {
+      for (Map.Entry<String, Object> entry : ((HashMap<String, Object>) objStream.readObject()).entrySet()) {
+        if (entry.getValue() != null) {
+          ObjectList.put(entry.getKey(), entry.getValue());
+        }
+      }
     } catch (IOException ex) {
       OpenRate.getOpenRateFrameworkLog().warning(
               "Persistent data file <" + CachePersistenceName
@@ -429,6 +763,504 @@ public class PersistentIndexedObject
     }
   }
 
+  /**
+   * Apply the journal, if there is one, over the objects we have loaded. A
+   * journal which is not valid, or which was written before the snapshot we
+   * loaded, is deleted without being applied. A truncated last record is cut
+   * off the journal, so that the next records are appended after good data.
+   */
+  public void replayJournal() {
+    File journal = new File(getJournalName());
+    CountingInputStream counter;
+    long journalGeneration;
+    long recordsRead;
+    long goodLength;
+
+    if (CachePersistenceName == null || !journal.exists()) {
+      return;
+    }
+
+    try (DataInputStream inStream = new DataInputStream(counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journal))))) {
+      if (inStream.readInt() != PERSIST_MAGIC) {
+        throw new IOException("Bad magic number");
+      }
+
+      journalGeneration = readHeader(inStream, journal.getPath());
+
+      if (journalGeneration < generation) {
+        OpenRate.getOpenRateFrameworkLog().warning("Persistent objects journal <" + journal + "> of generation <" + journalGeneration + "> is older than the snapshot of generation <" + generation + ">, discarded.");
+        goodLength = 0;
+      } else {
+        counter.markGood();
+        recordsRead = readRecords(inStream, counter, journal.getPath());
+        journalRecords = recordsRead;
+        goodLength = counter.getGoodCount();
+
+        OpenRate.getOpenRateFrameworkLog().info("Replayed <" + recordsRead + "> journal records from <" + journal + ">");
+      }
+    } catch (IOException ex) {
+      OpenRate.getOpenRateFrameworkLog().warning("Persistent objects journal <" + journal + "> could not be read, discarded.");
+      goodLength = 0;
+    }
+
+    try {
+      if (goodLength == 0) {
+        Files.delete(journal.toPath());
+        journalRecords = 0;
+      } else if (goodLength < journal.length()) {
+        try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+          channel.truncate(goodLength);
+          channel.force(true);
+        }
+
+        OpenRate.getOpenRateFrameworkLog().warning("Truncated persistent objects journal <" + journal + "> to <" + goodLength + "> bytes");
+      }
+    } catch (IOException ex) {
+      OpenRate.getOpenRateFrameworkLog().error("Could not repair persistent objects journal <" + journal + "> in cache <" + getSymbolicName() + ">");
+    }
+  }
+
+  /**
+   * Stop the background saving, if it is running, and wait for a save in
+   * progress to finish
+   */
+  public void stopPersistThread() {
+    Thread tmpThread = persistThread;
+
+    persistThread = null;
+
+    if (tmpThread != null) {
+      tmpThread.interrupt();
+
+      try {
+        tmpThread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Get the name of the journal file
+   *
+   * @return The journal file name
+   */
+  protected String getJournalName() {
+    return CachePersistenceName + ".journal";
+  }
+
+  /**
+   * Start the thread which saves the changes at each persist interval
+   */
+  private void startPersistThread() {
+    persistThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (persistThread == Thread.currentThread()) {
+          try {
+            Thread.sleep(persistInterval * 1000L);
+          } catch (InterruptedException ex) {
+            return;
+          }
+
+          try {
+            saveChangedObjects();
+          } catch (ProcessingException ex) {
+            OpenRate.getOpenRateFrameworkLog().error("Background save failed in cache <" + getSymbolicName() + ">", ex);
+          }
+        }
+      }
+    }, "Persist-" + getSymbolicName());
+
+    persistThread.setDaemon(true);
+    persistThread.start();
+  }
+
+  /**
+   * Swap the set of changed keys for a new one, holding the exclusive lock so
+   * that no change is in progress.
+   *
+   * @return The keys which had changed
+   */
+  private Set<String> swapChangedKeys() {
+    Set<String> tmpKeys;
+
+    changeLock.writeLock().lock();
+    try {
+      tmpKeys = changedKeys;
+      changedKeys = newKeySet();
+      purged = false;
+    } finally {
+      changeLock.writeLock().unlock();
+    }
+
+    return tmpKeys;
+  }
+
+  /**
+   * Put back keys which were swapped out but could not be saved, so that they
+   * are written next time.
+   *
+   * @param tmpKeys The keys which were swapped out
+   * @param tmpPurged Whether the objects had been purged
+   */
+  private void restoreChangedKeys(Set<String> tmpKeys, boolean tmpPurged) {
+    changeLock.readLock().lock();
+    try {
+      changedKeys.addAll(tmpKeys);
+      purged |= tmpPurged;
+    } finally {
+      changeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Read the rest of the header of a file in the compact format
+   *
+   * @param inStream The stream, positioned after the magic number
+   * @param fileName The name of the file, for the messages
+   * @return The generation of the file
+   * @throws IOException
+   */
+  private static long readHeader(DataInputStream inStream, String fileName) throws IOException {
+    switch (inStream.readInt()) {
+      case PERSIST_VERSION:
+        return inStream.readLong();
+      case PERSIST_VERSION_NO_GENERATION:
+        return 0;
+      default:
+        throw new IOException("Unknown persistence format version in <" + fileName + ">");
+    }
+  }
+
+  /**
+   * Read the records of a file in the compact format and apply them to the
+   * objects. A truncated last record or a record of unknown type, left by a
+   * crash while writing, ends the reading.
+   *
+   * @param inStream The stream, positioned after the header
+   * @param counter The counter under the stream, marked after each complete
+   * record, or null
+   * @param fileName The name of the file, for the messages
+   * @return The number of records read
+   * @throws IOException
+   */
+  private long readRecords(DataInputStream inStream, CountingInputStream counter, String fileName) throws IOException {
+    long recordsRead = 0;
+    int recordType;
+    String key;
+    Object value;
+
+    while ((recordType = inStream.read()) >= 0) {
+      if (recordType != RECORD_PUT && recordType != RECORD_REMOVE && recordType != RECORD_CLEAR) {
+        OpenRate.getOpenRateFrameworkLog().warning("Ignoring record of unknown type <" + recordType + "> and the rest of <" + fileName + "> in cache <" + getSymbolicName() + ">");
+        break;
+      }
+
+      try {
+        key = readString(inStream);
+
+        switch (recordType) {
+          case RECORD_PUT:
+            value = readValue(inStream);
+            ObjectList.put(key, value);
+            break;
+          case RECORD_REMOVE:
+            ObjectList.remove(key);
+            break;
+          default:
+            ObjectList.clear();
+            break;
+        }
+
+        recordsRead++;
+
+        if (counter != null) {
+          counter.markGood();
+        }
+      } catch (EOFException ex) {
+        OpenRate.getOpenRateFrameworkLog().warning("Ignoring truncated last record in <" + fileName + "> in cache <" + getSymbolicName() + ">");
+        break;
+      } catch (ClassNotFoundException ex) {
+        message = "Class not found loading persistent objects from <" + fileName + ">";
+        OpenRate.getOpenRateFrameworkLog().fatal(message);
+        throw new IOException(message, ex);
+      }
+    }
+
+    return recordsRead;
+  }
+
+  /**
+   * Write the header of the compact format
+   *
+   * @param outStream The stream to write to
+   * @param fileGeneration The generation of the snapshot
+   * @throws IOException
+   */
+  private static void writeHeader(DataOutputStream outStream, long fileGeneration) throws IOException {
+    outStream.writeInt(PERSIST_MAGIC);
+    outStream.writeInt(PERSIST_VERSION);
+    outStream.writeLong(fileGeneration);
+  }
+
+  /**
+   * Write a record in the compact format. The value is encoded before anything
+   * is written, so that an object which cannot be serialized is skipped
+   * without breaking the file.
+   *
+   * @param outStream The stream to write to
+   * @param recordType The type of record
+   * @param key The key
+   * @param value The value, for a put record
+   * @return true if the record was written
+   * @throws IOException
+   */
+  private boolean writeRecord(DataOutputStream outStream, byte recordType, String key, Object value) throws IOException {
+    byte[] encodedValue = null;
+
+    if (recordType == RECORD_PUT) {
+      try {
+        encodedValue = encodeValue(value);
+      } catch (NotSerializableException ex) {
+        OpenRate.getOpenRateFrameworkLog().error("Object with key <" + key + "> in cache <" + getSymbolicName() + "> is not serializable, not saved");
+        return false;
+      }
+    }
+
+    outStream.writeByte(recordType);
+    writeString(outStream, key);
+
+    if (encodedValue != null) {
+      outStream.write(encodedValue);
+    }
+
+    return true;
+  }
+
+  /**
+   * Encode a value, with its type
+   *
+   * @param value The value
+   * @return The encoded value
+   * @throws IOException
+   */
+  private byte[] encodeValue(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    DataOutputStream outStream = new DataOutputStream(bytes);
+
+    if (value instanceof String) {
+      outStream.writeByte(VALUE_STRING);
+      writeString(outStream, (String) value);
+    } else if (value instanceof Long) {
+      outStream.writeByte(VALUE_LONG);
+      outStream.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      outStream.writeByte(VALUE_INTEGER);
+      outStream.writeInt((Integer) value);
+    } else if (value instanceof Double) {
+      outStream.writeByte(VALUE_DOUBLE);
+      outStream.writeDouble((Double) value);
+    } else if (value instanceof Boolean) {
+      outStream.writeByte(VALUE_BOOLEAN);
+      outStream.writeBoolean((Boolean) value);
+    } else {
+      // Let the implementation class write its own objects compactly
+      outStream.writeByte(VALUE_CUSTOM);
+
+      if (!writeCustomValue(outStream, value)) {
+        ByteArrayOutputStream objBytes = new ByteArrayOutputStream(128);
+
+        try (ObjectOutputStream objOutStream = new ObjectOutputStream(objBytes)) {
+          objOutStream.writeObject(value);
+        }
+
+        bytes.reset();
+        outStream.writeByte(VALUE_OBJECT);
+        outStream.writeInt(objBytes.size());
+        objBytes.writeTo(outStream);
+      }
+    }
+
+    outStream.flush();
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Read a value written by encodeValue()
+   *
+   * @param inStream The stream to read from
+   * @return The value
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private Object readValue(DataInputStream inStream) throws IOException, ClassNotFoundException {
+    int valueType = inStream.readByte();
+    byte[] objBytes;
+
+    switch (valueType) {
+      case VALUE_STRING:
+        return readString(inStream);
+      case VALUE_LONG:
+        return inStream.readLong();
+      case VALUE_INTEGER:
+        return inStream.readInt();
+      case VALUE_DOUBLE:
+        return inStream.readDouble();
+      case VALUE_BOOLEAN:
+        return inStream.readBoolean();
+      case VALUE_OBJECT:
+        objBytes = new byte[inStream.readInt()];
+        inStream.readFully(objBytes);
+
+        try (ObjectInputStream objStream = new ObjectInputStream(new ByteArrayInputStream(objBytes))) {
+          return objStream.readObject();
+        }
+      case VALUE_CUSTOM:
+        return readCustomValue(inStream);
+      default:
+        throw new IOException("Unknown value type <" + valueType + ">");
+    }
+  }
+
+  /**
+   * Write an object that is not a string or a boxed primitive in a format of
+   * the implementation class's choosing, instead of with Java serialization.
+   * By default no objects are written this way.
+   *
+   * @param outStream The stream to write to
+   * @param value The object
+   * @return true if the object was written, false to use Java serialization
+   * @throws IOException
+   */
+  protected boolean writeCustomValue(DataOutputStream outStream, Object value) throws IOException {
+    return false;
+  }
+
+  /**
+   * Read an object written by writeCustomValue()
+   *
+   * @param inStream The stream to read from
+   * @return The object
+   * @throws IOException
+   */
+  protected Object readCustomValue(DataInputStream inStream) throws IOException {
+    throw new IOException("No custom object format in cache <" + getSymbolicName() + ">");
+  }
+
+  /**
+   * See if the data file is in the compact format
+   *
+   * @return true if the data file exists and is in the compact format
+   */
+  protected boolean isCompactFormat() {
+    try (DataInputStream inStream = new DataInputStream(new FileInputStream(CachePersistenceName))) {
+      return inStream.readInt() == PERSIST_MAGIC;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Write a string as its length and UTF-8 bytes
+   *
+   * @param outStream The stream to write to
+   * @param value The string
+   * @throws IOException
+   */
+  private static void writeString(DataOutputStream outStream, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    outStream.writeInt(bytes.length);
+    outStream.write(bytes);
+  }
+
+  /**
+   * Read a string written by writeString()
+   *
+   * @param inStream The stream to read from
+   * @return The string
+   * @throws IOException
+   */
+  private static String readString(DataInputStream inStream) throws IOException {
+    byte[] bytes = new byte[inStream.readInt()];
+
+    inStream.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Create a new concurrent set for the changed keys
+   *
+   * @return The set
+   */
+  private static Set<String> newKeySet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+
+  /**
+   * Counts the bytes read through it, so that we know where the last complete
+   * record of a journal ends.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    private long count = 0;
+    private long goodCount = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+
+      if (result >= 0) {
+        count++;
+      }
+
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int result = super.read(b, off, len);
+
+      if (result > 0) {
+        count += result;
+      }
+
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long result = super.skip(n);
+
+      count += result;
+
+      return result;
+    }
+
+    /**
+     * Mark everything read so far as good
+     */
+    void markGood() {
+      goodCount = count;
+    }
+
+    /**
+     * Get the number of bytes read up to the last mark
+     *
+     * @return The number of bytes
+     */
+    long getGoodCount() {
+      return goodCount;
+    }
+  }
+
   /**
    * Dump the internal objects. The implementation class is responsible for
    * formatting the objects.
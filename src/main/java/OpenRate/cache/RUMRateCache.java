@@ -3,8 +3,13 @@ package OpenRate.cache;
 
 import OpenRate.CommonConfig;
 import OpenRate.OpenRate;
+import OpenRate.configurationmanager.ClientManager;
 import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
+import OpenRate.lang.MoneyRounding;
+import OpenRate.logging.LogUtil;
+import OpenRate.record.CompiledPriceModel;
+import OpenRate.record.RUMRegistry;
 import OpenRate.record.RateMapEntry;
 import OpenRate.utils.PropertyUtils;
 import java.io.BufferedReader;
@@ -18,6 +23,7 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Please
@@ -99,11 +105,21 @@ public class RUMRateCache
      */
     public String RUM;
 
+    /**
+     * The id of the RUM (see RUMRegistry)
+     */
+    public int RUMId;
+
     /**
      * The resource that we are to impact
      */
     public String Resource;
 
+    /**
+     * The id of the resource (see RUMRegistry)
+     */
+    public int ResourceId;
+
     /**
      * The counter ID for the resource to impact
      */
@@ -121,6 +137,40 @@ public class RUMRateCache
    */
   protected HashMap<String, ArrayList<RateMapEntry>> PriceModelCache;
 
+  /**
+   * The compiled form of the price models, built once the price models have
+   * been loaded. Price models which are changed after loading are removed
+   * from here, and are rated from the price model cache.
+   */
+  protected ConcurrentHashMap<String, CompiledPriceModel> CompiledPriceModelCache = new ConcurrentHashMap<>();
+
+  /**
+   * The rounding of the rated amounts for the price models which have their
+   * own rounding, set with the "PriceModelRounding.<PriceModel>" property,
+   * which is a PriceModelRounding element holding an element for each price
+   * model. It cannot be under "Rounding", as that holds the default.
+   */
+  protected ConcurrentHashMap<String, MoneyRounding> PriceModelRounding = new ConcurrentHashMap<>();
+
+  /**
+   * The rounding of the rated amounts for all other price models, set with
+   * the "Rounding" property. null if the amounts are not rounded.
+   */
+  protected MoneyRounding DefaultRounding = null;
+
+  /**
+   * The number of rating results memoised for each price model, 0 if the
+   * results are not memoised
+   */
+  protected int RateMemoSize = 0;
+
+  // List of Services that this Client supports
+  private final static String SERVICE_MEMO_STATS = "RateMemoStats";
+
+  // The names we were loaded with, for the price model properties
+  private String roundingResourceName;
+  private String roundingCacheName;
+
   /**
    * This holds the RUM map
    */
@@ -193,6 +243,24 @@ public class RUMRateCache
     PriceModelCache = new HashMap<>(initialObjectSize);
     RUMMapCache = new HashMap<>(initialObjectSize);
 
+    // Get the rounding of the rated amounts
+    roundingResourceName = ResourceName;
+    roundingCacheName = CacheName;
+    DefaultRounding = getRounding("Rounding");
+
+    // Get the size of the rating memo
+    String tmpMemoSize = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+            CacheName,
+            "RateMemoSize",
+            "0");
+    try {
+      RateMemoSize = Integer.parseInt(tmpMemoSize);
+    } catch (NumberFormatException nfe) {
+      message = "Could not parse rate memo size <" + tmpMemoSize
+              + "> for cache <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+
     // Do the parent initialisation
     super.loadCache(ResourceName, CacheName);
   }
@@ -241,6 +309,9 @@ public class RUMRateCache
       throw new InitializationException(message, getSymbolicName());
     }
 
+    // Any compiled version of the model is now out of date
+    CompiledPriceModelCache.remove(priceModel);
+
     // See if we already have the cache object for this price
     if (!PriceModelCache.containsKey(priceModel)) {
       // Create the new PriceModel object
@@ -328,6 +399,78 @@ public class RUMRateCache
     return tmpEntry;
   }
 
+  /**
+   * Get the compiled form of a price model.
+   *
+   * @param key The price model to recover
+   * @return The compiled price model, or null if there is none
+   */
+  public CompiledPriceModel getCompiledPriceModel(String key) {
+    return CompiledPriceModelCache.get(key);
+  }
+
+  /**
+   * Get the rounding to apply to the amounts rated with a price model.
+   *
+   * @param key The price model
+   * @return The rounding, or null if the amounts are not rounded
+   */
+  public MoneyRounding getPriceModelRounding(String key) {
+    MoneyRounding tmpRounding = PriceModelRounding.get(key);
+
+    return (tmpRounding == null) ? DefaultRounding : tmpRounding;
+  }
+
+  /**
+   * Read a rounding definition from the cache properties
+   *
+   * @param propertyName The property to read
+   * @return The rounding, or null if there is none
+   * @throws InitializationException
+   */
+  private MoneyRounding getRounding(String propertyName) throws InitializationException {
+    String tmpRounding = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(roundingResourceName,
+            roundingCacheName,
+            propertyName,
+            "None");
+
+    try {
+      return MoneyRounding.parse(tmpRounding);
+    } catch (IllegalArgumentException iae) {
+      message = "Could not parse rounding <" + tmpRounding + "> in property <"
+              + propertyName + "> for cache <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+  }
+
+  /**
+   * Compile all of the price models which have been loaded, and get the
+   * rounding of each of them.
+   *
+   * @throws InitializationException
+   */
+  public void compilePriceModels() throws InitializationException {
+    Iterator<String> modelIter = PriceModelCache.keySet().iterator();
+    String tmpModel;
+    MoneyRounding tmpRounding;
+
+    while (modelIter.hasNext()) {
+      tmpModel = modelIter.next();
+      CompiledPriceModelCache.put(tmpModel, new CompiledPriceModel(PriceModelCache.get(tmpModel), RateMemoSize));
+
+      if (roundingCacheName != null) {
+        tmpRounding = getRounding("PriceModelRounding." + tmpModel);
+
+        if (tmpRounding != null) {
+          PriceModelRounding.put(tmpModel, tmpRounding);
+        }
+      }
+    }
+
+    OpenRate.getOpenRateFrameworkLog().debug("Compiled <" + CompiledPriceModelCache.size()
+            + "> price models for cache <" + getSymbolicName() + ">");
+  }
+
   /**
    * Add a value into the price map cache.
    *
@@ -353,7 +496,9 @@ public class RUMRateCache
       tmpRMEntry = new RUMMapEntry();
       tmpRMEntry.PriceModel = PriceModel;
       tmpRMEntry.RUM = RUM;
+      tmpRMEntry.RUMId = RUMRegistry.getRUMId(RUM);
       tmpRMEntry.Resource = Resource;
+      tmpRMEntry.ResourceId = RUMRegistry.getResourceId(Resource);
       tmpRMEntry.ResourceCounter = Integer.parseInt(ResourceCounter);
 
       if (RUMType.equalsIgnoreCase("flat")) {
@@ -381,7 +526,9 @@ public class RUMRateCache
       tmpRMEntry = new RUMMapEntry();
       tmpRMEntry.PriceModel = PriceModel;
       tmpRMEntry.RUM = RUM;
+      tmpRMEntry.RUMId = RUMRegistry.getRUMId(RUM);
       tmpRMEntry.Resource = Resource;
+      tmpRMEntry.ResourceId = RUMRegistry.getResourceId(Resource);
       tmpRMEntry.ResourceCounter = Integer.parseInt(ResourceCounter);
 
       if (RUMType.equalsIgnoreCase("flat")) {
@@ -625,6 +772,9 @@ public class RUMRateCache
       }
     }
 
+    // Build the compiled price models
+    compilePriceModels();
+
     OpenRate.getOpenRateFrameworkLog().info(
             "Price Group Data Loading completed. " + MapsLoaded
             + " configuration lines loaded from <" + RUMMapDataFile
@@ -808,6 +958,9 @@ public class RUMRateCache
     DBUtil.close(StmtPriceModelDataSelectQuery);
     DBUtil.close(JDBCcon);
 
+    // Build the compiled price models
+    compilePriceModels();
+
     OpenRate.getOpenRateFrameworkLog().info(
             "Price Group Data Loading completed. " + mapsLoaded
             + " configuration lines loaded from <" + getSymbolicName()
@@ -832,11 +985,88 @@ public class RUMRateCache
   public void clearCacheObjects() {
     // clear the price model cache
     PriceModelCache.clear();
+    CompiledPriceModelCache.clear();
+    PriceModelRounding.clear();
 
     // clear the RUM map cache
     RUMMapCache.clear();
   }
 
+  // -----------------------------------------------------------------------------
+  // ------------- Start of inherited IEventInterface functions ------------------
+  // -----------------------------------------------------------------------------
+  /**
+   * registerClientManager registers the client module to the ClientManager
+   * class which manages all the client modules available in this OpenRate
+   * Application.
+   *
+   * @throws OpenRate.exception.InitializationException
+   */
+  @Override
+  public void registerClientManager() throws InitializationException {
+    // Set the client reference and the base services first
+    super.registerClientManager();
+
+    //Register services for this Client
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_STATS, ClientManager.PARAM_DYNAMIC);
+  }
+
+  /**
+   * processControlEvent is the method that will be called when an event is
+   * received for a module that has registered itself as a client of the
+   * External Control Interface
+   *
+   * @param Command - command that is understand by the client module
+   * @param Init - we are performing initial configuration if true
+   * @param Parameter - parameter for the command
+   * @return The result string of the operation
+   */
+  @Override
+  public String processControlEvent(String Command, boolean Init,
+          String Parameter) {
+    // Return the rating memo statistics, for all models or for one model
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_STATS)) {
+      return getMemoStats(Parameter);
+    }
+
+    // pass the event up the stack
+    return super.processControlEvent(Command, Init, Parameter);
+  }
+
+  /**
+   * Get the rating memo statistics since the last load.
+   *
+   * @param priceModel The price model to get the statistics for, or "" for
+   * the totals over all of the price models
+   * @return The statistics
+   */
+  public String getMemoStats(String priceModel) {
+    CompiledPriceModel tmpModel;
+    long hits = 0;
+    long misses = 0;
+
+    if (priceModel == null || priceModel.isEmpty()) {
+      for (CompiledPriceModel tmpCompiledModel : CompiledPriceModelCache.values()) {
+        hits += tmpCompiledModel.getMemoHits();
+        misses += tmpCompiledModel.getMemoMisses();
+      }
+    } else {
+      tmpModel = CompiledPriceModelCache.get(priceModel);
+
+      if (tmpModel == null) {
+        return "Price model <" + priceModel + "> not found";
+      }
+
+      hits = tmpModel.getMemoHits();
+      misses = tmpModel.getMemoMisses();
+    }
+
+    OpenRate.getOpenRateFrameworkLog().debug(LogUtil.LogECICacheCommand(getSymbolicName(), SERVICE_MEMO_STATS, priceModel));
+
+    return "Hits <" + hits + ">, Misses <" + misses + ">, Hit rate <"
+            + ((hits + misses == 0) ? 0 : (hits * 100 / (hits + misses))) + "%>";
+  }
+
   // -----------------------------------------------------------------------------
   // ---------------- Start of data base data layer functions --------------------
   // -----------------------------------------------------------------------------
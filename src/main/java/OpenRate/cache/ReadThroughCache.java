@@ -0,0 +1,438 @@
+
+
+package OpenRate.cache;
+
+import OpenRate.exception.ProcessingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds a size bounded working set of key/value pairs, and loads
+ * the keys that it does not hold on demand using a loader, for example a DB
+ * query. It is used by caches which cannot hold all of their data in memory.
+ *
+ * The entries are spread over a number of segments, each of which holds its
+ * entries in least recently used order under its own lock. When a segment is
+ * full, the least recently used entry is evicted. Keys which the loader does
+ * not return are remembered as not found, so that a key which does not exist
+ * does not cause a load each time it is looked up.
+ *
+ * Concurrent misses for the same key are coalesced: the first thread loads
+ * the key, and the others wait for that load to complete instead of loading
+ * it again. The keys that are missing from a batch of keys can be loaded
+ * ahead of the lookups with prefetch(), which hands them to the loader in
+ * lists of up to the batch size, so that they can be loaded with one query
+ * per list.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ReadThroughCache<K, V>
+{
+ /**
+  * The loader recovers the values for a list of keys. Keys which do not exist
+  * are left out of the map returned.
+  *
+  * @param <K> The key type
+  * @param <V> The value type
+  */
+  public interface Loader<K, V>
+  {
+   /**
+    * Load the values for the keys
+    *
+    * @param keys The keys to load
+    * @return The values found for the keys
+    * @throws ProcessingException
+    */
+    public Map<K, V> load(List<K> keys) throws ProcessingException;
+  }
+
+  // The number of segments the entries are spread over
+  private static final int SEGMENT_COUNT = 16;
+
+  // The marker for keys that the loader did not find
+  private static final Object NOT_FOUND = new Object();
+
+  // The loader for the keys we do not hold
+  private final Loader<K, V> loader;
+
+  // The maximum number of keys we hand to the loader at once
+  private final int batchSize;
+
+  // The segments, each one holding its entries in least recently used order
+  private final ArrayList<Segment> segments;
+
+  // The loads in progress, so that a miss can wait for a load of the same key
+  // instead of loading it again
+  private final ConcurrentHashMap<K, Load> loading = new ConcurrentHashMap<>();
+
+  // Statistics
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+ /**
+  * A segment of the entries, which evicts the least recently used entry when
+  * it is full
+  */
+  private final class Segment extends LinkedHashMap<K, Object>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    private Segment(int maxSize)
+    {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, Object> eldest)
+    {
+      if (size() > maxSize)
+      {
+        evictions.incrementAndGet();
+        return true;
+      }
+
+      return false;
+    }
+  }
+
+ /**
+  * A load in progress, which the threads missing one of its keys wait for
+  */
+  private final class Load
+  {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Map<K, V> values = Collections.emptyMap();
+    private ProcessingException failure = null;
+  }
+
+ /**
+  * Creates a new read through cache.
+  *
+  * @param loader The loader for the keys we do not hold
+  * @param maxSize The maximum number of keys held
+  * @param batchSize The maximum number of keys handed to the loader at once
+  */
+  public ReadThroughCache(Loader<K, V> loader, int maxSize, int batchSize)
+  {
+    int tmpSegmentSize;
+
+    this.loader = loader;
+    this.batchSize = Math.max(1, batchSize);
+
+    // Each segment holds its share of the entries, rounded up
+    tmpSegmentSize = Math.max(1, (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+    segments = new ArrayList<>(SEGMENT_COUNT);
+
+    for (int i = 0; i < SEGMENT_COUNT; i++)
+    {
+      segments.add(new Segment(tmpSegmentSize));
+    }
+  }
+
+ /**
+  * Get the value for the key, loading it if we do not hold it.
+  *
+  * @param key The key to get the value for
+  * @return The value, or null if the key does not exist
+  * @throws ProcessingException
+  */
+  @SuppressWarnings("unchecked")
+  public V get(K key) throws ProcessingException
+  {
+    Object tmpValue;
+    Load tmpLoad;
+    Load tmpRunning;
+
+    tmpValue = lookup(key);
+
+    if (tmpValue != null)
+    {
+      hits.incrementAndGet();
+      return (tmpValue == NOT_FOUND) ? null : (V) tmpValue;
+    }
+
+    misses.incrementAndGet();
+
+    // Either load the key ourselves, or wait for the load already running
+    tmpLoad = new Load();
+    tmpRunning = loading.putIfAbsent(key, tmpLoad);
+
+    if (tmpRunning == null)
+    {
+      runLoad(tmpLoad, Collections.singletonList(key));
+      tmpRunning = tmpLoad;
+    }
+    else
+    {
+      try
+      {
+        tmpRunning.done.await();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new ProcessingException("Interrupted waiting for the load of <" + key + ">", ex, "ReadThroughCache");
+      }
+    }
+
+    if (tmpRunning.failure != null)
+    {
+      throw tmpRunning.failure;
+    }
+
+    return tmpRunning.values.get(key);
+  }
+
+ /**
+  * Get the value for the key if we hold it, without loading it.
+  *
+  * @param key The key to get the value for
+  * @return The value, or null if we do not hold it or the key does not exist
+  */
+  @SuppressWarnings("unchecked")
+  public V getIfPresent(K key)
+  {
+    Object tmpValue;
+
+    tmpValue = lookup(key);
+
+    return (tmpValue == NOT_FOUND) ? null : (V) tmpValue;
+  }
+
+ /**
+  * Load the keys that we do not hold and that are not already being loaded,
+  * in lists of up to the batch size. Used to load the keys of a batch of
+  * records with a few queries before the records are processed one by one.
+  *
+  * @param keys The keys that are about to be looked up
+  * @return The number of keys that were handed to the loader
+  * @throws ProcessingException
+  */
+  public int prefetch(Collection<K> keys) throws ProcessingException
+  {
+    LinkedHashSet<K> tmpMissing = new LinkedHashSet<>();
+    ArrayList<K> tmpBatch = new ArrayList<>(batchSize);
+    Load tmpLoad = new Load();
+    int tmpLoaded = 0;
+
+    // Find the distinct keys we do not hold
+    for (K tmpKey : keys)
+    {
+      if (tmpKey != null && lookup(tmpKey) == null)
+      {
+        tmpMissing.add(tmpKey);
+      }
+    }
+
+    for (K tmpKey : tmpMissing)
+    {
+      // Skip the keys someone else is already loading
+      if (loading.putIfAbsent(tmpKey, tmpLoad) == null)
+      {
+        tmpBatch.add(tmpKey);
+      }
+
+      if (tmpBatch.size() == batchSize)
+      {
+        tmpLoaded += tmpBatch.size();
+        runLoad(tmpLoad, tmpBatch);
+        checkLoad(tmpLoad);
+
+        tmpLoad = new Load();
+        tmpBatch = new ArrayList<>(batchSize);
+      }
+    }
+
+    if (tmpBatch.size() > 0)
+    {
+      tmpLoaded += tmpBatch.size();
+      runLoad(tmpLoad, tmpBatch);
+      checkLoad(tmpLoad);
+    }
+
+    return tmpLoaded;
+  }
+
+ /**
+  * Drop all of the entries, so that they are loaded again on the next lookup.
+  */
+  public void clear()
+  {
+    for (Segment tmpSegment : segments)
+    {
+      synchronized (tmpSegment)
+      {
+        tmpSegment.clear();
+      }
+    }
+  }
+
+ /**
+  * Get the number of keys held, including the keys held as not found
+  *
+  * @return The number of keys held
+  */
+  public int size()
+  {
+    int tmpSize = 0;
+
+    for (Segment tmpSegment : segments)
+    {
+      synchronized (tmpSegment)
+      {
+        tmpSize += tmpSegment.size();
+      }
+    }
+
+    return tmpSize;
+  }
+
+ /**
+  * @return The number of lookups that found the key held
+  */
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+ /**
+  * @return The number of lookups that did not find the key held
+  */
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+ /**
+  * @return The number of calls to the loader
+  */
+  public long getLoads()
+  {
+    return loads.get();
+  }
+
+ /**
+  * @return The number of entries evicted to make room for others
+  */
+  public long getEvictions()
+  {
+    return evictions.get();
+  }
+
+  // -----------------------------------------------------------------------------
+  // --------------------------- Internal functions ------------------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * Get the segment that holds the key
+  *
+  * @param key The key
+  * @return The segment
+  */
+  private Segment segmentFor(K key)
+  {
+    int tmpHash;
+
+    // spread the hash, so that keys with similar hashes use different segments
+    tmpHash = key.hashCode();
+    tmpHash ^= (tmpHash >>> 16);
+
+    return segments.get((tmpHash & 0x7fffffff) % SEGMENT_COUNT);
+  }
+
+ /**
+  * Get the entry for the key, which also makes it the most recently used
+  *
+  * @param key The key
+  * @return The value, NOT_FOUND, or null if we do not hold the key
+  */
+  private Object lookup(K key)
+  {
+    Segment tmpSegment = segmentFor(key);
+
+    synchronized (tmpSegment)
+    {
+      return tmpSegment.get(key);
+    }
+  }
+
+ /**
+  * Run the loader for the keys that the load was registered for, store the
+  * results and release the threads waiting for the load.
+  *
+  * @param load The load, registered for each of the keys
+  * @param keys The keys to load
+  */
+  private void runLoad(Load load, List<K> keys)
+  {
+    Map<K, V> tmpValues;
+    Segment tmpSegment;
+    V tmpValue;
+
+    try
+    {
+      loads.incrementAndGet();
+      tmpValues = loader.load(keys);
+
+      // Store the results, remembering the keys which were not found
+      for (K tmpKey : keys)
+      {
+        tmpValue = tmpValues.get(tmpKey);
+        tmpSegment = segmentFor(tmpKey);
+
+        synchronized (tmpSegment)
+        {
+          tmpSegment.put(tmpKey, (tmpValue == null) ? NOT_FOUND : tmpValue);
+        }
+      }
+
+      load.values = tmpValues;
+    }
+    catch (ProcessingException ex)
+    {
+      load.failure = ex;
+    }
+    catch (RuntimeException ex)
+    {
+      load.failure = new ProcessingException("Error loading <" + keys.size() + "> keys", ex, "ReadThroughCache");
+    }
+    finally
+    {
+      for (K tmpKey : keys)
+      {
+        loading.remove(tmpKey);
+      }
+
+      load.done.countDown();
+    }
+  }
+
+ /**
+  * Throw the failure of the load, if it failed
+  *
+  * @param load The load to check
+  * @throws ProcessingException
+  */
+  private void checkLoad(Load load) throws ProcessingException
+  {
+    if (load.failure != null)
+    {
+      throw load.failure;
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package OpenRate.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel, which finds the keys whose deadline has passed
+ * as the time moves forward, without scanning all of the keys.
+ *
+ * The time is counted in ticks of a configured number of seconds. There are
+ * four levels of 64 slots: a slot of the first level holds the keys due in one
+ * tick, a slot of the second level the keys due in 64 ticks, and so on. As the
+ * time moves into the range of a slot of a higher level, its keys are moved
+ * down to the level below, so that each key is moved at most once per level.
+ *
+ * The deadline of a key can be moved without touching the slots: the latest
+ * deadline is held in a map, and a key found in a slot whose deadline has
+ * been moved on is simply placed again. Keys are reported up to one tick
+ * after their deadline. Cancelled and moved keys leave stale entries in the
+ * slots, which are counted, and when they outnumber the keys the slots are
+ * built again from the deadlines. This class is not thread safe.
+ *
+ * @param <K> The key type
+ */
+class TimingWheel<K>
+{
+  // The number of slots in each level, and the bits of the tick they use
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  // The number of ticks the wheel covers
+  private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+  // The length of a tick in seconds
+  private final long tickSeconds;
+
+  // The slots, level by level
+  private final ArrayList<ArrayList<K>> slots;
+
+  // The latest deadline tick of each key
+  private final HashMap<K, Long> deadlines = new HashMap<>();
+
+  // The number of entries in the slots, including the stale ones
+  private int slotEntries = 0;
+
+  // The current tick, and if we have been given the time yet
+  private long currentTick = 0;
+  private boolean started = false;
+
+ /**
+  * Create an empty wheel
+  *
+  * @param tickSeconds The length of a tick in seconds
+  */
+  TimingWheel(long tickSeconds)
+  {
+    this.tickSeconds = Math.max(1, tickSeconds);
+
+    slots = new ArrayList<>(SLOTS * LEVELS);
+
+    for (int i = 0; i < SLOTS * LEVELS; i++)
+    {
+      slots.add(new ArrayList<K>());
+    }
+  }
+
+ /**
+  * Set or move the deadline of a key
+  *
+  * @param key The key
+  * @param deadline The UTC deadline in seconds
+  */
+  void schedule(K key, long deadline)
+  {
+    long tmpTick;
+    Long tmpOld;
+
+    // round up, so that the key is not reported before its deadline
+    tmpTick = (deadline + tickSeconds - 1) / tickSeconds;
+    tmpOld = deadlines.put(key, tmpTick);
+
+    // A later deadline is picked up when the key's slot comes round, but an
+    // earlier one needs the key in an earlier slot
+    if (started && ((tmpOld == null) || (tmpTick < tmpOld)))
+    {
+      place(key, tmpTick);
+      compactIfStale();
+    }
+  }
+
+ /**
+  * Remove a key
+  *
+  * @param key The key
+  */
+  void cancel(K key)
+  {
+    if (deadlines.remove(key) != null)
+    {
+      compactIfStale();
+    }
+  }
+
+ /**
+  * Remove all of the keys
+  */
+  void clear()
+  {
+    deadlines.clear();
+    clearSlots();
+  }
+
+ /**
+  * Get the number of keys
+  *
+  * @return The number of keys
+  */
+  int size()
+  {
+    return deadlines.size();
+  }
+
+ /**
+  * Get the number of entries in the slots, including the stale ones
+  *
+  * @return The number of entries
+  */
+  int getSlotEntries()
+  {
+    return slotEntries;
+  }
+
+ /**
+  * Move the time forward, removing and returning the keys whose deadline has
+  * passed. Moving the time backwards does nothing.
+  *
+  * @param now The UTC time in seconds
+  * @return The keys whose deadline has passed
+  */
+  List<K> advance(long now)
+  {
+    ArrayList<K> tmpExpired = new ArrayList<>();
+    long tmpNowTick = now / tickSeconds;
+
+    if (!started)
+    {
+      // Place the keys scheduled before we knew the time
+      started = true;
+      currentTick = tmpNowTick;
+
+      for (Map.Entry<K, Long> tmpEntry : deadlines.entrySet())
+      {
+        place(tmpEntry.getKey(), tmpEntry.getValue());
+      }
+
+      return tmpExpired;
+    }
+
+    if (tmpNowTick <= currentTick)
+    {
+      return tmpExpired;
+    }
+
+    // With nothing to wait for, or a jump beyond the span of the wheel, it is
+    // cheaper to check each key than to turn the wheel
+    if (deadlines.isEmpty() || (tmpNowTick - currentTick >= SPAN))
+    {
+      jumpTo(tmpNowTick, tmpExpired);
+      return tmpExpired;
+    }
+
+    while (currentTick < tmpNowTick)
+    {
+      currentTick++;
+
+      // Move the keys of the higher levels down as we enter their slots
+      for (int level = 1; level < LEVELS; level++)
+      {
+        if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+        {
+          break;
+        }
+
+        cascade(slots.get(level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)));
+      }
+
+      fire(slots.get((int) (currentTick & SLOT_MASK)), tmpExpired);
+    }
+
+    return tmpExpired;
+  }
+
+ /**
+  * Put a key into the slot for its deadline, or the next slot if the
+  * deadline has passed
+  *
+  * @param key The key
+  * @param tick The deadline tick
+  */
+  private void place(K key, long tick)
+  {
+    long tmpDelta;
+    int  level;
+
+    if (tick <= currentTick)
+    {
+      tick = currentTick + 1;
+    }
+
+    tmpDelta = tick - currentTick;
+
+    for (level = 0; level < LEVELS - 1; level++)
+    {
+      if (tmpDelta < (1L << (SLOT_BITS * (level + 1))))
+      {
+        break;
+      }
+    }
+
+    // Beyond the wheel, wait in the furthest slot and be placed again from there
+    if (tmpDelta >= SPAN)
+    {
+      tick = currentTick + SPAN - 1;
+    }
+
+    slots.get(level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)).add(key);
+    slotEntries++;
+  }
+
+ /**
+  * Build the slots again from the deadlines if most of their entries are
+  * stale, so that cancelled keys do not hold memory until their slot comes
+  * round
+  */
+  private void compactIfStale()
+  {
+    if (slotEntries <= 2 * deadlines.size() + SLOTS)
+    {
+      return;
+    }
+
+    clearSlots();
+
+    for (Map.Entry<K, Long> tmpEntry : deadlines.entrySet())
+    {
+      place(tmpEntry.getKey(), tmpEntry.getValue());
+    }
+  }
+
+ /**
+  * Empty all of the slots
+  */
+  private void clearSlots()
+  {
+    for (ArrayList<K> tmpSlot : slots)
+    {
+      tmpSlot.clear();
+    }
+
+    slotEntries = 0;
+  }
+
+ /**
+  * Place the keys of a higher level slot again
+  *
+  * @param slot The slot
+  */
+  private void cascade(ArrayList<K> slot)
+  {
+    ArrayList<K> tmpKeys = new ArrayList<>(slot);
+    Long tmpTick;
+
+    slot.clear();
+    slotEntries -= tmpKeys.size();
+
+    for (K tmpKey : tmpKeys)
+    {
+      tmpTick = deadlines.get(tmpKey);
+
+      if (tmpTick == null)
+      {
+        // cancelled
+        continue;
+      }
+
+      if (tmpTick <= currentTick)
+      {
+        // due now, fired straight after the cascade
+        slots.get((int) (currentTick & SLOT_MASK)).add(tmpKey);
+        slotEntries++;
+      }
+      else
+      {
+        place(tmpKey, tmpTick);
+      }
+    }
+  }
+
+ /**
+  * Report the keys of a first level slot whose deadline is the current tick,
+  * and place the others again
+  *
+  * @param slot The slot
+  * @param expired The list to add the keys to
+  */
+  private void fire(ArrayList<K> slot, List<K> expired)
+  {
+    ArrayList<K> tmpKeys = new ArrayList<>(slot);
+    Long tmpTick;
+
+    slot.clear();
+    slotEntries -= tmpKeys.size();
+
+    for (K tmpKey : tmpKeys)
+    {
+      tmpTick = deadlines.get(tmpKey);
+
+      if (tmpTick == null)
+      {
+        // cancelled
+        continue;
+      }
+
+      if (tmpTick <= currentTick)
+      {
+        deadlines.remove(tmpKey);
+        expired.add(tmpKey);
+      }
+      else
+      {
+        place(tmpKey, tmpTick);
+      }
+    }
+  }
+
+ /**
+  * Move straight to the tick given, checking the deadline of each key
+  *
+  * @param tick The tick to move to
+  * @param expired The list to add the keys to
+  */
+  private void jumpTo(long tick, List<K> expired)
+  {
+    Iterator<Map.Entry<K, Long>> tmpIter;
+    Map.Entry<K, Long> tmpEntry;
+
+    clearSlots();
+    currentTick = tick;
+    tmpIter = deadlines.entrySet().iterator();
+
+    while (tmpIter.hasNext())
+    {
+      tmpEntry = tmpIter.next();
+
+      if (tmpEntry.getValue() <= currentTick)
+      {
+        expired.add(tmpEntry.getKey());
+        tmpIter.remove();
+      }
+      else
+      {
+        place(tmpEntry.getKey(), tmpEntry.getValue());
+      }
+    }
+  }
+}
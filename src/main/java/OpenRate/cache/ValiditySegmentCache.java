@@ -64,21 +64,9 @@ import java.util.Iterator;
 public class ValiditySegmentCache
      extends AbstractSyncLoaderCache
 {
-  // This stores the index to all the groups.
-  private HashMap<String, HashMap<String, ValidityNode>> GroupCache;
-
- /**
-  * A ValidityNode is a segment of validity of a resource. These are chained
-  * together in a sorted linked list. The sorting is done at insertion time
-  * into the list, meaning that lookups at run time can be optimised.
-  */
-  private class ValidityNode
-  {
-    long           TimeFrom;
-    long           TimeTo;
-    ArrayList<String> Results = null;
-    ValidityNode   child = null;
-  }
+  // This stores the index to all the groups. The validity segments of each
+  // resource are held sorted in arrays, so that they can be binary searched.
+  private HashMap<String, HashMap<String, ValiditySegments>> GroupCache;
 
   // List of Services that this Client supports
   private final static String SERVICE_GROUP_COUNT = "GroupCount";
@@ -105,7 +93,7 @@ public class ValiditySegmentCache
  /**
   * Add a value into the Validity Segment Cache, defining the result
   * value that should be returned in the case of a match.
-  * The entries are ordered during the loading in a linked list sorted by
+  * The entries are ordered during the loading in a list sorted by
   * validity date. This makes the search at run time easier.
   *
   * @param Group The data group to add the entry to
@@ -119,10 +107,9 @@ public class ValiditySegmentCache
   {
     long         tmpTimeFrom;
     long         lastValidTo;
-    HashMap<String, ValidityNode>      tmpResourceCache;
-    ValidityNode tmpValidityNode;
-    ValidityNode tmpValidityNextNode;
-    ValidityNode newNode;
+    HashMap<String, ValiditySegments> tmpResourceCache;
+    ValiditySegments tmpSegments;
+    int          i;
 
     // See if we already have the group cache for this Group
     if (!GroupCache.containsKey(Group))
@@ -143,87 +130,60 @@ public class ValiditySegmentCache
     if (!tmpResourceCache.containsKey(ResourceID))
     {
       // Create the new list
-      tmpValidityNode = new ValidityNode();
-      tmpValidityNode.TimeFrom = StartTime;
-      tmpValidityNode.TimeTo = EndTime;
-      tmpValidityNode.Results = Results;
-      tmpValidityNode.child = null;
-
-      // Add in the new node
-      tmpResourceCache.put(ResourceID, tmpValidityNode);
+      tmpSegments = new ValiditySegments();
+      tmpSegments.insert(0, StartTime, EndTime, Results);
+
+      // Add in the new list
+      tmpResourceCache.put(ResourceID, tmpSegments);
     }
     else
     {
-      // Recover the validity map that there is
-      tmpValidityNode = tmpResourceCache.get(ResourceID);
+      // Recover the validity list that there is
+      tmpSegments = tmpResourceCache.get(ResourceID);
 
       // preset our valid to date
       lastValidTo = CommonConfig.LOW_DATE;
 
       // now run down the validity periods until we find the right position
-      while (tmpValidityNode != null)
+      for (i = 0 ; i < tmpSegments.size ; i++)
       {
-        tmpValidityNextNode = tmpValidityNode.child;
-
-        if (tmpValidityNextNode != null)
+        if (i + 1 < tmpSegments.size)
         {
-          tmpTimeFrom = tmpValidityNextNode.TimeFrom;
+          tmpTimeFrom = tmpSegments.from[i + 1];
         }
         else
         {
           tmpTimeFrom = CommonConfig.HIGH_DATE;
         }
 
-        if ((StartTime > tmpValidityNode.TimeTo) &
-            (tmpValidityNextNode == null))
+        if ((StartTime > tmpSegments.to[i]) &
+            (i + 1 == tmpSegments.size))
         {
           // insert at the tail of the list if we are able
-          newNode = new ValidityNode();
-          tmpValidityNode.child = newNode;
-          newNode.TimeFrom = StartTime;
-          newNode.TimeTo = EndTime;
-          newNode.Results = Results;
+          tmpSegments.insert(i + 1, StartTime, EndTime, Results);
 
           // done
           return;
         }
         else if ((StartTime > lastValidTo) &
-            (EndTime <= tmpValidityNode.TimeFrom))
+            (EndTime <= tmpSegments.from[i]))
         {
-          // insert at the head of the list
-          newNode = new ValidityNode();
-
-          // move the information over
-          newNode.TimeFrom = tmpValidityNode.TimeFrom;
-          newNode.TimeTo = tmpValidityNode.TimeTo;
-          newNode.Results = tmpValidityNode.Results;
-          newNode.child = tmpValidityNode.child;
-
-          // add the new information
-          tmpValidityNode.TimeFrom = StartTime;
-          tmpValidityNode.TimeTo = EndTime;
-          tmpValidityNode.Results = Results;
-          tmpValidityNode.child = newNode;
+          // insert before this segment
+          tmpSegments.insert(i, StartTime, EndTime, Results);
 
           // done
           return;
         }
-        else if ((StartTime > tmpValidityNode.TimeTo) & (EndTime <= tmpTimeFrom))
+        else if ((StartTime > tmpSegments.to[i]) & (EndTime <= tmpTimeFrom))
         {
           // insert in the middle of the list
-          newNode = new ValidityNode();
-          newNode.child = tmpValidityNode.child;
-          tmpValidityNode.child = newNode;
-          newNode.TimeFrom = StartTime;
-          newNode.TimeTo = EndTime;
-          newNode.Results = Results;
+          tmpSegments.insert(i + 1, StartTime, EndTime, Results);
 
           return;
         }
 
-        // Move down the map
-        lastValidTo = tmpValidityNode.TimeTo;
-        tmpValidityNode = tmpValidityNode.child;
+        // Move down the list
+        lastValidTo = tmpSegments.to[i];
       }
 
       // If we get here, we could not insert the period
@@ -233,6 +193,44 @@ public class ValiditySegmentCache
     }
   }
 
+ /**
+  * Find the segment of a resource valid at the given time. The segments are
+  * normally sorted and do not overlap, so the only candidate is the last one
+  * starting at or before the time, which we find with a binary search. If the
+  * loaded periods were not well formed (ending before they start), we fall
+  * back to taking the first valid segment in the list.
+  *
+  * @param tmpSegments The segments of the resource
+  * @param Time The time to search for
+  * @return The index of the segment, or -1 if none found
+  */
+  private int findSegment(ValiditySegments tmpSegments, long Time)
+  {
+    int idx;
+
+    if (tmpSegments.disjoint)
+    {
+      idx = tmpSegments.countStartedBy(Time) - 1;
+
+      if ((idx >= 0) && (tmpSegments.to[idx] > Time))
+      {
+        return idx;
+      }
+
+      return -1;
+    }
+
+    for (idx = 0 ; idx < tmpSegments.size ; idx++)
+    {
+      if (tmpSegments.covers(idx, Time))
+      {
+        return idx;
+      }
+    }
+
+    return -1;
+  }
+
  /**
   * Returns the entry matching the resourceID in the given
   * group at the given time
@@ -244,27 +242,26 @@ public class ValiditySegmentCache
   */
   public String getValiditySegmentMatch(String Group, String ResourceID, long Time)
   {
-    HashMap<String, ValidityNode>        tmpResourceCache;
-    ValidityNode   tmpValidityNode;
+    HashMap<String, ValiditySegments> tmpResourceCache;
+    ValiditySegments tmpSegments;
+    int idx;
 
     // Get the service if we know it
     tmpResourceCache = GroupCache.get(Group);
 
     if (tmpResourceCache != null)
     {
-      tmpValidityNode = tmpResourceCache.get(ResourceID);
+      tmpSegments = tmpResourceCache.get(ResourceID);
 
-      // Now that we have the Validity Map, get the entry
-      while (tmpValidityNode != null)
+      // Now that we have the Validity list, get the entry
+      if (tmpSegments != null)
       {
-        if ((tmpValidityNode.TimeFrom <= Time) &
-            (tmpValidityNode.TimeTo > Time))
+        idx = findSegment(tmpSegments, Time);
+
+        if (idx >= 0)
         {
-          return tmpValidityNode.Results.get(0);
+          return tmpSegments.results[idx].get(0);
         }
-
-        // Move down the map
-        tmpValidityNode = tmpValidityNode.child;
       }
     }
 
@@ -282,28 +279,27 @@ public class ValiditySegmentCache
   */
   public ArrayList<String> getValiditySegmentMatchWithChildData(String Group, String ResourceID, long Time)
   {
-    HashMap<String, ValidityNode>        tmpResourceCache;
-    ValidityNode   tmpValidityNode;
+    HashMap<String, ValiditySegments> tmpResourceCache;
+    ValiditySegments tmpSegments;
     ArrayList<String> Value = null;
+    int idx;
 
     // Get the service if we know it
     tmpResourceCache = GroupCache.get(Group);
 
     if (tmpResourceCache != null)
     {
-      tmpValidityNode = tmpResourceCache.get(ResourceID);
+      tmpSegments = tmpResourceCache.get(ResourceID);
 
-      // Now that we have the Validity Map, get the entry
-      while (tmpValidityNode != null)
+      // Now that we have the Validity list, get the entry
+      if (tmpSegments != null)
       {
-        if ((tmpValidityNode.TimeFrom <= Time) &
-            (tmpValidityNode.TimeTo > Time))
+        idx = findSegment(tmpSegments, Time);
+
+        if (idx >= 0)
         {
-          return tmpValidityNode.Results;
+          return tmpSegments.results[idx];
         }
-
-        // Move down the map
-        tmpValidityNode = tmpValidityNode.child;
       }
     }
 
@@ -680,7 +676,7 @@ public class ValiditySegmentCache
   public String processControlEvent(String Command, boolean Init,
                                     String Parameter)
   {
-    HashMap<String, ValidityNode> tmpResource;
+    HashMap<String, ValiditySegments> tmpResource;
     Collection<String> tmpGroups;
     Iterator<String> GroupIter;
     String tmpGroupName;
@@ -0,0 +1,272 @@
+package OpenRate.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The validity segments of a single resource, held in primitive arrays so that
+ * lookups can use binary search instead of walking a linked list of nodes.
+ *
+ * Each segment has a start (inclusive) and an end (exclusive), the result
+ * values of the segment, and a sequence number giving the order in which the
+ * segments were added. The arrays are kept in the order that the owning cache
+ * inserts the segments. In addition, the running maximum of the segment ends
+ * is kept, so that when the segments are sorted by start, all of the segments
+ * which ended before a given time can be skipped with a binary search.
+ */
+class ValiditySegments
+{
+  // The segment starts and ends
+  long[] from;
+  long[] to;
+
+  // The running maximum of the segment ends
+  long[] maxTo;
+
+  // The order the segments were added in
+  int[] seq;
+
+  // The result values of each segment
+  ArrayList<String>[] results;
+
+  // The number of segments
+  int size = 0;
+
+  // true if the segments, in array order, are ascending and do not overlap
+  boolean disjoint = true;
+
+  // true if each segment was added after all of the others, so that the array
+  // order is also the order that the segments were added in
+  boolean addedInOrder = true;
+
+  // The next sequence number
+  private int nextSeq = 0;
+
+ /**
+  * Create an empty segment list
+  */
+  @SuppressWarnings("unchecked")
+  ValiditySegments()
+  {
+    from = new long[2];
+    to = new long[2];
+    maxTo = new long[2];
+    seq = new int[2];
+    results = new ArrayList[2];
+  }
+
+ /**
+  * Insert a segment at the given position
+  *
+  * @param pos The position to insert at, 0 to size
+  * @param startTime The start of the segment
+  * @param endTime The end of the segment
+  * @param segmentResults The result values of the segment
+  */
+  @SuppressWarnings("unchecked")
+  void insert(int pos, long startTime, long endTime, ArrayList<String> segmentResults)
+  {
+    int newLength;
+    int i;
+
+    if (size == from.length)
+    {
+      newLength = size * 2;
+      from = Arrays.copyOf(from, newLength);
+      to = Arrays.copyOf(to, newLength);
+      maxTo = Arrays.copyOf(maxTo, newLength);
+      seq = Arrays.copyOf(seq, newLength);
+      results = Arrays.copyOf(results, newLength);
+    }
+
+    System.arraycopy(from, pos, from, pos + 1, size - pos);
+    System.arraycopy(to, pos, to, pos + 1, size - pos);
+    System.arraycopy(seq, pos, seq, pos + 1, size - pos);
+    System.arraycopy(results, pos, results, pos + 1, size - pos);
+
+    from[pos] = startTime;
+    to[pos] = endTime;
+    seq[pos] = nextSeq++;
+    results[pos] = segmentResults;
+    size++;
+
+    addedInOrder &= (pos == size - 1);
+
+    // the order only needs checking against the neighbours
+    disjoint &= (startTime <= endTime) &&
+                (pos == 0 || to[pos - 1] <= startTime) &&
+                (pos == size - 1 || endTime <= from[pos + 1]);
+
+    // the running maximum changes from the insertion point on
+    for (i = pos ; i < size ; i++)
+    {
+      maxTo[i] = (i == 0) ? to[i] : Math.max(maxTo[i - 1], to[i]);
+    }
+  }
+
+ /**
+  * Get the number of segments which start at or before the time. Only
+  * meaningful if the segments are sorted by start.
+  *
+  * @param time The time
+  * @return The number of segments started by the time
+  */
+  int countStartedBy(long time)
+  {
+    int low = 0;
+    int high = size;
+    int mid;
+
+    while (low < high)
+    {
+      mid = (low + high) >>> 1;
+
+      if (from[mid] <= time)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+ /**
+  * Get the first segment which is not ended by the time, or any segment
+  * after it. All of the segments before this one end at or before the time.
+  *
+  * @param time The time
+  * @param limit The number of segments to search
+  * @return The index of the segment, or limit if there is none
+  */
+  int firstNotEndedBy(long time, int limit)
+  {
+    int low = 0;
+    int high = limit;
+    int mid;
+
+    while (low < high)
+    {
+      mid = (low + high) >>> 1;
+
+      if (maxTo[mid] > time)
+      {
+        high = mid;
+      }
+      else
+      {
+        low = mid + 1;
+      }
+    }
+
+    return low;
+  }
+
+ /**
+  * Get the first segment covering the time, in the order that the segments
+  * were added. Only meaningful if the segments are sorted by start. Only the
+  * segments which start at or before the time, and which are not preceded
+  * only by segments that have already ended, can match, and both ends of
+  * this window are found by binary search. This skips the expired history.
+  *
+  * @param time The time
+  * @return The index of the segment, or -1 if there is none
+  */
+  int firstMatch(long time)
+  {
+    int limit = countStartedBy(time);
+    int idx;
+    int bestIdx = -1;
+
+    for (idx = firstNotEndedBy(time, limit) ; idx < limit ; idx++)
+    {
+      if (to[idx] > time)
+      {
+        if (addedInOrder)
+        {
+          // the array order is the order they were added
+          return idx;
+        }
+
+        if ((bestIdx < 0) || (seq[idx] < seq[bestIdx]))
+        {
+          bestIdx = idx;
+        }
+      }
+    }
+
+    return bestIdx;
+  }
+
+ /**
+  * Get the next segment covering the time, in the order that the segments
+  * were added, so that the matches can be walked without building a list of
+  * them. The window of segments which can match is found as for firstMatch(),
+  * once by the caller:
+  *
+  *   limit = countStartedBy(time);
+  *   first = firstNotEndedBy(time, limit);
+  *   for (idx = nextMatch(time, first, limit, -1) ; idx >= 0 ;
+  *        idx = nextMatch(time, first, limit, idx))
+  *
+  * If the segments were added in start order, this carries on through the
+  * window from the last match. Otherwise it finds the match added next after
+  * the last one, which scans the window again, but the window is short.
+  *
+  * @param time The time
+  * @param first The start of the window
+  * @param limit The end of the window
+  * @param prevIdx The last match, or -1 for the first
+  * @return The index of the segment, or -1 if there are no more
+  */
+  int nextMatch(long time, int first, int limit, int prevIdx)
+  {
+    int idx;
+    int prevSeq;
+    int bestIdx = -1;
+
+    if (addedInOrder)
+    {
+      // the array order is the order they were added
+      for (idx = (prevIdx < 0) ? first : prevIdx + 1 ; idx < limit ; idx++)
+      {
+        if (to[idx] > time)
+        {
+          return idx;
+        }
+      }
+
+      return -1;
+    }
+
+    prevSeq = (prevIdx < 0) ? -1 : seq[prevIdx];
+
+    for (idx = first ; idx < limit ; idx++)
+    {
+      if ((to[idx] > time) && (seq[idx] > prevSeq))
+      {
+        if ((bestIdx < 0) || (seq[idx] < seq[bestIdx]))
+        {
+          bestIdx = idx;
+        }
+      }
+    }
+
+    return bestIdx;
+  }
+
+ /**
+  * See if a segment covers the time
+  *
+  * @param idx The segment
+  * @param time The time
+  * @return true if the segment is valid at the time
+  */
+  boolean covers(int idx, long time)
+  {
+    return (from[idx] <= time) & (to[idx] > time);
+  }
+}
@@ -2,12 +2,18 @@
 
 package OpenRate.configurationmanager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
  * ClientContainer defines the container object that holds the client module properties of
  * OpenRate.  This will be used by the ClientManager in holding up a client module repository.
  *
+ * In a pipeline with several lanes, each lane has its own copy of each module,
+ * all with the same symbolic name. The container then holds the copy of each
+ * lane, and commands are passed to all of them (see processControlEvent).
+ *
  * @author a.villena
  */
 public class ClientContainer
@@ -16,6 +22,7 @@ public class ClientContainer
   private String  clientSymbolicName;
   private String  clientClassName;
   private Object  objClientContainer;
+  private ArrayList<Object> laneClientObjects;
   private HashMap<String, ServiceContainer> HSServiceContainer;
 
  /**
@@ -31,6 +38,8 @@ public class ClientContainer
     clientSymbolicName = strClientSybName;
     clientClassName = objClient.getClass().getName();
     objClientContainer = objClient;
+    laneClientObjects = new ArrayList<>();
+    laneClientObjects.add(objClient);
     HSServiceContainer = new HashMap<>();
   }
 
@@ -102,6 +111,171 @@ public class ClientContainer
   public void setClientObject(Object objClient)
   {
     objClientContainer = objClient;
+    laneClientObjects.clear();
+    laneClientObjects.add(objClient);
+  }
+
+ /**
+  * addLaneClientObject adds the copy of the client module of a further lane
+  *
+  * @param objClient - instance of the client module in the lane
+  */
+  public void addLaneClientObject(Object objClient)
+  {
+    laneClientObjects.add(objClient);
+  }
+
+ /**
+  * getClientObjectCount returns the number of copies of the client module,
+  * which is the number of lanes it is in
+  *
+  * @return The number of copies
+  */
+  public int getClientObjectCount()
+  {
+    return laneClientObjects.size();
+  }
+
+ /**
+  * processControlEvent passes a command to the client module, or to the copy
+  * in each lane. When the lanes give different answers, answers made of
+  * numbers separated by ":" (such as the statistics) are added up field by
+  * field, and any others are returned for each lane on its own line.
+  *
+  * @param Command The command
+  * @param Init True if the pipeline is being constructed
+  * @param Parameter The parameter value for the command
+  * @return The result, or null if the client does not understand commands
+  */
+  public String processControlEvent(String Command, boolean Init, String Parameter)
+  {
+    ArrayList<String> tmpResults = new ArrayList<>();
+    StringBuilder     tmpAnswer;
+    String            tmpResult;
+    boolean           allSame = true;
+
+    for (Object tmpClient : laneClientObjects)
+    {
+      if (!(tmpClient instanceof IEventInterface))
+      {
+        return null;
+      }
+
+      tmpResult = ((IEventInterface) tmpClient).processControlEvent(Command, Init, Parameter);
+      allSame &= tmpResults.isEmpty() || String.valueOf(tmpResult).equals(String.valueOf(tmpResults.get(0)));
+      tmpResults.add(tmpResult);
+    }
+
+    if (allSame)
+    {
+      return tmpResults.get(0);
+    }
+
+    tmpResult = addNumericResults(tmpResults);
+
+    if (tmpResult != null)
+    {
+      return tmpResult;
+    }
+
+    tmpAnswer = new StringBuilder();
+
+    for (int lane = 0; lane < tmpResults.size(); lane++)
+    {
+      if (lane > 0)
+      {
+        tmpAnswer.append("\r\n");
+      }
+
+      tmpAnswer.append("Lane ").append(lane + 1).append(": ").append(tmpResults.get(lane));
+    }
+
+    return tmpAnswer.toString();
+  }
+
+ /**
+  * Add up results made of numbers separated by ":" field by field
+  *
+  * @param results The results of each lane
+  * @return The total, or null if the results are not all numbers with the same
+  * number of fields
+  */
+  private static String addNumericResults(ArrayList<String> results)
+  {
+    String[]      tmpFields;
+    long[]        tmpLongs = null;
+    double[]      tmpDoubles = null;
+    boolean[]     tmpIsLong = null;
+    StringBuilder tmpTotal;
+
+    for (String tmpResult : results)
+    {
+      if (tmpResult == null)
+      {
+        return null;
+      }
+
+      tmpFields = tmpResult.split(":", -1);
+
+      if (tmpLongs == null)
+      {
+        tmpLongs = new long[tmpFields.length];
+        tmpDoubles = new double[tmpFields.length];
+        tmpIsLong = new boolean[tmpFields.length];
+        Arrays.fill(tmpIsLong, true);
+      }
+      else if (tmpFields.length != tmpLongs.length)
+      {
+        return null;
+      }
+
+      for (int i = 0; i < tmpFields.length; i++)
+      {
+        try
+        {
+          if (tmpIsLong[i])
+          {
+            try
+            {
+              tmpLongs[i] += Long.parseLong(tmpFields[i].trim());
+              tmpDoubles[i] = tmpLongs[i];
+              continue;
+            }
+            catch (NumberFormatException ex)
+            {
+              tmpIsLong[i] = false;
+            }
+          }
+
+          tmpDoubles[i] += Double.parseDouble(tmpFields[i].trim());
+        }
+        catch (NumberFormatException ex)
+        {
+          return null;
+        }
+      }
+    }
+
+    tmpTotal = new StringBuilder();
+
+    for (int i = 0; i < tmpLongs.length; i++)
+    {
+      if (i > 0)
+      {
+        tmpTotal.append(':');
+      }
+
+      if (tmpIsLong[i])
+      {
+        tmpTotal.append(tmpLongs[i]);
+      }
+      else
+      {
+        tmpTotal.append(tmpDoubles[i]);
+      }
+    }
+
+    return tmpTotal.toString();
   }
 
   /**
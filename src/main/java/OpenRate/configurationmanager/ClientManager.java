@@ -59,6 +59,9 @@ public class ClientManager {
   // module symbolic name: never changes in this module, so not set dynamically
   private String SymbolicName = "ClientManager";
 
+  // The lane of the pipeline being built, 0 if it has no lanes
+  private int registrationLane = 0;
+
 // -----------------------------------------------------------------------------
 // --------------------- Client manager utility functions ----------------------
 // -----------------------------------------------------------------------------
@@ -118,7 +121,9 @@ public class ClientManager {
 // -----------------------------------------------------------------------------
   /**
    * registerClient registers the client module to the ClientManager. This also
-   * caches the client module object that can be accessed and executed.
+   * caches the client module object that can be accessed and executed. The
+   * copies of a module in the second and later lanes of a pipeline are added
+   * to the client of the first lane, so that commands reach all of them.
    *
    * @param pipelineName
    * @param symbolicName - symbolic name of the client module to add
@@ -134,11 +139,30 @@ public class ClientManager {
       throw new InitializationException("Symbolic Name cannot be empty", getSymbolicName());
     }
 
-    ClientContainer clCont = new ClientContainer(pipelineName, symbolicName, objClient);
+    ClientContainer clCont = get(symbolicName);
+
+    if ((registrationLane > 1) && (clCont != null) && pipelineName.equals(clCont.getClientPipelineName())) {
+      clCont.addLaneClientObject(objClient);
+      OpenRate.getOpenRateFrameworkLog().debug("Registered Client <" + symbolicName + "> in lane <" + registrationLane + ">");
+      return;
+    }
+
+    clCont = new ClientContainer(pipelineName, symbolicName, objClient);
     put(symbolicName, clCont);
     OpenRate.getOpenRateFrameworkLog().debug("Registered Client <" + symbolicName + ">");
   }
 
+  /**
+   * Set the lane of the pipeline that the clients registering from now on are
+   * in. Called by the pipeline as it builds each lane, and set back to 0 when
+   * it has done.
+   *
+   * @param lane The lane being built, 0 if the pipeline has no lanes
+   */
+  public void setRegistrationLane(int lane) {
+    registrationLane = lane;
+  }
+
   /**
    * registerClientService registers the command available for the client module
    *
@@ -253,7 +277,6 @@ public class ClientManager {
     ClientContainer clCont;
     ServiceContainer svCont;
     Object ClientObject;
-    IEventInterface ClientEvent;
     String strCommandName;
     String pipelineName;
 
@@ -312,10 +335,8 @@ public class ClientManager {
           svCont = HMSvcList.get(strCommandName);
 
           if (ClientObject instanceof IEventInterface) {
-            ClientEvent = (IEventInterface) ClientObject;
-
             try {
-              strCurrentValue = ClientEvent.processControlEvent(strCommandName, false, "");
+              strCurrentValue = clCont.processControlEvent(strCommandName, false, "");
             } catch (Exception e) {
               System.err.println("Error processing control event <" + strCommandName + "> in module <" + strSymbolicKey + ">");
             }
@@ -216,7 +216,6 @@ public class EventHandler implements IResource
     String CmdParameter;
     String CmdCommand;
     Object ClientObject;
-    IEventInterface ClientEvent;
     String output = "";
 
     if (strInputParams.length == 2)
@@ -250,10 +249,9 @@ public class EventHandler implements IResource
         ClientObject  = clCon.getClientObject();
         if (ClientObject instanceof IEventInterface)
         {
-          ClientEvent = (IEventInterface) ClientObject;
-
-          //call ProcesControlEvent on second parameter of input
-          output = ClientEvent.processControlEvent(CmdCommand,false,CmdParameter);
+          //call ProcesControlEvent on second parameter of input, in each
+          //lane the module is in
+          output = clCon.processControlEvent(CmdCommand,false,CmdParameter);
         }
         else
         {
@@ -34,7 +34,6 @@ public class SocketProtocol implements ISocketProtocol
     String CmdModuleSymbolicName;
     String CmdCommand;
     String CmdParameter;
-    IEventInterface ClientEvent;
     ClientContainer clCon;
     Object ClientObject;
 
@@ -141,10 +140,9 @@ public class SocketProtocol implements ISocketProtocol
           ClientObject  = clCon.getClientObject();
           if (ClientObject instanceof IEventInterface)
           {
-            ClientEvent = (IEventInterface) ClientObject;
-
-            //call ProcesControlEvent on second parameter of input
-            output = ClientEvent.processControlEvent(CmdCommand,false,CmdParameter);
+            //call ProcesControlEvent on second parameter of input, in each
+            //lane the module is in
+            output = clCon.processControlEvent(CmdCommand,false,CmdParameter);
             boolKnown = true;
           }
           else
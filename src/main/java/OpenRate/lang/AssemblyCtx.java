@@ -43,4 +43,9 @@ public class AssemblyCtx
    * the date the context was closed, for purging
    */
   public long   ClosedDate = 0;
+
+  /**
+   * the start date of the latest partial, for expiring open contexts
+   */
+  public long   LastDate = 0;
 }
@@ -3,8 +3,8 @@
 package OpenRate.lang;
 
 import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A balance group is a collection of balance elements, grouped by ID. It is
@@ -15,15 +15,20 @@ import java.util.concurrent.ConcurrentHashMap;
  * contain any number of counter "buckets". A bucket therefore is a period
  * of validity of a counter.
  *
+ * The balance group does not serialise updates itself. When it is held in the
+ * BalanceCache, changes must be made holding the balance lock of the group
+ * (BalanceCache.getBalanceLock()), so that the record id and the counter
+ * values stay consistent when several threads update the same group.
+ *
  * @author ian
  */
 public class BalanceGroup
 {
   // Used to hold the counters
-  private final Map<Integer, CounterGroup> counterList;
+  private final ConcurrentMap<Integer, CounterGroup> counterList;
 
   // Used for keeping track of balances to purge
-  private boolean balanceDirty = false;
+  private volatile boolean balanceDirty = false;
 
   // Used for giving each counter a unique id
   private long currentRecId = 0;
@@ -50,22 +55,8 @@ public class BalanceGroup
   */
   public Counter addCounter(int counterId, long validFrom, long validTo, double currentBal)
   {
-    CounterGroup tmpCounterGroup;
-
-    if (!counterList.containsKey(counterId))
-    {
-      // Create the new counter list
-      tmpCounterGroup = new CounterGroup();
-      counterList.put(counterId,tmpCounterGroup);
-      ++currentRecId;
-      return tmpCounterGroup.addCounter(currentRecId,validFrom,validTo,currentBal);
-    }
-    else
-    {
-      tmpCounterGroup = counterList.get(counterId);
-      ++currentRecId;
-      return tmpCounterGroup.addCounter(currentRecId,validFrom,validTo,currentBal);
-    }
+    ++currentRecId;
+    return getOrAddCounterGroup(counterId).addCounter(currentRecId,validFrom,validTo,currentBal);
   }
 
  /**
@@ -79,20 +70,7 @@ public class BalanceGroup
   */
   public void addCounter(int counterId, long recId, long validFrom, long validTo, double currentBal)
   {
-    CounterGroup tmpCounterGroup;
-
-    if (!counterList.containsKey(counterId))
-    {
-      // Create the new counter list
-      tmpCounterGroup = new CounterGroup();
-      counterList.put(counterId,tmpCounterGroup);
-      tmpCounterGroup.addCounter(recId,validFrom,validTo,currentBal);
-    }
-    else
-    {
-      tmpCounterGroup = counterList.get(counterId);
-      tmpCounterGroup.addCounter(recId,validFrom,validTo,currentBal);
-    }
+    getOrAddCounterGroup(counterId).addCounter(recId,validFrom,validTo,currentBal);
   }
 
  /**
@@ -129,11 +107,29 @@ public class BalanceGroup
   */
   public CounterGroup getCounterGroup(int counterId)
   {
-    CounterGroup tmpCounterGroup = null;
+    return counterList.get(counterId);
+  }
+
+ /**
+  * Get the counter group for the counter ID, creating it if it does not
+  * exist yet.
+  *
+  * @param counterId The counter group to recover
+  * @return The recovered or created counter group
+  */
+  private CounterGroup getOrAddCounterGroup(int counterId)
+  {
+    CounterGroup tmpCounterGroup = counterList.get(counterId);
 
-    if (counterList.containsKey(counterId))
+    if (tmpCounterGroup == null)
     {
-      tmpCounterGroup = counterList.get(counterId);
+      CounterGroup newCounterGroup = new CounterGroup();
+      tmpCounterGroup = counterList.putIfAbsent(counterId,newCounterGroup);
+
+      if (tmpCounterGroup == null)
+      {
+        tmpCounterGroup = newCounterGroup;
+      }
     }
 
     return tmpCounterGroup;
@@ -57,11 +57,11 @@ public class CustProductInfo
   /**
    * Sets the subscription ID
    *
-   * @param Id The subscription ID
+   * @param Id The subscription ID, or null if the product has none
    */
   public void setSubID(String Id)
   {
-    SubId = Id.intern();
+    SubId = (Id == null) ? null : Id.intern();
   }
 
   /**
@@ -0,0 +1,187 @@
+package OpenRate.lang;
+
+import java.math.RoundingMode;
+
+/**
+ * Fixed point money arithmetic. Amounts are held as a long number of micro
+ * units (millionths of the currency unit), so that adding and rounding
+ * amounts is exact and does not drift the way that adding doubles does, and
+ * does not need the round trip through BigDecimal.
+ *
+ * The charges and balances in the records and caches are still doubles, so
+ * the methods which take and return doubles convert at the edges: the double
+ * is taken to the nearest micro unit, and the result is given back as the
+ * nearest double to the exact decimal result. Amounts must be within
+ * +/- MAX_AMOUNT, otherwise an ArithmeticException is thrown.
+ */
+public final class Money
+{
+ /**
+  * The number of decimal places held
+  */
+  public static final int SCALE = 6;
+
+ /**
+  * The number of micro units in a unit
+  */
+  public static final long UNIT = 1000000L;
+
+ /**
+  * The largest amount that can be converted, so that the micro units are
+  * still exactly representable as a double
+  */
+  public static final double MAX_AMOUNT = 9.0E9;
+
+  // Powers of ten for the rounding
+  private static final long[] POWERS = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+
+ /**
+  * Utility class, not instantiated
+  */
+  private Money()
+  {
+  }
+
+ /**
+  * Convert an amount to micro units, rounding to the nearest micro unit
+  *
+  * @param value The amount
+  * @return The amount in micro units
+  */
+  public static long toMicros(double value)
+  {
+    if (!isInRange(value))
+    {
+      throw new ArithmeticException("Amount <" + value + "> out of range for fixed point");
+    }
+
+    return Math.round(value * UNIT);
+  }
+
+ /**
+  * Check if an amount can be converted to micro units
+  *
+  * @param value The amount
+  * @return true if the amount is within +/- MAX_AMOUNT
+  */
+  public static boolean isInRange(double value)
+  {
+    return value <= MAX_AMOUNT && value >= -MAX_AMOUNT;
+  }
+
+ /**
+  * Convert micro units to the nearest double
+  *
+  * @param micros The amount in micro units
+  * @return The amount
+  */
+  public static double toDouble(long micros)
+  {
+    return micros / (double) UNIT;
+  }
+
+ /**
+  * Add two amounts in micro units
+  *
+  * @param a The first amount
+  * @param b The second amount
+  * @return The sum
+  */
+  public static long add(long a, long b)
+  {
+    long result = a + b;
+
+    // overflow if both have the same sign and the result has the other
+    if (((a ^ result) & (b ^ result)) < 0)
+    {
+      throw new ArithmeticException("Fixed point overflow");
+    }
+
+    return result;
+  }
+
+ /**
+  * Round an amount in micro units to fewer decimal places
+  *
+  * @param micros The amount in micro units
+  * @param decimals The number of decimal places to keep, 0 to SCALE
+  * @param mode The rounding to apply
+  * @return The rounded amount, still in micro units
+  */
+  public static long round(long micros, int decimals, RoundingMode mode)
+  {
+    long step = POWERS[SCALE - decimals];
+    long quotient = micros / step;
+    long remainder = micros - quotient * step;
+    long twice;
+    boolean up;
+
+    if (remainder == 0)
+    {
+      return micros;
+    }
+
+    // the distance to the lower step, compared with half a step
+    twice = Math.abs(remainder) * 2;
+
+    switch (mode)
+    {
+      case UP:
+        up = true;
+        break;
+      case DOWN:
+        up = false;
+        break;
+      case CEILING:
+        up = (micros > 0);
+        break;
+      case FLOOR:
+        up = (micros < 0);
+        break;
+      case HALF_UP:
+        up = (twice >= step);
+        break;
+      case HALF_DOWN:
+        up = (twice > step);
+        break;
+      case HALF_EVEN:
+        up = (twice > step) || (twice == step && (quotient & 1) != 0);
+        break;
+      default:
+        throw new ArithmeticException("Rounding necessary for <" + micros + ">");
+    }
+
+    // "up" is away from zero
+    if (up)
+    {
+      quotient += (micros < 0) ? -1 : 1;
+    }
+
+    return quotient * step;
+  }
+
+ /**
+  * Add two amounts exactly, giving the nearest double to the decimal sum
+  *
+  * @param a The first amount
+  * @param b The second amount
+  * @return The sum
+  */
+  public static double add(double a, double b)
+  {
+    return toDouble(add(toMicros(a), toMicros(b)));
+  }
+
+ /**
+  * Round an amount to a number of decimal places
+  *
+  * @param value The amount
+  * @param decimals The number of decimal places to keep, 0 to SCALE
+  * @param mode The rounding to apply
+  * @return The nearest double to the rounded amount
+  */
+  public static double round(double value, int decimals, RoundingMode mode)
+  {
+    return toDouble(round(toMicros(value), decimals, mode));
+  }
+}
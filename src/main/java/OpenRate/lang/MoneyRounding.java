@@ -0,0 +1,95 @@
+package OpenRate.lang;
+
+import java.math.RoundingMode;
+
+/**
+ * The rounding applied to the amounts rated with a price model, for example
+ * "2,HALF_UP" to round to cents, rounding halves away from zero. The rounding
+ * and the adding up of the rounded amounts is done with fixed point Money
+ * arithmetic, so it is exact.
+ */
+public class MoneyRounding
+{
+ /**
+  * The number of decimal places we round to
+  */
+  public final int decimals;
+
+ /**
+  * The rounding mode
+  */
+  public final RoundingMode mode;
+
+ /**
+  * Create a rounding. UNNECESSARY is not a rounding: it would fail on the
+  * first amount which needs rounding, so it is refused here instead.
+  *
+  * @param decimals The number of decimal places to round to
+  * @param mode The rounding mode
+  */
+  public MoneyRounding(int decimals, RoundingMode mode)
+  {
+    if (decimals < 0 || decimals > Money.SCALE)
+    {
+      throw new IllegalArgumentException("Decimals must be between 0 and " + Money.SCALE + ", got <" + decimals + ">");
+    }
+
+    if (mode == RoundingMode.UNNECESSARY)
+    {
+      throw new IllegalArgumentException("Rounding mode UNNECESSARY cannot be used");
+    }
+
+    this.decimals = decimals;
+    this.mode = mode;
+  }
+
+ /**
+  * Parse a rounding definition of the form "decimals[,mode]". The mode
+  * defaults to HALF_UP, and may not be UNNECESSARY.
+  *
+  * @param definition The definition to parse
+  * @return The rounding, or null if the definition is "None"
+  * @throws IllegalArgumentException if the definition is not valid
+  */
+  public static MoneyRounding parse(String definition)
+  {
+    String[] parts;
+    RoundingMode tmpMode = RoundingMode.HALF_UP;
+
+    if (definition == null || definition.trim().equalsIgnoreCase("None"))
+    {
+      return null;
+    }
+
+    parts = definition.split(",");
+
+    if (parts.length > 2)
+    {
+      throw new IllegalArgumentException("Rounding definition <" + definition + "> is not valid");
+    }
+
+    if (parts.length == 2)
+    {
+      tmpMode = RoundingMode.valueOf(parts[1].trim().toUpperCase());
+    }
+
+    return new MoneyRounding(Integer.parseInt(parts[0].trim()), tmpMode);
+  }
+
+ /**
+  * Round an amount
+  *
+  * @param value The amount to round
+  * @return The rounded amount
+  */
+  public double round(double value)
+  {
+    return Money.round(value, decimals, mode);
+  }
+
+  @Override
+  public String toString()
+  {
+    return decimals + "," + mode;
+  }
+}
@@ -17,10 +17,34 @@ public class ProductList
   int    BalanceGroup = 0;
   ArrayList<CustProductInfo> ProductInstances;
 
+  // Instances kept from before the list was cleared, for re-use
+  ArrayList<CustProductInfo> SpareInstances;
+
  /** Creates a new instance of ProductList */
   public ProductList()
   {
     ProductInstances = new ArrayList<>();
+    SpareInstances = new ArrayList<>();
+  }
+
+ /**
+  * Empty the list so that it can be filled again. The product instances are
+  * kept and re-used by the following adds, so that a list which is filled
+  * for each record does not allocate. This means that the products got from
+  * the list before it was cleared must not be held on to.
+  */
+  public void clear()
+  {
+    int i;
+
+    for (i = 0 ; i < ProductInstances.size() ; i++)
+    {
+      SpareInstances.add(ProductInstances.get(i));
+    }
+
+    ProductInstances.clear();
+    ProductCount = 0;
+    BalanceGroup = 0;
   }
 
  /**
@@ -39,12 +63,14 @@ public class ProductList
   {
     CustProductInfo tmpCPI;
 
-    // We must see if we need to create or update the product
-    Iterator<CustProductInfo> productIter = ProductInstances.iterator();
+    Iterator<CustProductInfo> productIter;
 
     // Manage possible updates in the case that we have a valid (non zero) ref id
     if (ProductRefId != 0)
     {
+      // We must see if we need to create or update the product
+      productIter = ProductInstances.iterator();
+
       while (productIter.hasNext())
       {
         tmpCPI = productIter.next();
@@ -64,8 +90,18 @@ public class ProductList
       }
     }
 
-    // Not an update, so it is an insert
-    tmpCPI = new CustProductInfo();
+    // Not an update, so it is an insert, re-using a spare instance if we can
+    if (SpareInstances.isEmpty())
+    {
+      tmpCPI = new CustProductInfo();
+    }
+    else
+    {
+      tmpCPI = SpareInstances.remove(SpareInstances.size() - 1);
+      tmpCPI.ProductRefId = 0;
+      tmpCPI.Status = 0;
+      tmpCPI.Priority = 0;
+    }
     tmpCPI.setProductID(Id);
     tmpCPI.setService(Service);
     tmpCPI.setSubID(SubId);
@@ -0,0 +1,669 @@
+package OpenRate.parser;
+
+import OpenRate.exception.ASN1Exception;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Streaming BER/DER decoder over a ByteBuffer, which can be a memory mapped
+ * file.
+ *
+ * Unlike ASN1Parser, which copies each element into a byte array of its own,
+ * this parser keeps a cursor on the buffer and only records where the current
+ * element is: its tag, its length and the offsets of its header and value in
+ * the buffer. Primitive values are decoded straight out of the buffer, and
+ * constructed elements which are not needed are passed over without looking
+ * inside them.
+ *
+ * The elements of a level are walked with next(). A constructed element is
+ * entered with enter(), after which next() walks its content, returning false
+ * at the end of it, and exit() goes back to the enclosing level. Calling next()
+ * without entering an element skips it. Both definite and indefinite lengths
+ * are understood. At the outermost level, 0x00 filler bytes between records
+ * (used for example by Ericsson to pad to a block boundary) are skipped.
+ *
+ * This class is not thread safe.
+ */
+public class ASN1BufferParser
+{
+ /**
+  * 0: Universal class
+  */
+  public static final int UNIVERSAL_CLASS   = 0x00;
+
+ /**
+  * 1: Application class
+  */
+  public static final int APPLICATION_CLASS = 0x01;
+
+ /**
+  * 2: Context specific class
+  */
+  public static final int CONTEXT_CLASS     = 0x02;
+
+ /**
+  * 3: Private class
+  */
+  public static final int PRIVATE_CLASS     = 0x03;
+
+  // The data we are parsing
+  private final ByteBuffer buffer;
+
+  // Where the next header will be read
+  private int position;
+
+  // The end of each level we have entered, and if its length is indefinite.
+  // Level 0 is the whole of the data.
+  private int[]     levelLimit = new int[8];
+  private boolean[] levelIndefinite = new boolean[8];
+  private int       depth = 0;
+
+  // If we have read the end of the current level
+  private boolean levelDone = false;
+
+  // The current element
+  private boolean hasElement = false;
+  private int     tagClass;
+  private int     tagNumber;
+  private boolean constructed;
+  private int     headerOffset;
+  private int     valueOffset;
+  private int     length;
+
+ /**
+  * Create a parser over the remaining bytes of a buffer. The position and
+  * limit of the buffer are not changed, and the offsets given by the parser
+  * are indexes into the buffer.
+  *
+  * @param data The data to parse
+  */
+  public ASN1BufferParser(ByteBuffer data)
+  {
+    buffer = data;
+    position = data.position();
+    levelLimit[0] = data.limit();
+  }
+
+ /**
+  * Map a file read only into memory, ready to be parsed.
+  *
+  * @param fileName The name of the file
+  * @return The mapped file
+  * @throws IOException
+  */
+  public static MappedByteBuffer mapFile(String fileName) throws IOException
+  {
+    // The mapping stays valid after the file is closed
+    try (RandomAccessFile tmpFile = new RandomAccessFile(fileName, "r");
+         FileChannel tmpChannel = tmpFile.getChannel())
+    {
+      return tmpChannel.map(FileChannel.MapMode.READ_ONLY, 0, tmpChannel.size());
+    }
+  }
+
+ /**
+  * Move to the next element of the current level, passing over the current
+  * element if there is one.
+  *
+  * @return true if there is an element, false at the end of the level
+  * @throws ASN1Exception If the data is not valid BER
+  */
+  public boolean next() throws ASN1Exception
+  {
+    int tmpLimit;
+    int tmpByte;
+    int tmpLengthBytes;
+
+    if (hasElement)
+    {
+      skipElement();
+    }
+
+    if (levelDone)
+    {
+      return false;
+    }
+
+    tmpLimit = levelLimit[depth];
+
+    // skip the filler between records
+    if (depth == 0)
+    {
+      while ((position < tmpLimit) && (buffer.get(position) == 0))
+      {
+        position++;
+      }
+    }
+
+    if (position >= tmpLimit)
+    {
+      if (levelIndefinite[depth])
+      {
+        throw new ASN1Exception("Missing end of contents at offset <" + position + ">");
+      }
+
+      levelDone = true;
+      return false;
+    }
+
+    // The end of contents of an indefinite length level
+    if (levelIndefinite[depth] && (buffer.get(position) == 0))
+    {
+      if (readByte(position + 1, tmpLimit) != 0)
+      {
+        throw new ASN1Exception("Bad end of contents at offset <" + position + ">");
+      }
+
+      position += 2;
+      levelDone = true;
+      return false;
+    }
+
+    // Read the identifier
+    headerOffset = position;
+    tmpByte = readByte(position++, tmpLimit);
+    tagClass = tmpByte >> 6;
+    constructed = ((tmpByte & 0x20) != 0);
+    tagNumber = tmpByte & 0x1F;
+
+    if (tagNumber == 0x1F)
+    {
+      // Long tag encoded as sequence of 7-bit values
+      tagNumber = 0;
+
+      do
+      {
+        if (tagNumber > (Integer.MAX_VALUE >> 7))
+        {
+          throw new ASN1Exception("Tag too long at offset <" + headerOffset + ">");
+        }
+
+        tmpByte = readByte(position++, tmpLimit);
+        tagNumber = (tagNumber << 7) | (tmpByte & 0x7F);
+      } while ((tmpByte & 0x80) != 0);
+    }
+
+    // Read the length
+    tmpByte = readByte(position++, tmpLimit);
+
+    if (tmpByte == 0x80)
+    {
+      if (!constructed)
+      {
+        throw new ASN1Exception("Indefinite length of primitive at offset <" + headerOffset + ">");
+      }
+
+      length = -1;
+    }
+    else if ((tmpByte & 0x80) != 0)
+    {
+      // This is a multibyte length
+      tmpLengthBytes = tmpByte & 0x7F;
+
+      if (tmpLengthBytes > 4)
+      {
+        throw new ASN1Exception("Length cannot be represented as a Java int at offset <" + headerOffset + ">");
+      }
+
+      length = 0;
+
+      for (int idx = 0; idx < tmpLengthBytes; idx++)
+      {
+        length = (length << 8) | readByte(position++, tmpLimit);
+      }
+
+      if (length < 0)
+      {
+        throw new ASN1Exception("Length cannot be represented as a Java int at offset <" + headerOffset + ">");
+      }
+    }
+    else
+    {
+      length = tmpByte;
+    }
+
+    valueOffset = position;
+
+    if ((length > 0) && (length > tmpLimit - valueOffset))
+    {
+      throw new ASN1Exception("Element at offset <" + headerOffset + "> runs past the end of its content");
+    }
+
+    hasElement = true;
+
+    return true;
+  }
+
+ /**
+  * Enter the current constructed element, so that next() walks its content.
+  *
+  * @throws ASN1Exception If the current element is not constructed
+  */
+  public void enter() throws ASN1Exception
+  {
+    if (!hasElement || !constructed)
+    {
+      throw new ASN1Exception("No constructed element to enter");
+    }
+
+    if (depth + 1 == levelLimit.length)
+    {
+      levelLimit = Arrays.copyOf(levelLimit, levelLimit.length * 2);
+      levelIndefinite = Arrays.copyOf(levelIndefinite, levelIndefinite.length * 2);
+    }
+
+    if (length < 0)
+    {
+      // ends at the end of contents, but not beyond the enclosing level
+      levelLimit[depth + 1] = levelLimit[depth];
+      levelIndefinite[depth + 1] = true;
+    }
+    else
+    {
+      levelLimit[depth + 1] = valueOffset + length;
+      levelIndefinite[depth + 1] = false;
+    }
+
+    depth++;
+    position = valueOffset;
+    hasElement = false;
+    levelDone = false;
+  }
+
+ /**
+  * Go back to the enclosing level, passing over the rest of the content of the
+  * current level. The next call to next() moves to the element after the one
+  * that was entered.
+  *
+  * @throws ASN1Exception If we are at the outermost level
+  */
+  public void exit() throws ASN1Exception
+  {
+    if (depth == 0)
+    {
+      throw new ASN1Exception("Not inside a constructed element");
+    }
+
+    if (!levelDone)
+    {
+      if (levelIndefinite[depth])
+      {
+        // We have to find the end of contents
+        while (next())
+        {
+          // skip
+        }
+      }
+      else
+      {
+        position = levelLimit[depth];
+      }
+    }
+
+    depth--;
+    hasElement = false;
+    levelDone = false;
+  }
+
+ /**
+  * Move the position past the current element.
+  */
+  private void skipElement() throws ASN1Exception
+  {
+    if (length < 0)
+    {
+      enter();
+      exit();
+    }
+    else
+    {
+      position = valueOffset + length;
+      hasElement = false;
+    }
+  }
+
+ /**
+  * Read an unsigned byte, checking that it is inside the level.
+  */
+  private int readByte(int index, int limit) throws ASN1Exception
+  {
+    if (index >= limit)
+    {
+      throw new ASN1Exception("Element at offset <" + headerOffset + "> runs past the end of its content");
+    }
+
+    return buffer.get(index) & 0xFF;
+  }
+
+ /**
+  * Check that there is a primitive element to decode.
+  */
+  private void checkPrimitive() throws ASN1Exception
+  {
+    if (!hasElement || constructed)
+    {
+      throw new ASN1Exception("No primitive element to decode");
+    }
+  }
+
+ /**
+  * Find out whether there is more data at the current level.
+  *
+  * @return true if there is more data, otherwise false
+  */
+  public boolean ready()
+  {
+    return (!levelDone) && (position < levelLimit[depth]);
+  }
+
+ /**
+  * Get the number of constructed elements we have entered.
+  *
+  * @return The depth, 0 at the outermost level
+  */
+  public int getDepth()
+  {
+    return depth;
+  }
+
+ /**
+  * Get the class of the current element.
+  *
+  * @return One of the class constants
+  */
+  public int getTagClass()
+  {
+    return tagClass;
+  }
+
+ /**
+  * Get the tag number of the current element, without the class and the
+  * constructed flag.
+  *
+  * @return The tag number
+  */
+  public int getTagNumber()
+  {
+    return tagNumber;
+  }
+
+ /**
+  * Find out whether the current element is constructed.
+  *
+  * @return true if constructed, false if primitive
+  */
+  public boolean isConstructed()
+  {
+    return constructed;
+  }
+
+ /**
+  * Get the length of the value of the current element.
+  *
+  * @return The length, or -1 if it is indefinite
+  */
+  public int getLength()
+  {
+    return length;
+  }
+
+ /**
+  * Get the offset in the buffer of the first byte of the current element.
+  *
+  * @return The offset of the header
+  */
+  public int getHeaderOffset()
+  {
+    return headerOffset;
+  }
+
+ /**
+  * Get the offset in the buffer of the value of the current element.
+  *
+  * @return The offset of the value
+  */
+  public int getValueOffset()
+  {
+    return valueOffset;
+  }
+
+ /**
+  * Get the offset in the buffer after the current element.
+  *
+  * @return The offset of the end, or -1 if the length is indefinite
+  */
+  public int getEndOffset()
+  {
+    return (length < 0) ? -1 : valueOffset + length;
+  }
+
+ /**
+  * Get a view of the value of the current element. The bytes are not copied.
+  *
+  * @return The value, with position 0 and limit at the length
+  * @throws ASN1Exception If the current element is not primitive
+  */
+  public ByteBuffer getValueBuffer() throws ASN1Exception
+  {
+    ByteBuffer tmpView;
+
+    checkPrimitive();
+    tmpView = buffer.duplicate();
+    tmpView.limit(valueOffset + length);
+    tmpView.position(valueOffset);
+
+    return tmpView.slice();
+  }
+
+ /**
+  * Copy the value of the current element into an array supplied by the
+  * caller, so that the array can be reused.
+  *
+  * @param dest The array to copy into
+  * @param offset The offset in the array to copy to
+  * @return The number of bytes copied
+  * @throws ASN1Exception If the current element is not primitive or the array is too small
+  */
+  public int getValue(byte[] dest, int offset) throws ASN1Exception
+  {
+    checkPrimitive();
+
+    if (dest.length - offset < length)
+    {
+      throw new ASN1Exception("Value of length <" + length + "> does not fit the array");
+    }
+
+    for (int idx = 0; idx < length; idx++)
+    {
+      dest[offset + idx] = buffer.get(valueOffset + idx);
+    }
+
+    return length;
+  }
+
+ /**
+  * Compare the value of the current element to the bytes given.
+  *
+  * @param expected The bytes to compare to
+  * @return true if the value is the same
+  * @throws ASN1Exception If the current element is not primitive
+  */
+  public boolean valueEquals(byte[] expected) throws ASN1Exception
+  {
+    checkPrimitive();
+
+    if (expected.length != length)
+    {
+      return false;
+    }
+
+    for (int idx = 0; idx < length; idx++)
+    {
+      if (buffer.get(valueOffset + idx) != expected[idx])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+ /**
+  * Decode the value of the current element as a two's complement integer.
+  *
+  * @return The value, 0 if the value is empty
+  * @throws ASN1Exception If the current element is not primitive or the value is longer than 8 bytes
+  */
+  public long getLong() throws ASN1Exception
+  {
+    long tmpValue;
+
+    checkPrimitive();
+
+    if (length == 0)
+    {
+      return 0;
+    }
+
+    if (length > 8)
+    {
+      throw new ASN1Exception("Integer at offset <" + headerOffset + "> cannot be represented as a Java long");
+    }
+
+    // the first byte carries the sign
+    tmpValue = buffer.get(valueOffset);
+
+    for (int idx = 1; idx < length; idx++)
+    {
+      tmpValue = (tmpValue << 8) | (buffer.get(valueOffset + idx) & 0xFF);
+    }
+
+    return tmpValue;
+  }
+
+ /**
+  * Decode the value of the current element as a two's complement integer.
+  *
+  * @return The value, 0 if the value is empty
+  * @throws ASN1Exception If the current element is not primitive or the value is longer than 4 bytes
+  */
+  public int getInt() throws ASN1Exception
+  {
+    checkPrimitive();
+
+    if (length > 4)
+    {
+      throw new ASN1Exception("Integer at offset <" + headerOffset + "> cannot be represented as a Java int");
+    }
+
+    return (int) getLong();
+  }
+
+ /**
+  * Decode the value of the current element as a boolean.
+  *
+  * @return false if the value is all zero, otherwise true
+  * @throws ASN1Exception If the current element is not primitive
+  */
+  public boolean getBoolean() throws ASN1Exception
+  {
+    checkPrimitive();
+
+    for (int idx = 0; idx < length; idx++)
+    {
+      if (buffer.get(valueOffset + idx) != 0)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+ /**
+  * Decode the value of the current element as a BCD string, appending the
+  * digits to a builder supplied by the caller. Padding nibbles (0xF) are
+  * removed, as in ASN1Parser.parseBCDString().
+  *
+  * @param output The builder to append to
+  * @param littleEndian true if the nibbles of each byte are reversed, à la Ericsson
+  * @throws ASN1Exception If the current element is not primitive
+  */
+  public void appendBCDString(StringBuilder output, boolean littleEndian) throws ASN1Exception
+  {
+    int tmpByte;
+    int tmpFirst;
+    int tmpSecond;
+
+    checkPrimitive();
+
+    for (int idx = 0; idx < length; idx++)
+    {
+      tmpByte = buffer.get(valueOffset + idx);
+
+      if (littleEndian)
+      {
+        tmpFirst = tmpByte & 0x0F;
+        tmpSecond = (tmpByte & 0xF0) >> 4;
+      }
+      else
+      {
+        tmpFirst = (tmpByte & 0xF0) >> 4;
+        tmpSecond = tmpByte & 0x0F;
+      }
+
+      if (tmpFirst != 0x0F)
+      {
+        output.append((char) (tmpFirst + '0'));
+      }
+
+      if (tmpSecond != 0x0F)
+      {
+        output.append((char) (tmpSecond + '0'));
+      }
+    }
+  }
+
+ /**
+  * Decode the value of the current element as a string of single byte
+  * characters (IA5, printable, visible, ISO 8859-1), appending it to a
+  * builder supplied by the caller.
+  *
+  * @param output The builder to append to
+  * @throws ASN1Exception If the current element is not primitive
+  */
+  public void appendString(StringBuilder output) throws ASN1Exception
+  {
+    checkPrimitive();
+
+    for (int idx = 0; idx < length; idx++)
+    {
+      output.append((char) (buffer.get(valueOffset + idx) & 0xFF));
+    }
+  }
+
+ /**
+  * Append the value of the current element as lower case hexadecimal to a
+  * builder supplied by the caller, as in ASN1Parser.parseBytes().
+  *
+  * @param output The builder to append to
+  * @throws ASN1Exception If the current element is not primitive
+  */
+  public void appendHex(StringBuilder output) throws ASN1Exception
+  {
+    int tmpByte;
+
+    checkPrimitive();
+
+    for (int idx = 0; idx < length; idx++)
+    {
+      tmpByte = buffer.get(valueOffset + idx);
+      output.append(Character.forDigit((tmpByte >> 4) & 0x0F, 16));
+      output.append(Character.forDigit(tmpByte & 0x0F, 16));
+    }
+  }
+}
@@ -7,16 +7,21 @@ import OpenRate.exception.InitializationException;
 import OpenRate.lang.BalanceGroup;
 import OpenRate.lang.Counter;
 import OpenRate.lang.DiscountInformation;
+import OpenRate.lang.Money;
 import OpenRate.record.BalanceImpact;
 import OpenRate.record.IRatingRecord;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
+import java.util.Arrays;
 
 /**
  * Now that we have the prioritised list of products and promotions, we can work
  * out the consuming of the balances that there might be, before we pass into
  * rating the values of what is left after consumption. This will decrement
  * balances, passing the results on for rating.
+ *
+ * Each balance operation holds the balance lock of the balance group it works
+ * on, so the plug in can be run with several threads.
  */
 public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactionalPlugIn {
 
@@ -28,6 +33,10 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
    */
   protected BalanceCache BC;
 
+  // The counters which hold money, and which we update with fixed point
+  // arithmetic, sorted for the search
+  private int[] fixedPointCounters = new int[0];
+
   /**
    * The discount flag tells us what the discounting module did. The value
    * DISCOUNT_FLAG_NO_DISCOUNT tells us that the discount was not applied.
@@ -113,6 +122,78 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
       throw new InitializationException("Could not find cache entry for <"
               + CacheObjectName + ">", getSymbolicName());
     }
+
+    // See which counters hold money, and are kept exact in fixed point
+    fixedPointCounters = getCounterList(PropertyUtils.getPropertyUtils().getPluginPropertyValueDef(pipelineName,
+            moduleName,
+            "FixedPointCounters",
+            ""));
+  }
+
+  /**
+   * Parse a comma separated list of counter ids.
+   *
+   * @param counterList The list of counter ids
+   * @return The counter ids, sorted
+   * @throws InitializationException
+   */
+  private int[] getCounterList(String counterList) throws InitializationException {
+    String message;
+    String[] counterIds;
+    int[] result;
+
+    if (counterList.trim().isEmpty()) {
+      return new int[0];
+    }
+
+    counterIds = counterList.split(",");
+    result = new int[counterIds.length];
+
+    for (int i = 0; i < counterIds.length; i++) {
+      try {
+        result[i] = Integer.parseInt(counterIds[i].trim());
+      } catch (NumberFormatException nfe) {
+        message = "Counter id <" + counterIds[i] + "> in FixedPointCounters is not a number in module <" + getSymbolicName() + ">";
+        throw new InitializationException(message, getSymbolicName());
+      }
+    }
+
+    Arrays.sort(result);
+
+    return result;
+  }
+
+  /**
+   * Add an amount to a balance. For the counters listed in FixedPointCounters,
+   * which hold money, this is done exactly in fixed point, so that balances
+   * which have many small impacts do not drift. Other counters hold RUM
+   * quantities, which are not rounded to the fixed point scale. Amounts which
+   * are out of the fixed point range are added as they are.
+   *
+   * @param counterId The counter the balance belongs to
+   * @param balance The balance
+   * @param delta The amount to add
+   * @return The new balance
+   */
+  protected double adjustBalance(int counterId, double balance, double delta) {
+    if (isFixedPointCounter(counterId) &&
+        Money.isInRange(balance) && Money.isInRange(delta)) {
+      return Money.add(balance, delta);
+    }
+
+    return balance + delta;
+  }
+
+  /**
+   * Check if a counter is listed in FixedPointCounters, and so holds money
+   * which is kept exact in fixed point.
+   *
+   * @param counterId The counter to check
+   * @return true if the counter is kept in fixed point
+   */
+  protected boolean isFixedPointCounter(int counterId) {
+    return fixedPointCounters.length > 0 &&
+           Arrays.binarySearch(fixedPointCounters, counterId) >= 0;
   }
 
   // -----------------------------------------------------------------------------
@@ -145,24 +226,26 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
 
   /**
    * Called when the underlying transaction is commanded to commit that means to
-   * fix any data and finish.
+   * fix any data and finish. The balances changed in the transaction are
+   * written to the balance journal, if one is configured.
    *
    * @param transactionNumber The number of the transaction
    */
   @Override
   public void commitTransaction(int transactionNumber) {
-    // NOP
+    BC.commitTransactionBalances(transactionNumber);
   }
 
   /**
    * Called when the underlying transaction is commanded to roll back, that
-   * means to undo any data and finish.
+   * means to undo any data and finish. The balances changed in the
+   * transaction are not written to the balance journal for it.
    *
    * @param transactionNumber The number of the transaction
    */
   @Override
   public void rollbackTransaction(int transactionNumber) {
-    // NOP
+    BC.rollbackTransactionBalances(transactionNumber);
   }
 
   /**
@@ -305,76 +388,41 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
 
     DiscountInformation tmpReturnInfo = new DiscountInformation();
 
-    tmpRUMValue = currentRecord.getRUMValue(rumToUse);
-    Counter tmpCounter = checkCounterExists(balanceGroupId, counterId, currentRecord.getUTCEventDate());
-
-    if (tmpCounter == null) {
-      tmpCounter = addCounter(balanceGroupId, counterId, utcBalanceStartValidity, UTCBalanceEndValidity, initialBalance);
-
-      // Add the balance impact
-      tmpBalImpact = new BalanceImpact();
-      tmpBalImpact.type = "D";
-      tmpBalImpact.balanceGroup = balanceGroupId;
-      tmpBalImpact.cpiName = discountName;
-      tmpBalImpact.ruleName = "CREATION";
-      tmpBalImpact.rumUsed = rumToUse;
-      tmpBalImpact.counterID = counterId;
-      tmpBalImpact.recID = tmpCounter.RecId;
-      tmpBalImpact.rumValueAfter = 0.0;
-      tmpBalImpact.rumValueUsed = 0;
-      tmpBalImpact.balanceAfter = initialBalance;
-      tmpBalImpact.balanceDelta = initialBalance;
-      tmpBalImpact.startDate = utcBalanceStartValidity;
-      tmpBalImpact.endDate = UTCBalanceEndValidity;
-
-      // If we create a counter, always report it back
-      currentRecord.addBalanceImpact(tmpBalImpact);
-      tmpReturnInfo.setBalanceCreated(true);
-    }
-
-    // see if we have used up all of the counter
-    if (tmpRUMValue > tmpCounter.CurrentBalance) {
-      // we are crossing a threshold
-      tmpDiscount = tmpCounter.CurrentBalance;
-      currentRecord.updateRUMValue(rumToUse, -tmpCounter.CurrentBalance);
-      double oldBal = tmpCounter.CurrentBalance;
-      tmpCounter.CurrentBalance = 0;
-
-      // Add the balance impact
-      tmpBalImpact = new BalanceImpact();
-      tmpBalImpact.type = "D";
-      tmpBalImpact.balanceGroup = balanceGroupId;
-      tmpBalImpact.cpiName = discountName;
-      tmpBalImpact.ruleName = "Consume" + rumToUse;
-      tmpBalImpact.rumUsed = rumToUse;
-      tmpBalImpact.counterID = counterId;
-      tmpBalImpact.recID = tmpCounter.RecId;
-      tmpBalImpact.rumValueAfter = currentRecord.getRUMValue(rumToUse);
-      tmpBalImpact.rumValueUsed = tmpDiscount;
-      tmpBalImpact.balanceAfter = 0;
-      tmpBalImpact.balanceDelta = tmpBalImpact.balanceAfter - oldBal;
-      tmpBalImpact.startDate = tmpCounter.validFrom;
-      tmpBalImpact.endDate = tmpCounter.validTo;
-
-      if (tmpBalImpact.balanceDelta != 0) {
-        // Prepare the return value
-        tmpReturnInfo.setDiscountApplied(true);
-        tmpReturnInfo.setCounterId(counterId);
-        tmpReturnInfo.setRecId(tmpCounter.RecId);
-        tmpReturnInfo.setDiscountedValue(tmpDiscount);
-        tmpReturnInfo.setNewBalanceValue(0);            // was implicitly 0, now explicit
-
-        // Set the discount flag to "threshold crossing"
-        tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_PARTIALLY_DISCOUNTED);
-
+    // Hold the balance group for the whole read-modify-write, so that other
+    // threads working on the same balance group do not lose our update
+    synchronized (BC.getBalanceLock(balanceGroupId))
+    {
+      tmpRUMValue = currentRecord.getRUMValue(rumToUse);
+      Counter tmpCounter = checkCounterExists(balanceGroupId, counterId, currentRecord.getUTCEventDate());
+
+      if (tmpCounter == null) {
+        tmpCounter = addCounter(balanceGroupId, counterId, utcBalanceStartValidity, UTCBalanceEndValidity, initialBalance);
+
+        // Add the balance impact
+        tmpBalImpact = new BalanceImpact();
+        tmpBalImpact.type = "D";
+        tmpBalImpact.balanceGroup = balanceGroupId;
+        tmpBalImpact.cpiName = discountName;
+        tmpBalImpact.ruleName = "CREATION";
+        tmpBalImpact.rumUsed = rumToUse;
+        tmpBalImpact.counterID = counterId;
+        tmpBalImpact.recID = tmpCounter.RecId;
+        tmpBalImpact.rumValueAfter = 0.0;
+        tmpBalImpact.rumValueUsed = 0;
+        tmpBalImpact.balanceAfter = initialBalance;
+        tmpBalImpact.balanceDelta = initialBalance;
+        tmpBalImpact.startDate = utcBalanceStartValidity;
+        tmpBalImpact.endDate = UTCBalanceEndValidity;
+
+        // If we create a counter, always report it back
         currentRecord.addBalanceImpact(tmpBalImpact);
+        tmpReturnInfo.setBalanceCreated(true);
       }
-    } else {
-      // we are just decrementing the counter, using all of the impact
+
+      // consume what we can from the counter, up to what it has left
       double oldBal = tmpCounter.CurrentBalance;
-      tmpCounter.CurrentBalance -= tmpRUMValue;
-      tmpDiscount = tmpRUMValue;
-      currentRecord.updateRUMValue(rumToUse, -currentRecord.getRUMValue(rumToUse));
+      tmpDiscount = BC.consumeCounter(balanceGroupId, tmpCounter, tmpRUMValue, getTransactionNumber(), isFixedPointCounter(counterId));
+      currentRecord.updateRUMValue(rumToUse, -tmpDiscount);
 
       // Add the balance impact
       tmpBalImpact = new BalanceImpact();
@@ -385,10 +433,10 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
       tmpBalImpact.rumUsed = rumToUse;
       tmpBalImpact.counterID = counterId;
       tmpBalImpact.recID = tmpCounter.RecId;
-      tmpBalImpact.rumValueAfter = 0.0;
+      tmpBalImpact.rumValueAfter = currentRecord.getRUMValue(rumToUse);
       tmpBalImpact.rumValueUsed = tmpDiscount;
       tmpBalImpact.balanceAfter = tmpCounter.CurrentBalance;
-      tmpBalImpact.balanceDelta = tmpBalImpact.balanceAfter - oldBal;
+      tmpBalImpact.balanceDelta = adjustBalance(counterId, tmpBalImpact.balanceAfter, -oldBal);
       tmpBalImpact.startDate = tmpCounter.validFrom;
       tmpBalImpact.endDate = tmpCounter.validTo;
 
@@ -400,9 +448,14 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
         tmpReturnInfo.setDiscountedValue(tmpDiscount);
         tmpReturnInfo.setNewBalanceValue(tmpCounter.CurrentBalance);
 
-        // Set the discount flag to "fully discounted"
-        tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_FULLY_DISCOUNTED);
-        
+        if (tmpRUMValue > oldBal) {
+          // Set the discount flag to "threshold crossing"
+          tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_PARTIALLY_DISCOUNTED);
+        } else {
+          // Set the discount flag to "fully discounted"
+          tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_FULLY_DISCOUNTED);
+        }
+
         currentRecord.addBalanceImpact(tmpBalImpact);
       }
     }
@@ -443,53 +496,51 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
 
     DiscountInformation tmpReturnInfo = new DiscountInformation();
 
-    tmpRUMValue = currentRecord.getRUMValue(rumToUse);
-    Counter tmpCounter = checkCounterExists(balanceGroupId, counterId, currentRecord.getUTCEventDate());
+    // Hold the balance group while we update it
+    synchronized (BC.getBalanceLock(balanceGroupId))
+    {
+      tmpRUMValue = currentRecord.getRUMValue(rumToUse);
+      Counter tmpCounter = checkCounterExists(balanceGroupId, counterId, currentRecord.getUTCEventDate());
 
-    if (tmpCounter == null) {
-      // can't refund onto a non-existent counter
-      return null;
-    }
+      if (tmpCounter == null) {
+        // can't refund onto a non-existent counter
+        return null;
+      }
 
-    // we give the value back
-    if ((tmpCounter.CurrentBalance + tmpRUMValue) > initialBalance) {
-      // we can't go over the initial value, so limit what we refund
-      tmpRUMValue = initialBalance - tmpCounter.CurrentBalance;
-    }
+      // we give the value back, but not over the initial value
+      tmpDiscount = BC.refundCounter(balanceGroupId, tmpCounter, tmpRUMValue, initialBalance, getTransactionNumber(), isFixedPointCounter(counterId));
 
-    tmpCounter.CurrentBalance += tmpRUMValue;
-    tmpDiscount = tmpRUMValue;
-
-    // Add the balance impact
-    tmpBalImpact = new BalanceImpact();
-    tmpBalImpact.type = "D";
-    tmpBalImpact.balanceGroup = balanceGroupId;
-    tmpBalImpact.cpiName = discountName;
-    tmpBalImpact.ruleName = "Refund" + rumToUse;
-    tmpBalImpact.rumUsed = rumToUse;
-    tmpBalImpact.counterID = counterId;
-    tmpBalImpact.recID = tmpCounter.RecId;
-    tmpBalImpact.rumValueAfter = tmpCounter.CurrentBalance;
-    tmpBalImpact.rumValueUsed = currentRecord.getRUMValue(rumToUse);
-    tmpBalImpact.balanceAfter = tmpCounter.CurrentBalance;
-    tmpBalImpact.balanceDelta = tmpDiscount;
-    tmpBalImpact.startDate = tmpCounter.validFrom;
-    tmpBalImpact.endDate = tmpCounter.validTo;
-
-    if (tmpBalImpact.balanceDelta != 0) {
-      tmpReturnInfo.setDiscountApplied(true);
+      // Add the balance impact
+      tmpBalImpact = new BalanceImpact();
+      tmpBalImpact.type = "D";
+      tmpBalImpact.balanceGroup = balanceGroupId;
+      tmpBalImpact.cpiName = discountName;
+      tmpBalImpact.ruleName = "Refund" + rumToUse;
+      tmpBalImpact.rumUsed = rumToUse;
+      tmpBalImpact.counterID = counterId;
+      tmpBalImpact.recID = tmpCounter.RecId;
+      tmpBalImpact.rumValueAfter = tmpCounter.CurrentBalance;
+      tmpBalImpact.rumValueUsed = currentRecord.getRUMValue(rumToUse);
+      tmpBalImpact.balanceAfter = tmpCounter.CurrentBalance;
+      tmpBalImpact.balanceDelta = tmpDiscount;
+      tmpBalImpact.startDate = tmpCounter.validFrom;
+      tmpBalImpact.endDate = tmpCounter.validTo;
 
-      currentRecord.addBalanceImpact(tmpBalImpact);
+      if (tmpBalImpact.balanceDelta != 0) {
+        tmpReturnInfo.setDiscountApplied(true);
 
-      // Prepare the return value
-      tmpReturnInfo.setDiscountApplied(true);
-      tmpReturnInfo.setCounterId(counterId);
-      tmpReturnInfo.setRecId(tmpCounter.RecId);
-      tmpReturnInfo.setDiscountedValue(tmpDiscount);
-      tmpReturnInfo.setNewBalanceValue(tmpCounter.CurrentBalance);
+        currentRecord.addBalanceImpact(tmpBalImpact);
 
-      // Set the discount flag to "refund"
-      tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_REFUNDED);
+        // Prepare the return value
+        tmpReturnInfo.setDiscountApplied(true);
+        tmpReturnInfo.setCounterId(counterId);
+        tmpReturnInfo.setRecId(tmpCounter.RecId);
+        tmpReturnInfo.setDiscountedValue(tmpDiscount);
+        tmpReturnInfo.setNewBalanceValue(tmpCounter.CurrentBalance);
+
+        // Set the discount flag to "refund"
+        tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_REFUNDED);
+      }
     }
 
     return tmpReturnInfo;
@@ -535,66 +586,71 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
 
     DiscountInformation tmpReturnInfo = new DiscountInformation();
 
-    tmpRUMValue = currentRecord.getRUMValue(rumToUse);
-    Counter tmpCounter = checkCounterExists(balanceGroupId, counterId, currentRecord.getUTCEventDate());
+    // Hold the balance group while we update it
+    synchronized (BC.getBalanceLock(balanceGroupId))
+    {
+      tmpRUMValue = currentRecord.getRUMValue(rumToUse);
+      Counter tmpCounter = checkCounterExists(balanceGroupId, counterId, currentRecord.getUTCEventDate());
+
+      if (tmpCounter == null) {
+        tmpCounter = addCounter(balanceGroupId, counterId, utcBalanceStartValidity, UTCBalanceEndValidity, initialBalance);
+
+        // Add the balance impact
+        tmpBalImpact = new BalanceImpact();
+        tmpBalImpact.type = "D";
+        tmpBalImpact.balanceGroup = balanceGroupId;
+        tmpBalImpact.cpiName = discountName;
+        tmpBalImpact.ruleName = "CREATION";
+        tmpBalImpact.rumUsed = rumToUse;
+        tmpBalImpact.counterID = counterId;
+        tmpBalImpact.recID = tmpCounter.RecId;
+        tmpBalImpact.rumValueAfter = 0.0;
+        tmpBalImpact.rumValueUsed = 0;
+        tmpBalImpact.balanceAfter = initialBalance;
+        tmpBalImpact.balanceDelta = initialBalance;
+        tmpBalImpact.startDate = utcBalanceStartValidity;
+        tmpBalImpact.endDate = UTCBalanceEndValidity;
 
-    if (tmpCounter == null) {
-      tmpCounter = addCounter(balanceGroupId, counterId, utcBalanceStartValidity, UTCBalanceEndValidity, initialBalance);
+        currentRecord.addBalanceImpact(tmpBalImpact);
+
+        tmpReturnInfo.setBalanceCreated(true);
+      }
+
+      // now that we are sure we have a balance, update it
+      tmpCounter.CurrentBalance = adjustBalance(counterId, tmpCounter.CurrentBalance, tmpRUMValue);
+      BC.markBalanceGroupDirty(balanceGroupId, getTransactionNumber());
+      tmpDiscount = tmpRUMValue;
+      tmpReturnInfo.setDiscountApplied(true);
 
       // Add the balance impact
       tmpBalImpact = new BalanceImpact();
       tmpBalImpact.type = "D";
       tmpBalImpact.balanceGroup = balanceGroupId;
       tmpBalImpact.cpiName = discountName;
-      tmpBalImpact.ruleName = "CREATION";
+      tmpBalImpact.ruleName = "Aggregate" + rumToUse;
       tmpBalImpact.rumUsed = rumToUse;
       tmpBalImpact.counterID = counterId;
       tmpBalImpact.recID = tmpCounter.RecId;
-      tmpBalImpact.rumValueAfter = 0.0;
-      tmpBalImpact.rumValueUsed = 0;
-      tmpBalImpact.balanceAfter = initialBalance;
-      tmpBalImpact.balanceDelta = initialBalance;
-      tmpBalImpact.startDate = utcBalanceStartValidity;
-      tmpBalImpact.endDate = UTCBalanceEndValidity;
-
-      currentRecord.addBalanceImpact(tmpBalImpact);
+      tmpBalImpact.rumValueAfter = tmpRUMValue;
+      tmpBalImpact.rumValueUsed = tmpRUMValue;
+      tmpBalImpact.balanceAfter = tmpCounter.CurrentBalance;
+      tmpBalImpact.balanceDelta = tmpDiscount;
+      tmpBalImpact.startDate = tmpCounter.validFrom;
+      tmpBalImpact.endDate = tmpCounter.validTo;
 
-      tmpReturnInfo.setBalanceCreated(true);
-    }
+      if (tmpBalImpact.balanceDelta != 0) {
+        currentRecord.addBalanceImpact(tmpBalImpact);
 
-    // now that we are sure we have a balance, update it
-    tmpCounter.CurrentBalance += tmpRUMValue;
-    tmpDiscount = tmpRUMValue;
-    tmpReturnInfo.setDiscountApplied(true);
-
-    // Add the balance impact
-    tmpBalImpact = new BalanceImpact();
-    tmpBalImpact.type = "D";
-    tmpBalImpact.balanceGroup = balanceGroupId;
-    tmpBalImpact.cpiName = discountName;
-    tmpBalImpact.ruleName = "Aggregate" + rumToUse;
-    tmpBalImpact.rumUsed = rumToUse;
-    tmpBalImpact.counterID = counterId;
-    tmpBalImpact.recID = tmpCounter.RecId;
-    tmpBalImpact.rumValueAfter = tmpRUMValue;
-    tmpBalImpact.rumValueUsed = tmpRUMValue;
-    tmpBalImpact.balanceAfter = tmpCounter.CurrentBalance;
-    tmpBalImpact.balanceDelta = tmpDiscount;
-    tmpBalImpact.startDate = tmpCounter.validFrom;
-    tmpBalImpact.endDate = tmpCounter.validTo;
-
-    if (tmpBalImpact.balanceDelta != 0) {
-      currentRecord.addBalanceImpact(tmpBalImpact);
-
-      // Prepare the return value
-      tmpReturnInfo.setDiscountApplied(true);
-      tmpReturnInfo.setCounterId(counterId);
-      tmpReturnInfo.setRecId(tmpCounter.RecId);
-      tmpReturnInfo.setDiscountedValue(tmpDiscount);
-      tmpReturnInfo.setNewBalanceValue(tmpCounter.CurrentBalance);
+        // Prepare the return value
+        tmpReturnInfo.setDiscountApplied(true);
+        tmpReturnInfo.setCounterId(counterId);
+        tmpReturnInfo.setRecId(tmpCounter.RecId);
+        tmpReturnInfo.setDiscountedValue(tmpDiscount);
+        tmpReturnInfo.setNewBalanceValue(tmpCounter.CurrentBalance);
 
-      // Set the discount flag to "aggregate"
-      tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_AGGREGATED);
+        // Set the discount flag to "aggregate"
+        tmpReturnInfo.setDiscountFlag(DISCOUNT_FLAG_AGGREGATED);
+      }
     }
 
     return tmpReturnInfo;
@@ -22,6 +22,16 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
   // The assembly cache
   private CallAssemblyCache AssemblyDB;
 
+  // Passes the expired contexts to the hook
+  private final CallAssemblyCache.AssemblyExpiryListener expiryListener = new CallAssemblyCache.AssemblyExpiryListener()
+  {
+    @Override
+    public void assemblyExpired(String CallID, AssemblyCtx ctx)
+    {
+      AbstractCallAssembly.this.assemblyExpired(CallID, ctx);
+    }
+  };
+
   // -----------------------------------------------------------------------------
   // ------------------ Start of inherited Plug In functions ---------------------
   // -----------------------------------------------------------------------------
@@ -99,11 +109,15 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
       newCtx.uplink = uplink;
       newCtx.downlink = downlink;
       newCtx.StartDate = startDate;
+      newCtx.LastDate = startDate;
       newCtx.state = 1;
 
       // store
       AssemblyDB.putObject(CallID, newCtx);
 
+      // the date of the partial moves the expiry time on
+      expireAssemblies(startDate);
+
       return true;
     }
     else
@@ -146,16 +160,30 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
       }
       else
       {
-        newCtx.totalDuration += Duration;
-        newCtx.totalData += Volume;
-        newCtx.uplink += uplink;
-        newCtx.downlink += downlink;
-        newCtx.state = 2;
-
-        // update the date
-        if (startDate < newCtx.StartDate)
+        // the context is changed in place, so keep snapshots off it
+        AssemblyDB.beginObjectChange();
+        try
+        {
+          newCtx.totalDuration += Duration;
+          newCtx.totalData += Volume;
+          newCtx.uplink += uplink;
+          newCtx.downlink += downlink;
+          newCtx.state = 2;
+
+          // update the date
+          if (startDate < newCtx.StartDate)
+          {
+            newCtx.StartDate = startDate;
+          }
+
+          if (startDate > newCtx.LastDate)
+          {
+            newCtx.LastDate = startDate;
+          }
+        }
+        finally
         {
-          newCtx.StartDate = startDate;
+          AssemblyDB.endObjectChange(CallID);
         }
       }
     }
@@ -163,6 +191,9 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
     // store
     AssemblyDB.putObject(CallID, newCtx);
 
+    // the date of the partial moves the expiry time on
+    expireAssemblies(startDate);
+
     return true;
   }
 
@@ -200,18 +231,30 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
       }
       else
       {
-        newCtx.totalDuration += Duration;
-        newCtx.totalData += Volume;
-        newCtx.uplink += uplink;
-        newCtx.downlink += downlink;
-        newCtx.state = 3;
-        newCtx.ClosedDate = startDate;
+        // the context is changed in place, so keep snapshots off it
+        AssemblyDB.beginObjectChange();
+        try
+        {
+          newCtx.totalDuration += Duration;
+          newCtx.totalData += Volume;
+          newCtx.uplink += uplink;
+          newCtx.downlink += downlink;
+          newCtx.state = 3;
+          newCtx.ClosedDate = startDate;
+        }
+        finally
+        {
+          AssemblyDB.endObjectChange(CallID);
+        }
       }
     }
 
     // store
     AssemblyDB.putObject(CallID, newCtx);
 
+    // the date of the partial moves the expiry time on
+    expireAssemblies(startDate);
+
     return true;
   }
 
@@ -290,4 +333,32 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
       return newCtx.StartDate;
     }
   }
+
+ /**
+  * Move the expiry time of the assembly cache on to the date given, removing
+  * the contexts that have expired. This is done with the date of each partial
+  * that is assembled, but can also be called directly, for example with the
+  * date of a file which has no partials.
+  *
+  * @param now The UTC date in seconds
+  * @return The number of contexts removed
+  */
+  protected int expireAssemblies(long now)
+  {
+    return AssemblyDB.expireAssemblies(now, expiryListener);
+  }
+
+ /**
+  * Called for each open context which expires because no partial arrived for
+  * the open timeout, usually because the closing partial was lost. The
+  * context has already been removed from the cache. By default nothing is
+  * done, but this can be overwritten to emit what was assembled of the call.
+  *
+  * @param CallID The call identifier
+  * @param ctx The expired context
+  */
+  protected void assemblyExpired(String CallID, AssemblyCtx ctx)
+  {
+    // nothing by default
+  }
 }
@@ -5,10 +5,13 @@ package OpenRate.process;
 import OpenRate.cache.CustomerCache;
 import OpenRate.cache.ICacheManager;
 import OpenRate.exception.InitializationException;
+import OpenRate.exception.ProcessingException;
 import OpenRate.lang.ProductList;
 import OpenRate.record.IRecord;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
+import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * This class is a somewhat degenerate example of a Filter, but it does show how
@@ -102,6 +105,68 @@ public abstract class AbstractCustomerLookup
     return null;
   }
 
+ /**
+  * If the customer cache loads on demand, load the accounts of all of the
+  * aliases in the batch with as few queries as possible, instead of one per
+  * record. The aliases are given by getPrefetchAlias(). A failure is only
+  * logged, as each record will try to load its account again.
+  *
+  * @param in The batch of records that is about to be processed
+  * @throws ProcessingException
+  */
+  @Override
+  protected void preProcessBatch(Collection<IRecord> in) throws ProcessingException
+  {
+    ArrayList<String> tmpAliases;
+    String tmpAlias;
+
+    if (!CC.isReadThrough())
+    {
+      return;
+    }
+
+    tmpAliases = new ArrayList<>(in.size());
+
+    for (IRecord r : in)
+    {
+      if (r.isValid())
+      {
+        tmpAlias = getPrefetchAlias(r);
+
+        if (tmpAlias != null)
+        {
+          tmpAliases.add(tmpAlias);
+        }
+      }
+    }
+
+    if (tmpAliases.size() > 0)
+    {
+      try
+      {
+        CC.prefetchAliases(tmpAliases);
+      }
+      catch (ProcessingException ex)
+      {
+        getPipeLog().warning("Could not prefetch <" + tmpAliases.size() + "> aliases in <" + getSymbolicName() + ">. message: <" + ex.getMessage() + ">");
+      }
+    }
+  }
+
+ /**
+  * Get the alias that the record will be looked up with, so that it can be
+  * loaded along with the rest of the batch when the customer cache loads on
+  * demand. Returns null by default, which means no prefetch, so implementation
+  * classes should overwrite this to benefit from the batch loading.
+  *
+  * @param r The record
+  * @return The alias, or null if there is none
+  */
+  protected String getPrefetchAlias(IRecord r)
+  {
+    return null;
+  }
+
   // -----------------------------------------------------------------------------
   // ------------------------ Start of custom functions --------------------------
   // -----------------------------------------------------------------------------
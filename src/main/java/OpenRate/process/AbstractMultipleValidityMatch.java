@@ -147,6 +147,37 @@ public abstract class AbstractMultipleValidityMatch extends AbstractPlugIn
     return MV.getAllValidityMatchesWithChildData(group, resourceID, eventTime);
   }
 
+ /**
+  * This fills the list given with the validity segment matches, re-using the
+  * list instead of allocating a new one for each lookup
+  *
+  * @param group The regular expression group to search
+  * @param resourceID The resource id to get the match for
+  * @param eventTime the UTC event date to match for
+  * @param matches The list to fill, cleared first
+  * @return The number of matches
+  */
+  public int getAllValidityMatches(String group, String resourceID, long eventTime, ArrayList<String> matches)
+  {
+    return MV.getAllValidityMatches(group, resourceID, eventTime, matches);
+  }
+
+ /**
+  * This fills the list given with the validity segment matches with their
+  * child data, re-using the list instead of allocating a new one for each
+  * lookup
+  *
+  * @param group The regular expression group to search
+  * @param resourceID The resource ID to search for
+  * @param eventTime The UTC event time to search at
+  * @param matches The list to fill, cleared first
+  * @return The number of matches
+  */
+  public int getAllValidityMatchesWithChildData(String group, String resourceID, long eventTime, ArrayList<ArrayList<String>> matches)
+  {
+    return MV.getAllValidityMatchesWithChildData(group, resourceID, eventTime, matches);
+  }
+
  /**
    * checks if the lookup result is valid or not
    *
@@ -124,6 +124,17 @@ public abstract class AbstractPersistentObjectProcess extends AbstractStubPlugIn
     ObjectDB.putObject(ObjectKey, objectToPut);
   }
 
+ /**
+  * Mark an object that has been changed in place as changed, so that the
+  * change is saved with the next background save of the cache
+  *
+  * @param ObjectKey The index of the object
+  */
+  public void markObjectChanged(String ObjectKey)
+  {
+    ObjectDB.markObjectChanged(ObjectKey);
+  }
+
  /**
   * See if an key exists in the cache
   *
@@ -212,6 +212,19 @@ public abstract class AbstractPlugIn
         // if it is not set, we only manage the transaction
         if (    isActive())
         {
+          // Let the plug in look at the whole batch first
+          try
+          {
+            preProcessBatch(in);
+          }
+          catch (ProcessingException pe)
+          {
+            getPipeLog().error("Processing exception caught in batch preparation of Plug In <" +
+                        getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+            getExceptionHandler().reportException(pe);
+          }
+
           // Active loop
           iter = in.iterator();
 
@@ -623,6 +636,20 @@ public abstract class AbstractPlugIn
   */
   public abstract IRecord procTrailer(IRecord r);
 
+ /**
+  * This is called with each batch of records before they are processed one by
+  * one. By default it does nothing, but it can be overwritten to prepare for
+  * the whole batch at once, for example to load the cache data that the
+  * records will need with a single query instead of one query per record.
+  *
+  * @param in The batch of records that is about to be processed
+  * @throws ProcessingException
+  */
+  protected void preProcessBatch(Collection<IRecord> in) throws ProcessingException
+  {
+    // nothing by default
+  }
+
  /**
   * This is called when a RT data record is encountered. You should do any normal
   * processing here. For most purposes this is steered to the normal (batch)
@@ -5,6 +5,8 @@ import OpenRate.cache.ICacheManager;
 import OpenRate.cache.RUMRateCache;
 import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
+import OpenRate.lang.Money;
+import OpenRate.lang.MoneyRounding;
 import OpenRate.record.*;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
@@ -34,6 +36,13 @@ import java.util.ArrayList;
  You can obtain a rating breakdown (which provides exact details of the steps
  and tiers used to calculate the charge) by enabling the standard rating
  record field "createBreakdown" boolean value to true.
+
+ Price models which the cache has compiled are rated directly from the
+ compiled form, without going through the rate evaluation methods. A plug in
+ which overrides any of "performRateEvaluationTiered",
+ "performRateEvaluationThreshold", "performRateEvaluationFlat",
+ "performRateEvaluationEvent" or "getRateModelEntryForTime" does not use the
+ compiled models, so that its own rate evaluation is always used.
  */
 public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
 
@@ -47,6 +56,10 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
   // parent module for handling
   private boolean reportExceptions = false;
 
+  // whether we can rate from the compiled price models, which we can't if the
+  // rate evaluation has been overridden
+  private boolean useCompiledModels = false;
+
   // -----------------------------------------------------------------------------
   // ------------------ Start of inherited Plug In functions ---------------------
   // -----------------------------------------------------------------------------
@@ -93,6 +106,9 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
       message = "<" + CacheObjectName + "> is not an instance of RUMRateCache. Aborting.";
       throw new InitializationException(message, getSymbolicName());
     }
+
+    // The compiled models do not know about any overridden rate evaluation
+    useCompiledModels = !isRateEvaluationOverridden();
   }
 
   @Override
@@ -187,7 +203,7 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
             tmpCPNew.rumName = tmpRUMMapEntry.RUM;
             tmpCPNew.rumQuantity = CurrentRecord.getRUMValue(tmpCP.rumName);
 
-            tmpCPNew.resource = tmpRUMMapEntry.Resource;
+            tmpCPNew.setResource(tmpRUMMapEntry.Resource, tmpRUMMapEntry.ResourceId);
             tmpCPNew.resCounter = tmpRUMMapEntry.ResourceCounter;
             tmpCPNew.ratingType = tmpRUMMapEntry.RUMType;
             tmpCPNew.consumeRUM = tmpRUMMapEntry.ConsumeRUM;
@@ -241,7 +257,7 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
               tmpTZNew.priceModel = tmpRUMMapEntry.PriceModel;
               tmpCPNew.rumName = tmpRUMMapEntry.RUM;
               tmpCPNew.rumQuantity = CurrentRecord.getRUMValue(tmpCP.rumName);
-              tmpCPNew.resource = tmpRUMMapEntry.Resource;
+              tmpCPNew.setResource(tmpRUMMapEntry.Resource, tmpRUMMapEntry.ResourceId);
               tmpCPNew.resCounter = tmpRUMMapEntry.ResourceCounter;
               tmpCPNew.ratingType = tmpRUMMapEntry.RUMType;
               tmpCPNew.addTimeZone(tmpTZNew);
@@ -314,7 +330,7 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
                     case ChargePacket.RATING_TYPE_FLAT: {
                       // Flat Rating
                       tmpRatingResult = rateCalculateFlat(tmpTZ.priceModel, thisZoneRUM, CurrentRecord.utcEventDate, CurrentRecord.createBreakdown);
-                      cpToRate.chargedValue += tmpRatingResult.RatedValue;
+                      cpToRate.chargedValue = addCharge(tmpTZ.priceModel, cpToRate.chargedValue, tmpRatingResult.RatedValue);
                       cpToRate.addBreakdown(tmpRatingResult.breakdown);
                       break;
                     }
@@ -322,21 +338,21 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
                     default: {
                       // Tiered Rating
                       tmpRatingResult = rateCalculateTiered(tmpTZ.priceModel, thisZoneRUM, rumRoundedCumulative, CurrentRecord.utcEventDate, CurrentRecord.createBreakdown);
-                      cpToRate.chargedValue += tmpRatingResult.RatedValue;
+                      cpToRate.chargedValue = addCharge(tmpTZ.priceModel, cpToRate.chargedValue, tmpRatingResult.RatedValue);
                       cpToRate.addBreakdown(tmpRatingResult.breakdown);
                       break;
                     }
                     case ChargePacket.RATING_TYPE_THRESHOLD: {
                       // Threshold Rating
                       tmpRatingResult = rateCalculateThreshold(tmpTZ.priceModel, thisZoneRUM, rumRoundedCumulative, CurrentRecord.utcEventDate, CurrentRecord.createBreakdown);
-                      cpToRate.chargedValue += tmpRatingResult.RatedValue;
+                      cpToRate.chargedValue = addCharge(tmpTZ.priceModel, cpToRate.chargedValue, tmpRatingResult.RatedValue);
                       cpToRate.addBreakdown(tmpRatingResult.breakdown);
                       break;
                     }
                     case ChargePacket.RATING_TYPE_EVENT: {
                       // Event Rating
                       tmpRatingResult = rateCalculateEvent(tmpTZ.priceModel, thisZoneRUM, CurrentRecord.utcEventDate, CurrentRecord.createBreakdown);
-                      cpToRate.chargedValue += tmpRatingResult.RatedValue;
+                      cpToRate.chargedValue = addCharge(tmpTZ.priceModel, cpToRate.chargedValue, tmpRatingResult.RatedValue);
                       cpToRate.addBreakdown(tmpRatingResult.breakdown);
                       break;
                     }
@@ -447,8 +463,22 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
   RatingResult rateCalculateTiered(String priceModel, double valueToRate, double valueOffset, long CDRDate, boolean BreakDown)
           throws ProcessingException {
     ArrayList<RateMapEntry> tmpRateModel;
+    CompiledPriceModel tmpCompiledModel;
     RatingResult tmpRatingResult;
 
+    // Use the compiled rate model if we have one
+    tmpCompiledModel = getCompiledPriceModel(priceModel);
+
+    if (tmpCompiledModel != null) {
+      tmpRatingResult = new RatingResult();
+
+      if (!tmpCompiledModel.rateTiered(tmpRatingResult, valueToRate, valueOffset, CDRDate, BreakDown)) {
+        throw getMissingValidityException(priceModel, CDRDate);
+      }
+
+      return roundResult(priceModel, tmpRatingResult);
+    }
+
     // Look up the rate model to use
     tmpRateModel = RRC.getPriceModel(priceModel);
 
@@ -456,7 +486,7 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
     tmpRatingResult = performRateEvaluationTiered(priceModel, tmpRateModel, valueToRate, valueOffset, CDRDate, BreakDown);
 
     // return the rating result
-    return tmpRatingResult;
+    return roundResult(priceModel, tmpRatingResult);
   }
 
   /**
@@ -474,8 +504,22 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
   RatingResult rateCalculateThreshold(String priceModel, double valueToRate, double valueOffset, long CDRDate, boolean BreakDown)
           throws ProcessingException {
     ArrayList<RateMapEntry> tmpRateModel;
+    CompiledPriceModel tmpCompiledModel;
     RatingResult tmpRatingResult;
 
+    // Use the compiled rate model if we have one
+    tmpCompiledModel = getCompiledPriceModel(priceModel);
+
+    if (tmpCompiledModel != null) {
+      tmpRatingResult = new RatingResult();
+
+      if (!tmpCompiledModel.rateThreshold(tmpRatingResult, valueToRate, valueOffset, CDRDate, BreakDown)) {
+        throw getMissingValidityException(priceModel, CDRDate);
+      }
+
+      return roundResult(priceModel, tmpRatingResult);
+    }
+
     // Look up the rate model to use
     tmpRateModel = RRC.getPriceModel(priceModel);
 
@@ -483,7 +527,7 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
     tmpRatingResult = performRateEvaluationThreshold(priceModel, tmpRateModel, valueToRate, valueOffset, CDRDate, BreakDown);
 
     // return the rating result
-    return tmpRatingResult;
+    return roundResult(priceModel, tmpRatingResult);
   }
 
   /**
@@ -500,8 +544,22 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
   RatingResult rateCalculateFlat(String priceModel, double valueToRate, long CDRDate, boolean BreakDown)
           throws ProcessingException {
     ArrayList<RateMapEntry> tmpRateModel;
+    CompiledPriceModel tmpCompiledModel;
     RatingResult tmpRatingResult;
 
+    // Use the compiled rate model if we have one
+    tmpCompiledModel = getCompiledPriceModel(priceModel);
+
+    if (tmpCompiledModel != null) {
+      tmpRatingResult = new RatingResult();
+
+      if (!tmpCompiledModel.rateFlat(tmpRatingResult, valueToRate, CDRDate, BreakDown)) {
+        throw getMissingValidityException(priceModel, CDRDate);
+      }
+
+      return roundResult(priceModel, tmpRatingResult);
+    }
+
     // Look up the rate model to use
     tmpRateModel = RRC.getPriceModel(priceModel);
 
@@ -509,7 +567,7 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
     tmpRatingResult = performRateEvaluationFlat(priceModel, tmpRateModel, valueToRate, CDRDate, BreakDown);
 
     // return the rating result
-    return tmpRatingResult;
+    return roundResult(priceModel, tmpRatingResult);
   }
 
   /**
@@ -524,8 +582,22 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
   RatingResult rateCalculateEvent(String priceModel, double valueToRate, long CDRDate, boolean BreakDown)
           throws ProcessingException {
     ArrayList<RateMapEntry> tmpRateModel;
+    CompiledPriceModel tmpCompiledModel;
     RatingResult tmpRatingResult;
 
+    // Use the compiled rate model if we have one
+    tmpCompiledModel = getCompiledPriceModel(priceModel);
+
+    if (tmpCompiledModel != null) {
+      tmpRatingResult = new RatingResult();
+
+      if (!tmpCompiledModel.rateEvent(tmpRatingResult, (long) valueToRate, CDRDate, BreakDown)) {
+        throw getMissingValidityException(priceModel, CDRDate);
+      }
+
+      return roundResult(priceModel, tmpRatingResult);
+    }
+
     // Look up the rate model to use
     tmpRateModel = RRC.getPriceModel(priceModel);
 
@@ -533,9 +605,142 @@ public abstract class AbstractRUMRateCalc extends AbstractRateCalc {
     tmpRatingResult = performRateEvaluationEvent(priceModel, tmpRateModel, (long) valueToRate, CDRDate, BreakDown);
 
     // return the rating result
+    return roundResult(priceModel, tmpRatingResult);
+  }
+
+  /**
+   * Get the compiled form of a price model, if we are able to rate with it.
+   *
+   * @param priceModel The price model to get
+   * @return The compiled price model, or null if we must use the rate map
+   */
+  private CompiledPriceModel getCompiledPriceModel(String priceModel) {
+    if (useCompiledModels) {
+      return RRC.getCompiledPriceModel(priceModel);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Check if the implementation class overrides any of the rate evaluation
+   * methods which the compiled price models replace.
+   *
+   * @return true if the rate evaluation has been overridden
+   */
+  private boolean isRateEvaluationOverridden() {
+    return isOverridden("performRateEvaluationTiered", String.class, ArrayList.class, double.class, double.class, long.class, boolean.class)
+            || isOverridden("performRateEvaluationThreshold", String.class, ArrayList.class, double.class, double.class, long.class, boolean.class)
+            || isOverridden("performRateEvaluationFlat", String.class, ArrayList.class, double.class, long.class, boolean.class)
+            || isOverridden("performRateEvaluationEvent", String.class, ArrayList.class, long.class, long.class, boolean.class)
+            || isOverridden("getRateModelEntryForTime", RateMapEntry.class, long.class);
+  }
+
+  /**
+   * Check if a method of AbstractRateCalc is declared again anywhere between
+   * it and the implementation class.
+   *
+   * @param methodName The name of the method
+   * @param parameterTypes The parameter types of the method
+   * @return true if the method has been overridden
+   */
+  private boolean isOverridden(String methodName, Class<?>... parameterTypes) {
+    Class<?> tmpClass = getClass();
+
+    while (tmpClass != null && tmpClass != AbstractRateCalc.class) {
+      try {
+        tmpClass.getDeclaredMethod(methodName, parameterTypes);
+        return true;
+      } catch (NoSuchMethodException ex) {
+        tmpClass = tmpClass.getSuperclass();
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Apply the rounding of the price model to a rating result, and to the
+   * amounts in its breakdown, so that the breakdown shows what was charged.
+   *
+   * @param priceModel The price model that was used
+   * @param tmpRatingResult The rating result
+   * @return The rating result, rounded
+   * @throws ProcessingException if an amount cannot be held in fixed point
+   */
+  private RatingResult roundResult(String priceModel, RatingResult tmpRatingResult)
+          throws ProcessingException {
+    MoneyRounding tmpRounding = RRC.getPriceModelRounding(priceModel);
+
+    if (tmpRounding != null) {
+      try {
+        tmpRatingResult.RatedValue = tmpRounding.round(tmpRatingResult.RatedValue);
+
+        if (tmpRatingResult.breakdown != null) {
+          for (RatingBreakdown tmpBreakdown : tmpRatingResult.breakdown) {
+            tmpBreakdown.ratedAmount = tmpRounding.round(tmpBreakdown.ratedAmount);
+          }
+        }
+      } catch (ArithmeticException ae) {
+        throw getFixedPointException(priceModel, ae);
+      }
+    }
+
     return tmpRatingResult;
   }
 
+  /**
+   * Add a rated amount to a charge. For price models which are rounded, the
+   * sum is done in fixed point, so that adding up the rounded amounts does
+   * not drift.
+   *
+   * @param priceModel The price model that was used
+   * @param chargedValue The charge so far
+   * @param ratedValue The amount to add
+   * @return The new charge
+   * @throws ProcessingException if the charge cannot be held in fixed point
+   */
+  private double addCharge(String priceModel, double chargedValue, double ratedValue)
+          throws ProcessingException {
+    if (RRC.getPriceModelRounding(priceModel) != null) {
+      try {
+        return Money.add(chargedValue, ratedValue);
+      } catch (ArithmeticException ae) {
+        throw getFixedPointException(priceModel, ae);
+      }
+    }
+
+    return chargedValue + ratedValue;
+  }
+
+  /**
+   * Create the exception for an amount of a rounded price model which is out
+   * of the fixed point range.
+   *
+   * @param priceModel The price model
+   * @param ae The exception from the fixed point arithmetic
+   * @return The exception to throw
+   */
+  private ProcessingException getFixedPointException(String priceModel, ArithmeticException ae) {
+    message = "Amount not rated by model <" + priceModel + "> because <"
+            + ae.getMessage() + ">";
+    return new ProcessingException(message, ae, getSymbolicName());
+  }
+
+  /**
+   * Create the exception for a date which is not covered by the validity of
+   * the price model.
+   *
+   * @param priceModel The price model
+   * @param CDRDate The date we were rating at
+   * @return The exception to throw
+   */
+  private ProcessingException getMissingValidityException(String priceModel, long CDRDate) {
+    message = "CDR with <" + CDRDate + "> date not rated by model <"
+            + priceModel + "> because of missing validity coverage";
+    return new ProcessingException(message, getSymbolicName());
+  }
+
   /**
    * This method is used to calculate the number of RUM units (e.g. seconds)
    * which can be purchased for the available credit. The credit is calculated
@@ -0,0 +1,28 @@
+package OpenRate.process;
+
+import OpenRate.exception.ProcessingException;
+import OpenRate.record.IRecord;
+import java.util.List;
+
+/**
+ * Optional batch hook for plug ins in real time pipelines. When the real time
+ * adapter is configured for micro batching, requests which arrive close
+ * together are passed through the processing chain as a unit. Plug ins which
+ * implement this interface receive the whole micro batch in one call, which
+ * allows them to amortise work (for example a single DB round trip) across
+ * the requests. Plug ins which do not implement it are called once for each
+ * record as normal.
+ */
+public interface IRTBatchPlugIn
+{
+ /**
+  * Process a micro batch of real time records. The batch can contain both
+  * valid and errored records, so implementations must check the record state
+  * in the same way as the procRTValidRecord/procRTErrorRecord split does. The
+  * records must be processed in place, and the list must not be changed.
+  *
+  * @param records The records in the micro batch
+  * @throws ProcessingException
+  */
+  public void procRTBatch(List<IRecord> records) throws ProcessingException;
+}
@@ -52,10 +52,15 @@ public abstract class AbstractRecord implements IRecord
   public boolean RTRecord = false;
 
   /**
-   * Outputs that this record should go to
+   * Outputs that this record should go to. This should only be changed using
+   * addOutput() and clearOutputs(), so that the output mask stays in step.
    */
   public ArrayList<String> outputs = new ArrayList<>();
 
+  // The outputs this record should go to, as a bit mask of the output ids
+  // (see OutputRegistry)
+  private long outputMask = 0;
+
   // These are for the tracking of the outputting via the output adapter chain
   // Each time we add an output, we increment the OutputsAssigned, each time
   // an output adapter writes, OutputsWritten is incremented, when we have
@@ -75,6 +80,12 @@ public abstract class AbstractRecord implements IRecord
    */
   public Object currentStateObject = null;
 
+  // Set while the record is held in a RecordPool
+  private transient volatile boolean released = false;
+
+  // Incremented each time the record is taken from a RecordPool
+  private transient int poolGeneration = 0;
+
  /**
   * default constructor
   */
@@ -253,13 +264,28 @@ public abstract class AbstractRecord implements IRecord
   }
 
   /**
-   * Add an output to be written in the output adapter chain
+   * Add an output to be written in the output adapter chain. The id of the
+   * output is looked up on each call, so modules adding outputs to many
+   * records should resolve the id once and use addOutput(String, int).
    *
    * @param OutputToAdd The name of the output to add
    */
   public void addOutput(String OutputToAdd)
+  {
+    addOutput(OutputToAdd, OutputRegistry.getOutputId(OutputToAdd));
+  }
+
+  /**
+   * Add an output to be written in the output adapter chain, using the id
+   * resolved from the name by OutputRegistry.getRegisteredOutputId().
+   *
+   * @param OutputToAdd The name of the output to add
+   * @param OutputId The id of the output, or OutputRegistry.NO_OUTPUT_ID
+   */
+  public void addOutput(String OutputToAdd, int OutputId)
   {
     outputs.add(OutputToAdd);
+    outputMask |= OutputRegistry.getOutputMask(OutputId);
   }
 
   /**
@@ -300,6 +326,39 @@ public abstract class AbstractRecord implements IRecord
     return false;
   }
 
+  /**
+   * Check if we should write to the given output, using the output id
+   * resolved from the name by the OutputRegistry. This gives the same result
+   * as getOutput(String), but tests a bit instead of comparing the names.
+   *
+   * @param OutputIdToCheck The id of the output to check
+   * @return True if the output was in the output list, otherwise false
+   */
+  @Override
+  public boolean getOutput(int OutputIdToCheck)
+  {
+    if (outputs.isEmpty())
+    {
+      // we do not have outputs defined, so by default we write to all outputs
+      return true;
+    }
+    else
+    {
+      if (outputs.size() == outputsWritten)
+      {
+        // we have written all the outputs we need to
+        return false;
+      }
+
+      if ((outputMask & OutputRegistry.getOutputMask(OutputIdToCheck)) != 0)
+      {
+        outputsWritten++;
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Return a list of all the outputs that we are to write to.
    *
@@ -316,6 +375,73 @@ public abstract class AbstractRecord implements IRecord
   public void clearOutputs()
   {
     outputs.clear();
+    outputMask = 0;
+  }
+
+  /**
+   * Reset the record to the state of a newly created record, so that it can be
+   * re-used. The collections are cleared but kept. Record classes which add
+   * their own state should override this, calling super.reset().
+   */
+  public void reset()
+  {
+    errors.clear();
+    clearOutputs();
+    outputsWritten = 0;
+    recordNumber = 0;
+    RECORD_TYPE = 0;
+    validRecord = true;
+    RTRecord = false;
+    dumpRecord = false;
+    currentStateObject = null;
+  }
+
+  /**
+   * Check if the record has been released to a RecordPool. A released record
+   * must not be used.
+   *
+   * @return true if the record is in a pool
+   */
+  public boolean isReleased()
+  {
+    return released;
+  }
+
+  /**
+   * Get the number of times that this record has been taken from a
+   * RecordPool. Code which must keep a record for a while can compare this to
+   * detect that the record has been re-used in the meantime.
+   *
+   * @return The pool generation
+   */
+  public int getPoolGeneration()
+  {
+    return poolGeneration;
+  }
+
+  /**
+   * Mark the record as released to the pool.
+   *
+   * @return false if the record had already been released
+   */
+  synchronized boolean markReleased()
+  {
+    if (released)
+    {
+      return false;
+    }
+
+    released = true;
+    return true;
+  }
+
+  /**
+   * Mark the record as taken from the pool.
+   */
+  synchronized void markAcquired()
+  {
+    released = false;
+    poolGeneration++;
   }
 
   /**
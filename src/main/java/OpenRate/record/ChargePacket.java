@@ -78,6 +78,11 @@ public class ChargePacket {
    */
   public String resource = null;
 
+  // The id of the resource (see RUMRegistry), and the resource name that it
+  // belongs to. If the resource is changed, the id is looked up again.
+  private int resourceId = RUMRegistry.NO_ID;
+  private String resourceIdName = null;
+
   /**
    * The counter ID of the resource to impact
    */
@@ -164,6 +169,37 @@ public class ChargePacket {
   public ChargePacket() {
   }
 
+  /**
+   * Set the resource to impact, together with its id, so that the id does not
+   * have to be looked up.
+   *
+   * @param resource The name of the resource
+   * @param resourceId The id of the resource (see RUMRegistry)
+   */
+  public void setResource(String resource, int resourceId) {
+    this.resource = resource;
+    this.resourceId = resourceId;
+    this.resourceIdName = resource;
+  }
+
+  /**
+   * Get the id of the resource to impact. The id is looked up from the
+   * resource name if it was not set with the resource, or if the resource has
+   * been changed since.
+   *
+   * @return The resource id, or NO_ID if the resource is not registered
+   */
+  public int getResourceId() {
+    if (resource != resourceIdName) {
+      resourceId = RUMRegistry.findResourceId(resource);
+
+      // an unregistered name may be registered later, so we look again
+      resourceIdName = (resourceId == RUMRegistry.NO_ID) ? null : resource;
+    }
+
+    return resourceId;
+  }
+
   /**
    * Create a clone of a charge packet
    *
@@ -179,6 +215,8 @@ public class ChargePacket {
     this.rumName = toClone.rumName;
     this.rumQuantity = toClone.rumQuantity;
     this.resource = toClone.resource;
+    this.resourceId = toClone.resourceId;
+    this.resourceIdName = toClone.resourceIdName;
     this.chargedValue = toClone.chargedValue;
     this.priority = toClone.priority;
     this.zoneResult = toClone.zoneResult;
@@ -0,0 +1,531 @@
+package OpenRate.record;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * The compiled form of a price model. The tiers of the model are flattened
+ * into primitive arrays when the rate cache loads, with one snapshot of the
+ * tiers for each validity period of the model, so that rating a value only
+ * has to find the snapshot for the date and then walk the arrays, without
+ * following the validity chains of the RateMapEntry objects.
+ *
+ * The snapshots are built using exactly the same version selection as
+ * AbstractRateCalc.getRateModelEntryForTime(), and the evaluation methods do
+ * exactly the same calculations as the list based evaluation methods, in the
+ * same order, so that the results are identical.
+ *
+ * The evaluation methods return false if the model has no validity coverage
+ * for the date, and leave the reporting of this to the caller.
+ *
+ * The model can optionally memoise the results of tiered, threshold and event
+ * rating, with their breakdowns, keyed by the value rated and the validity
+ * version the date falls in. Flat rating is a single multiplication, and is
+ * cheaper to do than to look up.
+ */
+public class CompiledPriceModel
+{
+  // The number of tiers in the model
+  private final int tierCount;
+
+  // The distinct start dates of the tiers, sorted. Snapshot n covers the
+  // dates from ValidFrom[n-1] up to ValidFrom[n], snapshot 0 covers all the
+  // dates before the first start date
+  private final long[] validFrom;
+
+  // The from and to of the root version of each tier, used for the tier
+  // selection of event rating
+  private final double[] rootFrom;
+  private final double[] rootTo;
+
+  // The tier values of each snapshot, at [snapshot * tierCount + tier]
+  private final boolean[] valid;
+  private final double[] from;
+  private final double[] to;
+  private final double[] beat;
+  private final double[] factor;
+  private final double[] chargeBase;
+  private final long[] startTime;
+
+  // The memo of rating results, null if we do not memoise
+  private final RateMemo memo;
+
+ /**
+  * Compile a price model
+  *
+  * @param rateModel The tiers of the price model, as held in the rate cache
+  */
+  public CompiledPriceModel(ArrayList<RateMapEntry> rateModel)
+  {
+    this(rateModel, 0);
+  }
+
+ /**
+  * Compile a price model with a memo of rating results
+  *
+  * @param rateModel The tiers of the price model, as held in the rate cache
+  * @param memoSize The number of results to memoise, 0 for no memo
+  */
+  public CompiledPriceModel(ArrayList<RateMapEntry> rateModel, int memoSize)
+  {
+    TreeSet<Long> tmpStartTimes = new TreeSet<>();
+    RateMapEntry  tmpEntry;
+    int           snapshotCount;
+    int           snapshot;
+    int           tier;
+    int           idx;
+
+    tierCount = rateModel.size();
+    memo = (memoSize > 0) ? new RateMemo(memoSize) : null;
+    rootFrom = new double[tierCount];
+    rootTo = new double[tierCount];
+
+    for (tier = 0 ; tier < tierCount ; tier++)
+    {
+      tmpEntry = rateModel.get(tier);
+      rootFrom[tier] = tmpEntry.getFrom();
+      rootTo[tier] = tmpEntry.getTo();
+      tmpStartTimes.add(tmpEntry.getStartTime());
+    }
+
+    validFrom = new long[tmpStartTimes.size()];
+    idx = 0;
+    for (Long tmpStartTime : tmpStartTimes)
+    {
+      validFrom[idx++] = tmpStartTime;
+    }
+
+    snapshotCount = validFrom.length + 1;
+    valid = new boolean[snapshotCount * tierCount];
+    from = new double[snapshotCount * tierCount];
+    to = new double[snapshotCount * tierCount];
+    beat = new double[snapshotCount * tierCount];
+    factor = new double[snapshotCount * tierCount];
+    chargeBase = new double[snapshotCount * tierCount];
+    startTime = new long[snapshotCount * tierCount];
+
+    for (snapshot = 0 ; snapshot < snapshotCount ; snapshot++)
+    {
+      for (tier = 0 ; tier < tierCount ; tier++)
+      {
+        tmpEntry = rateModel.get(tier);
+
+        // The root is used if it has started at the beginning of the snapshot,
+        // otherwise the first child is used, if there is one
+        if (snapshot == 0 || tmpEntry.getStartTime() > validFrom[snapshot - 1])
+        {
+          tmpEntry = tmpEntry.getChild();
+        }
+
+        if (tmpEntry != null)
+        {
+          idx = snapshot * tierCount + tier;
+          valid[idx] = true;
+          from[idx] = tmpEntry.getFrom();
+          to[idx] = tmpEntry.getTo();
+          beat[idx] = tmpEntry.getBeat();
+          factor[idx] = tmpEntry.getFactor();
+          chargeBase[idx] = tmpEntry.getChargeBase();
+          startTime[idx] = tmpEntry.getStartTime();
+        }
+      }
+    }
+  }
+
+ /**
+  * @return The number of tiers in the model
+  */
+  public int getTierCount()
+  {
+    return tierCount;
+  }
+
+ /**
+  * @return The number of results found in the memo
+  */
+  public long getMemoHits()
+  {
+    return (memo == null) ? 0 : memo.getHits();
+  }
+
+ /**
+  * @return The number of results not found in the memo
+  */
+  public long getMemoMisses()
+  {
+    return (memo == null) ? 0 : memo.getMisses();
+  }
+
+ /**
+  * Get the validity version of the model for a date. Dates with the same
+  * version are rated with the same versions of all of the tiers.
+  *
+  * @param CDRDate The date
+  * @return The validity version
+  */
+  public int getValidityVersion(long CDRDate)
+  {
+    int pos = Arrays.binarySearch(validFrom, CDRDate);
+
+    if (pos < 0)
+    {
+      pos = -(pos + 1);
+    }
+    else
+    {
+      pos++;
+    }
+
+    return pos;
+  }
+
+ /**
+  * Get the number of beats needed to cover an amount of RUM, rounding up
+  * unfinished beats, and counting at least one beat.
+  */
+  private static long getBeatCount(double rumUsed, double tierBeat)
+  {
+    long beatCount = Math.round(rumUsed / tierBeat);
+
+    // Deal with unfinished beats
+    if ((rumUsed - beatCount * tierBeat) > 0)
+    {
+      beatCount++;
+    }
+
+    // Deal with the empty beat
+    if (beatCount == 0)
+    {
+      beatCount = 1;
+    }
+
+    return beatCount;
+  }
+
+ /**
+  * Create a breakdown entry for a tier and add it to the result
+  */
+  private void addBreakdown(RatingResult result, int idx, int stepUsed, double tierBeat,
+                            long beatCount, double ratedAmount, double RUMRated)
+  {
+    RatingBreakdown tmpBreakdown;
+
+    // initialise the breakdown if necessary
+    if (result.breakdown == null)
+    {
+      result.breakdown = new ArrayList<>();
+    }
+
+    tmpBreakdown = new RatingBreakdown();
+    tmpBreakdown.beat = tierBeat;
+    tmpBreakdown.beatCount = beatCount;
+    tmpBreakdown.factor = factor[idx];
+    tmpBreakdown.chargeBase = chargeBase[idx];
+    tmpBreakdown.ratedAmount = ratedAmount;
+    tmpBreakdown.RUMRated = RUMRated;
+    tmpBreakdown.stepUsed = stepUsed;
+    tmpBreakdown.tierFrom = from[idx];
+    tmpBreakdown.tierTo = to[idx];
+    tmpBreakdown.validFrom = startTime[idx];
+
+    result.breakdown.add(tmpBreakdown);
+  }
+
+ /**
+  * Tiered rating, matching AbstractRateCalc.performRateEvaluationTiered()
+  *
+  * @param result The result to fill
+  * @param valueToRate The value to rate
+  * @param valueOffset The offset for the start of the tier, if there is one
+  * @param CDRDate The date to rate at
+  * @param BreakDown Produce a charge breakdown or not
+  * @return true if rated, false if there was no validity coverage
+  */
+  public boolean rateTiered(RatingResult result, double valueToRate, double valueOffset, long CDRDate, boolean BreakDown)
+  {
+    int    snapshot = getValidityVersion(CDRDate);
+    int    base = snapshot * tierCount;
+    int    idx;
+    int    tier;
+    double effectiveValueToRate = valueToRate + valueOffset;
+    double rumValueUsed = 0;
+    double rumValueUsedOffset = 0;
+    double roundedRUMUsed = 0;
+    double allTiersValue = 0;
+    double thisTierValue;
+    double thisTierRUMUsed;
+    double thisTierOffsetRUMUsed;
+    double thisTierRoundedRUM;
+    long   thisTierBeatCount;
+    long   thisTierOffsetBeatCount;
+
+    if (memo != null && memo.get(ChargePacket.RATING_TYPE_TIERED, snapshot, valueToRate, valueOffset, BreakDown, result))
+    {
+      return true;
+    }
+
+    for (tier = 0 ; tier < tierCount ; tier++)
+    {
+      idx = base + tier;
+
+      if (!valid[idx])
+      {
+        return false;
+      }
+
+      thisTierRUMUsed = 0;
+      thisTierBeatCount = 0;
+      thisTierOffsetRUMUsed = 0;
+      thisTierOffsetBeatCount = 0;
+
+      if (effectiveValueToRate > from[idx])
+      {
+        if (effectiveValueToRate >= to[idx])
+        {
+          thisTierRUMUsed = (to[idx] - from[idx]);
+        }
+        else
+        {
+          thisTierRUMUsed = (effectiveValueToRate - from[idx]);
+        }
+
+        rumValueUsed += thisTierRUMUsed;
+        thisTierBeatCount = getBeatCount(thisTierRUMUsed, beat[idx]);
+      }
+
+      if (valueOffset != 0 && valueOffset > from[idx])
+      {
+        if (valueOffset >= to[idx])
+        {
+          thisTierOffsetRUMUsed = (to[idx] - from[idx]);
+        }
+        else
+        {
+          thisTierOffsetRUMUsed = (valueOffset - from[idx]);
+        }
+
+        rumValueUsedOffset += thisTierOffsetRUMUsed;
+        thisTierOffsetBeatCount = getBeatCount(thisTierOffsetRUMUsed, beat[idx]);
+      }
+
+      // Now roll up the rating values
+      thisTierRoundedRUM = (thisTierBeatCount - thisTierOffsetBeatCount) * beat[idx];
+      thisTierValue = (thisTierRoundedRUM * factor[idx]) / chargeBase[idx];
+
+      // Only count rounded RUM used for non-singularity steps
+      if (from[idx] != to[idx])
+      {
+        roundedRUMUsed += thisTierRoundedRUM;
+      }
+
+      if (BreakDown)
+      {
+        addBreakdown(result, idx, tier, beat[idx], thisTierBeatCount - thisTierOffsetBeatCount,
+                     thisTierValue, thisTierRUMUsed - thisTierOffsetRUMUsed);
+      }
+
+      allTiersValue += thisTierValue;
+    }
+
+    result.RatedValue = allTiersValue;
+    result.RUMUsed = rumValueUsed - rumValueUsedOffset;
+    result.RUMUsedRounded = roundedRUMUsed;
+
+    if (memo != null)
+    {
+      memo.put(ChargePacket.RATING_TYPE_TIERED, snapshot, valueToRate, valueOffset, BreakDown, result);
+    }
+
+    return true;
+  }
+
+ /**
+  * Threshold rating, matching AbstractRateCalc.performRateEvaluationThreshold()
+  *
+  * @param result The result to fill
+  * @param valueToRate The value to rate
+  * @param valueOffset The offset for the start of the tier, if there is one
+  * @param CDRDate The date to rate at
+  * @param BreakDown Produce a charge breakdown or not
+  * @return true if rated, false if there was no validity coverage
+  */
+  public boolean rateThreshold(RatingResult result, double valueToRate, double valueOffset, long CDRDate, boolean BreakDown)
+  {
+    int    snapshot = getValidityVersion(CDRDate);
+    int    base = snapshot * tierCount;
+    int    idx;
+    int    tier;
+    double effectiveValueToRate = valueToRate + valueOffset;
+    double rumValueUsed = 0;
+    double rumValueUsedOffset = 0;
+    double allTiersValue = 0;
+    double thisTierValue;
+    double thisTierRUMUsed;
+    long   thisTierBeatCount;
+
+    if (memo != null && memo.get(ChargePacket.RATING_TYPE_THRESHOLD, snapshot, valueToRate, valueOffset, BreakDown, result))
+    {
+      return true;
+    }
+
+    for (tier = 0 ; tier < tierCount ; tier++)
+    {
+      idx = base + tier;
+
+      if (!valid[idx])
+      {
+        return false;
+      }
+
+      thisTierRUMUsed = 0;
+      thisTierBeatCount = 0;
+
+      if (effectiveValueToRate > from[idx])
+      {
+        if (effectiveValueToRate <= to[idx])
+        {
+          // we use the offset to locate the tier, but rate the original amount
+          thisTierRUMUsed = valueToRate;
+          rumValueUsed += thisTierRUMUsed;
+          thisTierBeatCount = getBeatCount(thisTierRUMUsed, beat[idx]);
+        }
+        else if (from[idx] == to[idx])
+        {
+          // Singularity rate
+          thisTierBeatCount = 1;
+        }
+      }
+
+      thisTierValue = (thisTierBeatCount * factor[idx]) * beat[idx] / chargeBase[idx];
+
+      if (BreakDown)
+      {
+        addBreakdown(result, idx, tier, beat[idx], thisTierBeatCount, thisTierValue, thisTierRUMUsed);
+      }
+
+      allTiersValue += thisTierValue;
+    }
+
+    result.RatedValue = allTiersValue;
+    result.RUMUsed = rumValueUsed - rumValueUsedOffset;
+
+    if (memo != null)
+    {
+      memo.put(ChargePacket.RATING_TYPE_THRESHOLD, snapshot, valueToRate, valueOffset, BreakDown, result);
+    }
+
+    return true;
+  }
+
+ /**
+  * Flat rating, matching AbstractRateCalc.performRateEvaluationFlat()
+  *
+  * @param result The result to fill
+  * @param valueToRate The value to rate
+  * @param CDRDate The date to rate at
+  * @param BreakDown Produce a charge breakdown or not
+  * @return true if rated, false if there was no validity coverage
+  */
+  public boolean rateFlat(RatingResult result, double valueToRate, long CDRDate, boolean BreakDown)
+  {
+    // Only the first tier is used
+    int    idx = getValidityVersion(CDRDate) * tierCount;
+    double allTiersValue;
+
+    if (!valid[idx])
+    {
+      return false;
+    }
+
+    allTiersValue = (valueToRate * factor[idx]) / chargeBase[idx];
+
+    if (BreakDown)
+    {
+      addBreakdown(result, idx, 1, 1, (long) valueToRate, allTiersValue, valueToRate);
+    }
+
+    result.RatedValue = allTiersValue;
+    result.RUMUsed = valueToRate;
+
+    return true;
+  }
+
+ /**
+  * Event rating, matching AbstractRateCalc.performRateEvaluationEvent(). As
+  * there, the tiers are selected using the root version of the tier, and the
+  * version valid at the date is only looked at for the tiers that are used.
+  *
+  * @param result The result to fill
+  * @param valueToRate The value to rate
+  * @param CDRDate The date to rate at
+  * @param BreakDown Produce a charge breakdown or not
+  * @return true if rated, false if there was no validity coverage
+  */
+  public boolean rateEvent(RatingResult result, long valueToRate, long CDRDate, boolean BreakDown)
+  {
+    int    snapshot = getValidityVersion(CDRDate);
+    int    base = snapshot * tierCount;
+    int    idx;
+    int    tier;
+    double rumValueUsed = 0;
+    double allTiersValue = 0;
+    double thisTierValue;
+    double thisTierRUMUsed;
+
+    if (memo != null && memo.get(ChargePacket.RATING_TYPE_EVENT, snapshot, valueToRate, 0, BreakDown, result))
+    {
+      return true;
+    }
+
+    for (tier = 0 ; tier < tierCount ; tier++)
+    {
+      thisTierValue = 0;
+
+      if (valueToRate > rootFrom[tier])
+      {
+        idx = base + tier;
+
+        if (!valid[idx])
+        {
+          return false;
+        }
+
+        if (valueToRate >= rootTo[tier])
+        {
+          thisTierRUMUsed = (to[idx] - from[idx]);
+        }
+        else
+        {
+          thisTierRUMUsed = (valueToRate - from[idx]);
+        }
+
+        // Deal with the case that we have the empty beat
+        if (thisTierRUMUsed == 0)
+        {
+          thisTierRUMUsed++;
+        }
+
+        rumValueUsed += thisTierRUMUsed;
+        thisTierValue = thisTierRUMUsed * factor[idx];
+
+        if (BreakDown)
+        {
+          addBreakdown(result, idx, tier, beat[idx], (long) thisTierRUMUsed, thisTierValue, thisTierRUMUsed);
+        }
+      }
+
+      allTiersValue += thisTierValue;
+    }
+
+    result.RatedValue = allTiersValue;
+    result.RUMUsed = rumValueUsed;
+
+    if (memo != null)
+    {
+      memo.put(ChargePacket.RATING_TYPE_EVENT, snapshot, valueToRate, 0, BreakDown, result);
+    }
+
+    return true;
+  }
+}
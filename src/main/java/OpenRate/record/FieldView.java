@@ -0,0 +1,197 @@
+package OpenRate.record;
+
+import java.io.Serializable;
+
+/**
+ * A lazy view of the separated fields of a line of data. The line is scanned
+ * once to find where the fields are, but the field strings are only created
+ * for fields that are actually read. When the fields are joined back together,
+ * the fields which have not been changed are copied straight from the original
+ * line.
+ *
+ * Unlike String.split(), the separator is taken literally and trailing empty
+ * fields are kept, so that joining an unchanged view gives back the original
+ * line.
+ */
+public class FieldView implements Serializable
+{
+  private static final long serialVersionUID = -3183346227432574409L;
+
+  // The line we are a view of
+  private final String data;
+
+  // The separator between the fields
+  private final String separator;
+
+  // The start and end of each field in the line
+  private int[] fieldStart;
+  private int[] fieldEnd;
+
+  // The number of fields in the line
+  private int fieldCount;
+
+  // The fields that have been read or set, null if not yet created
+  private String[] fieldValues;
+
+  // Set for the fields which have been changed
+  private boolean[] fieldChanged;
+
+ /**
+  * Scan the data for fields
+  *
+  * @param data The line to split
+  * @param separator The separator between the fields
+  */
+  public FieldView(String data, String separator)
+  {
+    int start = 0;
+    int end;
+    int sepLength = separator.length();
+
+    this.data = data;
+    this.separator = separator;
+
+    fieldStart = new int[16];
+    fieldEnd = new int[16];
+
+    while ((end = data.indexOf(separator, start)) >= 0)
+    {
+      addField(start, end);
+      start = end + sepLength;
+    }
+
+    // the last field
+    addField(start, data.length());
+
+    fieldValues = new String[fieldCount];
+  }
+
+ /**
+  * Record the position of the next field
+  */
+  private void addField(int start, int end)
+  {
+    int[] tmpOffsets;
+
+    if (fieldCount == fieldStart.length)
+    {
+      tmpOffsets = new int[fieldCount * 2];
+      System.arraycopy(fieldStart, 0, tmpOffsets, 0, fieldCount);
+      fieldStart = tmpOffsets;
+      tmpOffsets = new int[fieldCount * 2];
+      System.arraycopy(fieldEnd, 0, tmpOffsets, 0, fieldCount);
+      fieldEnd = tmpOffsets;
+    }
+
+    fieldStart[fieldCount] = start;
+    fieldEnd[fieldCount] = end;
+    fieldCount++;
+  }
+
+ /**
+  * Get the number of fields in the view
+  *
+  * @return The number of fields
+  */
+  public int size()
+  {
+    return fieldCount;
+  }
+
+ /**
+  * Get the value of a field, creating the string the first time it is read
+  *
+  * @param index The index of the field
+  * @return The value of the field
+  */
+  public String get(int index)
+  {
+    String value;
+
+    if (index >= fieldCount)
+    {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+
+    value = fieldValues[index];
+
+    if (value == null && (fieldChanged == null || !fieldChanged[index]))
+    {
+      value = data.substring(fieldStart[index], fieldEnd[index]);
+      fieldValues[index] = value;
+    }
+
+    return value;
+  }
+
+ /**
+  * Set the value of a field
+  *
+  * @param index The index of the field
+  * @param newValue The new value
+  */
+  public void set(int index, String newValue)
+  {
+    if (index >= fieldCount)
+    {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+
+    if (fieldChanged == null)
+    {
+      fieldChanged = new boolean[fieldCount];
+    }
+
+    fieldValues[index] = newValue;
+    fieldChanged[index] = true;
+  }
+
+ /**
+  * See if a field has been set since the view was created
+  *
+  * @param index The index of the field
+  * @return true if the field has been set
+  */
+  public boolean isChanged(int index)
+  {
+    return fieldChanged != null && fieldChanged[index];
+  }
+
+ /**
+  * Join the fields back into a line with the separator. Fields which have not
+  * been set are copied from the original line.
+  *
+  * @return The joined line
+  */
+  public String join()
+  {
+    StringBuilder tmpReassemble;
+    int i;
+
+    if (fieldChanged == null)
+    {
+      return data;
+    }
+
+    tmpReassemble = new StringBuilder(data.length() + 16);
+
+    for (i = 0 ; i < fieldCount ; i++)
+    {
+      if (i > 0)
+      {
+        tmpReassemble.append(separator);
+      }
+
+      if (fieldChanged[i])
+      {
+        tmpReassemble.append(fieldValues[i]);
+      }
+      else
+      {
+        tmpReassemble.append(data, fieldStart[i], fieldEnd[i]);
+      }
+    }
+
+    return tmpReassemble.toString();
+  }
+}
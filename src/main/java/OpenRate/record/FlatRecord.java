@@ -16,6 +16,9 @@ public class FlatRecord extends AbstractRecord
   // the original data we received
   private String originalData;
 
+  // the lazily split fields, if the record has been split
+  private FieldView fieldView;
+
   /**
    * Creates a new instance of FlatRecord
    *
@@ -47,6 +50,18 @@ public class FlatRecord extends AbstractRecord
     super();
   }
 
+  /**
+   * Reset the record for re-use
+   */
+  @Override
+  public void reset()
+  {
+    super.reset();
+
+    this.originalData = null;
+    this.fieldView = null;
+  }
+
   /**
    * Get the original data
    *
@@ -67,6 +82,61 @@ public class FlatRecord extends AbstractRecord
     this.originalData = DataToSet;
   }
 
+  /**
+   * Split the data into fields. The data is scanned once for the separator,
+   * but the field strings are only created when they are read. The separator
+   * is taken literally, not as a regular expression.
+   *
+   * @param Separator The field separator
+   */
+  public void splitFields(String Separator)
+  {
+    this.fieldView = new FieldView(originalData, Separator);
+  }
+
+  /**
+   * Get a field of the data split with splitFields()
+   *
+   * @param Index The index of the field
+   * @return The field value
+   */
+  public String getField(int Index)
+  {
+    return fieldView.get(Index);
+  }
+
+  /**
+   * Set a field of the data split with splitFields()
+   *
+   * @param Index The index of the field
+   * @param NewValue The new value
+   */
+  public void setField(int Index, String NewValue)
+  {
+    fieldView.set(Index, NewValue);
+  }
+
+  /**
+   * Get the number of fields of the data split with splitFields()
+   *
+   * @return The number of fields
+   */
+  public int getFieldCount()
+  {
+    return fieldView.size();
+  }
+
+  /**
+   * Join the fields back together. Fields which have not been set are copied
+   * from the original data.
+   *
+   * @return The joined fields
+   */
+  public String joinFields()
+  {
+    return fieldView.join();
+  }
+
  /**
   * This returns the dump information. Should be overwritten by the final
   * implementation class
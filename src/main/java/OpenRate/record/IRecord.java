@@ -134,6 +134,17 @@ public interface IRecord extends Serializable
   */
   public boolean getOutput(String OutputToCheck);
 
+ /**
+  * Return whether the record should be written to a given output or not,
+  * using the output id that the OutputRegistry has given to the output name.
+  * This is the same as getOutput(String), but cheaper, and is used by the
+  * output adapters when the pipeline has resolved their output id.
+  *
+  * @param OutputIdToCheck The id of the output to check
+  * @return True if the output should be written to, otherwise false
+  */
+  public boolean getOutput(int OutputIdToCheck);
+
  /**
   * Return whether all outputs have been consumed or not, after deleting the
   * given output from the output list. When all outputs have been consumed, it
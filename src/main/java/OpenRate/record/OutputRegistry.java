@@ -0,0 +1,145 @@
+package OpenRate.record;
+
+import OpenRate.exception.InitializationException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves output names to small integer ids, so that the output routing of
+ * records can be held as a bit mask instead of a list of names. Output names
+ * are not case sensitive, in the same way as the string based output API.
+ *
+ * The ids are shared by all pipelines, and are handed out by registerOutput()
+ * when the pipeline is configured, for the output names of its output
+ * adapters. Only MAX_OUTPUTS names can be given an id. Names after that get
+ * NO_OUTPUT_ID and are routed using the name comparison as before.
+ *
+ * Looking up a name never registers it, so that names used by the processing
+ * which no output adapter writes cannot use up the ids. Plug ins should
+ * resolve the ids of the outputs they route to once, during their
+ * initialisation, with getRegisteredOutputId().
+ */
+public class OutputRegistry
+{
+ /**
+  * The number of outputs that can be given an id (the bits in a long)
+  */
+  public static final int MAX_OUTPUTS = 64;
+
+ /**
+  * The id returned for names which could not be given an id
+  */
+  public static final int NO_OUTPUT_ID = -1;
+
+  // The ids we have handed out, by upper case name
+  private static final ConcurrentHashMap<String, Integer> outputIds = new ConcurrentHashMap<>();
+
+  // The ids of the names as they have been looked up, so that a name which is
+  // looked up again does not have to be converted to upper case
+  private static final ConcurrentHashMap<String, Integer> lookupIds = new ConcurrentHashMap<>();
+
+ /**
+  * Utility class, not instantiated
+  */
+  private OutputRegistry()
+  {
+  }
+
+ /**
+  * Register an output name, giving it a new id if it does not have one yet.
+  * Called when the pipeline is configured.
+  *
+  * @param outputName The name of the output
+  * @return The id, or NO_OUTPUT_ID if all ids have been handed out
+  */
+  public static int registerOutput(String outputName)
+  {
+    String key = outputName.toUpperCase(Locale.ENGLISH);
+    Integer outputId = outputIds.get(key);
+
+    if (outputId == null)
+    {
+      synchronized (outputIds)
+      {
+        outputId = outputIds.get(key);
+
+        if (outputId == null)
+        {
+          if (outputIds.size() >= MAX_OUTPUTS)
+          {
+            return NO_OUTPUT_ID;
+          }
+
+          outputId = outputIds.size();
+          outputIds.put(key, outputId);
+        }
+      }
+    }
+
+    return outputId;
+  }
+
+ /**
+  * Get the id of a registered output name.
+  *
+  * @param outputName The name of the output
+  * @return The id, or NO_OUTPUT_ID if the name has not been registered, or
+  * could not be given an id
+  */
+  public static int getOutputId(String outputName)
+  {
+    Integer outputId = lookupIds.get(outputName);
+
+    if (outputId == null)
+    {
+      outputId = outputIds.get(outputName.toUpperCase(Locale.ENGLISH));
+
+      if (outputId == null)
+      {
+        return NO_OUTPUT_ID;
+      }
+
+      lookupIds.put(outputName, outputId);
+    }
+
+    return outputId;
+  }
+
+ /**
+  * Get the id of an output name which must have been registered. Used by the
+  * modules to resolve the outputs they route to when they are initialised.
+  *
+  * @param outputName The name of the output
+  * @param moduleName The module resolving the name, for the error message
+  * @return The id
+  * @throws InitializationException If no output adapter has the name
+  */
+  public static int getRegisteredOutputId(String outputName, String moduleName)
+    throws InitializationException
+  {
+    int outputId = getOutputId(outputName);
+
+    if (outputId == NO_OUTPUT_ID)
+    {
+      throw new InitializationException("Output <" + outputName + "> is not the output name of an output adapter", moduleName);
+    }
+
+    return outputId;
+  }
+
+ /**
+  * Get the routing mask bit for an output id.
+  *
+  * @param outputId The output id
+  * @return The mask bit, 0 for NO_OUTPUT_ID
+  */
+  public static long getOutputMask(int outputId)
+  {
+    if (outputId < 0 || outputId >= MAX_OUTPUTS)
+    {
+      return 0;
+    }
+
+    return 1L << outputId;
+  }
+}
@@ -25,6 +25,11 @@ public class RUMInfo
   */
   public double RUMQuantity = 0;
 
+ /**
+  * The id of the RUM name (see RUMRegistry)
+  */
+  public int RUMId;
+
   /**
    * Creates a new instance of the RUMInfo block
    *
@@ -34,6 +39,7 @@ public class RUMInfo
   public RUMInfo(String RUM, double Quantity)
   {
     RUMName = RUM;
+    RUMId = RUMRegistry.getRUMId(RUM);
     OrigQuantity = Quantity;
     RUMQuantity = Quantity;
   }
@@ -0,0 +1,125 @@
+package OpenRate.record;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves RUM names and resource names to small dense integer ids, so that
+ * records can find RUM values and total impacts by id instead of comparing
+ * names. The names are registered when the rating caches load, and the ids
+ * are then carried in the cache entries and charge packets.
+ *
+ * RUM names and resource names have separate id ranges. Unlike output names,
+ * RUM and resource names are case sensitive, in the same way as the string
+ * based RUM API.
+ */
+public class RUMRegistry
+{
+ /**
+  * The id for names which have not been registered
+  */
+  public static final int NO_ID = -1;
+
+  // The ids we have handed out, by name
+  private static final ConcurrentHashMap<String, Integer> rumIds = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Integer> resourceIds = new ConcurrentHashMap<>();
+
+ /**
+  * Utility class, not instantiated
+  */
+  private RUMRegistry()
+  {
+  }
+
+ /**
+  * Get the id for a RUM name, giving it a new id if it does not have one yet.
+  *
+  * @param rumName The RUM name
+  * @return The RUM id
+  */
+  public static int getRUMId(String rumName)
+  {
+    return getId(rumIds, rumName);
+  }
+
+ /**
+  * Find the id of a RUM name, without registering it.
+  *
+  * @param rumName The RUM name
+  * @return The RUM id, or NO_ID if the name is not registered
+  */
+  public static int findRUMId(String rumName)
+  {
+    return findId(rumIds, rumName);
+  }
+
+ /**
+  * Get the id for a resource name, giving it a new id if it does not have one
+  * yet.
+  *
+  * @param resourceName The resource name
+  * @return The resource id
+  */
+  public static int getResourceId(String resourceName)
+  {
+    return getId(resourceIds, resourceName);
+  }
+
+ /**
+  * Find the id of a resource name, without registering it.
+  *
+  * @param resourceName The resource name
+  * @return The resource id, or NO_ID if the name is not registered
+  */
+  public static int findResourceId(String resourceName)
+  {
+    return findId(resourceIds, resourceName);
+  }
+
+ /**
+  * Look up a name, returning NO_ID if it is not there
+  */
+  private static int findId(ConcurrentHashMap<String, Integer> ids, String name)
+  {
+    Integer id;
+
+    if (name == null)
+    {
+      return NO_ID;
+    }
+
+    id = ids.get(name);
+
+    return (id == null) ? NO_ID : id;
+  }
+
+ /**
+  * Look up a name, adding it with the next id if it is not there
+  */
+  private static int getId(ConcurrentHashMap<String, Integer> ids, String name)
+  {
+    Integer id;
+
+    if (name == null)
+    {
+      return NO_ID;
+    }
+
+    id = ids.get(name);
+
+    if (id == null)
+    {
+      synchronized (ids)
+      {
+        id = ids.get(name);
+
+        if (id == null)
+        {
+          id = ids.size();
+          ids.put(name, id);
+        }
+      }
+    }
+
+    return id;
+  }
+}
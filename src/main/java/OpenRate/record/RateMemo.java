@@ -0,0 +1,186 @@
+package OpenRate.record;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded memo of rating results for a compiled price model. Streams of
+ * events often rate the same value again and again (SMS with a value of 1,
+ * fixed duration data sessions...), and the memo lets them skip the tier
+ * calculation.
+ *
+ * The memo is a direct mapped table keyed by the rating type, the validity
+ * version (snapshot) of the model and the value and offset rated. A new
+ * result simply replaces whatever was in its slot. The entries are immutable,
+ * so the memo can be shared by several rating threads without locking.
+ *
+ * Because records ask for a rating breakdown by default, the breakdown is
+ * memoised with the result. The breakdown steps are copied into the memo and
+ * copied out again on each hit, because the rating copies them into the
+ * record and rounds them there. A result memoised without a breakdown does
+ * not answer a request for one.
+ *
+ * The memo belongs to the compiled model, so it is thrown away with the model
+ * when the rate cache reloads.
+ */
+final class RateMemo
+{
+  // An immutable memo entry
+  private static final class Entry
+  {
+    final int    type;
+    final int    snapshot;
+    final long   valueBits;
+    final long   offsetBits;
+    final double ratedValue;
+    final double rumUsed;
+    final double rumUsedRounded;
+    final RatingBreakdown[] breakdown;
+
+    Entry(int type, int snapshot, long valueBits, long offsetBits, boolean breakDown, RatingResult result)
+    {
+      this.type = type;
+      this.snapshot = snapshot;
+      this.valueBits = valueBits;
+      this.offsetBits = offsetBits;
+      this.ratedValue = result.RatedValue;
+      this.rumUsed = result.RUMUsed;
+      this.rumUsedRounded = result.RUMUsedRounded;
+
+      if (!breakDown)
+      {
+        this.breakdown = null;
+      }
+      else if (result.breakdown == null)
+      {
+        this.breakdown = new RatingBreakdown[0];
+      }
+      else
+      {
+        this.breakdown = new RatingBreakdown[result.breakdown.size()];
+
+        for (int i = 0; i < breakdown.length; i++)
+        {
+          breakdown[i] = new RatingBreakdown(result.breakdown.get(i));
+        }
+      }
+    }
+  }
+
+  // The memo table, the size is a power of two
+  private final Entry[] entries;
+  private final int mask;
+
+  // Statistics
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+ /**
+  * Create a memo
+  *
+  * @param size The number of results to hold, rounded up to a power of two
+  */
+  RateMemo(int size)
+  {
+    int tableSize = 1;
+
+    while (tableSize < size)
+    {
+      tableSize <<= 1;
+    }
+
+    entries = new Entry[tableSize];
+    mask = tableSize - 1;
+  }
+
+ /**
+  * Get the slot for a key
+  */
+  private int getSlot(int type, int snapshot, long valueBits, long offsetBits)
+  {
+    long hash = valueBits * 31 + offsetBits;
+
+    hash = hash * 31 + snapshot * 7 + type;
+    hash ^= (hash >>> 32);
+    hash ^= (hash >>> 16);
+
+    return (int) hash & mask;
+  }
+
+ /**
+  * Look for a memoised result, and fill the result with it if there is one
+  *
+  * @param type The rating type
+  * @param snapshot The validity version
+  * @param value The value rated
+  * @param offset The offset rated
+  * @param breakDown Fill the breakdown of the result or not
+  * @param result The result to fill
+  * @return true if the result was found
+  */
+  boolean get(int type, int snapshot, double value, double offset, boolean breakDown, RatingResult result)
+  {
+    long  valueBits = Double.doubleToLongBits(value);
+    long  offsetBits = Double.doubleToLongBits(offset);
+    Entry tmpEntry = entries[getSlot(type, snapshot, valueBits, offsetBits)];
+
+    if (tmpEntry != null && tmpEntry.valueBits == valueBits && tmpEntry.offsetBits == offsetBits &&
+        tmpEntry.snapshot == snapshot && tmpEntry.type == type &&
+        (!breakDown || tmpEntry.breakdown != null))
+    {
+      result.RatedValue = tmpEntry.ratedValue;
+      result.RUMUsed = tmpEntry.rumUsed;
+      result.RUMUsedRounded = tmpEntry.rumUsedRounded;
+
+      if (breakDown && tmpEntry.breakdown.length > 0)
+      {
+        result.breakdown = new ArrayList<>(tmpEntry.breakdown.length);
+
+        for (RatingBreakdown tmpBreakdown : tmpEntry.breakdown)
+        {
+          result.breakdown.add(new RatingBreakdown(tmpBreakdown));
+        }
+      }
+
+      hits.incrementAndGet();
+      return true;
+    }
+
+    misses.incrementAndGet();
+    return false;
+  }
+
+ /**
+  * Memoise a result
+  *
+  * @param type The rating type
+  * @param snapshot The validity version
+  * @param value The value rated
+  * @param offset The offset rated
+  * @param breakDown The result has a breakdown or not
+  * @param result The result
+  */
+  void put(int type, int snapshot, double value, double offset, boolean breakDown, RatingResult result)
+  {
+    long valueBits = Double.doubleToLongBits(value);
+    long offsetBits = Double.doubleToLongBits(offset);
+
+    entries[getSlot(type, snapshot, valueBits, offsetBits)] = new Entry(type, snapshot, valueBits, offsetBits, breakDown, result);
+  }
+
+ /**
+  * @return The number of results found in the memo
+  */
+  long getHits()
+  {
+    return hits.get();
+  }
+
+ /**
+  * @return The number of results not found in the memo
+  */
+  long getMisses()
+  {
+    return misses.get();
+  }
+}
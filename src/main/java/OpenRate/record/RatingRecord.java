@@ -4,6 +4,7 @@ package OpenRate.record;
 
 import OpenRate.lang.CustProductInfo;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -54,6 +55,12 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
    */
   public String[] fields;
 
+  /**
+   * The lazily split fields of the record, used instead of the fields array
+   * when the record is split with splitFields()
+   */
+  protected FieldView fieldView;
+
   /**
    * This holds the original data
    */
@@ -78,7 +85,12 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   /**
    * RUM information - holds the list of RUMs and their values
    */
-  public ArrayList<RUMInfo> RUMs = new ArrayList<>();
+  public ArrayList<RUMInfo> RUMs = new RUMList();
+
+  // The RUMs indexed by RUM id, rebuilt if the RUM list is changed directly
+  private RUMInfo[] rumById = new RUMInfo[8];
+  private ArrayList<RUMInfo> rumIndexedList = null;
+  private int rumIndexedVersion = 0;
 
   /**
    * This is the counter index for monthly counters, usually filled with YYYYMM
@@ -127,6 +139,32 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
     this.setOriginalData(originalData);
   }
 
+ /**
+  * Reset the record for re-use. The rating collections are cleared but kept.
+  */
+  @Override
+  public void reset()
+  {
+    super.reset();
+
+    fields = null;
+    fieldView = null;
+    originalData = null;
+    service = null;
+    ratePlans.clear();
+    chargePackets.clear();
+    balanceImpacts.clear();
+    RUMs.clear();
+    Arrays.fill(rumById, null);
+    rumIndexedList = null;
+    rumIndexedVersion = 0;
+    counterCycle = 0;
+    eventStartDate = null;
+    eventEndDate = null;
+    utcEventDate = 0;
+    createBreakdown = true;
+  }
+
  /**
   * Get the charge packets that are available. This is implemented as
   * a function to allow the charge packet definition to be overwritten.
@@ -265,6 +303,10 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   */
   public String getField(int Index)
   {
+    if (fields == null && fieldView != null)
+    {
+      return fieldView.get(Index);
+    }
 
     return fields[Index];
   }
@@ -277,9 +319,56 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   */
   public void setField(int Index, String NewValue)
   {
+    if (fields == null && fieldView != null)
+    {
+      fieldView.set(Index, NewValue);
+      return;
+    }
+
     fields[Index] = NewValue;
   }
 
+ /**
+  * Split the original data into fields. The data is scanned once for the
+  * separator, but the field strings are only created when they are read with
+  * getField(), which saves a lot of allocation on wide records where only a
+  * few fields are used. Use this instead of filling the fields array. The
+  * separator is taken literally, not as a regular expression.
+  *
+  * @param Separator The field separator
+  */
+  public void splitFields(String Separator)
+  {
+    this.fields = null;
+    this.fieldView = new FieldView(originalData, Separator);
+  }
+
+ /**
+  * Get the number of fields in the record
+  *
+  * @return The number of fields
+  */
+  public int getFieldCount()
+  {
+    if (fields == null && fieldView != null)
+    {
+      return fieldView.size();
+    }
+
+    return fields.length;
+  }
+
+ /**
+  * Join the fields split with splitFields() back into a line for output.
+  * Fields which have not been set are copied from the original data.
+  *
+  * @return The joined fields
+  */
+  public String joinFields()
+  {
+    return fieldView.join();
+  }
+
  /**
   * Return the original input data
   *
@@ -309,20 +398,20 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   @Override
   public double getRUMValue(String RUM)
   {
-    RUMInfo tmpRUM;
-    int Index;
-
-    for (Index = 0 ; Index < RUMs.size() ; Index++)
-    {
-      tmpRUM = RUMs.get(Index);
+    return getRUMValue(RUMRegistry.findRUMId(RUM));
+  }
 
-      if (tmpRUM.RUMName.equals(RUM))
-      {
-        return tmpRUM.RUMQuantity;
-      }
-    }
+ /**
+  * Get the value of an existing RUM by RUM id, or 0 if not found
+  *
+  * @param RUMId The id of the RUM to get (see RUMRegistry)
+  * @return The current value of the RUM
+  */
+  public double getRUMValue(int RUMId)
+  {
+    RUMInfo tmpRUM = getRUMInfo(RUMId);
 
-    return 0;
+    return (tmpRUM == null) ? 0 : tmpRUM.RUMQuantity;
   }
 
  /**
@@ -343,20 +432,9 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   */
   public double getOriginalRUMValue(String RUM)
   {
-    RUMInfo tmpRUM;
-    int Index;
+    RUMInfo tmpRUM = getRUMInfo(RUMRegistry.findRUMId(RUM));
 
-    for (Index = 0 ; Index < RUMs.size() ; Index++)
-    {
-      tmpRUM = RUMs.get(Index);
-
-      if (tmpRUM.RUMName.equals(RUM))
-      {
-        return tmpRUM.OrigQuantity;
-      }
-    }
-
-    return 0;
+    return (tmpRUM == null) ? 0 : tmpRUM.OrigQuantity;
   }
 
  /**
@@ -368,23 +446,23 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   @Override
   public void setRUMValue(String RUM, double newValue)
   {
-    RUMInfo tmpRUM;
-    int Index;
+    RUMInfo tmpRUM = getRUMInfo(RUMRegistry.getRUMId(RUM));
 
-    for (Index = 0 ; Index < RUMs.size() ; Index++)
+    if (tmpRUM != null)
     {
-      tmpRUM = RUMs.get(Index);
-
-      if (tmpRUM.RUMName.equals(RUM))
-      {
-        tmpRUM.RUMQuantity = newValue;
-        return;
-      }
+      tmpRUM.RUMQuantity = newValue;
+      return;
     }
 
     tmpRUM = new RUMInfo(RUM,newValue);
 
     RUMs.add(tmpRUM);
+    indexRUM(tmpRUM);
+
+    if (RUMs instanceof RUMList)
+    {
+      rumIndexedVersion = ((RUMList) RUMs).getVersion();
+    }
   }
 
  /**
@@ -398,21 +476,90 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
   @Override
   public boolean updateRUMValue(String RUM, double ValueDelta)
   {
-    RUMInfo tmpRUM;
+    return updateRUMValue(RUMRegistry.findRUMId(RUM), ValueDelta);
+  }
+
+ /**
+  * Apply a delta to the value of a RUM by RUM id
+  *
+  * @param RUMId The id of the RUM to update (see RUMRegistry)
+  * @param ValueDelta The delta to apply to the RUM value
+  * @return true if the delta was applied, otherwise false
+  */
+  public boolean updateRUMValue(int RUMId, double ValueDelta)
+  {
+    RUMInfo tmpRUM = getRUMInfo(RUMId);
+
+    if (tmpRUM == null)
+    {
+      return false;
+    }
+
+    tmpRUM.RUMQuantity += ValueDelta;
+    return true;
+  }
+
+ /**
+  * Get the RUM with the given id. The index is rebuilt if the RUM list has
+  * been changed in any way without going through setRUMValue(), or if the
+  * list has been replaced by one which does not track its changes.
+  *
+  * @param RUMId The id of the RUM
+  * @return The RUM, or null if the record does not have it
+  */
+  private RUMInfo getRUMInfo(int RUMId)
+  {
     int Index;
 
-    for (Index = 0 ; Index < RUMs.size() ; Index++)
+    if (RUMs != rumIndexedList || !(RUMs instanceof RUMList) ||
+        ((RUMList) RUMs).getVersion() != rumIndexedVersion)
     {
-      tmpRUM = RUMs.get(Index);
+      Arrays.fill(rumById, null);
+
+      for (Index = 0 ; Index < RUMs.size() ; Index++)
+      {
+        indexRUM(RUMs.get(Index));
+      }
+
+      rumIndexedList = RUMs;
 
-      if (tmpRUM.RUMName.equals(RUM))
+      if (RUMs instanceof RUMList)
       {
-        tmpRUM.RUMQuantity += ValueDelta;
-        return true;
+        rumIndexedVersion = ((RUMList) RUMs).getVersion();
       }
     }
 
-    return false;
+    if (RUMId < 0 || RUMId >= rumById.length)
+    {
+      return null;
+    }
+
+    return rumById[RUMId];
+  }
+
+ /**
+  * Add a RUM to the index. If the RUM appears more than once in the list, the
+  * first one is used, as the list search did.
+  *
+  * @param tmpRUM The RUM to index
+  */
+  private void indexRUM(RUMInfo tmpRUM)
+  {
+    if (tmpRUM.RUMId < 0)
+    {
+      // no name, cannot be found anyway
+      return;
+    }
+
+    if (tmpRUM.RUMId >= rumById.length)
+    {
+      rumById = Arrays.copyOf(rumById, Math.max(tmpRUM.RUMId + 1, rumById.length * 2));
+    }
+
+    if (rumById[tmpRUM.RUMId] == null)
+    {
+      rumById[tmpRUM.RUMId] = tmpRUM;
+    }
   }
 
  /**
@@ -447,6 +594,7 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
     int Index;
     ChargePacket tmpCP;
     double Total = 0;
+    int resourceId = RUMRegistry.findResourceId(resourceToGet);
 
     for (Index = 0 ; Index < chargePackets.size() ; Index++)
     {
@@ -454,7 +602,7 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
 
       if (tmpCP.Valid)
       {
-        if (tmpCP.resource.equals(resourceToGet))
+        if (isResource(tmpCP, resourceId, resourceToGet))
         {
           Total += tmpCP.chargedValue;
         }
@@ -477,6 +625,7 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
     int Index;
     ChargePacket tmpCP;
     double Total = 0;
+    int resourceId = RUMRegistry.findResourceId(resourceToGet);
 
     for (Index = 0 ; Index < chargePackets.size() ; Index++)
     {
@@ -484,7 +633,7 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
 
       if (tmpCP.Valid)
       {
-        if (tmpCP.resource.equals(resourceToGet) && tmpCP.packetType.equals(packetType))
+        if (isResource(tmpCP, resourceId, resourceToGet) && tmpCP.packetType.equals(packetType))
         {
           Total += tmpCP.chargedValue;
         }
@@ -494,6 +643,62 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
     return Total;
   }
 
+ /**
+  * Get the total impacts for a given resource id. Excludes invalid charge
+  * packets
+  *
+  * @param resourceId The id of the resource to recover the total for (see
+  * RUMRegistry)
+  * @return The total value of the all impacts for the defined resource, or 0
+  * if the id is NO_ID
+  */
+  public double getTotalImpact(int resourceId)
+  {
+    int Index;
+    ChargePacket tmpCP;
+    double Total = 0;
+
+    // NO_ID is not a resource, and would match every unregistered packet
+    if (resourceId == RUMRegistry.NO_ID)
+    {
+      return 0;
+    }
+
+    for (Index = 0 ; Index < chargePackets.size() ; Index++)
+    {
+      tmpCP = chargePackets.get(Index);
+
+      if (tmpCP.Valid)
+      {
+        if (tmpCP.getResourceId() == resourceId)
+        {
+          Total += tmpCP.chargedValue;
+        }
+      }
+    }
+
+    return Total;
+  }
+
+ /**
+  * Check if a charge packet impacts a resource, using the resource id if the
+  * resource is registered, otherwise the name.
+  *
+  * @param tmpCP The charge packet to check
+  * @param resourceId The id of the resource, or NO_ID if it is not registered
+  * @param resourceName The name of the resource
+  * @return true if the packet impacts the resource
+  */
+  private boolean isResource(ChargePacket tmpCP, int resourceId, String resourceName)
+  {
+    if (resourceId != RUMRegistry.NO_ID)
+    {
+      return tmpCP.getResourceId() == resourceId;
+    }
+
+    return tmpCP.resource.equals(resourceName);
+  }
+
  /**
   * Get the resources that have been impacted in this record
   *
@@ -731,4 +936,37 @@ public abstract class RatingRecord extends AbstractRecord implements IRatingReco
 
     return tmpDumpList;
   }  
+
+ /**
+  * The list of RUMs, which counts every change made to it (including
+  * replacing an entry) so that the RUM index knows when to rebuild.
+  */
+  private static class RUMList extends ArrayList<RUMInfo>
+  {
+    private static final long serialVersionUID = 1L;
+
+   /**
+    * Replace an entry, counting it as a change
+    *
+    * @param index The position to set
+    * @param element The new RUM
+    * @return The RUM which was replaced
+    */
+    @Override
+    public RUMInfo set(int index, RUMInfo element)
+    {
+      modCount++;
+      return super.set(index, element);
+    }
+
+   /**
+    * Get the number of changes made to the list
+    *
+    * @return The change count
+    */
+    int getVersion()
+    {
+      return modCount;
+    }
+  }
 }
@@ -0,0 +1,150 @@
+package OpenRate.record;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of records for re-use, to reduce the garbage created by pipelines
+ * with high record rates. Each pipeline which has a RecordPoolSize configured
+ * has its own pool.
+ *
+ * Pooling is opt-in by record class. The input adapter asks the pool for a
+ * record of its record class with acquire(), and creates a new record if the
+ * pool has none. Once the last output adapter has consumed a record, the
+ * output adapter releases it back to the pool, which resets it. Only records
+ * of classes which have been asked for with acquire() are taken back, so
+ * header and trailer records and records of classes which do not use the pool
+ * are left alone.
+ *
+ * A record must not be used after it has been released. To help find code
+ * which keeps records, a released record is marked as such (isReleased()),
+ * each re-use increments the pool generation of the record, and releasing a
+ * record twice is refused and counted.
+ */
+public class RecordPool
+{
+  // The maximum number of records held for each record class
+  private final int capacity;
+
+  // The pooled records, by record class
+  private final ConcurrentHashMap<Class<?>, ArrayBlockingQueue<AbstractRecord>> pools = new ConcurrentHashMap<>();
+
+  // Statistics
+  private final AtomicLong acquireHits = new AtomicLong();
+  private final AtomicLong acquireMisses = new AtomicLong();
+  private final AtomicLong releases = new AtomicLong();
+  private final AtomicLong doubleReleases = new AtomicLong();
+
+ /**
+  * Create a pool
+  *
+  * @param capacity The maximum number of records held for each record class
+  */
+  public RecordPool(int capacity)
+  {
+    this.capacity = capacity;
+  }
+
+ /**
+  * Get a record from the pool. The record has been reset, and is ready to be
+  * filled as if it were new.
+  *
+  * @param <T> The record type
+  * @param recordClass The class of the record to get
+  * @return The record, or null if there is no pooled record available
+  */
+  public <T extends AbstractRecord> T acquire(Class<T> recordClass)
+  {
+    AbstractRecord tmpRecord;
+    ArrayBlockingQueue<AbstractRecord> pool = pools.get(recordClass);
+
+    if (pool == null)
+    {
+      // First request for this class: from now on we take it back
+      pools.putIfAbsent(recordClass, new ArrayBlockingQueue<AbstractRecord>(capacity));
+      acquireMisses.incrementAndGet();
+      return null;
+    }
+
+    tmpRecord = pool.poll();
+
+    if (tmpRecord == null)
+    {
+      acquireMisses.incrementAndGet();
+      return null;
+    }
+
+    tmpRecord.markAcquired();
+    acquireHits.incrementAndGet();
+
+    return recordClass.cast(tmpRecord);
+  }
+
+ /**
+  * Return a record to the pool once it has been completely consumed. The
+  * record is reset and must not be used by the caller any more.
+  *
+  * @param record The record to release
+  * @return true if the record was taken into the pool
+  */
+  public boolean release(IRecord record)
+  {
+    AbstractRecord tmpRecord;
+    ArrayBlockingQueue<AbstractRecord> pool = pools.get(record.getClass());
+
+    if (pool == null)
+    {
+      // not a pooled class
+      return false;
+    }
+
+    tmpRecord = (AbstractRecord) record;
+
+    if (!tmpRecord.markReleased())
+    {
+      // already in the pool, someone is still holding it
+      doubleReleases.incrementAndGet();
+      return false;
+    }
+
+    tmpRecord.reset();
+    releases.incrementAndGet();
+
+    // if the pool is full, we let the record go
+    return pool.offer(tmpRecord);
+  }
+
+ /**
+  * @return The number of acquires served from the pool
+  */
+  public long getAcquireHits()
+  {
+    return acquireHits.get();
+  }
+
+ /**
+  * @return The number of acquires which found no pooled record
+  */
+  public long getAcquireMisses()
+  {
+    return acquireMisses.get();
+  }
+
+ /**
+  * @return The number of records released
+  */
+  public long getReleases()
+  {
+    return releases.get();
+  }
+
+ /**
+  * @return The number of times a record was released when it had already
+  * been released
+  */
+  public long getDoubleReleases()
+  {
+    return doubleReleases.get();
+  }
+}
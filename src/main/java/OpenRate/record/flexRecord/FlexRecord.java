@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * A flex record is a type of record that is used in situations where we want
@@ -47,6 +48,9 @@ public class FlexRecord extends AbstractRecord
   * Data type float
   */
   public final static int FIELD_TYPE_FLOAT   = 2;
+
+  // The type suffixes for the dump, by field type
+  private final static String[] FieldType = {">  <string>", ">  <integer>", ">  <float>"};
   
   // The symbolic module name of the class stack
   private String symbolicName = "FlecRecord";
@@ -79,11 +83,40 @@ public class FlexRecord extends AbstractRecord
   */
   protected class RecordBlock
   {
-    // Holds the fields
-    Object[] Fields;
+    // Holds the string fields
+    String[] StringFields;
+
+    // Holds the integer and float fields. Integers are held exactly.
+    double[] NumberFields;
+
+    // The field types, shared with the block definition until a field of this
+    // block changes type
+    int[] FieldTypes;
+    boolean SharedFieldTypes = true;
+
+    // Holds the access data to the fields, shared by all blocks of this type
+    MappingPlan Plan;
+
+   /**
+    * Get the value of a field as an object, for dumping and field info
+    *
+    * @param FieldIndex The offset of the field in the block
+    * @return The value
+    */
+    Object getFieldValue(int FieldIndex)
+    {
+      switch (FieldTypes[FieldIndex])
+      {
+        case FIELD_TYPE_INTEGER:
+          return (int) NumberFields[FieldIndex];
 
-    // Holds the access data to the fields
-    HashMap<String, Integer> FieldMap;
+        case FIELD_TYPE_FLOAT:
+          return NumberFields[FieldIndex];
+
+        default:
+          return StringFields[FieldIndex];
+      }
+    }
   }
 
   /**
@@ -343,6 +376,7 @@ public class FlexRecord extends AbstractRecord
 
           // Add the mapping record
           tmpRecordBlock.Mapping.add(tmpMapElement);
+          tmpRecordBlock.Plan = null;
 
           FieldFound = true;
         }
@@ -382,9 +416,19 @@ public class FlexRecord extends AbstractRecord
       tmpSep = Separator;
     }
 
+    try
+    {
+      MappingPlan.getSeparatorPattern(tmpSep);
+    }
+    catch (PatternSyntaxException pse)
+    {
+      throw new InitializationException("Separator <" + tmpSep + "> for block <" + BlockName + "> is not a valid regular expression",getSymbolicName());
+    }
+
     if (tmpRecordBlock != null)
     {
       tmpRecordBlock.Separator = tmpSep;
+      tmpRecordBlock.Plan = null;
     }
     else
     {
@@ -408,13 +452,12 @@ public class FlexRecord extends AbstractRecord
   */
   public void MapRecord(String BlockName, String tmpData) throws ProcessingException
   {
-    MapElement  tmpMapElement;
+    MappingPlan tmpPlan;
     RecordBlockDef tmpRecordBlockDef;
     String[]    tmpFields;
     int         i;
     String      tmpCurrentFieldStr;
-    int         tmpCurrentFieldInt;
-    double      tmpCurrentFieldFloat = 0;
+    double      tmpCurrentFieldFloat;
     RecordBlock tmpRecordBlock;
     String      tmpBlockName;
     Integer     tmpBlockCounter;
@@ -431,58 +474,59 @@ public class FlexRecord extends AbstractRecord
 
     if (tmpRecordBlockDef != null)
     {
-      tmpFields = tmpData.split(tmpRecordBlockDef.Separator);
+      if (tmpRecordBlockDef.Separator == null || tmpRecordBlockDef.Separator.isEmpty())
+      {
+        throw new ProcessingException("No separator defined for mapping block <" + BlockName + ">","FlexRecord");
+      }
+
+      tmpPlan = tmpRecordBlockDef.getMappingPlan();
+      tmpFields = new String[tmpPlan.MaxOffsetFrom + 1];
 
       // check the length of the data we have
-      if (tmpFields.length < tmpRecordBlockDef.NumberOfFields)
+      if (tmpPlan.tokenize(tmpData, tmpFields) < tmpPlan.MinFields)
       {
         throw new ProcessingException("Input data too short for mapping block <" + BlockName + ">","FlexRecord");
       }
 
       // Create the block
       tmpRecordBlock = new RecordBlock();
-      tmpRecordBlock.FieldMap = new HashMap<>(10);
-      tmpRecordBlock.Fields = new Object[tmpRecordBlockDef.NumberOfFields];
+      tmpRecordBlock.Plan = tmpPlan;
+      tmpRecordBlock.FieldTypes = tmpRecordBlockDef.FieldTypes;
+      tmpRecordBlock.StringFields = new String[tmpRecordBlockDef.NumberOfFields];
+      tmpRecordBlock.NumberFields = new double[tmpRecordBlockDef.NumberOfFields];
 
       // Now try the mapping
-      for(i = 0 ; i < tmpRecordBlockDef.Mapping.size() ; i++)
+      for(i = 0 ; i < tmpPlan.OffsetFrom.length ; i++)
       {
-        tmpMapElement = (MapElement) tmpRecordBlockDef.Mapping.get(i);
+        // Get the value to map
+        tmpCurrentFieldStr = tmpFields[tmpPlan.OffsetFrom[i]];
 
-        switch (tmpMapElement.Type)
+        switch (tmpPlan.Type[i])
         {
           case FIELD_TYPE_STRING:
           {
-            // Get the value to map
-            tmpCurrentFieldStr = tmpFields[tmpMapElement.OffsetFrom];
-            tmpRecordBlock.Fields[tmpMapElement.OffsetTo] = tmpCurrentFieldStr;
-            tmpRecordBlock.FieldMap.put(tmpMapElement.Name,tmpMapElement.OffsetTo);
+            tmpRecordBlock.StringFields[tmpPlan.OffsetTo[i]] = tmpCurrentFieldStr;
             break;
           }
 
           case FIELD_TYPE_INTEGER:
           {
-            // Get the value to map
-            tmpCurrentFieldStr = tmpFields[tmpMapElement.OffsetFrom];
             try
             {
-              tmpCurrentFieldInt = Integer.parseInt(tmpCurrentFieldStr);
+              tmpCurrentFieldFloat = Integer.parseInt(tmpCurrentFieldStr);
             }
             catch (NumberFormatException nfe)
             {
               this.addError(new RecordError("Conversion Error",ErrorType.DATA_VALIDATION));
-              tmpCurrentFieldInt = 0;
+              tmpCurrentFieldFloat = 0;
             }
 
-            tmpRecordBlock.Fields[tmpMapElement.OffsetTo] = tmpCurrentFieldInt;
-            tmpRecordBlock.FieldMap.put(tmpMapElement.Name,tmpMapElement.OffsetTo);
+            tmpRecordBlock.NumberFields[tmpPlan.OffsetTo[i]] = tmpCurrentFieldFloat;
             break;
           }
 
           case FIELD_TYPE_FLOAT:
           {
-            // Get the value to map
-            tmpCurrentFieldStr = tmpFields[tmpMapElement.OffsetFrom];
             try
             {
               tmpCurrentFieldFloat = Double.parseDouble(tmpCurrentFieldStr);
@@ -490,10 +534,10 @@ public class FlexRecord extends AbstractRecord
             catch (NumberFormatException nfe)
             {
               this.addError(new RecordError("Conversion Error",ErrorType.DATA_VALIDATION));
+              tmpCurrentFieldFloat = 0;
             }
 
-            tmpRecordBlock.Fields[tmpMapElement.OffsetTo] = tmpCurrentFieldFloat;
-            tmpRecordBlock.FieldMap.put(tmpMapElement.Name,tmpMapElement.OffsetTo);
+            tmpRecordBlock.NumberFields[tmpPlan.OffsetTo[i]] = tmpCurrentFieldFloat;
             break;
           }
 
@@ -576,7 +620,6 @@ public class FlexRecord extends AbstractRecord
     Integer            tmpBlockCounter;
     String             currentIndent = "";
     String             PaddedName;
-    String             FieldType = null;
 
     ArrayList<String> tmpDumpList;
     tmpDumpList = new ArrayList<>();
@@ -619,22 +662,7 @@ public class FlexRecord extends AbstractRecord
         {
           PaddedName = currentIndent + tmpRecordBlockDef.FieldNames[i] + "                                                            ";
 
-          if (tmpRecordBlock.Fields[i] instanceof Integer)
-          {
-            FieldType = ">  <integer>";
-          }
-
-          if (tmpRecordBlock.Fields[i] instanceof String)
-          {
-            FieldType = ">  <string>";
-          }
-
-          if (tmpRecordBlock.Fields[i] instanceof Double)
-          {
-            FieldType = ">  <float>";
-          }
-
-          tmpDumpList.add(PaddedName.substring(1,60) + " = <" + tmpRecordBlock.Fields[i] + FieldType);
+          tmpDumpList.add(PaddedName.substring(1,60) + " = <" + tmpRecordBlock.getFieldValue(i) + FieldType[tmpRecordBlock.FieldTypes[i]]);
         }
       }
     }
@@ -661,8 +689,8 @@ public class FlexRecord extends AbstractRecord
   */
   public FieldInfo GetFieldInfo(String FieldName)
   {
+    int tmpFieldIndex;
     RecordBlock    tmpRecordBlock;
-    Object tmpField;
     FieldInfo tmpResult;
     String[] SplitName;
 
@@ -670,26 +698,11 @@ public class FlexRecord extends AbstractRecord
 
     tmpRecordBlock = BlockIndex.get(SplitName[0]);
 
-    tmpField = tmpRecordBlock.FieldMap.get(SplitName[1]);
+    tmpFieldIndex = tmpRecordBlock.Plan.FieldOffsets.get(SplitName[1]);
 
     tmpResult = new FieldInfo();
-
-    if (tmpField instanceof String)
-    {
-      tmpResult.FieldType = FIELD_TYPE_STRING;
-    }
-
-    if (tmpField instanceof Integer)
-    {
-      tmpResult.FieldType = FIELD_TYPE_INTEGER;
-    }
-
-    if (tmpField instanceof Double)
-    {
-      tmpResult.FieldType = FIELD_TYPE_FLOAT;
-    }
-
-    tmpResult.FieldValue = tmpField;
+    tmpResult.FieldType = tmpRecordBlock.FieldTypes[tmpFieldIndex];
+    tmpResult.FieldValue = tmpRecordBlock.getFieldValue(tmpFieldIndex);
     tmpResult.FieldName = SplitName[1];
 
     return tmpResult;
@@ -715,7 +728,6 @@ public class FlexRecord extends AbstractRecord
   {
     int tmpFieldIndex;
     RecordBlock    tmpRecordBlock;
-    Object tmpField;
     double tmpResult = 0;
     String[] SplitName;
 
@@ -723,16 +735,11 @@ public class FlexRecord extends AbstractRecord
 
     tmpRecordBlock = BlockIndex.get(SplitName[0]);
 
-    tmpFieldIndex = ((Number)tmpRecordBlock.FieldMap.get(SplitName[1])).intValue();
-    tmpField = tmpRecordBlock.Fields[tmpFieldIndex];
+    tmpFieldIndex = tmpRecordBlock.Plan.FieldOffsets.get(SplitName[1]);
 
-    if (tmpField instanceof Double)
-    {
-      tmpResult = ((Number)tmpField).doubleValue();
-    }
-    else if (tmpField instanceof Integer)
+    if (tmpRecordBlock.FieldTypes[tmpFieldIndex] != FIELD_TYPE_STRING)
     {
-      tmpResult = ((Number)tmpField).doubleValue();
+      tmpResult = tmpRecordBlock.NumberFields[tmpFieldIndex];
     }
     else
     {
@@ -758,7 +765,22 @@ public class FlexRecord extends AbstractRecord
 
     tmpRecordBlock = BlockIndex.get(SplitName[0]);
 
-    tmpFieldIndex = ((Number)tmpRecordBlock.FieldMap.get(SplitName[1])).intValue();
-    tmpRecordBlock.Fields[tmpFieldIndex] = NewValue;
+    tmpFieldIndex = tmpRecordBlock.Plan.FieldOffsets.get(SplitName[1]);
+
+    // A float put into a string field makes it a float field in this block,
+    // without changing the types shared with the other blocks
+    if (tmpRecordBlock.FieldTypes[tmpFieldIndex] == FIELD_TYPE_STRING)
+    {
+      if (tmpRecordBlock.SharedFieldTypes)
+      {
+        tmpRecordBlock.FieldTypes = tmpRecordBlock.FieldTypes.clone();
+        tmpRecordBlock.SharedFieldTypes = false;
+      }
+
+      tmpRecordBlock.FieldTypes[tmpFieldIndex] = FIELD_TYPE_FLOAT;
+      tmpRecordBlock.StringFields[tmpFieldIndex] = null;
+    }
+
+    tmpRecordBlock.NumberFields[tmpFieldIndex] = NewValue;
   }  
 }
@@ -0,0 +1,235 @@
+package OpenRate.record.flexRecord;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This is the compiled form of the mapping of a block definition. It is built
+ * once from the list of MapElements and the separator, and is then shared by
+ * all of the blocks mapped with that definition, so that mapping a record does
+ * not have to walk the mapping list or build any per record index.
+ *
+ * The plan is immutable once built. If the definition is changed, the plan is
+ * thrown away and built again the next time it is needed.
+ *
+ * Separators have always been regular expressions, so escaped separators such
+ * as "\\|" or "\\t" are unescaped, and plain separators are used literally.
+ * Only separators which really need a regular expression are split with one.
+ */
+final class MappingPlan
+{
+  // The characters which make a separator a regular expression
+  private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}";
+
+  // The field separator, taken literally
+  final String Separator;
+
+  // The separator as a regular expression, or null if it is used literally
+  final Pattern SeparatorPattern;
+
+  // The number of fields we need in the input data
+  final int MinFields;
+
+  // The highest input offset that we map from
+  final int MaxOffsetFrom;
+
+  // The mapping, one entry per MapElement
+  final int[] OffsetFrom;
+  final int[] OffsetTo;
+  final int[] Type;
+
+  // The field name to field offset index, shared by all blocks of this type
+  final Map<String, Integer> FieldOffsets;
+
+ /**
+  * Compile the mapping of a block definition
+  *
+  * @param blockDef The block definition to compile
+  */
+  MappingPlan(RecordBlockDef blockDef)
+  {
+    int        i;
+    int        mapCount = blockDef.Mapping.size();
+    int        maxOffset = -1;
+    MapElement tmpMapElement;
+    HashMap<String, Integer> tmpFieldOffsets = new HashMap<>(mapCount * 2 + 1);
+
+    SeparatorPattern = getSeparatorPattern(blockDef.Separator);
+    Separator = (SeparatorPattern == null) ? getLiteralSeparator(blockDef.Separator) : blockDef.Separator;
+    OffsetFrom = new int[mapCount];
+    OffsetTo = new int[mapCount];
+    Type = new int[mapCount];
+
+    for (i = 0 ; i < mapCount ; i++)
+    {
+      tmpMapElement = blockDef.Mapping.get(i);
+      OffsetFrom[i] = tmpMapElement.OffsetFrom;
+      OffsetTo[i] = tmpMapElement.OffsetTo;
+      Type[i] = tmpMapElement.Type;
+      tmpFieldOffsets.put(tmpMapElement.Name,tmpMapElement.OffsetTo);
+
+      if (tmpMapElement.OffsetFrom > maxOffset)
+      {
+        maxOffset = tmpMapElement.OffsetFrom;
+      }
+    }
+
+    MaxOffsetFrom = maxOffset;
+    MinFields = Math.max(blockDef.NumberOfFields, maxOffset + 1);
+    FieldOffsets = Collections.unmodifiableMap(tmpFieldOffsets);
+  }
+
+ /**
+  * Get the separator as a literal string, unescaping a single escaped
+  * character.
+  *
+  * @param separator The separator as defined
+  * @return The literal separator, or null if it needs a regular expression
+  */
+  static String getLiteralSeparator(String separator)
+  {
+    int  i;
+    char tmpChar;
+
+    // A single character is literal, even if it means something in a regex
+    if (separator.length() == 1)
+    {
+      return separator;
+    }
+
+    // An escaped character
+    if (separator.length() == 2 && separator.charAt(0) == '\\')
+    {
+      tmpChar = separator.charAt(1);
+
+      switch (tmpChar)
+      {
+        case 't':
+          return "\t";
+
+        case 'n':
+          return "\n";
+
+        case 'r':
+          return "\r";
+
+        case 'f':
+          return "\f";
+
+        default:
+          return Character.isLetterOrDigit(tmpChar) ? null : String.valueOf(tmpChar);
+      }
+    }
+
+    for (i = 0 ; i < separator.length() ; i++)
+    {
+      if (REGEX_META_CHARS.indexOf(separator.charAt(i)) >= 0)
+      {
+        return null;
+      }
+    }
+
+    return separator;
+  }
+
+ /**
+  * Get the separator as a regular expression, if it cannot be used literally.
+  *
+  * @param separator The separator as defined
+  * @return The compiled separator, or null if it is used literally
+  * @throws java.util.regex.PatternSyntaxException If the separator is not a
+  * valid regular expression
+  */
+  static Pattern getSeparatorPattern(String separator)
+  {
+    if (getLiteralSeparator(separator) != null)
+    {
+      return null;
+    }
+
+    return Pattern.compile(separator);
+  }
+
+ /**
+  * Split the data in a single pass over the separator. Only the fields up to
+  * the highest offset that we map from are created, the rest are only counted.
+  *
+  * @param data The data to split
+  * @param fields The array to fill, at least MaxOffsetFrom + 1 long
+  * @return The number of fields in the data
+  */
+  int tokenize(String data, String[] fields)
+  {
+    int fieldCount = 0;
+    int start = 0;
+    int end;
+    int sepLength = Separator.length();
+
+    if (SeparatorPattern != null)
+    {
+      return tokenizePattern(data, fields);
+    }
+
+    while ((end = data.indexOf(Separator, start)) >= 0)
+    {
+      if (fieldCount <= MaxOffsetFrom)
+      {
+        fields[fieldCount] = data.substring(start, end);
+      }
+
+      fieldCount++;
+      start = end + sepLength;
+    }
+
+    // the last field
+    if (fieldCount <= MaxOffsetFrom)
+    {
+      fields[fieldCount] = data.substring(start);
+    }
+
+    return fieldCount + 1;
+  }
+
+ /**
+  * Split the data in a single pass over the separator regular expression. The
+  * fields are created and counted in the same way as for a literal separator.
+  *
+  * @param data The data to split
+  * @param fields The array to fill, at least MaxOffsetFrom + 1 long
+  * @return The number of fields in the data
+  */
+  private int tokenizePattern(String data, String[] fields)
+  {
+    int     fieldCount = 0;
+    int     start = 0;
+    Matcher tmpMatcher = SeparatorPattern.matcher(data);
+
+    while (tmpMatcher.find())
+    {
+      // an empty match does not separate anything
+      if (tmpMatcher.end() == tmpMatcher.start())
+      {
+        continue;
+      }
+
+      if (fieldCount <= MaxOffsetFrom)
+      {
+        fields[fieldCount] = data.substring(start, tmpMatcher.start());
+      }
+
+      fieldCount++;
+      start = tmpMatcher.end();
+    }
+
+    // the last field
+    if (fieldCount <= MaxOffsetFrom)
+    {
+      fields[fieldCount] = data.substring(start);
+    }
+
+    return fieldCount + 1;
+  }
+}
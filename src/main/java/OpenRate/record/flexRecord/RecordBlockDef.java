@@ -35,5 +35,27 @@ public class RecordBlockDef
   // the full path name and returns the block reference and the field info
   // (Offset, type)
   HashMap<String, Integer> FieldNameIndex;
+
+  // The compiled mapping, built the first time that we map a block of this
+  // type. Cleared when the mapping or the separator changes.
+  volatile MappingPlan Plan;
+
+ /**
+  * Get the compiled mapping for this block, compiling it if needed
+  *
+  * @return The mapping plan
+  */
+  MappingPlan getMappingPlan()
+  {
+    MappingPlan tmpPlan = Plan;
+
+    if (tmpPlan == null)
+    {
+      tmpPlan = new MappingPlan(this);
+      Plan = tmpPlan;
+    }
+
+    return tmpPlan;
+  }
 }
 
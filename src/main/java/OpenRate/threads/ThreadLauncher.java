@@ -0,0 +1,146 @@
+package OpenRate.threads;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Creates the threads that the framework uses to run pipeline modules and real
+ * time listeners. Threads are created either as normal platform threads in a
+ * thread group, or as virtual threads, if the JVM we are running in offers
+ * them (Java 21 onwards).
+ *
+ * Virtual threads are located by reflection, so that the framework can still
+ * be compiled for and run on older JVMs. If virtual threads are requested but
+ * are not available, we fall back to platform threads, so configurations can
+ * be moved between JVMs without change.
+ *
+ * Virtual threads are not members of the thread group they would otherwise
+ * have been created in, so callers must keep track of the threads they launch
+ * and use countAlive() instead of the thread group active count.
+ */
+public class ThreadLauncher
+{
+  // Thread.ofVirtual(), or null if the JVM does not offer virtual threads
+  private static final Method OF_VIRTUAL;
+
+  // Thread.Builder.name(String)
+  private static final Method BUILDER_NAME;
+
+  // Thread.Builder.unstarted(Runnable)
+  private static final Method BUILDER_UNSTARTED;
+
+  static
+  {
+    Method ofVirtual = null;
+    Method builderName = null;
+    Method builderUnstarted = null;
+
+    try
+    {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      builderName = builderClass.getMethod("name", String.class);
+      builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+    }
+    catch (ClassNotFoundException | NoSuchMethodException ex)
+    {
+      // Virtual threads are not available in this JVM
+      ofVirtual = null;
+    }
+
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = builderName;
+    BUILDER_UNSTARTED = builderUnstarted;
+  }
+
+ /**
+  * Utility class, not instantiated
+  */
+  private ThreadLauncher()
+  {
+  }
+
+ /**
+  * Returns true if the JVM we are running in is able to create virtual
+  * threads.
+  *
+  * @return true if virtual threads can be created
+  */
+  public static boolean isVirtualThreadSupported()
+  {
+    return (OF_VIRTUAL != null);
+  }
+
+ /**
+  * Create a new (unstarted) thread to run the given work. Platform threads are
+  * created in the given thread group. Virtual threads ignore the thread group
+  * and are always daemon threads.
+  *
+  * @param group The thread group for platform threads, may be null
+  * @param target The work to run
+  * @param name The name of the thread
+  * @param useVirtual true if we would like a virtual thread
+  * @return The new thread, not yet started
+  */
+  public static Thread newThread(ThreadGroup group, Runnable target, String name, boolean useVirtual)
+  {
+    Thread newThread = null;
+
+    if (useVirtual && isVirtualThreadSupported())
+    {
+      newThread = newVirtualThread(target, name);
+    }
+
+    if (newThread == null)
+    {
+      newThread = new Thread(group, target, name);
+    }
+
+    return newThread;
+  }
+
+ /**
+  * Count the number of threads in the list which are still running.
+  *
+  * @param threads The threads to check
+  * @return The number of threads still alive
+  */
+  public static int countAlive(List<Thread> threads)
+  {
+    int aliveCount = 0;
+
+    for (Thread tmpThread : threads)
+    {
+      if (tmpThread.isAlive())
+      {
+        aliveCount++;
+      }
+    }
+
+    return aliveCount;
+  }
+
+ /**
+  * Create the virtual thread via Thread.ofVirtual().name(name).unstarted(target).
+  * Returns null if the JVM refuses (for example, virtual threads being a
+  * preview feature which has not been enabled).
+  *
+  * @param target The work to run
+  * @param name The name of the thread
+  * @return The virtual thread, or null if it could not be created
+  */
+  private static Thread newVirtualThread(Runnable target, String name)
+  {
+    try
+    {
+      Object builder = OF_VIRTUAL.invoke(null);
+      builder = BUILDER_NAME.invoke(builder, name);
+      return (Thread) BUILDER_UNSTARTED.invoke(builder, target);
+    }
+    catch (IllegalAccessException | InvocationTargetException | UnsupportedOperationException ex)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package OpenRate.transaction;
+
+import java.util.List;
+
+/**
+ * The ITMGroupCommitClient interface is implemented by the clients of the
+ * transaction manager that are able to commit several transactions at once.
+ *
+ * When group commit is switched on in the transaction manager, the flusher
+ * holds back transactions which have finished correctly for a short time, so
+ * that they can be committed together. A client implementing this interface
+ * is then informed once for the whole group, instead of once for each
+ * transaction, and can perform one physical commit for all of them. Clients
+ * which do not implement it are informed of each transaction in turn as usual.
+ *
+ * Transactions which finish with an error are never part of a group, and are
+ * rolled back one by one.
+ */
+public interface ITMGroupCommitClient extends ITMClient
+{
+ /**
+  * This is used to inform the client that an update has taken place to the
+  * status of a group of transactions, and that we are now in the commit phase
+  * and all of the transactions were processed correctly
+  *
+  * @param transactionNumbers The numbers of the transactions, in the order
+  * that they were opened
+  */
+  public void updateTransactionStatusCommitGroup(List<Integer> transactionNumbers);
+}
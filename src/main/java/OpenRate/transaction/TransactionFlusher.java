@@ -4,6 +4,9 @@ package OpenRate.transaction;
 
 import OpenRate.logging.ILogger;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -12,6 +15,19 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * final commit and closing done on them. This is externalised into a separate
  * thread for performance reasons.
  *
+ * The flusher is woken by the transaction manager each time a client changes
+ * the status of a transaction, so that a transaction moves on to the commit
+ * and close as soon as it is ready. The notifications are queued, so that a
+ * change made while the flusher is busy is not lost. As a safety net, the
+ * flushed transactions are looked at anyway if there has been no notification
+ * for a while.
+ *
+ * With group commit switched on in the transaction manager, a transaction
+ * which has finished correctly is committed together with the finished
+ * transactions queued behind it. The group is committed when it is full, when
+ * the first transaction of the group has waited for the group commit delay, or
+ * when no other transaction could join it.
+ *
  * @author tgdspia1
  */
 public class TransactionFlusher implements Runnable
@@ -20,7 +36,11 @@ public class TransactionFlusher implements Runnable
   private ReentrantReadWriteLock clientLock = new ReentrantReadWriteLock();
 
   // The list of the transactions we are closing
-  private ArrayList<TransactionInfo>transFlushedList   = new ArrayList<>();
+  private final ConcurrentLinkedQueue<TransactionInfo> transFlushedList = new ConcurrentLinkedQueue<>();
+
+  // The numbers of the transactions which have had a status change since we
+  // last looked
+  private final LinkedBlockingQueue<Integer> statusChanges = new LinkedBlockingQueue<>();
 
   // Common Definitions for the transaction manager
   private TMDefs TMD = new TMDefs();
@@ -34,43 +54,48 @@ public class TransactionFlusher implements Runnable
   // Our logger
   private ILogger pipeLog;
 
-  // Scheduler
-  private int sleepTime;
+  // The longest time we wait for a notification before looking at the flushed
+  // transactions anyway, in ms
+  private static final int POLL_INTERVAL = 1000;
+
+  // The transaction at the head of the group we are waiting to commit, and
+  // the time in ms by which the group must be committed
+  private int  groupHead = 0;
+  private long groupDeadline = 0;
 
   @Override
   public void run()
   {
+    long tmpWait;
+
     while(true)
     {
-      if (getFlushedTransactionCount() > 0)
-      {
-        updateTransactionStatus();
-        sleepTime = 0;
-      }
-      else
+      // Wait for a status change to be notified, or until a group we are
+      // holding back is due
+      tmpWait = POLL_INTERVAL;
+
+      if (groupHead > 0)
       {
-        sleepTime = 1000;
+        tmpWait = Math.max(1, Math.min(tmpWait, groupDeadline - System.currentTimeMillis()));
       }
-      /*try {
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException ex)
-      {
-        // Ignore
-      }*/
 
-      // If not marked for shutdown, wait for notification from the
-      // suppler that new records are available for processing.
       try
       {
-        synchronized (this)
-        {
-          wait();
-        }
+        statusChanges.poll(tmpWait, TimeUnit.MILLISECONDS);
       }
       catch (InterruptedException e)
       {
         // ignore interrupt exceptions
       }
+
+      // All of the changes notified up to now are dealt with by one pass.
+      // Changes notified during the pass wake us again straight away.
+      statusChanges.clear();
+
+      if (getFlushedTransactionCount() > 0)
+      {
+        updateTransactionStatus();
+      }
     }
   }
 
@@ -79,11 +104,21 @@ public class TransactionFlusher implements Runnable
   *
   * @param trans
   */
-  public synchronized void addTransactionToFlushList(TransactionInfo trans)
+  public void addTransactionToFlushList(TransactionInfo trans)
   {
     transFlushedList.add(trans);
     pipeLog.debug("Added transaction <"+trans.getTransactionNumber()+"> to flusher for pipe <"+pipelineName+">");
-    this.notify();
+    notifyStatusChange(trans.getTransactionNumber());
+  }
+
+ /**
+  * Wake the flusher because the status of a transaction has changed
+  *
+  * @param transNumber The transaction that changed
+  */
+  public void notifyStatusChange(int transNumber)
+  {
+    statusChanges.offer(transNumber);
   }
 
  /**
@@ -110,9 +145,9 @@ public class TransactionFlusher implements Runnable
       clientLock.writeLock().lock();
 
       // Check the status of the transactions
-      while (transFlushedList.size() > 0)
+      while (!transFlushedList.isEmpty())
       {
-        cachedTrans = transFlushedList.get(0);
+        cachedTrans = transFlushedList.peek();
         transNumber = cachedTrans.getTransactionNumber();
 
         // Calculate the new status
@@ -123,29 +158,30 @@ public class TransactionFlusher implements Runnable
         {
           if (NewOverallStatus == TMD.TM_FLUSHED)
           {
-            // inform each of the clients in turn
-            for (i = 1; i <= TM.getClientCount(); i++)
+            NewOverallStatus = flushClients(cachedTrans);
+          }
+          else if ((NewOverallStatus == TMD.TM_FINISHED_OK) && (TM.getGroupCommitSize() > 1))
+          {
+            if (!commitGroup())
             {
-              if (TM.getClient(i).updateTransactionStatusFlush(transNumber))
-              {
-                // Set the overall status for this client to OK
-                cachedTrans.setClientStatus(i, TMD.TM_FINISHED_OK);
-              }
-              else
-              {
-                // Set the overall status for this client to OK
-                cachedTrans.setClientStatus(i, TMD.TM_FINISHED_ERR);
-              }
-
-              // Update the status
-              NewOverallStatus = TM.getOverallStatus(transNumber,cachedTrans);
+              // Wait for more transactions to join the group
+              return;
             }
+
+            // Update the status
+            NewOverallStatus = TM.getOverallStatus(transNumber,cachedTrans);
           }
           else if (NewOverallStatus == TMD.TM_FINISHED_OK)
           {
             // inform each of the clients in turn
             for (i = 1; i <= TM.getClientCount(); i++)
             {
+              // the clients of other lanes do not see this transaction
+              if (!TM.isClientInTransaction(i, cachedTrans))
+              {
+                continue;
+              }
+
               TM.getClient(i).updateTransactionStatusCommit(transNumber);
 
               // Set the overall status for this client to OK
@@ -160,6 +196,12 @@ public class TransactionFlusher implements Runnable
             // inform each of the clients in turn
             for (i = 1; i <= TM.getClientCount(); i++)
             {
+              // the clients of other lanes do not see this transaction
+              if (!TM.isClientInTransaction(i, cachedTrans))
+              {
+                continue;
+              }
+
               TM.getClient(i).updateTransactionStatusRollback(transNumber);
 
               // Set the overall status for this client to closing
@@ -174,6 +216,12 @@ public class TransactionFlusher implements Runnable
             // inform each of the clients in turn
             for (i = 1; i <= TM.getClientCount(); i++)
             {
+              // the clients of other lanes do not see this transaction
+              if (!TM.isClientInTransaction(i, cachedTrans))
+              {
+                continue;
+              }
+
               TM.getClient(i).updateTransactionStatusClose(transNumber);
 
               // Set the overall status for this client to all done
@@ -187,14 +235,15 @@ public class TransactionFlusher implements Runnable
           {
             // Finish up and remove the transaction
             TM.closeTransaction(transNumber);
-            transFlushedList.remove(0);
+            transFlushedList.poll();
             pipeLog.debug(transFlushedList.size() + " transactions to flush for pipe <"+pipelineName+">");
             transNumber = 0;
           }
           else
           {
-            // Update the status
-            NewOverallStatus = TM.getOverallStatus(transNumber,cachedTrans);
+            // Not all of the clients have flushed yet. We will be notified
+            // when they do.
+            return;
           }
         }
       }
@@ -206,6 +255,152 @@ public class TransactionFlusher implements Runnable
     }
   }
 
+ /**
+  * Inform the clients of a transaction that it is in the flush phase
+  *
+  * @param cachedTrans The transaction to flush
+  * @return The new overall status of the transaction
+  */
+  private int flushClients(TransactionInfo cachedTrans)
+  {
+    int i;
+    int transNumber = cachedTrans.getTransactionNumber();
+
+    // inform each of the clients in turn
+    for (i = 1; i <= TM.getClientCount(); i++)
+    {
+      // the clients of other lanes do not see this transaction
+      if (!TM.isClientInTransaction(i, cachedTrans))
+      {
+        continue;
+      }
+
+      if (TM.getClient(i).updateTransactionStatusFlush(transNumber))
+      {
+        // Set the overall status for this client to OK
+        cachedTrans.setClientStatus(i, TMD.TM_FINISHED_OK);
+      }
+      else
+      {
+        // Set the overall status for this client to OK
+        cachedTrans.setClientStatus(i, TMD.TM_FINISHED_ERR);
+      }
+    }
+
+    return TM.getOverallStatus(transNumber,cachedTrans);
+  }
+
+ /**
+  * Commit the transaction at the head of the flush list together with the
+  * transactions behind it which have also finished correctly. The group is
+  * held back until it is full, the delay has passed, or no other transaction
+  * can join it.
+  *
+  * @return true if the group was committed, false if we are still waiting
+  */
+  private boolean commitGroup()
+  {
+    int     i;
+    int     tmpStatus;
+    boolean tmpEndOfList = true;
+    long    tmpNow = System.currentTimeMillis();
+    ArrayList<TransactionInfo> tmpGroup = new ArrayList<>();
+    ArrayList<Integer> tmpClientTrans;
+    ITMClient tmpClient;
+
+    // Collect the finished transactions, flushing them if we have to. We stop
+    // at the first one that is not OK, so that the commits stay in order.
+    for (TransactionInfo tmpTrans : transFlushedList)
+    {
+      if (tmpGroup.size() >= TM.getGroupCommitSize())
+      {
+        tmpEndOfList = false;
+        break;
+      }
+
+      tmpStatus = TM.getOverallStatus(tmpTrans.getTransactionNumber(),tmpTrans);
+
+      if (tmpStatus == TMD.TM_FLUSHED)
+      {
+        tmpStatus = flushClients(tmpTrans);
+      }
+
+      if (tmpStatus != TMD.TM_FINISHED_OK)
+      {
+        tmpEndOfList = false;
+        break;
+      }
+
+      tmpGroup.add(tmpTrans);
+    }
+
+    // The delay starts when we first see the head of the group
+    if (groupHead != tmpGroup.get(0).getTransactionNumber())
+    {
+      groupHead = tmpGroup.get(0).getTransactionNumber();
+      groupDeadline = tmpNow + TM.getGroupCommitDelay();
+    }
+
+    // Others can only join if we got to the end of the list and there are
+    // transactions which are still being processed
+    if (tmpEndOfList &&
+        (TM.getActiveTransactionCount() > transFlushedList.size()) &&
+        (tmpNow < groupDeadline))
+    {
+      return false;
+    }
+
+    // inform each of the clients in turn, once for all of its transactions
+    // if it can commit them together
+    for (i = 1; i <= TM.getClientCount(); i++)
+    {
+      tmpClientTrans = new ArrayList<>();
+
+      for (TransactionInfo tmpTrans : tmpGroup)
+      {
+        // the clients of other lanes do not see this transaction
+        if (TM.isClientInTransaction(i, tmpTrans))
+        {
+          tmpClientTrans.add(tmpTrans.getTransactionNumber());
+        }
+      }
+
+      if (tmpClientTrans.isEmpty())
+      {
+        continue;
+      }
+
+      tmpClient = TM.getClient(i);
+
+      if (tmpClient instanceof ITMGroupCommitClient)
+      {
+        ((ITMGroupCommitClient) tmpClient).updateTransactionStatusCommitGroup(tmpClientTrans);
+      }
+      else
+      {
+        for (Integer tmpTransNumber : tmpClientTrans)
+        {
+          tmpClient.updateTransactionStatusCommit(tmpTransNumber);
+        }
+      }
+
+      // Set the overall status for this client to closing
+      for (TransactionInfo tmpTrans : tmpGroup)
+      {
+        if (TM.isClientInTransaction(i, tmpTrans))
+        {
+          tmpTrans.setClientStatus(i, TMD.TM_CLOSING);
+        }
+      }
+    }
+
+    pipeLog.debug("Committed group of <" + tmpGroup.size() + "> transactions for pipe <"+pipelineName+">");
+    TM.recordCommitGroup(tmpGroup.size());
+    groupHead = 0;
+
+    return true;
+  }
+
  /**
   * Get the number of transactions which have been flushed but not yet
   * finalised.
@@ -2,16 +2,24 @@
 
 package OpenRate.transaction;
 
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 /**
   * The transaction info holds the information for a given transaction.
  *
+ * The clients of a transaction update their status and record count from
+ * their own threads, while the flusher reads them to calculate the overall
+ * status, so the per client values are held in atomic arrays and the other
+ * values are volatile. This means that the transaction manager does not need
+ * to take a lock to update or read the state of a transaction.
+ *
  * @author tgdspia1
  */
 public class TransactionInfo
 {
  /*
   */
-  private int     transactionStatus ;               // The overall status of the transaction
+  private volatile int transactionStatus;               // The overall status of the transaction
                                                     // being the sum of the client statuses.
                                                     // This will become TM_PROCESSING when
                                                     // the first client starts processing
@@ -21,16 +29,41 @@ public class TransactionInfo
                                                     // will cause the status to change immediately to
                                                     // TM_ABORT_REQUEST, turning to TM_ABORTED when all
                                                     // modules confirm that they have aborted.
-  private int[]   clientStatus       = new int[50]; // The status of the individual clients
-  private int[]   recordCount        = new int[50]; // The record count from the clients
-  private long    transactionStart   = 0;           // Transaction start time
-  private long    transactionEnd     = 0;           // Transaction end time
-  private int     transactionRecords = 0;           // Transaction record count
-  private boolean abortRequested     = false;       // True if an abort has been requested for this transaction
-  private boolean transactionErrored = false;       // True if there was a critical error in this transaction
-  private boolean stateChange        = false;       // True if there was an overall state change as part of the last client status change
-  private String  pipeline           = null;        // The pipeline that opened this transaction
-  private int     transactionNumber  = 0;           // The number of this transaction
+  private final AtomicIntegerArray clientStatus;        // The status of the individual clients
+  private final AtomicIntegerArray recordCount;         // The record count from the clients
+  private volatile long    transactionStart   = 0;     // Transaction start time
+  private volatile long    transactionEnd     = 0;     // Transaction end time
+  private volatile int     transactionRecords = 0;     // Transaction record count
+  private volatile boolean abortRequested     = false; // True if an abort has been requested for this transaction
+  private volatile boolean transactionErrored = false; // True if there was a critical error in this transaction
+  private volatile boolean stateChange        = false; // True if there was an overall state change as part of the last client status change
+  private volatile String  pipeline           = null;  // The pipeline that opened this transaction
+  private volatile int     transactionNumber  = 0;     // The number of this transaction
+  private volatile int     lane               = 0;     // The lane processing this transaction, 0 if the pipeline has no lanes
+
+  // The number of clients a transaction is created for if not told otherwise
+  private static final int DEFAULT_CLIENT_COUNT = 49;
+
+  /**
+   * Create the information for a transaction, with room for the default
+   * number of clients.
+   */
+  public TransactionInfo()
+  {
+    this(DEFAULT_CLIENT_COUNT);
+  }
+
+  /**
+   * Create the information for a transaction, with room for the given number
+   * of clients. Clients are numbered from 1.
+   *
+   * @param clientCount The number of clients taking part
+   */
+  public TransactionInfo(int clientCount)
+  {
+    clientStatus = new AtomicIntegerArray(clientCount + 1);
+    recordCount  = new AtomicIntegerArray(clientCount + 1);
+  }
 
   /**
     * @return the TransactionStart
@@ -143,7 +176,7 @@ public class TransactionInfo
    * @return the client status value
    */
   public int getClientStatus(int clientNumber) {
-    return clientStatus[clientNumber];
+    return clientStatus.get(clientNumber);
   }
 
   /**
@@ -153,7 +186,7 @@ public class TransactionInfo
    * @param newStatus the new status
    */
   public void setClientStatus(int clientNumber, int newStatus) {
-    clientStatus[clientNumber] = newStatus;
+    clientStatus.set(clientNumber, newStatus);
   }
 
   /**
@@ -163,7 +196,7 @@ public class TransactionInfo
    * @return the recordCount
    */
   public int getRecordCount(int clientNumber) {
-    return recordCount[clientNumber];
+    return recordCount.get(clientNumber);
   }
 
   /**
@@ -173,7 +206,7 @@ public class TransactionInfo
    * @param recordCount the recordCount to set
    */
   public void setRecordCount(int clientNumber, int recordCount) {
-    this.recordCount[clientNumber] = recordCount;
+    this.recordCount.set(clientNumber, recordCount);
   }
 
   /**
@@ -190,6 +223,20 @@ public class TransactionInfo
     this.pipeline = pipeline;
   }
 
+  /**
+   * @return the lane processing this transaction
+   */
+  public int getLane() {
+    return lane;
+  }
+
+  /**
+   * @param lane the lane processing this transaction
+   */
+  public void setLane(int lane) {
+    this.lane = lane;
+  }
+
   /**
    * @return the transactionNumber
    */
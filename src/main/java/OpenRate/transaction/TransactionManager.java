@@ -9,8 +9,11 @@ import OpenRate.configurationmanager.IEventInterface;
 import OpenRate.exception.ExceptionHandler;
 import OpenRate.exception.InitializationException;
 import OpenRate.logging.ILogger;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * This is the pipeline wide transaction manager, used for coordinating the processing
@@ -47,6 +50,29 @@ import java.util.concurrent.ConcurrentHashMap;
  * initiated by the pipe controller, which avoids re-entry into the TM at very
  * little overhead cost.
  *
+ * The transaction manager does not take a global lock: the state of each
+ * transaction is held in its own TransactionInfo, with the client statuses in
+ * atomic arrays, the transaction numbers and counts are atomic, and the
+ * overall status is calculated from the client statuses of the transaction
+ * alone. This means that modules working on different transactions, or
+ * different modules working on the same transaction, do not wait for each
+ * other at each header and trailer.
+ *
+ * A pipeline can be built with several lanes, each of which is a complete
+ * copy of the input adapter, plug ins and output adapters. The clients are
+ * registered in the lane that was being built, and a transaction belongs to
+ * the lane of the input adapter that opened it. The overall status of a
+ * transaction, and the notifications of the flusher, then only take the
+ * clients of its own lane into account, so that the lanes can work on
+ * different transactions at the same time. Without lanes, all clients are in
+ * lane 0 and take part in all transactions.
+ *
+ * With group commit, the flusher holds back the transactions which have
+ * finished correctly until there are GroupCommitSize of them, or the oldest
+ * has waited GroupCommitDelay ms, and then commits them together. Clients
+ * implementing ITMGroupCommitClient are informed once for the whole group.
+ * Group commit is off with the default GroupCommitSize of 1.
+ *
  * ToDo:
  *   Make the modules wait for notifications of transaction finishing?
  */
@@ -56,28 +82,48 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   private IPipeline pipeline;
 
   // Tells us whether we are in a transaction
-  private boolean  TMStarted               = false;
+  private volatile boolean TMStarted       = false;
 
   private ConcurrentHashMap<Integer, TransactionInfo> transactionList;  // This is the map of the transactions in progress
-  private static int   nextTransactionNumber   = 0;           // The transaction number sequence generator
+  private static final AtomicInteger nextTransactionNumber = new AtomicInteger(); // The transaction number sequence generator
 
-  private int          numberOfClients         = 0;           // The number of clients we are dealing with
+  private volatile int numberOfClients         = 0;           // The number of clients we are dealing with
   private ITMClient[]  clients;                               // This is the map of the client objects
   private int[]        clientTypeArray;                       // This is the map of the client objects
-  private int[]        clientTransNumber;                     // The transaction number the client is working on
+  private AtomicIntegerArray clientTransNumber;               // The transaction number the client is working on
+  private int[]        clientLane;                            // The lane of each client, 0 if there are no lanes
+
+  // The lane that clients are registered in while the pipeline is built, the
+  // number of lanes, the last client registered in each lane, which triggers
+  // the flush, and the number of transactions open in each lane
+  private int          registrationLane        = 0;
+  private volatile int laneCount               = 0;
+  private int[]        laneLastClient;
+  private AtomicIntegerArray laneTransactionCount;
+
+  // The starting size of the client and lane arrays, which grow if needed
+  private final static int INITIAL_CAPACITY = 50;
 
   // This is the count of the transactions we have open right now
-  private int     activeTransactionCount = 0;
+  private final AtomicInteger activeTransactionCount = new AtomicInteger();
 
   // Wheter we are allowed to create new transactions or not
-  private boolean newTransactionAllowed  = true;
+  private volatile boolean newTransactionAllowed = true;
 
   // This holds the maximum number of transactions that this TM can have open
   // at any one time. Defaults to 1, but can be set to any other value.
-  private int maxTransactions = 1;
+  private volatile int maxTransactions = 1;
+
+  // The most transactions that are committed together, and the longest time
+  // in ms that a finished transaction waits for others to join it
+  private volatile int groupCommitSize = 1;
+  private volatile int groupCommitDelay = 0;
+
+  // The most transactions that have actually been committed together
+  private volatile int largestCommitGroup = 0;
 
   // This defines if we should abort all transactions that are open if one aborts
-  private boolean abortConcurrentTransactions = false;
+  private volatile boolean abortConcurrentTransactions = false;
 
   // List of Services that this Client supports
   private final static String SERVICE_ABORT = "SetAbort";
@@ -88,6 +134,8 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   private final static String SERVICE_FLUSH_STATUS = "FlushStatus";
   private final static String SERVICE_MAX_TRANSACTIONS = "MaxTransactions";
   private final static String SERVICE_ABORT_HARD = "AbortHard";
+  private final static String SERVICE_GROUP_COMMIT_SIZE = "GroupCommitSize";
+  private final static String SERVICE_GROUP_COMMIT_DELAY = "GroupCommitDelay";
 
   // module symbolic name: set during initialisation
   private String symbolicName = "TransactionManager";
@@ -125,14 +173,20 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     // The list of current transactions
     transactionList   = new ConcurrentHashMap<>(50);
 
-    // The list of clients
-    clients           = new ITMClient[50];
+    // The list of clients. The client arrays grow as clients register, which
+    // matters when lanes copy every client of the pipeline.
+    clients           = new ITMClient[INITIAL_CAPACITY];
 
     // Tells us what type of client a client is (Input, processing, output)
-    clientTypeArray   = new int[50];
+    clientTypeArray   = new int[INITIAL_CAPACITY];
 
     // Tells us the transaction a client is in (it can't always find out by itself when we are overlaying transactions)
-    clientTransNumber = new int[50];
+    clientTransNumber = new AtomicIntegerArray(INITIAL_CAPACITY);
+
+    // Tells us the lane of each client, and the state of each lane
+    clientLane           = new int[INITIAL_CAPACITY];
+    laneLastClient       = new int[INITIAL_CAPACITY];
+    laneTransactionCount = new AtomicIntegerArray(INITIAL_CAPACITY);
 
     // Set the initial status of the transaction manager
     requestTMStart();
@@ -155,28 +209,58 @@ public class TransactionManager implements ITransactionManager, IEventInterface
 
   /**
    * Creates a new transaction instance, ready accept transaction information
-   * Sets the transaction start time
+   * Sets the transaction start time. This cannot be used in a pipeline with
+   * lanes, as the transaction would not belong to any lane, and so would never
+   * be flushed.
    *
    * @param pipeline The name of the pipeline that opened the transaction
-   * @return The transaction number
+   * @return The transaction number, or -1 if it could not be opened
    */
   @Override
-  public synchronized int openTransaction(String pipeline)
+  public int openTransaction(String pipeline)
+  {
+    return openTransaction(pipeline, 0);
+  }
+
+  /**
+   * Creates a new transaction instance in the lane of the client that opens it,
+   * ready accept transaction information. Sets the transaction start time
+   *
+   * @param pipeline The name of the pipeline that opened the transaction
+   * @param clientNumber The input client opening the transaction, or 0 if
+   * the pipeline has no lanes
+   * @return The transaction number, or -1 if it could not be opened
+   */
+  public int openTransaction(String pipeline, int clientNumber)
   {
     int tmpTransactionNumber;
+    int tmpLane;
+    String tmpMessage;
+
+    // In a pipeline with lanes, each transaction must belong to a lane
+    if ((laneCount > 0) && (clientLane[clientNumber] == 0))
+    {
+      getPipeLog().error("Cannot open a transaction outside of the lanes of pipeline <" + pipeline + ">. Transactions must be opened by an input adapter client.");
+
+      return -1;
+    }
+
     if (TMStarted)
     {
       tmpTransactionNumber            = getNextTransactionNumber();
-      TransactionInfo CachedTrans     = new TransactionInfo();
+      TransactionInfo CachedTrans     = new TransactionInfo(numberOfClients);
       CachedTrans.setTransactionStart(System.currentTimeMillis());
       CachedTrans.setTransactionNumber(tmpTransactionNumber);
+      tmpLane = clientLane[clientNumber];
+      CachedTrans.setLane(tmpLane);
       transactionList.put(tmpTransactionNumber, CachedTrans);
-      message = "Opened transaction <" + tmpTransactionNumber + "> for pipeline <" + pipeline + ">";
-      getPipeLog().info(message);
-      OpenRate.getOpenRateStatsLog().info(message);
+      tmpMessage = "Opened transaction <" + tmpTransactionNumber + "> for pipeline <" + pipeline + ">";
+      getPipeLog().info(tmpMessage);
+      OpenRate.getOpenRateStatsLog().info(tmpMessage);
 
-      // Maintain the count
-      activeTransactionCount++;
+      // Maintain the counts
+      activeTransactionCount.incrementAndGet();
+      laneTransactionCount.incrementAndGet(tmpLane);
 
       return tmpTransactionNumber;
     }
@@ -194,7 +278,7 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   * @param transNumber The transaction number to close
   */
   @Override
-  public synchronized void closeTransaction(int transNumber)
+  public void closeTransaction(int transNumber)
   {
     TransactionInfo CachedTrans;
 
@@ -217,12 +301,14 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     OpenRate.getOpenRateStatsLog().info("            Speed    <" +
       ((CachedTrans.getTransactionRecords() * 1000) / TransactionTime) + "> records /sec");
 
-    // remove the old transaction
-    transactionList.remove(transNumber);
-    getPipeLog().debug("Removed transaction <" + transNumber + ">");
+    // remove the old transaction, counting it only once if it was also cancelled
+    if (transactionList.remove(transNumber) != null)
+    {
+      activeTransactionCount.decrementAndGet();
+      laneTransactionCount.decrementAndGet(CachedTrans.getLane());
+    }
 
-    // Maintain the count
-    activeTransactionCount--;
+    getPipeLog().debug("Removed transaction <" + transNumber + ">");
  }
 
  /**
@@ -234,25 +320,26 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   @Override
   public void requestTransactionAbort(int transNumber)
   {
-    TransactionInfo tmpCachedTrans;
     TransactionInfo CachedTrans;
 
     CachedTrans = transactionList.get(transNumber);
 
+    if (CachedTrans == null)
+    {
+      // closed in the meantime
+      return;
+    }
+
     CachedTrans.setAbortRequested(true);
     getPipeLog().info("Request Abort for Transaction <" + transNumber + ">");
 
     // if we should abort concurrent transactions do so
     if (abortConcurrentTransactions)
     {
-      Iterator<Integer> TransactionIterator = transactionList.keySet().iterator();
-
-      while (TransactionIterator.hasNext())
+      for (TransactionInfo tmpCachedTrans : transactionList.values())
       {
-        Integer tmpTransactionKey = TransactionIterator.next();
-        tmpCachedTrans = transactionList.get(tmpTransactionKey);
         tmpCachedTrans.setAbortRequested(true);
-        getPipeLog().info("Request Subordinate Abort for Transaction <" + tmpTransactionKey + ">");
+        getPipeLog().info("Request Subordinate Abort for Transaction <" + tmpCachedTrans.getTransactionNumber() + ">");
       }
     }
   }
@@ -265,9 +352,11 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   */
   public boolean getTransactionAborted(int transNumber)
   {
-    if (transactionList.containsKey(transNumber))
+    TransactionInfo CachedTrans = transactionList.get(transNumber);
+
+    if (CachedTrans != null)
     {
-      return transactionList.get(transNumber).isAbortRequested();
+      return CachedTrans.isAbortRequested();
     }
     else
     {
@@ -337,9 +426,17 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   @Override
   public void cancelTransaction(int transNumber)
   {
+    TransactionInfo CachedTrans;
+
     getPipeLog().info("Cancel Transaction <" + transNumber + ">");
-    transactionList.remove(transNumber);
-    activeTransactionCount--;
+
+    CachedTrans = transactionList.remove(transNumber);
+
+    if (CachedTrans != null)
+    {
+      activeTransactionCount.decrementAndGet();
+      laneTransactionCount.decrementAndGet(CachedTrans.getLane());
+    }
   }
 
   /**
@@ -357,19 +454,73 @@ public class TransactionManager implements ITransactionManager, IEventInterface
    * @param clientReference The object reference
    * @return Client index
    */
-  public int registerClient(int clientType, ITMClient clientReference)
+  public synchronized int registerClient(int clientType, ITMClient clientReference)
   {
     // Need to add something here to track the status of the transaction, and
     // perhaps the clients
+    growClients(numberOfClients + 1);
+    growLanes(registrationLane);
     numberOfClients++;
     clients[numberOfClients] = clientReference;
     clientTypeArray[numberOfClients] = clientType;
+    clientLane[numberOfClients] = registrationLane;
+    laneLastClient[registrationLane] = numberOfClients;
 
-    getPipeLog().debug("Registered client <" + clientReference.toString() +"> as client type <" + clientType + "> as client number <" + numberOfClients + ">");
+    getPipeLog().debug("Registered client <" + clientReference.toString() +"> as client type <" + clientType + "> as client number <" + numberOfClients + "> in lane <" + registrationLane + ">");
 
     return numberOfClients;
   }
 
+ /**
+  * Make room in the client arrays for the given client number.
+  *
+  * @param clientNumber The highest client number we need to hold
+  */
+  private void growClients(int clientNumber)
+  {
+    if (clientNumber < clients.length)
+    {
+      return;
+    }
+
+    int newSize = Math.max(clientNumber + 1, clients.length * 2);
+    AtomicIntegerArray newTransNumber = new AtomicIntegerArray(newSize);
+
+    for (int i = 0; i < clientTransNumber.length(); i++)
+    {
+      newTransNumber.set(i, clientTransNumber.get(i));
+    }
+
+    clients           = Arrays.copyOf(clients, newSize);
+    clientTypeArray   = Arrays.copyOf(clientTypeArray, newSize);
+    clientLane        = Arrays.copyOf(clientLane, newSize);
+    clientTransNumber = newTransNumber;
+  }
+
+ /**
+  * Make room in the lane arrays for the given lane.
+  *
+  * @param lane The highest lane we need to hold
+  */
+  private void growLanes(int lane)
+  {
+    if (lane < laneLastClient.length)
+    {
+      return;
+    }
+
+    int newSize = Math.max(lane + 1, laneLastClient.length * 2);
+    AtomicIntegerArray newTransactionCount = new AtomicIntegerArray(newSize);
+
+    for (int i = 0; i < laneTransactionCount.length(); i++)
+    {
+      newTransactionCount.set(i, laneTransactionCount.get(i));
+    }
+
+    laneLastClient       = Arrays.copyOf(laneLastClient, newSize);
+    laneTransactionCount = newTransactionCount;
+  }
+
   /**
    * Update the transaction status from the current client. This will have the
    * effect of recalculating the new overall status and will return it immediately
@@ -381,32 +532,40 @@ public class TransactionManager implements ITransactionManager, IEventInterface
    * @param clientNumber The client number
    * @param newStatus The new client status to set
    */
-  public synchronized void setClientStatus(int transNumber, int clientNumber, int newStatus)
+  public void setClientStatus(int transNumber, int clientNumber, int newStatus)
   {
+    TransactionInfo CachedTrans;
+
     try
     {
       // Update the client status
-      transactionList.get(transNumber).setClientStatus(clientNumber, newStatus);
+      CachedTrans = transactionList.get(transNumber);
+      CachedTrans.setClientStatus(clientNumber, newStatus);
 
       // Print something to the log, so we can understand the state changes
       getPipeLog().debug("Client <" + clientNumber+ "> set status <" + newStatus + "> " +
                 " for transaction <" + transNumber + ">");
 
       // Store away the transaction number
-      clientTransNumber[clientNumber] = transNumber;
+      clientTransNumber.set(clientNumber, transNumber);
 
-      // Set the transaction into the "finish transaction list" (if it is ready)
-      if ((clientNumber==numberOfClients) && (newStatus==TMD.TM_FLUSHED))
+      // Set the transaction into the "finish transaction list" (if it is ready),
+      // which is when the last client of its lane has flushed
+      if ((clientNumber==laneLastClient[CachedTrans.getLane()]) && (newStatus==TMD.TM_FLUSHED))
       {
-        tmf.addTransactionToFlushList(transactionList.get(transNumber));
+        tmf.addTransactionToFlushList(CachedTrans);
+      }
+      else
+      {
+        // Let the flusher see the change
+        tmf.notifyStatusChange(transNumber);
       }
     }
     catch (NullPointerException npe)
     {
-      message = "Error setting client status <" + newStatus +
+      OpenRate.getOpenRateFrameworkLog().error("Error setting client status <" + newStatus +
                        "> for client <" + clientNumber + "> in transaction <" +
-                       transNumber + ">";
-      OpenRate.getOpenRateFrameworkLog().error(message);
+                       transNumber + ">");
     }
   }
 
@@ -416,6 +575,47 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     return numberOfClients;
   }
 
+ /**
+  * Set the lane that the clients registering from now on belong to. Called by
+  * the pipeline as it builds each lane, and set back to 0 when it has done.
+  *
+  * @param lane The lane being built, 0 if the pipeline has no lanes
+  */
+  public synchronized void setRegistrationLane(int lane)
+  {
+    growLanes(lane);
+    registrationLane = lane;
+
+    if (lane > laneCount)
+    {
+      laneCount = lane;
+    }
+  }
+
+ /**
+  * Find out if a client takes part in a transaction, which is the case if it
+  * is in the lane of the transaction, or if there are no lanes.
+  *
+  * @param clientNumber The client number
+  * @param cachedTrans The information object for the transaction
+  * @return true if the client takes part in the transaction
+  */
+  public boolean isClientInTransaction(int clientNumber, TransactionInfo cachedTrans)
+  {
+    return clientLane[clientNumber] == cachedTrans.getLane();
+  }
+
+ /**
+  * Return the number of transactions open in a lane
+  *
+  * @param lane The lane
+  * @return The number of open transactions
+  */
+  public int getLaneTransactionCount(int lane)
+  {
+    return laneTransactionCount.get(lane);
+  }
+
  /**
   * The the client reference.
   *
@@ -437,28 +637,29 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   */
   public int getTransactionNumber(int clientNumber)
   {
-    return clientTransNumber[clientNumber];
+    return clientTransNumber.get(clientNumber);
   }
 
   /**
-   * Get the next transaction number. This is a synchronised method to ensure
-   * that we never return the same transaction number twice, nor leave a gap.
+   * Get the next transaction number. The sequence is atomic to ensure that we
+   * never return the same transaction number twice, nor leave a gap.
    *
    * @return the nextTransactionNumber
    */
-  public synchronized static int getNextTransactionNumber() {
-    nextTransactionNumber++;
-    return nextTransactionNumber;
+  public static int getNextTransactionNumber() {
+    return nextTransactionNumber.incrementAndGet();
   }
 
  /**
-  * Calculates the new overall status for this transaction
+  * Calculates the new overall status for this transaction from the statuses
+  * of its clients. Only the transaction itself is read and written, so no
+  * lock is needed.
   *
   * @param transNumber The transaction we are working on
   * @param cachedTrans The information object for the transaction
   * @return the new overall status
   */
-  public synchronized int getOverallStatus(int transNumber, TransactionInfo cachedTrans)
+  public int getOverallStatus(int transNumber, TransactionInfo cachedTrans)
   {
     int     newOverallStatus;
     boolean AllFinished      = true;
@@ -475,12 +676,18 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     newOverallStatus                         = TMD.TM_CLOSED;
     for (i = 1; i <= numberOfClients; i++)
     {
+      // the clients of other lanes do not see this transaction
+      if (!isClientInTransaction(i, cachedTrans))
+      {
+        continue;
+      }
+
       int tmpStatus = cachedTrans.getClientStatus(i);
       AllFinished   = (AllFinished &
                      ((tmpStatus == TMD.TM_FINISHED_OK) ||
                       (tmpStatus == TMD.TM_FINISHED_ERR)));
       AllClosed     = (AllClosed & (tmpStatus == TMD.TM_CLOSING));
-      ErrFlag       = (ErrFlag | (cachedTrans.getClientStatus(i) == TMD.TM_FINISHED_ERR));
+      ErrFlag       = (ErrFlag | (tmpStatus == TMD.TM_FINISHED_ERR));
 
       if (tmpStatus < newOverallStatus)
       {
@@ -536,12 +743,17 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     String  ClientType       = "";
     String  ClientStatus     = "";
 
-    if (transactionList.containsKey(transNumber))
-    {
-      TransactionInfo CachedTrans = transactionList.get(transNumber);
+    TransactionInfo CachedTrans = transactionList.get(transNumber);
 
+    if (CachedTrans != null)
+    {
       for (i = 1; i <= numberOfClients; i++)
       {
+        if (!isClientInTransaction(i, CachedTrans))
+        {
+          continue;
+        }
+
         ClientType += Integer.toString(clientTypeArray[i]);
         ClientStatus += Integer.toString(CachedTrans.getClientStatus(i));
       }
@@ -592,14 +804,14 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   * @param clientNumber The client
   * @param recordCount The new record count
   */
-  public synchronized void updateClientRecordCount(int transNumber, int clientNumber,
+  public void updateClientRecordCount(int transNumber, int clientNumber,
     int recordCount)
   {
     TransactionInfo CachedTrans;
 
     CachedTrans = transactionList.get(transNumber);
 
-    transactionList.get(transNumber).setRecordCount(clientNumber, recordCount);
+    CachedTrans.setRecordCount(clientNumber, recordCount);
 
     // update the overall transaction record count
     if (clientTypeArray[clientNumber] == TMD.CT_CLIENT_INPUT)
@@ -617,7 +829,7 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   @Override
   public int getActiveTransactionCount()
   {
-    return activeTransactionCount;
+    return activeTransactionCount.get();
   }
   
   /**
@@ -641,7 +853,29 @@ public class TransactionManager implements ITransactionManager, IEventInterface
    */
   public boolean getNewTransactionAllowed()
   {
-      return newTransactionAllowed & (activeTransactionCount < maxTransactions);
+      return newTransactionAllowed & (activeTransactionCount.get() < maxTransactions);
+  }
+
+  /**
+   * Return whether the input adapter client is allowed to start new
+   * transactions. With lanes, each lane can also have only its share of the
+   * maximum number of transactions open, so that one lane cannot take all of
+   * the work waiting while it is busy with a long transaction.
+   *
+   * @param clientNumber The input adapter client number
+   * @return True if new transactions can be started
+   */
+  public boolean getNewTransactionAllowed(int clientNumber)
+  {
+    int tmpLane = clientLane[clientNumber];
+
+    if (tmpLane == 0)
+    {
+      return getNewTransactionAllowed();
+    }
+
+    return getNewTransactionAllowed() &
+           (laneTransactionCount.get(tmpLane) < Math.max(1, maxTransactions / laneCount));
   }
 
   /**
@@ -675,6 +909,71 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     maxTransactions = newMaxValue;
   }
 
+  /**
+   * Get the most transactions that are committed together
+   *
+   * @return the group commit size, 1 if group commit is off
+   */
+  public int getGroupCommitSize()
+  {
+    return groupCommitSize;
+  }
+
+  /**
+   * Set the most transactions that are committed together
+   *
+   * @param newSize the new group commit size, 1 to switch group commit off
+   */
+  public void setGroupCommitSize(int newSize)
+  {
+    groupCommitSize = Math.max(1, newSize);
+  }
+
+  /**
+   * Get the longest time a finished transaction waits to be committed with
+   * others
+   *
+   * @return the group commit delay in ms
+   */
+  public int getGroupCommitDelay()
+  {
+    return groupCommitDelay;
+  }
+
+  /**
+   * Set the longest time a finished transaction waits to be committed with
+   * others
+   *
+   * @param newDelay the new group commit delay in ms
+   */
+  public void setGroupCommitDelay(int newDelay)
+  {
+    groupCommitDelay = Math.max(0, newDelay);
+  }
+
+  /**
+   * Get the most transactions that have been committed together as one group
+   *
+   * @return the size of the largest group committed, 0 if there was none
+   */
+  public int getLargestCommitGroup()
+  {
+    return largestCommitGroup;
+  }
+
+  /**
+   * Note the size of a group of transactions that has been committed
+   *
+   * @param groupSize the number of transactions committed together
+   */
+  void recordCommitGroup(int groupSize)
+  {
+    if (groupSize > largestCommitGroup)
+    {
+      largestCommitGroup = groupSize;
+    }
+  }
+
   /**
   * Perform any close down activities that are needed, the inverse of the
   * init() procedure
@@ -711,6 +1010,8 @@ public class TransactionManager implements ITransactionManager, IEventInterface
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MAX_TRANSACTIONS, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_ABORT_CONCURRENT_TRANS, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_ABORT_HARD, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_GROUP_COMMIT_SIZE, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_GROUP_COMMIT_DELAY, ClientManager.PARAM_DYNAMIC);
   }
 
   /**
@@ -804,7 +1105,7 @@ public class TransactionManager implements ITransactionManager, IEventInterface
 
     if (Command.equalsIgnoreCase(SERVICE_TRANSCOUNT))
     {
-      return Integer.toString(activeTransactionCount);
+      return Integer.toString(activeTransactionCount.get());
     }
 
     if (Command.equalsIgnoreCase(SERVICE_CLIENT_STATUS))
@@ -833,6 +1134,11 @@ public class TransactionManager implements ITransactionManager, IEventInterface
       // Get the status for each client
       for (i = 1; i <= getClientCount(); i++)
       {
+        if (!isClientInTransaction(i, CachedTrans))
+        {
+          continue;
+        }
+
         result = result + "Client <"+i+"> status for transaction <" + tmpTransNumber + "> is <" +
             CachedTrans.getClientStatus(i) + ">\n";
       }
@@ -871,6 +1177,48 @@ public class TransactionManager implements ITransactionManager, IEventInterface
       }
     }
 
+    // Set the group commit size
+    if (Command.equalsIgnoreCase(SERVICE_GROUP_COMMIT_SIZE))
+    {
+      if (Parameter.equals(""))
+      {
+        return String.valueOf(getGroupCommitSize());
+      }
+      else
+      {
+        try
+        {
+          setGroupCommitSize(Integer.parseInt(Parameter));
+        }
+        catch (NumberFormatException nfe)
+        {
+          getPipeLog().error("Invalid number for group commit size. Passed value = <" + Parameter + ">");
+        }
+        ResultCode = 0;
+      }
+    }
+
+    // Set the group commit delay
+    if (Command.equalsIgnoreCase(SERVICE_GROUP_COMMIT_DELAY))
+    {
+      if (Parameter.equals(""))
+      {
+        return String.valueOf(getGroupCommitDelay());
+      }
+      else
+      {
+        try
+        {
+          setGroupCommitDelay(Integer.parseInt(Parameter));
+        }
+        catch (NumberFormatException nfe)
+        {
+          getPipeLog().error("Invalid number for group commit delay. Passed value = <" + Parameter + ">");
+        }
+        ResultCode = 0;
+      }
+    }
+
     // Set the maximum number of transactions
     if (Command.equalsIgnoreCase(SERVICE_ABORT_HARD))
     {
@@ -944,6 +1292,8 @@ public class TransactionManager implements ITransactionManager, IEventInterface
   @Override
   public void resetClients() {
     numberOfClients = 0;
+    registrationLane = 0;
+    laneCount = 0;
   }
   
   // -----------------------------------------------------------------------------
@@ -0,0 +1,203 @@
+package OpenRate.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear latency histogram, in the style of HdrHistogram. The
+ * value range is divided into power of two buckets, each of which is divided
+ * into 64 linear sub buckets, which gives a worst case precision of about 1.5%
+ * of the recorded value.
+ *
+ * Recording a value does not allocate and does not lock, so this can be used
+ * directly in the real time processing path, and from many threads at once.
+ * Reading the percentiles walks the whole count array, and is meant for
+ * statistics reporting, not for the processing path.
+ *
+ * Values are normally nanoseconds. Values above the highest trackable value
+ * are counted in the highest bucket (but the maximum is still exact).
+ */
+public class LatencyHistogram
+{
+  // number of bits of linear resolution in each bucket
+  private static final int SUB_BUCKET_BITS = 7;
+
+  // values below this are counted exactly
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  // the number of sub buckets in each power of two bucket above the first
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+
+  // the highest value we distinguish (about 18 minutes in nanoseconds)
+  private static final long HIGHEST_TRACKABLE_VALUE = (1L << 40) - 1;
+
+  // the counts per index
+  private final AtomicLongArray counts;
+
+  // total number of values recorded
+  private final AtomicLong totalCount = new AtomicLong();
+
+  // sum of the values recorded, used for the mean
+  private final AtomicLong totalValue = new AtomicLong();
+
+  // largest value recorded
+  private final AtomicLong maxValue = new AtomicLong();
+
+ /**
+  * Constructor
+  */
+  public LatencyHistogram()
+  {
+    counts = new AtomicLongArray(getIndex(HIGHEST_TRACKABLE_VALUE) + 1);
+  }
+
+ /**
+  * Record a single value.
+  *
+  * @param value The value to record, negative values are counted as 0
+  */
+  public void recordValue(long value)
+  {
+    long tmpValue = (value < 0) ? 0 : value;
+
+    counts.incrementAndGet(getIndex(Math.min(tmpValue, HIGHEST_TRACKABLE_VALUE)));
+    totalCount.incrementAndGet();
+    totalValue.addAndGet(tmpValue);
+
+    long currentMax = maxValue.get();
+    while (tmpValue > currentMax)
+    {
+      if (maxValue.compareAndSet(currentMax, tmpValue))
+      {
+        break;
+      }
+
+      currentMax = maxValue.get();
+    }
+  }
+
+ /**
+  * Get the value at the given percentile. The value returned is the highest
+  * value which is equivalent (within the precision of the histogram) to the
+  * recorded values at that percentile.
+  *
+  * @param percentile The percentile, e.g. 99.9
+  * @return The value at the percentile, 0 if nothing recorded
+  */
+  public long getValueAtPercentile(double percentile)
+  {
+    long count = totalCount.get();
+
+    if (count == 0)
+    {
+      return 0;
+    }
+
+    double tmpPercentile = Math.min(Math.max(percentile, 0.0), 100.0);
+    long countAtPercentile = (long) Math.ceil((tmpPercentile / 100.0) * count);
+    if (countAtPercentile < 1)
+    {
+      countAtPercentile = 1;
+    }
+
+    long runningCount = 0;
+    for (int index = 0 ; index < counts.length() ; index++)
+    {
+      runningCount += counts.get(index);
+
+      if (runningCount >= countAtPercentile)
+      {
+        return Math.min(getHighestEquivalentValue(index), maxValue.get());
+      }
+    }
+
+    return maxValue.get();
+  }
+
+ /**
+  * @return The number of values recorded
+  */
+  public long getTotalCount()
+  {
+    return totalCount.get();
+  }
+
+ /**
+  * @return The largest value recorded
+  */
+  public long getMaxValue()
+  {
+    return maxValue.get();
+  }
+
+ /**
+  * @return The mean of the recorded values, 0 if nothing recorded
+  */
+  public double getMean()
+  {
+    long count = totalCount.get();
+
+    if (count == 0)
+    {
+      return 0;
+    }
+
+    return (double) totalValue.get() / count;
+  }
+
+ /**
+  * Clear all recorded values. Values recorded while the reset is running may
+  * or may not be cleared.
+  */
+  public void reset()
+  {
+    for (int index = 0 ; index < counts.length() ; index++)
+    {
+      counts.set(index, 0);
+    }
+
+    totalCount.set(0);
+    totalValue.set(0);
+    maxValue.set(0);
+  }
+
+ /**
+  * Get the count array index for a value. Values below SUB_BUCKET_COUNT map
+  * directly. Above that, each power of two range is split into
+  * SUB_BUCKET_HALF_COUNT linear steps.
+  *
+  * @param value The value (must be in range)
+  * @return The index
+  */
+  static int getIndex(long value)
+  {
+    if (value < SUB_BUCKET_COUNT)
+    {
+      return (int) value;
+    }
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift);
+
+    return (shift * SUB_BUCKET_HALF_COUNT) + subBucket;
+  }
+
+ /**
+  * Get the highest value which maps to the given index.
+  *
+  * @param index The index
+  * @return The highest value counted at this index
+  */
+  static long getHighestEquivalentValue(int index)
+  {
+    if (index < SUB_BUCKET_COUNT)
+    {
+      return index;
+    }
+
+    int shift = (index / SUB_BUCKET_HALF_COUNT) - 1;
+    long subBucket = (index % SUB_BUCKET_HALF_COUNT) + SUB_BUCKET_HALF_COUNT;
+
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -92,8 +92,8 @@ public final class SimpleRecord extends RatingRecord
    */
   public void mapData()
   {
-
-    this.fields = this.getOriginalData().split("\\t");
+    // The fields are only created when we read them
+    this.splitFields("\t");
 
     // Pull out the B-Number and make it easy to access for the lookup. Note
     // that we don't have to do this, we could just as easily leave it where
@@ -113,38 +113,13 @@ public final class SimpleRecord extends RatingRecord
    */
   public String unmapOriginalData()
   {
-
-    int NumberOfFields;
-    int i;
-    StringBuilder tmpReassemble;
-
     if (this.RECORD_TYPE == DETAIL_RECORD)
     {
-      // We use the string buffer for the reassembly of the record. Avoid
-      // just concatenating strings, as it is a LOT slower because of the
-      // java internal string handling (it has to allocate/deallocate many
-      // times to rebuild the string).
-      tmpReassemble = new StringBuilder(1024);
-
-      // write the destination information back
+      // write the destination information back, the other fields are copied
+      // from the original data
       this.setField(DESTINATION_IDX, Destination);
-      NumberOfFields = this.fields.length;
-
-      for (i = 0; i < NumberOfFields; i++)
-      {
-
-        if (i == 0)
-        {
-          tmpReassemble.append(this.fields[i]);
-        }
-        else
-        {
-          tmpReassemble.append("\t");
-          tmpReassemble.append(this.fields[i]);
-        }
-      }
-
-      return tmpReassemble.toString();
+
+      return joinFields();
     }
     else
     {
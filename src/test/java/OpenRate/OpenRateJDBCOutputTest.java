@@ -0,0 +1,142 @@
+package OpenRate;
+
+import OpenRate.exception.InitializationException;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.*;
+
+/**
+ * Tests the writing of several files to an in memory database through the
+ * JDBC batch output adapter, committing the finished transactions in groups.
+ */
+public class OpenRateJDBCOutputTest {
+
+  // this is the OpenRate application object
+  private static OpenRate appl;
+
+  // The database the pipeline writes to
+  private static final String DB_URL = "jdbc:hsqldb:mem:jdbcoutputtest";
+
+  // The sizes of the files we process
+  private static final int[] FILE_SIZES = {250, 10, 20, 30};
+
+  @BeforeClass
+  public static void setUpClass() throws SQLException {
+    try (Connection connection = DriverManager.getConnection(DB_URL, "SA", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE TEST_JDBC_OUTPUT IF EXISTS");
+      statement.execute("CREATE TABLE TEST_JDBC_OUTPUT (LINE_TEXT varchar(64),STATUS varchar(1))");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = new File("target").listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith("JDBC_")) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  private static void writeFile(String fileName, int records) {
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName + ".wait"), "utf-8"))) {
+      for (int idx = 0; idx < records; idx++) {
+        writer.write("Line " + idx + " of " + fileName + "\n");
+      }
+    } catch (IOException ex) {
+      Assert.fail("Exception writing file test file" + fileName + ": " + ex.getMessage());
+    }
+
+    new File(fileName + ".wait").renameTo(new File(fileName));
+  }
+
+  private static int countRows(String status) throws SQLException {
+    try (Connection connection = DriverManager.getConnection(DB_URL, "SA", "");
+         Statement statement = connection.createStatement();
+         ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM TEST_JDBC_OUTPUT WHERE STATUS='" + status + "'")) {
+      rows.next();
+
+      return rows.getInt(1);
+    }
+  }
+
+  /**
+   * Each file is inserted and committed, whether on its own or in a group with
+   * the others.
+   */
+  @Test(timeout = 30000)
+  public void testJDBCBatchOutput() throws SQLException, InitializationException {
+    System.out.println("--> OpenRate JDBC batch output process and shutdown");
+
+    String[] args = new String[2];
+    args[0] = "-p";
+    args[1] = "TestJDBCBatchOutput.properties.xml";
+
+    // Start up the framework
+    appl = OpenRate.getApplicationInstance();
+    int status = appl.createApplication(args);
+    Assert.assertEquals(0, status);
+
+    Thread openRateThread = new Thread(appl);
+    openRateThread.start();
+
+    System.out.println("Waiting for startup to complete");
+    while (!appl.isFrameworkActive()) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException ex) {
+      }
+    }
+
+    // Put the files in for processing
+    int expectedRows = 0;
+    for (int i = 0; i < FILE_SIZES.length; i++) {
+      writeFile("target/JDBC_" + i + ".in", FILE_SIZES[i]);
+      expectedRows += FILE_SIZES[i];
+    }
+
+    // Now wait for them to process
+    System.out.println("Waiting for file processing to complete");
+    for (int i = 0; i < FILE_SIZES.length; i++) {
+      File doneFile = new File("target/JDBC_" + i + ".done");
+
+      while (!doneFile.exists()) {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ex) {
+        }
+      }
+    }
+
+    // And test the shutdown using an injected stop message
+    appl.processControlEvent("Shutdown", false, "true");
+
+    System.out.println("Waiting for the system to stop");
+    while (appl.isFrameworkActive()) {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException ex) {
+      }
+    }
+
+    // Finish off
+    appl.finaliseApplication();
+
+    // Every record was inserted, and made permanent by the commit statement
+    Assert.assertEquals(expectedRows, countRows("C"));
+    Assert.assertEquals(0, countRows("N"));
+  }
+}
@@ -0,0 +1,173 @@
+package OpenRate;
+
+import OpenRate.configurationmanager.ClientContainer;
+import OpenRate.configurationmanager.ClientManager;
+import OpenRate.exception.InitializationException;
+import OpenRate.testsupport.FlatFileOutputAdapterTest;
+import OpenRate.transaction.TransactionManager;
+import OpenRate.transaction.TransactionManagerFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import org.junit.*;
+
+/**
+ * Tests the processing of several files at the same time in a pipeline with
+ * more than one lane, committing the finished transactions in groups.
+ */
+public class OpenRateLaneProcessingTest {
+
+  // this is the OpenRate application object
+  private static OpenRate appl;
+
+  // The sizes of the files we process, one larger than the others
+  private static final int[] FILE_SIZES = {20000, 10, 20, 30, 40, 50};
+
+  // The file which fails, and is processed among the others
+  private static final int ERROR_FILE = FILE_SIZES.length;
+
+  @After
+  public void tearDown() {
+    File[] files = new File("target").listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith("LANE_")) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  private static void writeFile(String fileName, int records, boolean abort) {
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName + ".wait"), "utf-8"))) {
+      for (int idx = 0; idx < records; idx++) {
+        writer.write("Line " + idx + " in the input file\n");
+      }
+
+      if (abort) {
+        writer.write(FlatFileOutputAdapterTest.ABORT_MARKER + "\n");
+      }
+    } catch (IOException ex) {
+      Assert.fail("Exception writing file test file" + fileName + ": " + ex.getMessage());
+    }
+
+    new File(fileName + ".wait").renameTo(new File(fileName));
+  }
+
+  private static int countLines(File file) throws IOException {
+    int lines = 0;
+
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      while (reader.readLine() != null) {
+        lines++;
+      }
+    }
+
+    return lines;
+  }
+
+  /**
+   * Each file is processed as its own transaction, whichever lane it goes
+   * through. The files which finish correctly are committed in groups, and
+   * the one which fails is rolled back on its own.
+   */
+  @Test(timeout = 30000)
+  public void testLaneProcessing() throws IOException, InitializationException {
+    System.out.println("--> OpenRate lane pipe process and shutdown");
+
+    String[] args = new String[2];
+    args[0] = "-p";
+    args[1] = "TestLaneProcessing.properties.xml";
+
+    // Start up the framework
+    appl = OpenRate.getApplicationInstance();
+    int status = appl.createApplication(args);
+    Assert.assertEquals(0, status);
+
+    Thread openRateThread = new Thread(appl);
+    openRateThread.start();
+
+    System.out.println("Waiting for startup to complete");
+    while (!appl.isFrameworkActive()) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException ex) {
+      }
+    }
+
+    // Put the files in for processing
+    for (int i = 0; i < FILE_SIZES.length; i++) {
+      writeFile("target/LANE_" + i + ".in", FILE_SIZES[i], false);
+
+      if (i == 2) {
+        writeFile("target/LANE_" + ERROR_FILE + ".in", 25, true);
+      }
+    }
+
+    // Now wait for them to process
+    System.out.println("Waiting for file processing to complete");
+    for (int i = 0; i < FILE_SIZES.length; i++) {
+      File doneFile = new File("target/LANE_" + i + ".done");
+
+      while (!doneFile.exists()) {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ex) {
+        }
+      }
+    }
+
+    File errFile = new File("target/LANE_" + ERROR_FILE + ".err");
+    while (!errFile.exists()) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException ex) {
+      }
+    }
+
+    // Commands reach the input adapter of each lane, and the statistics are
+    // added up over the lanes
+    ClientContainer inputAdapters = ClientManager.getClientManager().get("TestInpAdapter");
+    Assert.assertEquals(2, inputAdapters.getClientObjectCount());
+    Assert.assertEquals("5000", inputAdapters.processControlEvent("BatchSize", false, ""));
+    String stats = inputAdapters.processControlEvent("Stats", false, "");
+    Assert.assertEquals(Integer.toString(FILE_SIZES.length + 1), stats.split(":")[2]);
+
+    // A transaction cannot be opened outside of the lanes
+    TransactionManager tm = TransactionManagerFactory.getTransactionManager("LaneTestPipe");
+    Assert.assertEquals(-1, tm.openTransaction("LaneTestPipe"));
+
+    // The small files finish while the large one is still going, and are
+    // committed together
+    Assert.assertTrue(tm.getLargestCommitGroup() > 1);
+
+    // And test the shutdown using an injected stop message
+    appl.processControlEvent("Shutdown", false, "true");
+
+    System.out.println("Waiting for the system to stop");
+    while (appl.isFrameworkActive()) {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException ex) {
+      }
+    }
+
+    // Finish off
+    appl.finaliseApplication();
+
+    // Each output holds all of the records of its input, and nothing else
+    for (int i = 0; i < FILE_SIZES.length; i++) {
+      Assert.assertEquals(FILE_SIZES[i], countLines(new File("target/LANE_" + i + ".out")));
+    }
+
+    // The failed file left no output behind, and did not take the others with it
+    Assert.assertFalse(new File("target/LANE_" + ERROR_FILE + ".out").exists());
+    Assert.assertFalse(new File("target/LANE_" + ERROR_FILE + ".done").exists());
+  }
+}
@@ -0,0 +1,205 @@
+package OpenRate.adapter.realTime;
+
+import OpenRate.OpenRate;
+import OpenRate.adapter.NullRTAdapter;
+import OpenRate.exception.ProcessingException;
+import OpenRate.logging.ILogger;
+import OpenRate.process.AbstractPlugIn;
+import OpenRate.process.IPlugIn;
+import OpenRate.process.IRTBatchPlugIn;
+import OpenRate.record.FlatRecord;
+import OpenRate.record.IRecord;
+import TestUtils.FrameworkUtils;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the micro batching of requests in the real time adapter.
+ */
+public class AbstractRTAdapterTest {
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    // The adapter logs through the framework log
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestPersistentObject.properties.xml"));
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    OpenRate.getApplicationInstance().finaliseApplication();
+  }
+
+  /**
+   * Real time adapter which does not need a pipeline around it.
+   */
+  private static class TestRTAdapter extends NullRTAdapter {
+
+    @Override
+    protected ILogger getPipeLog() {
+      return OpenRate.getOpenRateFrameworkLog();
+    }
+
+    @Override
+    public String getPipeName() {
+      return "RTTestPipe";
+    }
+  }
+
+  /**
+   * Plug in taking micro batches, which notes how many batches it is working
+   * on at once.
+   */
+  private static class TestBatchPlugIn extends AbstractPlugIn implements IRTBatchPlugIn {
+
+    private final long sleepTime;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger mostActive = new AtomicInteger();
+    private final AtomicInteger records = new AtomicInteger();
+    private final AtomicInteger largestBatch = new AtomicInteger();
+
+    TestBatchPlugIn(long sleepTime) {
+      this.sleepTime = sleepTime;
+      setSymbolicName("BatchPlugIn");
+    }
+
+    @Override
+    public void procRTBatch(List<IRecord> batch) throws ProcessingException {
+      int nowActive = active.incrementAndGet();
+
+      synchronized (this) {
+        mostActive.set(Math.max(mostActive.get(), nowActive));
+        largestBatch.set(Math.max(largestBatch.get(), batch.size()));
+      }
+
+      records.addAndGet(batch.size());
+
+      try {
+        Thread.sleep(sleepTime);
+      } catch (InterruptedException ex) {
+      }
+
+      active.decrementAndGet();
+    }
+
+    @Override
+    public IRecord procHeader(IRecord r) {
+      return r;
+    }
+
+    @Override
+    public IRecord procValidRecord(IRecord r) {
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(IRecord r) {
+      return r;
+    }
+
+    @Override
+    public IRecord procTrailer(IRecord r) {
+      return r;
+    }
+  }
+
+  private static TestRTAdapter createAdapter(TestBatchPlugIn plugIn) {
+    TestRTAdapter instance = new TestRTAdapter();
+    ArrayList<IPlugIn> chain = new ArrayList<>();
+
+    chain.add(plugIn);
+    instance.setSymbolicName("RTAdapter");
+    instance.setProcessingList(chain);
+
+    return instance;
+  }
+
+  /**
+   * Send requests from several threads at the same moment, and wait for them
+   * all to be answered.
+   */
+  private static void sendRequests(final TestRTAdapter instance, int threads) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] callers = new Thread[threads];
+
+    for (int i = 0; i < threads; i++) {
+      callers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            instance.processRTRecord((IRecord) new FlatRecord("request"));
+          } catch (InterruptedException | ProcessingException ex) {
+            Assert.fail("Request failed: " + ex.getMessage());
+          }
+        }
+      };
+      callers[i].start();
+    }
+
+    start.countDown();
+
+    for (Thread caller : callers) {
+      caller.join();
+    }
+  }
+
+  /**
+   * Requests are collected into micro batches by their own callers, and the
+   * micro batches go through the chain at the same time.
+   */
+  @Test(timeout = 10000)
+  public void testMicroBatchConcurrency() throws InterruptedException {
+    System.out.println("testMicroBatchConcurrency");
+
+    TestBatchPlugIn plugIn = new TestBatchPlugIn(500);
+    TestRTAdapter instance = createAdapter(plugIn);
+
+    Assert.assertEquals("OK", instance.processControlEvent("MicroBatchSize", false, "4"));
+    Assert.assertEquals("OK", instance.processControlEvent("MicroBatchWindow", false, "200000"));
+
+    // Nobody is collecting the batches apart from the callers themselves
+    sendRequests(instance, 8);
+
+    Assert.assertEquals(8, plugIn.records.get());
+    Assert.assertTrue(plugIn.largestBatch.get() > 1);
+    Assert.assertTrue(plugIn.mostActive.get() > 1);
+  }
+
+  /**
+   * The latency of each request in a batch plug in is the time of the whole
+   * micro batch, and not a share of it.
+   */
+  @Test(timeout = 10000)
+  public void testMicroBatchLatency() throws InterruptedException {
+    System.out.println("testMicroBatchLatency");
+
+    TestBatchPlugIn plugIn = new TestBatchPlugIn(50);
+    TestRTAdapter instance = createAdapter(plugIn);
+
+    Assert.assertEquals("OK", instance.processControlEvent("LatencyTracking", false, "true"));
+    Assert.assertEquals("OK", instance.processControlEvent("MicroBatchSize", false, "4"));
+    Assert.assertEquals("OK", instance.processControlEvent("MicroBatchWindow", false, "200000"));
+
+    sendRequests(instance, 4);
+
+    // Request:count:p50:p99:p999:max:breaches, BatchPlugIn:count:p50:p99:p999:max
+    String[] stats = instance.getLatencyStats().split(", ");
+    String[] requestStats = stats[0].split(":");
+    String[] plugInStats = stats[1].split(":");
+
+    Assert.assertEquals("4", requestStats[1]);
+    Assert.assertEquals("BatchPlugIn", plugInStats[0]);
+    Assert.assertEquals("4", plugInStats[1]);
+    Assert.assertTrue(Long.parseLong(plugInStats[2]) >= 45000);
+    Assert.assertTrue(Long.parseLong(requestStats[2]) >= 45000);
+  }
+}
@@ -0,0 +1,175 @@
+package OpenRate.cache;
+
+import OpenRate.OpenRate;
+import OpenRate.exception.ProcessingException;
+import OpenRate.lang.AssemblyCtx;
+import TestUtils.FrameworkUtils;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the expiry and the compact persistence of the call assembly cache.
+ */
+public class CallAssemblyCacheTest {
+
+  private static final String DATA_FILE = "target/CallAssemblyCacheTest.dat";
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    // The cache logs through the framework log
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestPersistentObject.properties.xml"));
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    OpenRate.getApplicationInstance().finaliseApplication();
+  }
+
+  @After
+  public void tearDown() {
+    new File(DATA_FILE).delete();
+    new File(DATA_FILE + ".journal").delete();
+  }
+
+  private static CallAssemblyCache createCache() {
+    CallAssemblyCache instance = new CallAssemblyCache();
+    instance.CachePersistenceName = DATA_FILE;
+    instance.ObjectList = new ConcurrentHashMap<>();
+    instance.OpenTimeout = 3600;
+    instance.StoreLimit = 1;
+    return instance;
+  }
+
+  private static AssemblyCtx context(int state, long startDate, long lastDate, long closedDate) {
+    AssemblyCtx ctx = new AssemblyCtx();
+    ctx.totalDuration = 12.5;
+    ctx.totalData = 1000;
+    ctx.uplink = 400;
+    ctx.downlink = 600;
+    ctx.state = state;
+    ctx.StartDate = startDate;
+    ctx.LastDate = lastDate;
+    ctx.ClosedDate = closedDate;
+    return ctx;
+  }
+
+  /**
+   * Open contexts expire after the open timeout and are passed to the
+   * listener, closed contexts are kept for the store limit.
+   */
+  @Test
+  public void testExpiry() {
+    System.out.println("testExpiry");
+
+    CallAssemblyCache instance = createCache();
+    final ArrayList<String> expired = new ArrayList<>();
+    CallAssemblyCache.AssemblyExpiryListener listener = new CallAssemblyCache.AssemblyExpiryListener() {
+      @Override
+      public void assemblyExpired(String CallID, AssemblyCtx ctx) {
+        expired.add(CallID);
+      }
+    };
+
+    instance.putObject("orphan", context(1, 1000, 1000, 0));
+    instance.putObject("active", context(2, 1000, 1000, 0));
+    instance.putObject("closed", context(3, 1000, 2000, 2000));
+    instance.expireAssemblies(1000, listener);
+
+    // a new partial moves the deadline on
+    instance.putObject("active", context(2, 1000, 4000, 0));
+    Assert.assertEquals(1, instance.expireAssemblies(5000, listener));
+    Assert.assertEquals("[orphan]", expired.toString());
+    Assert.assertNull(instance.getObject("orphan"));
+    Assert.assertNotNull(instance.getObject("active"));
+
+    Assert.assertEquals(1, instance.expireAssemblies(8000, listener));
+    Assert.assertEquals("[orphan, active]", expired.toString());
+
+    // closed contexts go silently after the store limit
+    Assert.assertEquals(0, instance.expireAssemblies(2000 + 86399, listener));
+    Assert.assertEquals(1, instance.expireAssemblies(2000 + 86400 + 60, listener));
+    Assert.assertEquals(2, expired.size());
+    Assert.assertEquals(0, instance.ObjectList.size());
+    Assert.assertEquals(0, instance.getExpiryCount());
+  }
+
+  /**
+   * A date far in the future does not expire the contexts, and the correctly
+   * dated ones which follow it still expire them.
+   */
+  @Test
+  public void testFutureDate() {
+    System.out.println("testFutureDate");
+
+    CallAssemblyCache instance = createCache();
+    long now = System.currentTimeMillis() / 1000;
+
+    instance.putObject("orphan", context(1, now - 7200, now - 7200, 0));
+    instance.putObject("current", context(1, now, now, 0));
+    instance.expireAssemblies(now - 7200, null);
+
+    Assert.assertEquals(0, instance.expireAssemblies(now + 10 * 365 * 86400L, null));
+    Assert.assertEquals(2, instance.ObjectList.size());
+
+    Assert.assertEquals(1, instance.expireAssemblies(now, null));
+    Assert.assertNull(instance.getObject("orphan"));
+    Assert.assertEquals(1, instance.expireAssemblies(now + 3600 + 60, null));
+    Assert.assertEquals(0, instance.ObjectList.size());
+  }
+
+  /**
+   * The contexts are saved and loaded in the compact format.
+   */
+  @Test
+  public void testSaveAndLoad() throws ProcessingException {
+    System.out.println("testSaveAndLoad");
+
+    CallAssemblyCache instance = createCache();
+    instance.putObject("A", context(1, 1000, 1500, 0));
+    instance.putObject("B", context(3, 1000, 1500, 1600));
+    instance.saveCacheObjectsToFile();
+
+    Assert.assertTrue(instance.isCompactFormat());
+
+    CallAssemblyCache reloaded = createCache();
+    reloaded.loadCacheObjectsFromFile();
+
+    Assert.assertEquals(2, reloaded.ObjectList.size());
+    Assert.assertEquals(instance.formatObject("A", instance.getObject("A")), reloaded.formatObject("A", reloaded.getObject("A")));
+    Assert.assertEquals(instance.formatObject("B", instance.getObject("B")), reloaded.formatObject("B", reloaded.getObject("B")));
+    Assert.assertEquals(1500, ((AssemblyCtx) reloaded.getObject("A")).LastDate);
+  }
+
+  /**
+   * The flat file format of earlier versions is still read.
+   */
+  @Test
+  public void testLoadFlatFile() throws IOException {
+    System.out.println("testLoadFlatFile");
+
+    long now = System.currentTimeMillis() / 1000;
+
+    try (FileWriter outFile = new FileWriter(DATA_FILE)) {
+      outFile.write("A;12.5;1000.0;400.0;600.0;1;" + now + ";" + now + "\n");
+    }
+
+    CallAssemblyCache instance = createCache();
+    instance.loadCacheObjectsFromFile();
+
+    AssemblyCtx ctx = (AssemblyCtx) instance.getObject("A");
+    Assert.assertEquals(12.5, ctx.totalDuration, 0);
+    Assert.assertEquals(now, ctx.StartDate);
+    Assert.assertEquals(now, ctx.LastDate);
+  }
+}
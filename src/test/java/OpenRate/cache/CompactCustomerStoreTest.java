@@ -0,0 +1,252 @@
+package OpenRate.cache;
+
+import OpenRate.OpenRate;
+import OpenRate.exception.InitializationException;
+import OpenRate.lang.AuditSegment;
+import OpenRate.lang.CustInfo;
+import OpenRate.lang.CustProductInfo;
+import OpenRate.lang.ProductList;
+import TestUtils.FrameworkUtils;
+import java.net.URL;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the compact storage of the audited customer cache gives the same
+ * results as the object storage.
+ */
+public class CompactCustomerStoreTest {
+
+  private static final String[] SUB_IDS = {"S1", "S2", "S3"};
+  private static final String[] SERVICES = {"TEL", "SMS", "DATA"};
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    // The cache logs through the framework log
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestPersistentObject.properties.xml"));
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    OpenRate.getApplicationInstance().finaliseApplication();
+  }
+
+  private static String describe(ProductList products) {
+    StringBuilder description = new StringBuilder();
+
+    for (int i = 0; i < products.getProductCount(); i++) {
+      CustProductInfo product = products.getProduct(i);
+      description.append(product.getProductID()).append(':').append(product.getSubID()).append(':')
+                 .append(product.getService()).append(':').append(product.getUTCValidFrom()).append(':')
+                 .append(product.getUTCValidTo()).append(':').append(product.getQuantity()).append(' ');
+    }
+
+    return description.toString();
+  }
+
+  private static CustomerCacheAudited createCache() throws InitializationException {
+    CustomerCacheAudited instance = new CustomerCacheAudited();
+    Random random = new Random(7);
+    long auditSegId = 1;
+    long prodRefId = 1;
+
+    for (int custId = 1; custId <= 50; custId++) {
+      int segments = 1 + random.nextInt(4);
+
+      for (int seg = 0; seg < segments; seg++) {
+        instance.addAuditSegment(auditSegId, custId, "EXT" + custId, custId * 10, seg * 1000, seg * 1000 + random.nextInt(100), 10000 - random.nextInt(3) * 1000);
+
+        for (int prod = random.nextInt(6); prod > 0; prod--) {
+          instance.addAuditedCPI(auditSegId, prodRefId++, "P" + random.nextInt(10), SUB_IDS[random.nextInt(SUB_IDS.length)],
+                                 SERVICES[random.nextInt(SERVICES.length)], random.nextInt(5000), 5000 + random.nextInt(5000));
+        }
+
+        for (int era = random.nextInt(3); era > 0; era--) {
+          instance.addAuditedERA(auditSegId, "ERA" + random.nextInt(4), "V" + random.nextInt(100));
+        }
+
+        auditSegId++;
+      }
+    }
+
+    for (int alias = 0; alias < 100; alias++) {
+      int segments = 1 + random.nextInt(3);
+
+      for (int seg = 0; seg < segments; seg++) {
+        instance.addAlias(alias * 10 + seg, "A" + alias, 1 + random.nextInt(50), SUB_IDS[random.nextInt(SUB_IDS.length)],
+                          seg * 4000, seg * 4000 + 3000);
+      }
+    }
+
+    return instance;
+  }
+
+  /**
+   * The aliases, audit segments, products and ERAs are the same in both
+   * storages.
+   */
+  @Test
+  public void testSameResults() throws InitializationException {
+    System.out.println("testSameResults");
+
+    CustomerCacheAudited instance = createCache();
+    CompactCustomerStore store = new CompactCustomerStore(instance.aliasCache, instance.custCache);
+
+    Assert.assertEquals(instance.aliasCache.size(), store.getAliases().size());
+    Assert.assertEquals(-1, store.findAlias("unknown"));
+
+    for (int alias = 0; alias < 100; alias++) {
+      int aliasNo = store.findAlias("A" + alias);
+      Assert.assertTrue(aliasNo >= 0);
+
+      for (long date = -500; date < 13000; date += 250) {
+        Integer custId = instance.getCustId("A" + alias, date);
+        int aliasSeg = store.findAliasSegment(aliasNo, date);
+
+        if (custId == null) {
+          Assert.assertEquals(-1, aliasSeg);
+          continue;
+        }
+
+        Assert.assertEquals(custId.intValue(), store.getAliasCustId(aliasSeg));
+        Assert.assertEquals(instance.getSubId("A" + alias, date), store.getAliasSubId(aliasSeg));
+      }
+    }
+
+    for (int custId = 1; custId <= 50; custId++) {
+      CustInfo custInfo = instance.custCache.get(custId);
+      int cust = store.findCustomer(custId);
+
+      Assert.assertEquals(custInfo.balanceGroup, store.getBalanceGroup(cust));
+      Assert.assertEquals(custInfo.ExternalCustId, store.getExtCustId(cust));
+
+      for (long date = -500; date < 13000; date += 125) {
+        AuditSegment auditSegment = custInfo.getBestAuditSegmentMatch(date);
+        int aud = store.findAuditSegment(cust, date);
+
+        if (auditSegment == null) {
+          Assert.assertEquals(-1, aud);
+          continue;
+        }
+
+        Assert.assertEquals(auditSegment.getAuditSegmentID(), store.getAuditSegmentID(aud));
+        Assert.assertEquals(auditSegment.getUTCAccountValidFrom(), store.getAccountValidFrom(aud));
+        Assert.assertEquals(auditSegment.getUTCAccountValidTo(), store.getAccountValidTo(aud));
+        Assert.assertEquals(describe(instance.getProducts(auditSegment, null)), describe(store.getProducts(aud, null)));
+        Assert.assertEquals(describe(store.getProducts(aud, null)), describe(store.getAuditSegment(aud).getProductList()));
+        Assert.assertEquals(auditSegment.getERAs(), store.getAuditSegment(aud).getERAs());
+
+        for (String subId : SUB_IDS) {
+          Assert.assertEquals(describe(instance.getProducts(auditSegment, subId)), describe(store.getProducts(aud, subId)));
+        }
+
+        Assert.assertEquals(0, store.getProducts(aud, "unknown").getProductCount());
+
+        for (int era = 0; era < 5; era++) {
+          Assert.assertEquals(auditSegment.getERA("ERA" + era), store.getERA(aud, "ERA" + era));
+        }
+      }
+    }
+
+    Assert.assertEquals(-1, store.findCustomer(51));
+  }
+
+  /**
+   * Apply the same incremental update to a cache: product, ERA and audit
+   * segment changes for existing customers, a new customer, and alias changes.
+   */
+  private static void applyUpdate(CustomerCacheAudited instance, CustomerCacheAudited reference) throws InitializationException {
+    AuditSegment segment = reference.custCache.get(7).CustAudSegments.get(0);
+
+    // update an existing product, and add a new one
+    for (int i = 0; i < segment.getProductList().getProductCount(); i++) {
+      CustProductInfo product = segment.getProductList().getProduct(i);
+      instance.addAuditedCPI(segment.getAuditSegmentID(), product.getProductRefId(), "PNEW", product.getSubID(),
+                             product.getService(), product.getUTCValidFrom(), 9999);
+    }
+    instance.addAuditedCPI(segment.getAuditSegmentID(), 100000, "PADD", "S1", "TEL", 0, 9000);
+
+    // an ERA of another customer
+    instance.addAuditedERA(reference.custCache.get(9).CustAudSegments.get(0).getAuditSegmentID(), "ERA0", "CHANGED");
+
+    // a new audit segment for an existing customer, and a new customer
+    instance.addAuditSegment(5000, 11, "EXT11", 110, 20000, 20000, 30000);
+    instance.addAuditedCPI(5000, 100001, "PSEG", "S2", "SMS", 20000, 30000);
+    instance.addAuditSegment(5001, 60, "EXT60", 600, 0, 0, 30000);
+    instance.addAuditedCPI(5001, 100002, "PCUST", "S3", "DATA", 0, 30000);
+
+    // an update of an alias row, and a new alias
+    instance.addAlias(30, "A3", 60, "S3", 0, 3000);
+    instance.addAlias(2000, "A200", 60, "S1", 0, 30000);
+  }
+
+  /**
+   * An incremental update of the compact storage gives the same results as the
+   * same update of the object storage, and keeps the incremental counters.
+   */
+  @Test
+  public void testIncrementalUpdate() throws InitializationException {
+    System.out.println("testIncrementalUpdate");
+
+    CustomerCacheAudited reference = createCache();
+    CustomerCacheAudited instance = createCache();
+
+    instance.compileCompactStore();
+    instance.lastAliasModT = 123;
+    instance.lastProductModT = 456;
+
+    applyUpdate(instance, reference);
+    applyUpdate(reference, reference);
+
+    // only the changed entries are held as objects
+    Assert.assertEquals(2, instance.aliasCache.size());
+    Assert.assertEquals(4, instance.custCache.size());
+
+    instance.compileCompactStore();
+
+    Assert.assertTrue(instance.aliasCache.isEmpty());
+    Assert.assertTrue(instance.custCache.isEmpty());
+    Assert.assertEquals(123, instance.lastAliasModT);
+    Assert.assertEquals(456, instance.lastProductModT);
+
+    for (int alias = 0; alias <= 200; alias++) {
+      if (alias >= 100 && alias < 200) {
+        continue;
+      }
+
+      for (long date = -500; date < 13000; date += 250) {
+        Assert.assertEquals(reference.getCustId("A" + alias, date), instance.getCustId("A" + alias, date));
+        Assert.assertEquals(reference.getSubId("A" + alias, date), instance.getSubId("A" + alias, date));
+      }
+    }
+
+    for (int custId = 1; custId <= 60; custId++) {
+      if (custId > 50 && custId < 60) {
+        continue;
+      }
+
+      Assert.assertEquals(reference.getBalanceGroup(custId), instance.getBalanceGroup(custId));
+      Assert.assertEquals(reference.getExtCustID(custId), instance.getExtCustID(custId));
+
+      for (long date = -500; date < 25000; date += 125) {
+        AuditSegment expected = reference.getAuditSegment(custId, date);
+        AuditSegment actual = instance.getAuditSegment(custId, date);
+
+        if (expected == null) {
+          Assert.assertNull(actual);
+          continue;
+        }
+
+        Assert.assertEquals(expected.getAuditSegmentID(), actual.getAuditSegmentID());
+        Assert.assertEquals(expected.getUTCAccountValidTo(), actual.getUTCAccountValidTo());
+        Assert.assertEquals(describe(expected.getProductList()), describe(actual.getProductList()));
+        Assert.assertEquals(expected.getERAs(), actual.getERAs());
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package OpenRate.cache;
+
+import OpenRate.lang.CustProductInfo;
+import OpenRate.lang.ProductList;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the service indexed product lookup of the customer cache.
+ */
+public class CustomerCacheTest {
+
+  private static String productIDs(ProductList products) {
+    StringBuilder ids = new StringBuilder();
+
+    for (int i = 0; i < products.getProductCount(); i++) {
+      CustProductInfo product = products.getProduct(i);
+      ids.append(product.getProductID()).append(':').append(product.getService()).append(' ');
+    }
+
+    return ids.toString().trim();
+  }
+
+  /**
+   * The products valid for the service are returned in the order they were
+   * added, whatever their validity.
+   */
+  @Test
+  public void testGetProducts() {
+    System.out.println("testGetProducts");
+
+    CustomerCache instance = new CustomerCache();
+    instance.addCustId("C1", 0, 1000, 7);
+    instance.addAlias("0123", "C1");
+    instance.addCPI("C1", "TEL", "Late", 500, 900);
+    instance.addCPI("C1", "SMS", "SmsBundle", 0, 1000);
+    instance.addCPI("C1", "TEL", "Base", 0, 1000);
+    instance.addCPI("C1", "TEL", "Expired", 0, 100);
+    instance.addCPI("C1", "TEL", "Promo", 200, 600);
+
+    ProductList products = instance.getProducts("0123", "TEL", 550);
+    Assert.assertEquals("Late:TEL Base:TEL Promo:TEL", productIDs(products));
+    Assert.assertEquals(7, products.getBalanceGroup());
+
+    Assert.assertEquals("Base:TEL Expired:TEL", productIDs(instance.getProducts("0123", "TEL", 50)));
+    Assert.assertEquals("SmsBundle:SMS", productIDs(instance.getProducts("0123", "SMS", 950)));
+    Assert.assertEquals(0, instance.getProducts("0123", "DATA", 950).getProductCount());
+
+    // outside the account validity
+    Assert.assertNull(instance.getProducts("0123", "TEL", 1000));
+  }
+
+  /**
+   * A product list can be re-used for each lookup.
+   */
+  @Test
+  public void testGetProductsReuse() {
+    System.out.println("testGetProductsReuse");
+
+    CustomerCache instance = new CustomerCache();
+    instance.addCustId("C1", 0, 1000, 3);
+    instance.addAlias("0123", "C1");
+    instance.addCPI("C1", "TEL", "Base", 0, 1000);
+    instance.addCPI("C1", "TEL", "Promo", 200, 600);
+
+    ProductList products = new ProductList();
+
+    Assert.assertTrue(instance.getProducts("0123", "TEL", 300, products));
+    Assert.assertEquals("Base:TEL Promo:TEL", productIDs(products));
+    CustProductInfo first = products.getProduct(0);
+
+    Assert.assertTrue(instance.getProducts("0123", "TEL", 700, products));
+    Assert.assertEquals("Base:TEL", productIDs(products));
+    Assert.assertEquals(3, products.getBalanceGroup());
+
+    // the instances are re-used rather than allocated again
+    Assert.assertTrue(instance.getProducts("0123", "TEL", 300, products));
+    Assert.assertEquals("Base:TEL Promo:TEL", productIDs(products));
+    Assert.assertTrue(first == products.getProduct(0) || first == products.getProduct(1));
+
+    Assert.assertFalse(instance.getProducts("0123", "TEL", 1000, products));
+    Assert.assertEquals(0, products.getProductCount());
+  }
+}
@@ -0,0 +1,283 @@
+package OpenRate.cache;
+
+import OpenRate.OpenRate;
+import OpenRate.exception.ProcessingException;
+import TestUtils.FrameworkUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the compact snapshot and journal persistence of the persistent
+ * indexed object cache.
+ */
+public class PersistentIndexedObjectTest {
+
+  private static final String DATA_FILE = "target/PersistentIndexedObjectTest.dat";
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    // The cache logs through the framework log
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestPersistentObject.properties.xml"));
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    OpenRate.getApplicationInstance().finaliseApplication();
+  }
+
+  @After
+  public void tearDown() {
+    new File(DATA_FILE).delete();
+    new File(DATA_FILE + ".journal").delete();
+  }
+
+  private static PersistentIndexedObject createCache() {
+    PersistentIndexedObject instance = new PersistentIndexedObject();
+    instance.CachePersistenceName = DATA_FILE;
+    instance.ObjectList = new ConcurrentHashMap<>();
+    return instance;
+  }
+
+  private static PersistentIndexedObject reload() {
+    PersistentIndexedObject instance = createCache();
+    instance.loadCacheObjectsFromFile();
+    instance.replayJournal();
+    return instance;
+  }
+
+  /**
+   * The snapshot and the journal give back the objects as they were at the
+   * last save.
+   */
+  @Test
+  public void testSnapshotAndJournal() throws ProcessingException {
+    System.out.println("testSnapshotAndJournal");
+
+    PersistentIndexedObject instance = createCache();
+    instance.putObject("string", "value é");
+    instance.putObject("long", 123456789012L);
+    instance.putObject("int", 42);
+    instance.putObject("double", 1.5);
+    instance.putObject("boolean", true);
+    instance.putObject("decimal", new BigDecimal("12.34"));
+    instance.putObject("deleted", "gone");
+    instance.saveCacheObjectsToFile();
+
+    Assert.assertEquals(7, reload().ObjectList.size());
+
+    // only the changes go into the journal
+    instance.putObject("int", 43);
+    instance.deleteObject("deleted");
+    instance.putObject("new", "added");
+    Assert.assertEquals(3, instance.saveChangedObjects());
+    Assert.assertEquals(0, instance.saveChangedObjects());
+
+    PersistentIndexedObject reloaded = reload();
+    Assert.assertEquals(instance.ObjectList, reloaded.ObjectList);
+    Assert.assertEquals(43, reloaded.getObject("int"));
+    Assert.assertNull(reloaded.getObject("deleted"));
+    Assert.assertEquals(new BigDecimal("12.34"), reloaded.getObject("decimal"));
+
+    // a purge is journalled too
+    instance.clearObjects();
+    instance.putObject("after", "purge");
+    Assert.assertEquals(2, instance.saveChangedObjects());
+    Assert.assertEquals(instance.ObjectList, reload().ObjectList);
+
+    // a snapshot replaces the journal
+    instance.saveCacheObjectsToFile();
+    Assert.assertFalse(new File(DATA_FILE + ".journal").exists());
+    Assert.assertEquals(instance.ObjectList, reload().ObjectList);
+  }
+
+  /**
+   * Changes made while other threads save are not lost.
+   */
+  @Test
+  public void testConcurrentChanges() throws Exception {
+    System.out.println("testConcurrentChanges");
+
+    final PersistentIndexedObject instance = createCache();
+    Thread[] threads = new Thread[4];
+
+    instance.saveCacheObjectsToFile();
+
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            instance.putObject(thread + ":" + (i % 500), (long) i);
+          }
+        }
+      });
+      threads[t].start();
+    }
+
+    for (int i = 0; i < 20; i++) {
+      instance.saveChangedObjects();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    instance.saveChangedObjects();
+
+    PersistentIndexedObject reloaded = reload();
+    Assert.assertEquals(2000, reloaded.ObjectList.size());
+    Assert.assertEquals(instance.ObjectList, reloaded.ObjectList);
+  }
+
+  /**
+   * Value which makes a change to the cache from another thread while it is
+   * being written, and notes whether the change got through.
+   */
+  private static class ChangingValue implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static transient PersistentIndexedObject cache;
+    private static transient volatile boolean changed;
+
+    private void writeObject(ObjectOutputStream outStream) throws IOException {
+      Thread changer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          cache.putObject("changed", "during");
+        }
+      });
+
+      changer.start();
+
+      try {
+        changer.join(5000);
+      } catch (InterruptedException ex) {
+      }
+
+      changed = !changer.isAlive();
+      outStream.defaultWriteObject();
+    }
+  }
+
+  /**
+   * A snapshot does not hold off changes while it writes the objects, and the
+   * changes made meanwhile go to the next journal.
+   */
+  @Test
+  public void testChangesDuringSnapshot() throws Exception {
+    System.out.println("testChangesDuringSnapshot");
+
+    PersistentIndexedObject instance = createCache();
+    ChangingValue.cache = instance;
+    ChangingValue.changed = false;
+    instance.putObject("value", new ChangingValue());
+    instance.saveCacheObjectsToFile();
+
+    Assert.assertTrue(ChangingValue.changed);
+    Assert.assertNull(reload().getObject("changed"));
+
+    Assert.assertEquals(1, instance.saveChangedObjects());
+
+    PersistentIndexedObject reloaded = reload();
+    Assert.assertEquals("during", reloaded.getObject("changed"));
+    Assert.assertTrue(reloaded.getObject("value") instanceof ChangingValue);
+  }
+
+  /**
+   * A truncated last record is cut off the journal, so that the records saved
+   * after it are replayed too.
+   */
+  @Test
+  public void testTruncatedJournal() throws Exception {
+    System.out.println("testTruncatedJournal");
+
+    File journal = new File(DATA_FILE + ".journal");
+    PersistentIndexedObject instance = createCache();
+    instance.putObject("A", "1");
+    instance.saveCacheObjectsToFile();
+    instance.putObject("B", "2");
+    Assert.assertEquals(1, instance.saveChangedObjects());
+
+    long goodLength = journal.length();
+
+    // a record cut off part of the way through its key
+    try (FileOutputStream outStream = new FileOutputStream(journal, true)) {
+      outStream.write(new byte[]{'P', 0, 0, 0, 5, 'C'});
+    }
+
+    PersistentIndexedObject reloaded = reload();
+    Assert.assertEquals(instance.ObjectList, reloaded.ObjectList);
+    Assert.assertEquals(goodLength, journal.length());
+
+    reloaded.putObject("C", "3");
+    Assert.assertEquals(1, reloaded.saveChangedObjects());
+    Assert.assertEquals(reloaded.ObjectList, reload().ObjectList);
+  }
+
+  /**
+   * A journal left over from before the last snapshot is not replayed over it.
+   */
+  @Test
+  public void testStaleJournal() throws Exception {
+    System.out.println("testStaleJournal");
+
+    File journal = new File(DATA_FILE + ".journal");
+    PersistentIndexedObject instance = createCache();
+    instance.saveCacheObjectsToFile();
+    instance.putObject("A", "old");
+    instance.putObject("B", "old");
+    Assert.assertEquals(2, instance.saveChangedObjects());
+
+    byte[] oldJournal = Files.readAllBytes(journal.toPath());
+
+    // stopping between the new snapshot and deleting the journal
+    instance.putObject("A", "new");
+    instance.deleteObject("B");
+    instance.saveCacheObjectsToFile();
+    Files.write(journal.toPath(), oldJournal);
+
+    PersistentIndexedObject reloaded = reload();
+    Assert.assertEquals("new", reloaded.getObject("A"));
+    Assert.assertNull(reloaded.getObject("B"));
+    Assert.assertFalse(journal.exists());
+
+    // the journal written after the snapshot is replayed
+    reloaded.putObject("B", "newer");
+    Assert.assertEquals(1, reloaded.saveChangedObjects());
+    Assert.assertEquals("newer", reload().getObject("B"));
+  }
+
+  /**
+   * Files written with Java serialization of the whole map are still read.
+   */
+  @Test
+  public void testLoadSerializedMap() throws IOException {
+    System.out.println("testLoadSerializedMap");
+
+    HashMap<String, Object> objects = new HashMap<>();
+    objects.put("A", "1");
+    objects.put("B", 2L);
+
+    try (ObjectOutputStream outStream = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
+      outStream.writeObject(objects);
+    }
+
+    Assert.assertEquals(objects, reload().ObjectList);
+  }
+}
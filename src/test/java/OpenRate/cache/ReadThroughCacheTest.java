@@ -0,0 +1,163 @@
+package OpenRate.cache;
+
+import OpenRate.exception.ProcessingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the bounded read through cache.
+ */
+public class ReadThroughCacheTest {
+
+  /**
+   * Loads the value "V" + key for the keys which do not start with "X",
+   * remembering the lists of keys it was asked for.
+   */
+  private static class TestLoader implements ReadThroughCache.Loader<String, String> {
+
+    private final List<List<String>> calls = new ArrayList<>();
+    private CountDownLatch release = null;
+
+    @Override
+    public synchronized Map<String, String> load(List<String> keys) throws ProcessingException {
+      HashMap<String, String> values = new HashMap<>();
+
+      calls.add(new ArrayList<>(keys));
+
+      if (release != null) {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          throw new ProcessingException(ex, "test");
+        }
+      }
+
+      for (String key : keys) {
+        if (!key.startsWith("X")) {
+          values.put(key, "V" + key);
+        }
+      }
+
+      return values;
+    }
+  }
+
+  /**
+   * Values are loaded once, and keys which do not exist are remembered.
+   */
+  @Test
+  public void testGet() throws ProcessingException {
+    System.out.println("testGet");
+
+    TestLoader loader = new TestLoader();
+    ReadThroughCache<String, String> instance = new ReadThroughCache<>(loader, 1000, 10);
+
+    Assert.assertEquals("VA", instance.get("A"));
+    Assert.assertEquals("VA", instance.get("A"));
+    Assert.assertNull(instance.get("X1"));
+    Assert.assertNull(instance.get("X1"));
+    Assert.assertNull(instance.getIfPresent("B"));
+
+    Assert.assertEquals(2, instance.getLoads());
+    Assert.assertEquals(2, instance.getHits());
+    Assert.assertEquals(2, instance.getMisses());
+    Assert.assertEquals(2, instance.size());
+  }
+
+  /**
+   * The least recently used entries are evicted when the cache is full.
+   */
+  @Test
+  public void testEviction() throws ProcessingException {
+    System.out.println("testEviction");
+
+    TestLoader loader = new TestLoader();
+    ReadThroughCache<String, String> instance = new ReadThroughCache<>(loader, 32, 10);
+
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals("V" + i, instance.get(String.valueOf(i)));
+
+      // keep one key in use
+      Assert.assertEquals("VA", instance.get("A"));
+    }
+
+    Assert.assertTrue(instance.size() <= 32);
+    Assert.assertEquals(1001 - instance.size(), instance.getEvictions());
+    Assert.assertEquals("VA", instance.getIfPresent("A"));
+    Assert.assertNull(instance.getIfPresent("0"));
+  }
+
+  /**
+   * Concurrent misses for the same key wait for a single load.
+   */
+  @Test
+  public void testCoalescing() throws InterruptedException {
+    System.out.println("testCoalescing");
+
+    final TestLoader loader = new TestLoader();
+    final ReadThroughCache<String, String> instance = new ReadThroughCache<>(loader, 1000, 10);
+    final AtomicInteger found = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+
+    loader.release = new CountDownLatch(1);
+
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if ("VA".equals(instance.get("A"))) {
+              found.incrementAndGet();
+            }
+          } catch (ProcessingException ex) {
+            // counted as not found
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    // let all of the threads miss before the load completes
+    Thread.sleep(200);
+    loader.release.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(threads.length, found.get());
+    Assert.assertEquals(1, instance.getLoads());
+    Assert.assertEquals(threads.length, instance.getMisses());
+  }
+
+  /**
+   * The missing keys of a batch are loaded in lists of up to the batch size,
+   * and are then found without loading.
+   */
+  @Test
+  public void testPrefetch() throws ProcessingException {
+    System.out.println("testPrefetch");
+
+    TestLoader loader = new TestLoader();
+    ReadThroughCache<String, String> instance = new ReadThroughCache<>(loader, 1000, 3);
+
+    Assert.assertEquals("VA", instance.get("A"));
+    Assert.assertEquals(5, instance.prefetch(Arrays.asList("A", "B", "C", "B", "X1", "D", "E")));
+
+    Assert.assertEquals(3, loader.calls.size());
+    Assert.assertEquals(Arrays.asList("B", "C", "X1"), loader.calls.get(1));
+    Assert.assertEquals(Arrays.asList("D", "E"), loader.calls.get(2));
+
+    Assert.assertEquals("VE", instance.get("E"));
+    Assert.assertNull(instance.get("X1"));
+    Assert.assertEquals(3, instance.getLoads());
+    Assert.assertEquals(0, instance.prefetch(Arrays.asList("A", "B")));
+  }
+}
@@ -0,0 +1,120 @@
+package OpenRate.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the hierarchical timing wheel.
+ */
+public class TimingWheelTest {
+
+  /**
+   * Keys are reported once, no earlier than their deadline and no later than
+   * one tick after it, whatever the deadlines and steps in time.
+   */
+  @Test
+  public void testAdvance() {
+    System.out.println("testAdvance");
+
+    TimingWheel<Integer> instance = new TimingWheel<>(10);
+    HashMap<Integer, Long> deadlines = new HashMap<>();
+    Random random = new Random(3);
+    long now = 1000000;
+
+    instance.advance(now);
+
+    for (int step = 0; step < 20000; step++) {
+      // schedule, move or cancel a few keys
+      for (int i = 0; i < 3; i++) {
+        int key = random.nextInt(2000);
+        int action = random.nextInt(10);
+
+        if (action == 0) {
+          instance.cancel(key);
+          deadlines.remove(key);
+        } else {
+          long deadline = now + (action < 8 ? random.nextInt(5000) : random.nextInt(50000000));
+          instance.schedule(key, deadline);
+          deadlines.put(key, deadline);
+        }
+      }
+
+      now += (random.nextInt(100) == 0) ? random.nextInt(1000000) : random.nextInt(60);
+
+      List<Integer> expired = instance.advance(now);
+      List<Integer> expected = new ArrayList<>();
+
+      for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+        // reported in the tick that covers the deadline
+        if ((entry.getValue() + 9) / 10 <= now / 10) {
+          expected.add(entry.getKey());
+        }
+      }
+
+      for (Integer key : expected) {
+        deadlines.remove(key);
+      }
+
+      Collections.sort(expired);
+      Collections.sort(expected);
+      Assert.assertEquals(expected, expired);
+      Assert.assertEquals(deadlines.size(), instance.size());
+    }
+  }
+
+  /**
+   * Keys scheduled before the time is known are placed on the first advance,
+   * and the ones already due are reported on the next tick.
+   */
+  @Test
+  public void testStart() {
+    System.out.println("testStart");
+
+    TimingWheel<String> instance = new TimingWheel<>(1);
+    instance.schedule("old", 100);
+    instance.schedule("new", 2000);
+
+    Assert.assertTrue(instance.advance(1000).isEmpty());
+    Assert.assertEquals(Collections.singletonList("old"), instance.advance(1001));
+    Assert.assertTrue(instance.advance(1999).isEmpty());
+    Assert.assertEquals(Collections.singletonList("new"), instance.advance(2000));
+    Assert.assertEquals(0, instance.size());
+  }
+
+  /**
+   * Cancelled keys do not stay in the slots until their slot comes round.
+   */
+  @Test
+  public void testCancel() {
+    System.out.println("testCancel");
+
+    TimingWheel<Integer> instance = new TimingWheel<>(1);
+    instance.advance(1000);
+
+    for (int i = 0; i < 10000; i++) {
+      instance.schedule(i, 1000 + 100000 + i);
+    }
+
+    Assert.assertEquals(10000, instance.getSlotEntries());
+
+    for (int i = 0; i < 10000; i++) {
+      if (i != 5000) {
+        instance.cancel(i);
+      }
+    }
+
+    Assert.assertEquals(1, instance.size());
+    Assert.assertTrue(instance.getSlotEntries() <= 64 + 2);
+
+    // the key left is still reported on time
+    Assert.assertTrue(instance.advance(1000 + 100000 + 4999).isEmpty());
+    Assert.assertEquals(Collections.singletonList(5000), instance.advance(1000 + 100000 + 5000));
+    Assert.assertEquals(0, instance.size());
+  }
+}
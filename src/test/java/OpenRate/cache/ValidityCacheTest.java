@@ -0,0 +1,130 @@
+package OpenRate.cache;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the array based validity lookups of the validity segment and
+ * multiple validity caches.
+ */
+public class ValidityCacheTest {
+
+  private static ArrayList<String> result(String value) {
+    ArrayList<String> results = new ArrayList<>();
+    results.add(value);
+    return results;
+  }
+
+  /**
+   * Non overlapping segments are found whatever order they are loaded in.
+   */
+  @Test
+  public void testValiditySegmentMatch() {
+    System.out.println("testValiditySegmentMatch");
+
+    ValiditySegmentCache instance = new ValiditySegmentCache();
+
+    // load in a scrambled order
+    instance.addEntry("G", "R", 300, 400, result("C"));
+    instance.addEntry("G", "R", 100, 200, result("A"));
+    instance.addEntry("G", "R", 500, 600, result("D"));
+    instance.addEntry("G", "R", 201, 300, result("B"));
+
+    Assert.assertEquals(ValiditySegmentCache.NO_VALIDITY_MATCH, instance.getValiditySegmentMatch("G", "R", 99));
+    Assert.assertEquals("A", instance.getValiditySegmentMatch("G", "R", 100));
+    Assert.assertEquals("A", instance.getValiditySegmentMatch("G", "R", 199));
+    Assert.assertEquals(ValiditySegmentCache.NO_VALIDITY_MATCH, instance.getValiditySegmentMatch("G", "R", 200));
+    Assert.assertEquals("B", instance.getValiditySegmentMatch("G", "R", 299));
+    Assert.assertEquals("C", instance.getValiditySegmentMatch("G", "R", 300));
+    Assert.assertEquals(ValiditySegmentCache.NO_VALIDITY_MATCH, instance.getValiditySegmentMatch("G", "R", 450));
+    Assert.assertEquals("D", instance.getValiditySegmentMatchWithChildData("G", "R", 599).get(0));
+    Assert.assertNull(instance.getValiditySegmentMatchWithChildData("G", "R", 600));
+    Assert.assertEquals(ValiditySegmentCache.NO_VALIDITY_MATCH, instance.getValiditySegmentMatch("G", "X", 150));
+    Assert.assertEquals(ValiditySegmentCache.NO_VALIDITY_MATCH, instance.getValiditySegmentMatch("X", "R", 150));
+  }
+
+  /**
+   * Check that the matches at each time are the same, and in the same order,
+   * as a scan of the segments in the order they were loaded.
+   */
+  private static void checkMatches(MultipleValidityCache instance, long[] from, long[] to) {
+    ArrayList<String> matches = new ArrayList<>();
+    ArrayList<ArrayList<String>> childMatches = new ArrayList<>();
+
+    for (long time = -10; time < 1110; time++) {
+      ArrayList<String> expected = new ArrayList<>();
+
+      for (int i = 0; i < from.length; i++) {
+        if (from[i] <= time && to[i] > time) {
+          expected.add("V" + i);
+        }
+      }
+
+      Assert.assertEquals(expected, instance.getAllValidityMatches("G", "R", time));
+      Assert.assertEquals(expected.size(), instance.getAllValidityMatches("G", "R", time, matches));
+      Assert.assertEquals(expected, matches);
+      Assert.assertEquals(expected.size(), instance.getAllValidityMatchesWithChildData("G", "R", time, childMatches));
+
+      for (int i = 0; i < expected.size(); i++) {
+        Assert.assertEquals(expected.get(i), childMatches.get(i).get(0));
+      }
+
+      if (expected.isEmpty()) {
+        Assert.assertEquals(MultipleValidityCache.NO_VALIDITY_MATCH, instance.getFirstValidityMatch("G", "R", time));
+        Assert.assertNull(instance.getFirstValidityMatchWithChildData("G", "R", time));
+      } else {
+        Assert.assertEquals(expected.get(0), instance.getFirstValidityMatch("G", "R", time));
+        Assert.assertEquals(expected.get(0), instance.getFirstValidityMatchWithChildData("G", "R", time).get(0));
+      }
+    }
+
+    Assert.assertEquals(0, instance.getAllValidityMatches("G", "X", 100, matches));
+    Assert.assertTrue(matches.isEmpty());
+  }
+
+  /**
+   * Overlapping segments give the same matches, in the same order, as a scan
+   * of the segments in the order they were loaded.
+   */
+  @Test
+  public void testMultipleValidityMatches() {
+    System.out.println("testMultipleValidityMatches");
+
+    MultipleValidityCache instance = new MultipleValidityCache();
+    Random random = new Random(42);
+    long[] from = new long[200];
+    long[] to = new long[200];
+
+    for (int i = 0; i < from.length; i++) {
+      from[i] = random.nextInt(1000);
+      to[i] = from[i] + random.nextInt(100);
+      instance.addEntry("G", "R", from[i], to[i], result("V" + i));
+    }
+
+    checkMatches(instance, from, to);
+  }
+
+  /**
+   * Overlapping segments loaded in start order give the matches in the order
+   * they were loaded too.
+   */
+  @Test
+  public void testMultipleValidityMatchesInOrder() {
+    System.out.println("testMultipleValidityMatchesInOrder");
+
+    MultipleValidityCache instance = new MultipleValidityCache();
+    Random random = new Random(42);
+    long[] from = new long[200];
+    long[] to = new long[200];
+
+    for (int i = 0; i < from.length; i++) {
+      from[i] = i * 5;
+      to[i] = from[i] + random.nextInt(100);
+      instance.addEntry("G", "R", from[i], to[i], result("V" + i));
+    }
+
+    checkMatches(instance, from, to);
+  }
+}
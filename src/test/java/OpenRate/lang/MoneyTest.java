@@ -0,0 +1,110 @@
+package OpenRate.lang;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the fixed point money arithmetic.
+ */
+public class MoneyTest {
+
+  private static final double[] VALUES = {0, 0.005, -0.005, 0.015, -0.015, 0.125, 1.2345, -1.2355, 2.5, -2.5, 99.999999, 123456.785, -0.000001};
+
+  /**
+   * Rounding gives the same result as BigDecimal for all rounding modes.
+   */
+  @Test
+  public void testRound() {
+    System.out.println("testRound");
+
+    for (double value : VALUES) {
+      long micros = Money.toMicros(value);
+      BigDecimal exact = BigDecimal.valueOf(micros).movePointLeft(Money.SCALE);
+
+      for (RoundingMode mode : RoundingMode.values()) {
+        if (mode == RoundingMode.UNNECESSARY) {
+          continue;
+        }
+
+        for (int decimals = 0; decimals <= Money.SCALE; decimals++) {
+          BigDecimal expected = exact.setScale(decimals, mode);
+          long rounded = Money.round(micros, decimals, mode);
+          Assert.assertEquals(value + " " + mode + " " + decimals, expected.movePointRight(Money.SCALE).longValueExact(), rounded);
+          Assert.assertEquals(expected.doubleValue(), Money.round(value, decimals, mode), 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adding up amounts does not drift.
+   */
+  @Test
+  public void testAdd() {
+    System.out.println("testAdd");
+
+    double sum = 0;
+    double plainSum = 0;
+
+    for (int i = 0; i < 10; i++) {
+      sum = Money.add(sum, 0.1);
+      plainSum += 0.1;
+    }
+
+    Assert.assertEquals(1.0, sum, 0);
+    Assert.assertTrue(plainSum != 1.0);
+
+    Assert.assertEquals(0.3, Money.add(0.1, 0.2), 0);
+    Assert.assertEquals(-0.1, Money.add(0.1, -0.2), 0);
+
+    try {
+      Money.add(Long.MAX_VALUE, 1);
+      Assert.fail("Expected overflow");
+    } catch (ArithmeticException ae) {
+      // expected
+    }
+
+    try {
+      Money.toMicros(1.0E12);
+      Assert.fail("Expected out of range");
+    } catch (ArithmeticException ae) {
+      // expected
+    }
+  }
+
+  /**
+   * Rounding definitions are parsed.
+   */
+  @Test
+  public void testParseRounding() {
+    System.out.println("testParseRounding");
+
+    Assert.assertNull(MoneyRounding.parse("None"));
+    Assert.assertNull(MoneyRounding.parse(null));
+
+    MoneyRounding rounding = MoneyRounding.parse("2");
+    Assert.assertEquals(2, rounding.decimals);
+    Assert.assertEquals(RoundingMode.HALF_UP, rounding.mode);
+    Assert.assertEquals(0.13, rounding.round(0.125), 0);
+
+    rounding = MoneyRounding.parse("2, half_even");
+    Assert.assertEquals(RoundingMode.HALF_EVEN, rounding.mode);
+    Assert.assertEquals(0.12, rounding.round(0.125), 0);
+
+    try {
+      MoneyRounding.parse("7");
+      Assert.fail("Expected invalid decimals");
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+
+    try {
+      MoneyRounding.parse("2,UNNECESSARY");
+      Assert.fail("Expected invalid mode");
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+  }
+}
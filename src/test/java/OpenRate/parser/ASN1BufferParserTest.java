@@ -0,0 +1,210 @@
+package OpenRate.parser;
+
+import OpenRate.exception.ASN1Exception;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the streaming ASN.1 decoder working over a byte buffer.
+ */
+public class ASN1BufferParserTest {
+
+  private static final String DATA_FILE = "target/ASN1BufferParserTest.ber";
+
+  // A record holding a BCD string, two integers, a constructed element, a
+  // long tag and a value with a two byte length, followed by filler
+  private static final byte[] RECORD = {
+    0x30, 0x1E,
+    (byte) 0x80, 0x03, 0x21, 0x43, (byte) 0xF5,
+    (byte) 0x81, 0x01, (byte) 0xFF,
+    (byte) 0x82, 0x02, 0x01, 0x00,
+    (byte) 0xA3, 0x05, (byte) 0x80, 0x01, 0x07, 0x05, 0x00,
+    (byte) 0x9F, (byte) 0x81, 0x01, 0x02, 'h', 'i',
+    (byte) 0x84, (byte) 0x82, 0x00, 0x01, (byte) 0xAB,
+    0x00, 0x00, 0x00
+  };
+
+  // A record with indefinite lengths, one of them nested
+  private static final byte[] INDEFINITE = {
+    0x30, (byte) 0x80,
+    (byte) 0x80, 0x01, 0x05,
+    (byte) 0xA1, (byte) 0x80, (byte) 0x80, 0x01, 0x07, 0x00, 0x00,
+    (byte) 0x82, 0x01, 0x09,
+    0x00, 0x00,
+    0x02, 0x01, 0x2A
+  };
+
+  @After
+  public void tearDown() {
+    new File(DATA_FILE).delete();
+  }
+
+  /**
+   * The elements of a record are found and decoded where they are.
+   */
+  @Test
+  public void testWalk() throws ASN1Exception {
+    System.out.println("testWalk");
+
+    ASN1BufferParser instance = new ASN1BufferParser(ByteBuffer.wrap(RECORD));
+    StringBuilder value = new StringBuilder();
+
+    Assert.assertTrue(instance.next());
+    Assert.assertTrue(instance.isConstructed());
+    Assert.assertEquals(ASN1BufferParser.UNIVERSAL_CLASS, instance.getTagClass());
+    Assert.assertEquals(ASN1Parser.SEQUENCE, instance.getTagNumber());
+    Assert.assertEquals(32, instance.getEndOffset());
+    instance.enter();
+
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(ASN1BufferParser.CONTEXT_CLASS, instance.getTagClass());
+    Assert.assertEquals(0, instance.getTagNumber());
+    instance.appendBCDString(value, false);
+    Assert.assertEquals("21435", value.toString());
+    value.setLength(0);
+    instance.appendBCDString(value, true);
+    Assert.assertEquals("12345", value.toString());
+
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(-1, instance.getInt());
+
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(256L, instance.getLong());
+    Assert.assertEquals(10, instance.getHeaderOffset());
+    Assert.assertEquals(12, instance.getValueOffset());
+
+    // passed over without looking inside
+    Assert.assertTrue(instance.next());
+    Assert.assertTrue(instance.isConstructed());
+    Assert.assertEquals(3, instance.getTagNumber());
+
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(129, instance.getTagNumber());
+    value.setLength(0);
+    instance.appendString(value);
+    Assert.assertEquals("hi", value.toString());
+    Assert.assertTrue(instance.valueEquals(new byte[]{'h', 'i'}));
+
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(1, instance.getLength());
+    value.setLength(0);
+    instance.appendHex(value);
+    Assert.assertEquals("ab", value.toString());
+    Assert.assertEquals((byte) 0xAB, instance.getValueBuffer().get(0));
+
+    Assert.assertFalse(instance.next());
+    instance.exit();
+
+    // the filler is skipped
+    Assert.assertFalse(instance.next());
+    Assert.assertFalse(instance.ready());
+  }
+
+  /**
+   * Constructed elements can be entered part of the way, and are passed over
+   * whole when they have indefinite lengths.
+   */
+  @Test
+  public void testIndefiniteLength() throws ASN1Exception {
+    System.out.println("testIndefiniteLength");
+
+    ASN1BufferParser instance = new ASN1BufferParser(ByteBuffer.wrap(INDEFINITE));
+
+    // Skip the whole of the first record
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(-1, instance.getLength());
+    Assert.assertEquals(-1, instance.getEndOffset());
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(2, instance.getTagNumber());
+    Assert.assertEquals(42, instance.getInt());
+    Assert.assertFalse(instance.next());
+
+    // Now walk it, leaving before the end
+    instance = new ASN1BufferParser(ByteBuffer.wrap(INDEFINITE));
+    Assert.assertTrue(instance.next());
+    instance.enter();
+    Assert.assertEquals(1, instance.getDepth());
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(5, instance.getInt());
+    Assert.assertTrue(instance.next());
+    instance.enter();
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(7, instance.getInt());
+    Assert.assertFalse(instance.next());
+    instance.exit();
+    instance.exit();
+    Assert.assertEquals(0, instance.getDepth());
+    Assert.assertTrue(instance.next());
+    Assert.assertEquals(42, instance.getInt());
+  }
+
+  /**
+   * Data which is not valid BER is reported.
+   */
+  @Test
+  public void testMalformed() {
+    System.out.println("testMalformed");
+
+    byte[][] data = {
+      {0x30, 0x05, 0x02, 0x01},
+      {0x30, 0x03, 0x02, 0x05, 0x01},
+      {0x02, (byte) 0x80, 0x01},
+      {0x02, (byte) 0x85, 0x01, 0x01, 0x01, 0x01, 0x01},
+      {0x30, (byte) 0x80, 0x02, 0x01, 0x01}
+    };
+
+    for (byte[] record : data) {
+      ASN1BufferParser instance = new ASN1BufferParser(ByteBuffer.wrap(record));
+
+      try {
+        while (instance.next()) {
+          if (instance.isConstructed()) {
+            instance.enter();
+          }
+        }
+        Assert.fail("Expected an exception");
+      } catch (ASN1Exception ex) {
+        // expected
+      }
+    }
+
+    try {
+      ASN1BufferParser instance = new ASN1BufferParser(ByteBuffer.wrap(RECORD));
+      instance.next();
+      instance.getLong();
+      Assert.fail("Expected an exception");
+    } catch (ASN1Exception ex) {
+      // expected
+    }
+  }
+
+  /**
+   * Records are read from a memory mapped file.
+   */
+  @Test
+  public void testMapFile() throws IOException, ASN1Exception {
+    System.out.println("testMapFile");
+
+    int records = 0;
+
+    try (FileOutputStream outStream = new FileOutputStream(DATA_FILE)) {
+      for (int i = 0; i < 100; i++) {
+        outStream.write(RECORD);
+        outStream.write(INDEFINITE);
+      }
+    }
+
+    ASN1BufferParser instance = new ASN1BufferParser(ASN1BufferParser.mapFile(DATA_FILE));
+
+    while (instance.next()) {
+      records++;
+    }
+
+    Assert.assertEquals(300, records);
+  }
+}
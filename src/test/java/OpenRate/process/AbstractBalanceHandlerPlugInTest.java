@@ -5,6 +5,7 @@ package OpenRate.process;
 import OpenRate.OpenRate;
 import OpenRate.buffer.IConsumer;
 import OpenRate.buffer.ISupplier;
+import OpenRate.cache.BalanceCache;
 import OpenRate.exception.ExceptionHandler;
 import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
@@ -18,6 +19,7 @@ import OpenRate.transaction.TransactionManagerFactory;
 import OpenRate.utils.ConversionUtils;
 import TestUtils.TestRatingRecord;
 import TestUtils.TransactionUtils;
+import java.io.File;
 import java.net.URL;
 import java.sql.Connection;
 import java.util.Calendar;
@@ -855,6 +857,201 @@ public class AbstractBalanceHandlerPlugInTest implements IPlugIn
         Assert.assertEquals(rumValue2,balImp4.rumValueAfter,0.000001);
     }
 
+    /**
+     * Test that consuming and aggregating on the same balance group from
+     * several threads at once does not lose any updates.
+     */
+    @Test
+    public void testConcurrentBalanceUpdates() throws InterruptedException
+    {
+        System.out.println("concurrentBalanceUpdates");
+
+        final long BalanceGroupId = 1004L;
+        final int consumeCounterId = 100000;
+        final int aggregateCounterId = 100001;
+        final double initialBalance = 100000.0;
+        final long UTCBalanceStartValidity = ConversionUtils.getConversionUtilsObject().getUTCDayStart(new Date());
+        final long UTCBalanceEndValidity = ConversionUtils.getConversionUtilsObject().getUTCDayEnd(new Date());
+        final int threadCount = 8;
+        final int updatesPerThread = 1000;
+
+        Thread[] workers = new Thread[threadCount];
+        for (int i = 0 ; i < threadCount ; i++)
+        {
+          workers[i] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              for (int j = 0 ; j < updatesPerThread ; j++)
+              {
+                TestRatingRecord consumeRecord = new TestRatingRecord();
+                consumeRecord.setRUMValue("RUM", 1.0);
+                consumeRecord.utcEventDate = UTCBalanceStartValidity;
+                instance.discountConsumeRUM(consumeRecord, "TestDiscount", BalanceGroupId, "RUM", consumeCounterId, initialBalance, UTCBalanceStartValidity, UTCBalanceEndValidity);
+
+                TestRatingRecord aggregateRecord = new TestRatingRecord();
+                aggregateRecord.setRUMValue("RUM", 1.0);
+                aggregateRecord.utcEventDate = UTCBalanceStartValidity;
+                instance.discountAggregateRUM(aggregateRecord, "TestDiscount", BalanceGroupId, "RUM", aggregateCounterId, 0, UTCBalanceStartValidity, UTCBalanceEndValidity);
+              }
+            }
+          });
+          workers[i].start();
+        }
+
+        for (Thread worker : workers)
+        {
+          worker.join();
+        }
+
+        // Only one counter period must have been created for each counter
+        Assert.assertEquals(1, instance.getBalanceGroup(BalanceGroupId).getCounterGroup(consumeCounterId).getCounters().size());
+        Assert.assertEquals(1, instance.getBalanceGroup(BalanceGroupId).getCounterGroup(aggregateCounterId).getCounters().size());
+        Assert.assertTrue(instance.getBalanceGroup(BalanceGroupId).isBalanceDirty());
+
+        // and no updates lost
+        double expConsumed = initialBalance - (threadCount * updatesPerThread);
+        Assert.assertEquals(expConsumed, instance.getCounterBalance(BalanceGroupId, consumeCounterId, UTCBalanceStartValidity, 0), 0.000001);
+        Assert.assertEquals(threadCount * updatesPerThread, instance.getCounterBalance(BalanceGroupId, aggregateCounterId, UTCBalanceStartValidity, 0), 0.000001);
+
+        // the atomic primitives limit at the counter bounds
+        Assert.assertEquals(expConsumed, instance.BC.consumeCounter(BalanceGroupId, consumeCounterId, UTCBalanceStartValidity, initialBalance), 0.000001);
+        Assert.assertEquals(0, instance.getCounterBalance(BalanceGroupId, consumeCounterId, UTCBalanceStartValidity, -1), 0.000001);
+        Assert.assertEquals(initialBalance, instance.BC.refundCounter(BalanceGroupId, consumeCounterId, UTCBalanceStartValidity, 2 * initialBalance, initialBalance), 0.000001);
+        Assert.assertEquals(0, instance.BC.consumeCounter(BalanceGroupId, 999, UTCBalanceStartValidity, 1.0), 0.000001);
+    }
+
+    /**
+     * Test that only changed balance groups are written to the balance
+     * journal, and that a new cache recovers the balances from the journal,
+     * also after compaction.
+     */
+    @Test
+    public void testBalanceJournal() throws Exception
+    {
+        System.out.println("balanceJournal");
+
+        File journal = File.createTempFile("BalanceJournal", ".jnl");
+        journal.delete();
+        journal.deleteOnExit();
+
+        // Compact after 4 lines
+        BalanceCache cache1 = new BalanceCache();
+        cache1.initJournal(journal.getPath(), 4);
+
+        cache1.addCounter(1L, 10, 0, 1000, 100.0);
+        cache1.addCounter(2L, 10, 0, 1000, 200.0);
+        Assert.assertEquals(2, cache1.writeDirtyBalances());
+        Assert.assertEquals(0, cache1.writeDirtyBalances());
+
+        // only the changed group gets written
+        Assert.assertEquals(40.0, cache1.consumeCounter(1L, 10, 500, 40.0), 0.000001);
+        Assert.assertEquals(1, cache1.writeDirtyBalances());
+        Assert.assertFalse(cache1.getBalanceGroup(1L).isBalanceDirty());
+
+        // a new counter period in the same group
+        cache1.addCounter(1L, 10, 1000, 2000, 100.0);
+        Assert.assertEquals(1, cache1.writeDirtyBalances());
+        cache1.closeJournal();
+
+        // Recover
+        BalanceCache cache2 = new BalanceCache();
+        cache2.initJournal(journal.getPath(), 4);
+        Assert.assertEquals(60.0, cache2.getCounter(1L, 10, 500).CurrentBalance, 0.000001);
+        Assert.assertEquals(100.0, cache2.getCounter(1L, 10, 1500).CurrentBalance, 0.000001);
+        Assert.assertEquals(200.0, cache2.getCounter(2L, 10, 500).CurrentBalance, 0.000001);
+        Assert.assertEquals(2, cache2.getBalanceGroup(1L).getRecId());
+
+        // new counters must not reuse the recovered rec ids
+        Assert.assertEquals(2, cache2.addCounter(2L, 10, 1000, 2000, 300.0).RecId);
+        cache2.writeDirtyBalances();
+        cache2.closeJournal();
+
+        // the journal was compacted
+        Assert.assertFalse(new File(journal.getPath() + ".tmp").exists());
+
+        BalanceCache cache3 = new BalanceCache();
+        cache3.initJournal(journal.getPath(), 4);
+        Assert.assertEquals(60.0, cache3.getCounter(1L, 10, 500).CurrentBalance, 0.000001);
+        Assert.assertEquals(300.0, cache3.getCounter(2L, 10, 1500).CurrentBalance, 0.000001);
+        cache3.closeJournal();
+    }
+
+    /**
+     * Test that the balance journal only holds the changes of transactions
+     * which have committed, also when transactions change the same balance
+     * group at the same time, or roll back.
+     */
+    @Test
+    public void testBalanceJournalTransactions() throws Exception
+    {
+        System.out.println("balanceJournalTransactions");
+
+        File journal = File.createTempFile("BalanceJournal", ".jnl");
+        journal.delete();
+        journal.deleteOnExit();
+
+        BalanceCache cache1 = new BalanceCache();
+        cache1.initJournal(journal.getPath(), 1000);
+
+        cache1.addCounter(1L, 10, 0, 1000, 100.0);
+        cache1.addCounter(2L, 10, 0, 1000, 200.0);
+        Assert.assertEquals(2, cache1.writeDirtyBalances());
+
+        // transaction 11 changes group 1, transaction 12 changes groups 1 and 2
+        cache1.getCounter(1L, 10, 500).CurrentBalance -= 10.0;
+        cache1.markBalanceGroupDirty(1L, 11);
+        cache1.getCounter(1L, 10, 500).CurrentBalance -= 10.0;
+        cache1.markBalanceGroupDirty(1L, 12);
+        cache1.getCounter(2L, 10, 500).CurrentBalance -= 50.0;
+        cache1.markBalanceGroupDirty(2L, 12);
+
+        // group 1 holds changes of transaction 12, so it waits for it
+        Assert.assertEquals(0, cache1.commitTransactionBalances(11));
+
+        BalanceCache cache2 = new BalanceCache();
+        cache2.initJournal(journal.getPath(), 1000);
+        Assert.assertEquals(100.0, cache2.getCounter(1L, 10, 500).CurrentBalance, 0.000001);
+        Assert.assertEquals(200.0, cache2.getCounter(2L, 10, 500).CurrentBalance, 0.000001);
+        cache2.closeJournal();
+
+        Assert.assertEquals(2, cache1.commitTransactionBalances(12));
+
+        // transaction 13 rolls back
+        cache1.getCounter(2L, 10, 500).CurrentBalance -= 5.0;
+        cache1.markBalanceGroupDirty(2L, 13);
+        cache1.rollbackTransactionBalances(13);
+        Assert.assertEquals(0, cache1.writeDirtyBalances());
+        cache1.closeJournal();
+
+        BalanceCache cache3 = new BalanceCache();
+        cache3.initJournal(journal.getPath(), 1000);
+        Assert.assertEquals(80.0, cache3.getCounter(1L, 10, 500).CurrentBalance, 0.000001);
+        Assert.assertEquals(150.0, cache3.getCounter(2L, 10, 500).CurrentBalance, 0.000001);
+        cache3.closeJournal();
+    }
+
+    /**
+     * Only the counters which hold money are updated in fixed point. RUM
+     * counters keep their precision, and large amounts do not fail.
+     */
+    @Test
+    public void testAdjustBalance()
+    {
+        System.out.println("adjustBalance");
+
+        // a money counter is exact
+        Assert.assertEquals(0.3, instance.adjustBalance(99, 0.1, 0.2), 0);
+        Assert.assertEquals(0.3, instance.adjustBalance(98, 0.1, 0.2), 0);
+
+        // a RUM counter is not rounded to the fixed point scale
+        Assert.assertEquals(0.0000001, instance.adjustBalance(10, 0, 0.0000001), 0);
+        Assert.assertEquals(0.0, instance.adjustBalance(99, 0, 0.0000001), 0);
+
+        // amounts out of the fixed point range are added as they are
+        Assert.assertEquals(2.0E10, instance.adjustBalance(10, 1.0E10, 1.0E10), 0);
+        Assert.assertEquals(2.0E10, instance.adjustBalance(99, 1.0E10, 1.0E10), 0);
+    }
+
   // -----------------------------------------------------------------------------
   // ---------------- Start of abstract class stub functions ---------------------
   // -----------------------------------------------------------------------------
@@ -6,6 +6,7 @@ import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.record.ChargePacket;
 import OpenRate.record.IRecord;
+import OpenRate.record.RateMapEntry;
 import OpenRate.record.TimePacket;
 import OpenRate.utils.ConversionUtils;
 import TestUtils.FrameworkUtils;
@@ -123,6 +124,9 @@ public class AbstractRUMRateCalcTest {
     JDBCChcon.prepareStatement("INSERT INTO TEST_PRICE_MODEL (ID,PRICE_MODEL,STEP,TIER_FROM,TIER_TO,BEAT,FACTOR,CHARGE_BASE,VALID_FROM) values (1,'TestModel7a1',2,0,999999,60,0.35,60,'2000-01-01')").execute();
     JDBCChcon.prepareStatement("INSERT INTO TEST_PRICE_MODEL (ID,PRICE_MODEL,STEP,TIER_FROM,TIER_TO,BEAT,FACTOR,CHARGE_BASE,VALID_FROM) values (1,'TestModel7b1',1,0,0,1,10,1,'2000-01-01')").execute();
     JDBCChcon.prepareStatement("INSERT INTO TEST_PRICE_MODEL (ID,PRICE_MODEL,STEP,TIER_FROM,TIER_TO,BEAT,FACTOR,CHARGE_BASE,VALID_FROM) values (1,'TestModel7b1',2,0,999999,60,0.16875,60,'2000-01-01')").execute();
+
+    // Rounded model with a price which is out of the fixed point range
+    JDBCChcon.prepareStatement("INSERT INTO TEST_PRICE_MODEL (ID,PRICE_MODEL,STEP,TIER_FROM,TIER_TO,BEAT,FACTOR,CHARGE_BASE,VALID_FROM) values (1,'TestModel8',1,0,999999,60,1000000000000,60,'2000-01-01')").execute();
     
     // ********************************** RUM MAP ******************************
     // Create the test table
@@ -154,6 +158,9 @@ public class AbstractRUMRateCalcTest {
     JDBCChcon.prepareStatement("INSERT INTO TEST_RUM_MAP (ID,PRICE_GROUP,STEP,PRICE_MODEL,RUM,RESOURCE,RESOURCE_ID,RUM_TYPE,CONSUME_FLAG) VALUES (1,'TestModel7a',1,'TestModel7a1','DUR','EUR',978,'TIERED',0)").execute();
     JDBCChcon.prepareStatement("INSERT INTO TEST_RUM_MAP (ID,PRICE_GROUP,STEP,PRICE_MODEL,RUM,RESOURCE,RESOURCE_ID,RUM_TYPE,CONSUME_FLAG) VALUES (1,'TestModel7b',1,'TestModel7b1','DUR','EUR',978,'TIERED',0)").execute();
 
+    // Rounded model out of the fixed point range
+    JDBCChcon.prepareStatement("INSERT INTO TEST_RUM_MAP (ID,PRICE_GROUP,STEP,PRICE_MODEL,RUM,RESOURCE,RESOURCE_ID,RUM_TYPE,CONSUME_FLAG) VALUES (1,'TestModel8',1,'TestModel8','DUR','EUR',978,'TIERED',0)").execute();
+
     // Get the caches that we are using
     FrameworkUtils.startupCaches();
   }
@@ -240,6 +247,57 @@ public class AbstractRUMRateCalcTest {
     assertEquals(expResult, getRollUp(ratingRecord), 0.00001);
   }
 
+  /**
+   * A rounded price model whose amounts are out of the fixed point range
+   * errors the record instead of throwing an unchecked exception.
+   *
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testPerformRatingRoundedOutOfRange() throws Exception {
+    TestRatingRecord ratingRecord;
+    System.out.println("testPerformRatingRoundedOutOfRange");
+
+    ConversionUtils conv = ConversionUtils.getConversionUtilsObject();
+    conv.setInputDateFormat("yyyy-MM-dd hh:mm:ss");
+    long CDRDate = conv.convertInputDateToUTC("2010-01-23 00:00:00");
+
+    ratingRecord = getNewRatingRecordDUR(CDRDate, "TestModel8", 60);
+    Assert.assertFalse(instance.performRating(ratingRecord));
+    assertEquals(1, ratingRecord.getErrorCount());
+    assertEquals("ERR_RUM_RATING", ratingRecord.getErrors().get(0).getMessage());
+  }
+
+  /**
+   * An implementation which overrides the rate evaluation still has its own
+   * rate evaluation used, even for price models which have been compiled.
+   *
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testPerformRatingOverriddenEvaluation() throws Exception {
+    TestRatingRecord ratingRecord;
+    System.out.println("testPerformRatingOverriddenEvaluation");
+
+    ConversionUtils conv = ConversionUtils.getConversionUtilsObject();
+    conv.setInputDateFormat("yyyy-MM-dd hh:mm:ss");
+    long CDRDate = conv.convertInputDateToUTC("2010-01-23 00:00:00");
+
+    AbstractRUMRateCalcOverrideImpl overrideInstance = new AbstractRUMRateCalcOverrideImpl();
+    overrideInstance.init("DBTestPipe", "AbstractRUMRateCalcTest");
+
+    ratingRecord = getNewRatingRecordDUR(CDRDate, "TestModel1", 90);
+    overrideInstance.performRating(ratingRecord);
+    assertEquals(1, ratingRecord.getChargePacketCount());
+    assertEquals(2.0, getRollUp(ratingRecord), 0.00001);
+    assertTrue(overrideInstance.entryLookups > 0);
+
+    // The standard implementation gives the same answer
+    ratingRecord = getNewRatingRecordDUR(CDRDate, "TestModel1", 90);
+    instance.performRating(ratingRecord);
+    assertEquals(2.0, getRollUp(ratingRecord), 0.00001);
+  }
+
   /**
    * Test of the main performRating method, of class AbstractRUMRateCalc. Uses a
    * simple linear price model, but with a RUM expansion. For each non-zero
@@ -713,6 +771,25 @@ public class AbstractRUMRateCalcTest {
     }
   }
 
+  public class AbstractRUMRateCalcOverrideImpl extends AbstractRUMRateCalcImpl {
+
+    // The number of times the rate map entry has been looked up
+    int entryLookups = 0;
+
+    /**
+     * Count the rate map entry look ups.
+     *
+     * @param tmpEntry The rate map object to search
+     * @param CDRDate The long UTC date to search for
+     * @return The relevant rate map entry
+     */
+    @Override
+    protected RateMapEntry getRateModelEntryForTime(RateMapEntry tmpEntry, long CDRDate) {
+      entryLookups++;
+      return super.getRateModelEntryForTime(tmpEntry, CDRDate);
+    }
+  }
+
   /**
    * Method to get an instance of the implementation. Done this way to allow
    * tests to be executed individually.
@@ -0,0 +1,316 @@
+package OpenRate.record;
+
+import OpenRate.exception.ProcessingException;
+import OpenRate.process.AbstractRateCalc;
+import java.util.ArrayList;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the compiled price models give exactly the same results as the
+ * rating of the price model lists.
+ */
+public class CompiledPriceModelTest {
+
+  private static final long[] DATES = {0, 499, 500, 999, 1000, 1500, 2000, 5000};
+  private static final double[] VALUES = {0, 0.5, 1, 59, 60, 61, 599.7, 600, 1234.5};
+  private static final double[] OFFSETS = {0, 30, 100, 700};
+
+  /**
+   * Gives access to the list based rating
+   */
+  private static class ReferenceRateCalc extends AbstractRateCalc {
+
+    @Override
+    public IRecord procValidRecord(IRecord r) {
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(IRecord r) {
+      return r;
+    }
+
+    RatingResult tiered(ArrayList<RateMapEntry> model, double value, double offset, long date) throws ProcessingException {
+      return performRateEvaluationTiered("Test", model, value, offset, date, true);
+    }
+
+    RatingResult threshold(ArrayList<RateMapEntry> model, double value, double offset, long date) throws ProcessingException {
+      return performRateEvaluationThreshold("Test", model, value, offset, date, true);
+    }
+
+    RatingResult flat(ArrayList<RateMapEntry> model, double value, long date) throws ProcessingException {
+      return performRateEvaluationFlat("Test", model, value, date, true);
+    }
+
+    RatingResult event(ArrayList<RateMapEntry> model, long value, long date) throws ProcessingException {
+      return performRateEvaluationEvent("Test", model, value, date, true);
+    }
+  }
+
+  private static RateMapEntry newEntry(int step, double from, double to, double beat, double factor, double chargeBase, long startTime) {
+    RateMapEntry tmpEntry = new RateMapEntry();
+    tmpEntry.setStep(step);
+    tmpEntry.setFrom(from);
+    tmpEntry.setTo(to);
+    tmpEntry.setBeat(beat);
+    tmpEntry.setFactor(factor);
+    tmpEntry.setChargeBase(chargeBase);
+    tmpEntry.setStartTime(startTime);
+    return tmpEntry;
+  }
+
+  /**
+   * A model with a singularity setup charge, three tiers and older versions
+   * of some of the tiers.
+   */
+  private static ArrayList<RateMapEntry> getVersionedModel() {
+    ArrayList<RateMapEntry> model = new ArrayList<>();
+    RateMapEntry tmpEntry;
+
+    model.add(newEntry(1, 0, 0, 1, 0.25, 1, 0));
+
+    tmpEntry = newEntry(2, 0, 60, 60, 0.1, 60, 1000);
+    tmpEntry.setChild(newEntry(2, 0, 60, 60, 0.2, 60, 0));
+    model.add(tmpEntry);
+
+    tmpEntry = newEntry(3, 60, 600, 30, 0.07, 60, 1000);
+    tmpEntry.setChild(newEntry(3, 60, 300, 10, 0.13, 60, 500));
+    model.add(tmpEntry);
+
+    tmpEntry = newEntry(4, 600, 999999, 1, 0.03, 60, 500);
+    tmpEntry.setChild(newEntry(4, 300, 999999, 1, 0.11, 60, 0));
+    model.add(tmpEntry);
+
+    return model;
+  }
+
+  /**
+   * A model where one tier has no version before its start date
+   */
+  private static ArrayList<RateMapEntry> getPartialModel() {
+    ArrayList<RateMapEntry> model = new ArrayList<>();
+
+    model.add(newEntry(1, 0, 10, 1, 0.3, 1, 0));
+    model.add(newEntry(2, 10, 100, 5, 0.2, 1, 1000));
+
+    return model;
+  }
+
+  private static void assertSame(RatingResult expected, RatingResult actual) {
+    Assert.assertEquals(Double.doubleToLongBits(expected.RatedValue), Double.doubleToLongBits(actual.RatedValue));
+    Assert.assertEquals(Double.doubleToLongBits(expected.RUMUsed), Double.doubleToLongBits(actual.RUMUsed));
+    Assert.assertEquals(Double.doubleToLongBits(expected.RUMUsedRounded), Double.doubleToLongBits(actual.RUMUsedRounded));
+
+    if (expected.breakdown == null) {
+      Assert.assertNull(actual.breakdown);
+      return;
+    }
+
+    Assert.assertEquals(expected.breakdown.size(), actual.breakdown.size());
+
+    for (int i = 0; i < expected.breakdown.size(); i++) {
+      RatingBreakdown exp = expected.breakdown.get(i);
+      RatingBreakdown act = actual.breakdown.get(i);
+      Assert.assertEquals(exp.stepUsed, act.stepUsed);
+      Assert.assertEquals(exp.beatCount, act.beatCount);
+      Assert.assertEquals(exp.validFrom, act.validFrom);
+      Assert.assertEquals(Double.doubleToLongBits(exp.beat), Double.doubleToLongBits(act.beat));
+      Assert.assertEquals(Double.doubleToLongBits(exp.factor), Double.doubleToLongBits(act.factor));
+      Assert.assertEquals(Double.doubleToLongBits(exp.chargeBase), Double.doubleToLongBits(act.chargeBase));
+      Assert.assertEquals(Double.doubleToLongBits(exp.ratedAmount), Double.doubleToLongBits(act.ratedAmount));
+      Assert.assertEquals(Double.doubleToLongBits(exp.RUMRated), Double.doubleToLongBits(act.RUMRated));
+      Assert.assertEquals(Double.doubleToLongBits(exp.tierFrom), Double.doubleToLongBits(act.tierFrom));
+      Assert.assertEquals(Double.doubleToLongBits(exp.tierTo), Double.doubleToLongBits(act.tierTo));
+    }
+  }
+
+  /**
+   * All rating types give the same results from the compiled model, across
+   * the validity versions of the model.
+   *
+   * @throws ProcessingException
+   */
+  @Test
+  public void testSameResults() throws ProcessingException {
+    System.out.println("testSameResults");
+
+    ReferenceRateCalc reference = new ReferenceRateCalc();
+    ArrayList<RateMapEntry> model = getVersionedModel();
+    CompiledPriceModel compiled = new CompiledPriceModel(model);
+    RatingResult result;
+
+    Assert.assertEquals(4, compiled.getTierCount());
+
+    for (long date : DATES) {
+      for (double value : VALUES) {
+        for (double offset : OFFSETS) {
+          result = new RatingResult();
+          Assert.assertTrue(compiled.rateTiered(result, value, offset, date, true));
+          assertSame(reference.tiered(model, value, offset, date), result);
+
+          result = new RatingResult();
+          Assert.assertTrue(compiled.rateThreshold(result, value, offset, date, true));
+          assertSame(reference.threshold(model, value, offset, date), result);
+        }
+
+        result = new RatingResult();
+        Assert.assertTrue(compiled.rateFlat(result, value, date, true));
+        assertSame(reference.flat(model, value, date), result);
+
+        result = new RatingResult();
+        Assert.assertTrue(compiled.rateEvent(result, (long) value, date, true));
+        assertSame(reference.event(model, (long) value, date), result);
+      }
+    }
+
+    // No breakdown unless asked for
+    result = new RatingResult();
+    Assert.assertTrue(compiled.rateTiered(result, 100, 0, 2000, false));
+    Assert.assertNull(result.breakdown);
+  }
+
+  /**
+   * Memoised results are the same as the calculated ones, and are kept apart
+   * by validity version.
+   *
+   * @throws ProcessingException
+   */
+  @Test
+  public void testMemo() throws ProcessingException {
+    System.out.println("testMemo");
+
+    ReferenceRateCalc reference = new ReferenceRateCalc();
+    ArrayList<RateMapEntry> model = getVersionedModel();
+    CompiledPriceModel compiled = new CompiledPriceModel(model, 64);
+    RatingResult result;
+    RatingResult expected;
+
+    Assert.assertEquals(compiled.getValidityVersion(500), compiled.getValidityVersion(999));
+    Assert.assertTrue(compiled.getValidityVersion(999) != compiled.getValidityVersion(1000));
+
+    // twice round, the second time from the memo
+    for (int pass = 0; pass < 2; pass++) {
+      for (long date : DATES) {
+        for (double value : VALUES) {
+          result = new RatingResult();
+          Assert.assertTrue(compiled.rateTiered(result, value, 30, date, false));
+          expected = reference.tiered(model, value, 30, date);
+          expected.breakdown = null;
+          assertSame(expected, result);
+
+          result = new RatingResult();
+          Assert.assertTrue(compiled.rateEvent(result, (long) value, date, false));
+          expected = reference.event(model, (long) value, date);
+          expected.breakdown = null;
+          assertSame(expected, result);
+        }
+      }
+    }
+
+    Assert.assertTrue(compiled.getMemoHits() > 0);
+    Assert.assertEquals(2 * DATES.length * VALUES.length * 2, compiled.getMemoHits() + compiled.getMemoMisses());
+
+    // a result memoised without a breakdown does not answer for one
+    long hits = compiled.getMemoHits();
+    result = new RatingResult();
+    Assert.assertTrue(compiled.rateTiered(result, 61, 30, 2000, true));
+    Assert.assertNotNull(result.breakdown);
+    Assert.assertEquals(hits, compiled.getMemoHits());
+
+    // but once memoised with the breakdown it does
+    result = new RatingResult();
+    Assert.assertTrue(compiled.rateTiered(result, 61, 30, 2000, true));
+    assertSame(reference.tiered(model, 61, 30, 2000), result);
+    Assert.assertEquals(hits + 1, compiled.getMemoHits());
+
+    // and the breakdown we get is our own copy
+    result.breakdown.get(0).ratedAmount = -1;
+    result = new RatingResult();
+    Assert.assertTrue(compiled.rateTiered(result, 61, 30, 2000, true));
+    assertSame(reference.tiered(model, 61, 30, 2000), result);
+    Assert.assertEquals(hits + 2, compiled.getMemoHits());
+
+    // no memo, no statistics
+    compiled = new CompiledPriceModel(model);
+    Assert.assertTrue(compiled.rateTiered(new RatingResult(), 61, 0, 2000, false));
+    Assert.assertEquals(0, compiled.getMemoHits() + compiled.getMemoMisses());
+  }
+
+  /**
+   * Breakdowns are memoised along with the results, as records ask for a
+   * breakdown by default, for all of the memoised rating types.
+   *
+   * @throws ProcessingException
+   */
+  @Test
+  public void testMemoBreakdown() throws ProcessingException {
+    System.out.println("testMemoBreakdown");
+
+    ReferenceRateCalc reference = new ReferenceRateCalc();
+    ArrayList<RateMapEntry> model = getVersionedModel();
+    CompiledPriceModel compiled = new CompiledPriceModel(model, 64);
+    RatingResult result;
+
+    // twice round, the second time from the memo
+    for (int pass = 0; pass < 2; pass++) {
+      for (double value : VALUES) {
+        result = new RatingResult();
+        Assert.assertTrue(compiled.rateTiered(result, value, 30, 1500, true));
+        assertSame(reference.tiered(model, value, 30, 1500), result);
+
+        result = new RatingResult();
+        Assert.assertTrue(compiled.rateThreshold(result, value, 30, 1500, true));
+        assertSame(reference.threshold(model, value, 30, 1500), result);
+
+        result = new RatingResult();
+        Assert.assertTrue(compiled.rateEvent(result, (long) value, 1500, true));
+        assertSame(reference.event(model, (long) value, 1500), result);
+      }
+    }
+
+    Assert.assertTrue(compiled.getMemoHits() > 0);
+    Assert.assertEquals(2 * VALUES.length * 3, compiled.getMemoHits() + compiled.getMemoMisses());
+  }
+
+  /**
+   * Dates without validity coverage are refused in the same cases as for the
+   * list rating.
+   */
+  @Test
+  public void testMissingValidity() {
+    System.out.println("testMissingValidity");
+
+    ReferenceRateCalc reference = new ReferenceRateCalc();
+    ArrayList<RateMapEntry> model = getPartialModel();
+    CompiledPriceModel compiled = new CompiledPriceModel(model);
+    RatingResult result;
+    boolean rated;
+    boolean referenceRated;
+
+    for (long date : DATES) {
+      for (double value : VALUES) {
+        result = new RatingResult();
+        rated = compiled.rateTiered(result, value, 0, date, true);
+        try {
+          assertSame(reference.tiered(model, value, 0, date), result);
+          referenceRated = true;
+        } catch (ProcessingException pe) {
+          referenceRated = false;
+        }
+        Assert.assertEquals(referenceRated, rated);
+
+        // event rating only needs the tiers that are used
+        result = new RatingResult();
+        rated = compiled.rateEvent(result, (long) value, date, true);
+        try {
+          assertSame(reference.event(model, (long) value, date), result);
+          referenceRated = true;
+        } catch (ProcessingException pe) {
+          referenceRated = false;
+        }
+        Assert.assertEquals(referenceRated, rated);
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package OpenRate.record;
+
+import TestUtils.TestRatingRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the lazy field view used by the records.
+ */
+public class FieldViewTest {
+
+  /**
+   * Fields are read and set by index, and unchanged fields are joined back
+   * from the original data.
+   */
+  @Test
+  public void testGetSetJoin() {
+    System.out.println("testGetSetJoin");
+
+    FieldView view = new FieldView("a;bb;;ccc;", ";");
+
+    Assert.assertEquals(5, view.size());
+    Assert.assertEquals("a", view.get(0));
+    Assert.assertEquals("", view.get(2));
+    Assert.assertEquals("", view.get(4));
+
+    // unchanged gives back the original
+    Assert.assertEquals("a;bb;;ccc;", view.join());
+
+    view.set(1, "X");
+    view.set(4, "end");
+    Assert.assertTrue(view.isChanged(1));
+    Assert.assertFalse(view.isChanged(3));
+    Assert.assertEquals("X", view.get(1));
+    Assert.assertEquals("a;X;;ccc;end", view.join());
+
+    // the separator is literal, not a regular expression
+    view = new FieldView("1|2||3", "||");
+    Assert.assertEquals(2, view.size());
+    Assert.assertEquals("1|2", view.get(0));
+
+    try {
+      view.get(2);
+      Assert.fail("Expected index out of bounds");
+    } catch (ArrayIndexOutOfBoundsException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * The rating record uses the view when it is split with splitFields.
+   */
+  @Test
+  public void testRatingRecordSplitFields() {
+    System.out.println("testRatingRecordSplitFields");
+
+    TestRatingRecord record = new TestRatingRecord();
+    record.setOriginalData("01\t02\t03");
+    record.splitFields("\t");
+
+    Assert.assertEquals(3, record.getFieldCount());
+    Assert.assertEquals("02", record.getField(1));
+    record.setField(2, "99");
+    Assert.assertEquals("01\t02\t99", record.joinFields());
+
+    // the fields array still works when it is filled directly
+    record.fields = new String[]{"x", "y"};
+    Assert.assertEquals(2, record.getFieldCount());
+    Assert.assertEquals("y", record.getField(1));
+  }
+}
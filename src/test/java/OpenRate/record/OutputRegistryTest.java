@@ -0,0 +1,97 @@
+package OpenRate.record;
+
+import OpenRate.exception.InitializationException;
+import TestUtils.TestRatingRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the output id resolution and the record routing by output id.
+ */
+public class OutputRegistryTest {
+
+  /**
+   * Names get stable ids, which do not depend on the case of the name.
+   */
+  @Test
+  public void testGetOutputId() {
+    System.out.println("testGetOutputId");
+
+    int id1 = OutputRegistry.registerOutput("RegistryTestOut1");
+    int id2 = OutputRegistry.registerOutput("RegistryTestOut2");
+
+    Assert.assertTrue(id1 >= 0);
+    Assert.assertTrue(id2 >= 0);
+    Assert.assertTrue(id1 != id2);
+    Assert.assertEquals(id1, OutputRegistry.getOutputId("registrytestout1"));
+    Assert.assertEquals(id1, OutputRegistry.registerOutput("REGISTRYTESTOUT1"));
+    Assert.assertEquals(1L << id1, OutputRegistry.getOutputMask(id1));
+    Assert.assertEquals(0, OutputRegistry.getOutputMask(OutputRegistry.NO_OUTPUT_ID));
+  }
+
+  /**
+   * Routing by id must give the same results as routing by name.
+   */
+  @Test
+  public void testRouteById() {
+    System.out.println("testRouteById");
+
+    int id1 = OutputRegistry.registerOutput("RegistryTestOut1");
+    int id2 = OutputRegistry.registerOutput("RegistryTestOut2");
+    int id3 = OutputRegistry.registerOutput("RegistryTestOut3");
+
+    // no outputs means all outputs
+    TestRatingRecord record = new TestRatingRecord();
+    Assert.assertTrue(record.getOutput(id1));
+    Assert.assertTrue(record.deleteOutput("RegistryTestOut1", true));
+    Assert.assertFalse(record.deleteOutput("RegistryTestOut1", false));
+
+    // chained outputs are consumed one by one
+    record = new TestRatingRecord();
+    record.addOutput("registrytestout1");
+    record.addOutput("RegistryTestOut3", id3);
+    Assert.assertTrue(record.getOutput(id1));
+    Assert.assertFalse(record.deleteOutput("RegistryTestOut1", false));
+    Assert.assertFalse(record.getOutput(id2));
+    Assert.assertTrue(record.getOutput(id3));
+    Assert.assertTrue(record.deleteOutput("RegistryTestOut3", false));
+
+    // and once they are all written, nothing else matches
+    Assert.assertFalse(record.getOutput(id1));
+
+    // clearing the outputs clears the mask too
+    record = new TestRatingRecord();
+    record.addOutput("RegistryTestOut2");
+    record.clearOutputs();
+    record.addOutput("RegistryTestOut3");
+    Assert.assertFalse(record.getOutput(id2));
+    Assert.assertTrue(record.getOutput(id3));
+  }
+
+  /**
+   * Names which no output adapter registered are not given ids, and cannot be
+   * resolved by the modules.
+   */
+  @Test
+  public void testUnknownName() {
+    System.out.println("testUnknownName");
+
+    int id1 = OutputRegistry.registerOutput("RegistryTestOut1");
+
+    Assert.assertEquals(OutputRegistry.NO_OUTPUT_ID, OutputRegistry.getOutputId("RegistryTestUnknown"));
+    Assert.assertEquals(OutputRegistry.NO_OUTPUT_ID, OutputRegistry.getOutputId("RegistryTestUnknown"));
+
+    try {
+      OutputRegistry.getRegisteredOutputId("RegistryTestUnknown", "OutputRegistryTest");
+      Assert.fail("Expected an exception");
+    } catch (InitializationException ex) {
+      // expected
+    }
+
+    // the record still carries the name, and routes only by name
+    TestRatingRecord record = new TestRatingRecord();
+    record.addOutput("RegistryTestUnknown");
+    Assert.assertFalse(record.getOutput(id1));
+    Assert.assertTrue(record.getOutput("RegistryTestUnknown"));
+  }
+}
@@ -0,0 +1,90 @@
+package OpenRate.record;
+
+import TestUtils.TestRatingRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the RUM and resource ids, and the record access by id.
+ */
+public class RUMRegistryTest {
+
+  /**
+   * RUM values can be read by name or by id, also when the RUM list is
+   * changed directly.
+   */
+  @Test
+  public void testRUMValues() {
+    System.out.println("testRUMValues");
+
+    int durId = RUMRegistry.getRUMId("RegTestDUR");
+    Assert.assertEquals(durId, RUMRegistry.findRUMId("RegTestDUR"));
+    Assert.assertEquals(RUMRegistry.NO_ID, RUMRegistry.findRUMId("RegTestNeverSeen"));
+
+    TestRatingRecord record = new TestRatingRecord();
+    Assert.assertEquals(0, record.getRUMValue(durId), 0);
+    Assert.assertFalse(record.updateRUMValue("RegTestDUR", 1));
+
+    record.setRUMValue("RegTestDUR", 60);
+    record.setRUMValue("RegTestVOL", 100);
+    Assert.assertEquals(60, record.getRUMValue("RegTestDUR"), 0);
+    Assert.assertTrue(record.updateRUMValue(durId, -10));
+    Assert.assertEquals(50, record.getRUMValue(durId), 0);
+    Assert.assertEquals(60, record.getOriginalRUMValue("RegTestDUR"), 0);
+    Assert.assertEquals(100, record.getRUMValue("RegTestVOL"), 0);
+
+    // changes made directly to the list are picked up
+    record.RUMs.clear();
+    record.RUMs.add(new RUMInfo("RegTestEVT", 1));
+    Assert.assertEquals(0, record.getRUMValue(durId), 0);
+    Assert.assertEquals(1, record.getRUMValue("RegTestEVT"), 0);
+  }
+
+  /**
+   * Impact totals match on the resource id, and on the name for packets
+   * which do not have an id.
+   */
+  @Test
+  public void testTotalImpact() {
+    System.out.println("testTotalImpact");
+
+    int eurId = RUMRegistry.getResourceId("RegTestEUR");
+
+    TestRatingRecord record = new TestRatingRecord();
+
+    ChargePacket cp1 = new ChargePacket();
+    cp1.setResource("RegTestEUR", eurId);
+    cp1.packetType = "R";
+    cp1.chargedValue = 1.5;
+    record.addChargePacket(cp1);
+
+    ChargePacket cp2 = new ChargePacket();
+    cp2.resource = "RegTestEUR";
+    cp2.packetType = "D";
+    cp2.chargedValue = 2;
+    record.addChargePacket(cp2);
+
+    ChargePacket cp3 = new ChargePacket();
+    cp3.resource = "RegTestUSD";
+    cp3.packetType = "R";
+    cp3.chargedValue = 7;
+    record.addChargePacket(cp3);
+
+    Assert.assertEquals(3.5, record.getTotalImpact("RegTestEUR"), 0);
+    Assert.assertEquals(3.5, record.getTotalImpact(eurId), 0);
+    Assert.assertEquals(1.5, record.getTotalImpact("RegTestEUR", "R"), 0);
+    Assert.assertEquals(7, record.getTotalImpact("RegTestUSD"), 0);
+
+    // NO_ID is not a resource
+    Assert.assertEquals(0, record.getTotalImpact(RUMRegistry.NO_ID), 0);
+
+    // the id is kept when the packet is cloned
+    Assert.assertEquals(eurId, cp1.shallowClone().getResourceId());
+
+    // and follows the resource when it is changed
+    cp1.resource = "RegTestUSD";
+    Assert.assertEquals(RUMRegistry.NO_ID, cp1.getResourceId());
+    Assert.assertEquals(2, record.getTotalImpact(eurId), 0);
+    Assert.assertEquals(8.5, record.getTotalImpact("RegTestUSD"), 0);
+  }
+}
@@ -0,0 +1,106 @@
+package OpenRate.record;
+
+import TestUtils.TestRatingRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the re-use of records through the record pool.
+ */
+public class RecordPoolTest {
+
+  /**
+   * Released records come back reset, with their collections kept.
+   */
+  @Test
+  public void testAcquireRelease() {
+    System.out.println("testAcquireRelease");
+
+    RecordPool pool = new RecordPool(2);
+
+    // the first acquire only registers the class
+    Assert.assertNull(pool.acquire(TestRatingRecord.class));
+
+    TestRatingRecord record = new TestRatingRecord();
+    record.setOriginalData("a;b");
+    record.splitFields(";");
+    record.addOutput("PoolTestOut");
+    record.addError(new RecordError("Test", ErrorType.DATA_VALIDATION));
+    record.RUMs.add(new RUMInfo("DUR", 60));
+    record.utcEventDate = 1234;
+
+    Assert.assertTrue(pool.release(record));
+    Assert.assertTrue(record.isReleased());
+
+    TestRatingRecord reused = pool.acquire(TestRatingRecord.class);
+    Assert.assertSame(record, reused);
+    Assert.assertFalse(reused.isReleased());
+    Assert.assertEquals(1, reused.getPoolGeneration());
+    Assert.assertNull(reused.getOriginalData());
+    Assert.assertTrue(reused.getOutputs().isEmpty());
+    Assert.assertFalse(reused.isErrored());
+    Assert.assertTrue(reused.isValid());
+    Assert.assertTrue(reused.RUMs.isEmpty());
+    Assert.assertEquals(0, reused.utcEventDate);
+
+    Assert.assertEquals(1, pool.getAcquireHits());
+    Assert.assertEquals(1, pool.getAcquireMisses());
+  }
+
+  /**
+   * A reused record finds its own RUMs, and not the ones of the record before
+   * it, however the RUM list is filled.
+   */
+  @Test
+  public void testReuseWithOtherRUM() {
+    System.out.println("testReuseWithOtherRUM");
+
+    RecordPool pool = new RecordPool(2);
+    pool.acquire(TestRatingRecord.class);
+
+    TestRatingRecord record = new TestRatingRecord();
+    record.setRUMValue("DUR", 60);
+    Assert.assertEquals(60, record.getRUMValue("DUR"), 0);
+
+    Assert.assertTrue(pool.release(record));
+    TestRatingRecord reused = pool.acquire(TestRatingRecord.class);
+    Assert.assertSame(record, reused);
+
+    // Refilled directly, with as many RUMs as before
+    Assert.assertEquals(0, reused.getRUMValue("DUR"), 0);
+    reused.RUMs.add(new RUMInfo("DUR", 30));
+    Assert.assertEquals(30, reused.getRUMValue("DUR"), 0);
+    Assert.assertTrue(reused.updateRUMValue("DUR", 5));
+    Assert.assertEquals(35, reused.RUMs.get(0).RUMQuantity, 0);
+
+    // Replaced in place
+    reused.RUMs.set(0, new RUMInfo("EVT", 1));
+    Assert.assertEquals(0, reused.getRUMValue("DUR"), 0);
+    Assert.assertEquals(1, reused.getRUMValue("EVT"), 0);
+
+    // Removed and added again
+    reused.RUMs.remove(0);
+    reused.RUMs.add(new RUMInfo("EVT", 2));
+    Assert.assertEquals(2, reused.getRUMValue("EVT"), 0);
+  }
+
+  /**
+   * Records of classes that do not use the pool and records released twice
+   * are refused.
+   */
+  @Test
+  public void testReleaseRefused() {
+    System.out.println("testReleaseRefused");
+
+    RecordPool pool = new RecordPool(2);
+    pool.acquire(TestRatingRecord.class);
+
+    // headers are not pooled
+    Assert.assertFalse(pool.release(new HeaderRecord()));
+
+    TestRatingRecord record = new TestRatingRecord();
+    Assert.assertTrue(pool.release(record));
+    Assert.assertFalse(pool.release(record));
+    Assert.assertEquals(1, pool.getDoubleReleases());
+  }
+}
@@ -0,0 +1,122 @@
+package OpenRate.record.flexRecord;
+
+import OpenRate.exception.InitializationException;
+import OpenRate.exception.ProcessingException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the mapping of data into flex records.
+ */
+public class FlexRecordTest {
+
+  /**
+   * Create a record with a three field root block.
+   */
+  private FlexRecord getDefinedRecord(String separator) throws Exception {
+    FlexRecord record = new FlexRecord("ROOT", 0);
+    record.AddBlockDef("ROOT", "ROOT", 3);
+    record.AddFieldDef("ROOT", "NAME", 1, "STRING");
+    record.AddFieldDef("ROOT", "COUNT", 2, "INTEGER");
+    record.AddFieldDef("ROOT", "AMOUNT", 3, "FLOAT");
+    record.AddMappingDef("ROOT", 0, "NAME");
+    record.AddMappingDef("ROOT", 2, "COUNT");
+    record.AddMappingDef("ROOT", 1, "AMOUNT");
+    record.MapSeparatorDef("ROOT", separator);
+    return record;
+  }
+
+  /**
+   * Fields are mapped by offset and typed, with the separator taken literally.
+   */
+  @Test
+  public void testMapRecord() throws Exception {
+    System.out.println("testMapRecord");
+
+    FlexRecord record = getDefinedRecord("|");
+    record.MapRecord("ROOT", "abc|12.5|7");
+
+    Assert.assertEquals(12.5, record.GetFieldFloat("ROOT~AMOUNT"), 0);
+    Assert.assertEquals(7, record.GetFieldFloat("ROOT~COUNT"), 0);
+    Assert.assertEquals(0, record.GetFieldFloat("ROOT~NAME"), 0);
+
+    record.PutFieldFloat("ROOT~AMOUNT", 3.25);
+    Assert.assertEquals(3.25, record.GetFieldFloat("ROOT~AMOUNT"), 0);
+
+    // the dump shows the typed values
+    Assert.assertTrue(record.getDumpInfo().toString().contains("<7>  <integer>"));
+    Assert.assertTrue(record.getDumpInfo().toString().contains("<abc>  <string>"));
+  }
+
+  /**
+   * Short data is rejected, and a changed separator is picked up.
+   */
+  @Test
+  public void testMapRecordShortData() throws Exception {
+    System.out.println("testMapRecordShortData");
+
+    FlexRecord record = getDefinedRecord("semicolon");
+
+    try {
+      record.MapRecord("ROOT", "abc;12.5");
+      Assert.fail("Expected short data to be rejected");
+    } catch (ProcessingException ex) {
+      Assert.assertTrue(ex.getMessage().contains("too short"));
+    }
+
+    record.MapSeparatorDef("ROOT", "::");
+    record.MapRecord("ROOT", "abc::1.5::2::extra");
+    Assert.assertEquals(1.5, record.GetFieldFloat("ROOT~AMOUNT"), 0);
+    Assert.assertEquals(2, record.GetFieldFloat("ROOT~COUNT"), 0);
+  }
+
+  /**
+   * Escaped separators are unescaped, and separators which need a regular
+   * expression are still split with one.
+   */
+  @Test
+  public void testMapRecordRegexSeparator() throws Exception {
+    System.out.println("testMapRecordRegexSeparator");
+
+    FlexRecord record = getDefinedRecord("\\|");
+    record.MapRecord("ROOT", "abc|12.5|7");
+    Assert.assertEquals(12.5, record.GetFieldFloat("ROOT~AMOUNT"), 0);
+    Assert.assertEquals(7, record.GetFieldFloat("ROOT~COUNT"), 0);
+
+    record = getDefinedRecord("\\t");
+    record.MapRecord("ROOT", "abc\t1.5\t2");
+    Assert.assertEquals(1.5, record.GetFieldFloat("ROOT~AMOUNT"), 0);
+
+    record = getDefinedRecord("[,;]");
+    record.MapRecord("ROOT", "abc;2.5,3");
+    Assert.assertEquals(2.5, record.GetFieldFloat("ROOT~AMOUNT"), 0);
+    Assert.assertEquals(3, record.GetFieldFloat("ROOT~COUNT"), 0);
+
+    try {
+      getDefinedRecord("[,");
+      Assert.fail("Expected an invalid separator to be rejected");
+    } catch (InitializationException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * A float put into a string field is kept, in that record only.
+   */
+  @Test
+  public void testPutFieldFloatString() throws Exception {
+    System.out.println("testPutFieldFloatString");
+
+    FlexRecord record = getDefinedRecord("|");
+    record.MapRecord("ROOT", "abc|12.5|7");
+    record.PutFieldFloat("ROOT~NAME", 4.5);
+    Assert.assertEquals(4.5, record.GetFieldFloat("ROOT~NAME"), 0);
+    Assert.assertTrue(record.getDumpInfo().toString().contains("<4.5>  <float>"));
+
+    // the next record still has a string field
+    record = getDefinedRecord("|");
+    record.MapRecord("ROOT", "abc|12.5|7");
+    Assert.assertEquals(0, record.GetFieldFloat("ROOT~NAME"), 0);
+    Assert.assertTrue(record.getDumpInfo().toString().contains("<abc>  <string>"));
+  }
+}
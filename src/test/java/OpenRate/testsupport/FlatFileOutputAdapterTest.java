@@ -14,9 +14,19 @@ import java.util.Collection;
  */
 public class FlatFileOutputAdapterTest extends FlatFileOutputAdapter {
 
+  /**
+   * A record holding this text makes the transaction abort, so that tests can
+   * check the rollback
+   */
+  public static final String ABORT_MARKER = "Abort this transaction";
+
   @Override
   public Collection<FlatRecord> procValidRecord(IRecord r) {
     Collection<FlatRecord> outbatch = new ArrayList<>();
+
+    if (ABORT_MARKER.equals(((FlatRecord) r).getData())) {
+      setTransactionAbort(getTransactionNumber());
+    }
     
     // just add the unmodified record to the out batch
     // Normally we will do some processing or transformation here, but not in
@@ -0,0 +1,32 @@
+package OpenRate.testsupport;
+
+import OpenRate.adapter.jdbc.JDBCBatchOutputAdapter;
+import OpenRate.record.DBRecord;
+import OpenRate.record.FlatRecord;
+import OpenRate.record.IRecord;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Very basic JDBC batch output adapter for test purposes. Writes the data of
+ * the flat records we got as the only column of the insert.
+ */
+public class JDBCBatchOutputAdapterTest extends JDBCBatchOutputAdapter {
+
+  @Override
+  public Collection<DBRecord> procValidRecord(IRecord r) {
+    Collection<DBRecord> outbatch = new ArrayList<>();
+    DBRecord outRec = new DBRecord();
+
+    outRec.setOutputColumnCount(1);
+    outRec.setOutputColumnString(0, ((FlatRecord) r).getData());
+    outbatch.add(outRec);
+
+    return outbatch;
+  }
+
+  @Override
+  public Collection<DBRecord> procErrorRecord(IRecord r) {
+    return procValidRecord(r);
+  }
+}
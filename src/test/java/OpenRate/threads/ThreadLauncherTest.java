@@ -0,0 +1,71 @@
+package OpenRate.threads;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the thread launcher, which creates platform or virtual threads.
+ */
+public class ThreadLauncherTest {
+
+  /**
+   * Platform threads are created in the thread group we give.
+   */
+  @Test
+  public void testNewPlatformThread() throws InterruptedException {
+    System.out.println("testNewPlatformThread");
+
+    ThreadGroup testGroup = new ThreadGroup("TestGroup");
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable work = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          // finish
+        }
+      }
+    };
+
+    Thread result = ThreadLauncher.newThread(testGroup, work, "Test.Inst-0", false);
+    Assert.assertEquals("Test.Inst-0", result.getName());
+    Assert.assertSame(testGroup, result.getThreadGroup());
+    Assert.assertFalse(result.isAlive());
+
+    ArrayList<Thread> threads = new ArrayList<>();
+    threads.add(result);
+    result.start();
+    Assert.assertEquals(1, ThreadLauncher.countAlive(threads));
+
+    release.countDown();
+    result.join();
+    Assert.assertEquals(0, ThreadLauncher.countAlive(threads));
+  }
+
+  /**
+   * Virtual threads are used if the JVM supports them, otherwise we fall back
+   * to platform threads. Either way, the work must be done.
+   */
+  @Test
+  public void testNewVirtualThread() throws InterruptedException {
+    System.out.println("testNewVirtualThread");
+
+    final CountDownLatch done = new CountDownLatch(1);
+    Runnable work = new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    };
+
+    Thread result = ThreadLauncher.newThread(null, work, "Test.Virtual", true);
+    Assert.assertEquals("Test.Virtual", result.getName());
+
+    result.start();
+    result.join();
+    Assert.assertEquals(0, done.getCount());
+  }
+}
@@ -0,0 +1,87 @@
+package OpenRate.transaction;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the lock free transaction state.
+ */
+public class TransactionInfoTest {
+
+  /**
+   * Transaction numbers taken from many threads are unique and leave no gaps.
+   */
+  @Test
+  public void testNextTransactionNumber() throws InterruptedException {
+    System.out.println("testNextTransactionNumber");
+
+    final ConcurrentHashMap<Integer, Boolean> numbers = new ConcurrentHashMap<>();
+    final AtomicInteger duplicates = new AtomicInteger();
+    final int start = TransactionManager.getNextTransactionNumber();
+    Thread[] threads = new Thread[8];
+
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            if (numbers.put(TransactionManager.getNextTransactionNumber(), Boolean.TRUE) != null) {
+              duplicates.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(0, duplicates.get());
+    Assert.assertEquals(threads.length * 10000, numbers.size());
+
+    for (int i = 1; i <= threads.length * 10000; i++) {
+      Assert.assertTrue(numbers.containsKey(start + i));
+    }
+  }
+
+  /**
+   * Clients updating their own status and record count from their own
+   * threads see the values they set, and the other clients are not touched.
+   */
+  @Test
+  public void testClientStatus() throws InterruptedException {
+    System.out.println("testClientStatus");
+
+    final TransactionInfo instance = new TransactionInfo();
+    Thread[] threads = new Thread[10];
+
+    for (int t = 0; t < threads.length; t++) {
+      final int client = t + 1;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i <= 10000; i++) {
+            instance.setClientStatus(client, i % 7);
+            instance.setRecordCount(client, i);
+          }
+        }
+      });
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int client = 1; client <= threads.length; client++) {
+      Assert.assertEquals(10000 % 7, instance.getClientStatus(client));
+      Assert.assertEquals(10000, instance.getRecordCount(client));
+    }
+
+    Assert.assertEquals(0, instance.getClientStatus(threads.length + 1));
+  }
+}
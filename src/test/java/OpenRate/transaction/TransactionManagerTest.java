@@ -0,0 +1,109 @@
+package OpenRate.transaction;
+
+import OpenRate.OpenRate;
+import OpenRate.logging.ILogger;
+import TestUtils.FrameworkUtils;
+import java.net.URL;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the registration of clients in the transaction manager.
+ */
+public class TransactionManagerTest {
+
+  private static final TMDefs TMD = TMDefs.getTMDefs();
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    // The transaction manager logs through the framework log
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestPersistentObject.properties.xml"));
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    OpenRate.getApplicationInstance().finaliseApplication();
+  }
+
+  /**
+   * Transaction manager which does not need a pipeline around it.
+   */
+  private static class TestTransactionManager extends TransactionManager {
+
+    @Override
+    protected ILogger getPipeLog() {
+      return OpenRate.getOpenRateFrameworkLog();
+    }
+  }
+
+  /**
+   * Client which does nothing.
+   */
+  private static class TestClient implements ITMClient {
+
+    @Override
+    public boolean updateTransactionStatusFlush(int transactionNumber) {
+      return true;
+    }
+
+    @Override
+    public void updateTransactionStatusCommit(int transactionNumber) {
+    }
+
+    @Override
+    public void updateTransactionStatusRollback(int transactionNumber) {
+    }
+
+    @Override
+    public void updateTransactionStatusClose(int transactionNumber) {
+    }
+  }
+
+  /**
+   * Many lanes of many clients need more room than the transaction manager
+   * starts with, and all of the clients can still take part in transactions.
+   */
+  @Test
+  public void testManyClients() throws Exception {
+    System.out.println("testManyClients");
+
+    TransactionManager instance = new TestTransactionManager();
+    instance.init("TMTestPipe");
+
+    int lanes = 60;
+    int clientsPerLane = 3;
+    int firstClient = 0;
+    int lastClient = 0;
+
+    for (int lane = 1; lane <= lanes; lane++) {
+      instance.setRegistrationLane(lane);
+
+      firstClient = instance.registerClient(TMD.CT_CLIENT_INPUT, new TestClient());
+      for (int i = 1; i < clientsPerLane; i++) {
+        lastClient = instance.registerClient(TMD.CT_CLIENT_OUTPUT, new TestClient());
+      }
+    }
+
+    instance.setRegistrationLane(0);
+
+    Assert.assertEquals(lanes * clientsPerLane, instance.getNumberOfClients());
+
+    // Open a transaction in the last lane, and move its last client on
+    int transNumber = instance.openTransaction("TMTestPipe", firstClient);
+    Assert.assertTrue(transNumber > 0);
+    Assert.assertEquals(1, instance.getLaneTransactionCount(lanes));
+
+    instance.setClientStatus(transNumber, lastClient, TMD.TM_PROCESSING);
+    instance.updateClientRecordCount(transNumber, firstClient, 10);
+
+    Assert.assertEquals(TMD.TM_PROCESSING, instance.getClientStatus(transNumber, lastClient));
+    Assert.assertEquals(transNumber, instance.getTransactionNumber(lastClient));
+    Assert.assertEquals(0, instance.getClientStatus(transNumber, 1));
+
+    instance.close();
+  }
+}
@@ -0,0 +1,66 @@
+package OpenRate.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the latency histogram used in the real time statistics.
+ */
+public class LatencyHistogramTest {
+
+  /**
+   * The index mapping must be continuous, and each index must cover the values
+   * which map to it.
+   */
+  @Test
+  public void testIndexMapping() {
+    System.out.println("testIndexMapping");
+
+    int lastIndex = 0;
+    for (long value = 0; value < 100000; value++) {
+      int index = LatencyHistogram.getIndex(value);
+
+      Assert.assertTrue(index == lastIndex || index == lastIndex + 1);
+      Assert.assertTrue(LatencyHistogram.getHighestEquivalentValue(index) >= value);
+      if (index > 0) {
+        Assert.assertTrue(LatencyHistogram.getHighestEquivalentValue(index - 1) < value);
+      }
+
+      lastIndex = index;
+    }
+  }
+
+  /**
+   * Percentiles must be within the precision of the histogram.
+   */
+  @Test
+  public void testPercentiles() {
+    System.out.println("testPercentiles");
+
+    LatencyHistogram instance = new LatencyHistogram();
+    Assert.assertEquals(0, instance.getValueAtPercentile(99.0));
+
+    // 1..10000 us in ns
+    for (long value = 1; value <= 10000; value++) {
+      instance.recordValue(value * 1000);
+    }
+
+    Assert.assertEquals(10000, instance.getTotalCount());
+    Assert.assertEquals(10000000, instance.getMaxValue());
+    Assert.assertEquals(5000500.0, instance.getMean(), 0.001);
+
+    assertWithinPrecision(5000000, instance.getValueAtPercentile(50.0));
+    assertWithinPrecision(9900000, instance.getValueAtPercentile(99.0));
+    assertWithinPrecision(9990000, instance.getValueAtPercentile(99.9));
+    Assert.assertEquals(10000000, instance.getValueAtPercentile(100.0));
+
+    instance.reset();
+    Assert.assertEquals(0, instance.getTotalCount());
+    Assert.assertEquals(0, instance.getMaxValue());
+  }
+
+  private void assertWithinPrecision(long expected, long actual) {
+    Assert.assertTrue("expected <" + expected + "> got <" + actual + ">", actual >= expected);
+    Assert.assertTrue("expected <" + expected + "> got <" + actual + ">", actual <= expected + expected / 50);
+  }
+}